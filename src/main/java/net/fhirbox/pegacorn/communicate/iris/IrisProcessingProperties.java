@@ -0,0 +1,400 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris;
+
+import javax.enterprise.context.ApplicationScoped;
+
+/**
+ * The processing (tuning) properties of the Iris module. Each value has a
+ * sensible default and may be overridden by a JVM System Property of the same
+ * name (e.g. in the Wildfly standalone-ha.xml "system-properties" block).
+ * <p>
+ * The values are read once, when the bean is created.
+ *
+ * @author ACT Health
+ */
+@ApplicationScoped
+public class IrisProcessingProperties {
+
+    private static final String INGRESS_ZERO_COPY_SLICING = "pegacorn.communicate.iris.ingress.zero-copy-slicing";
+    private static final String INGRESS_BUFFER_CAPACITY = "pegacorn.communicate.iris.ingress.buffer-capacity";
+    private static final String INGRESS_BUFFER_HIGH_WATERMARK = "pegacorn.communicate.iris.ingress.buffer-high-watermark";
+    private static final String INGRESS_BUFFER_LOW_WATERMARK = "pegacorn.communicate.iris.ingress.buffer-low-watermark";
+    private static final String INGRESS_RETRY_AFTER_MILLIS = "pegacorn.communicate.iris.ingress.retry-after-ms";
+    private static final String INGRESS_MAXIMUM_PAYLOAD_BYTES = "pegacorn.communicate.iris.ingress.maximum-payload-bytes";
+    private static final String INGRESS_IN_FLIGHT_BYTE_BUDGET = "pegacorn.communicate.iris.ingress.in-flight-byte-budget";
+    private static final String INGRESS_TRANSACTION_ID_LIFESPAN_MILLIS = "pegacorn.communicate.iris.ingress.transaction-id-lifespan-ms";
+    private static final String INGRESS_TRANSACTION_CLAIM_LIFESPAN_MILLIS = "pegacorn.communicate.iris.ingress.transaction-claim-lifespan-ms";
+    private static final String TRANSFORMER_ROOM_SHARD_COUNT = "pegacorn.communicate.iris.transformer.room-shard-count";
+    private static final String COMMUNICATION_BATCHING = "pegacorn.communicate.iris.transformer.communication-batching";
+    private static final String COMMUNICATION_BATCH_SIZE = "pegacorn.communicate.iris.transformer.communication-batch-size";
+    private static final String COMMUNICATION_BATCH_LINGER_MILLIS = "pegacorn.communicate.iris.transformer.communication-batch-linger-ms";
+    private static final String COMMUNICATION_BATCH_ENDPOINT = "pegacorn.communicate.iris.transformer.communication-batch-endpoint";
+    private static final String DIRECT_JSON_SERIALIZATION = "pegacorn.communicate.iris.transformer.direct-json-serialization";
+    private static final String ROOM_STATE_DEBOUNCE_MILLIS = "pegacorn.communicate.iris.transformer.room-state-debounce-ms";
+    private static final String ROOM_STATE_VIEW_LIFESPAN_MILLIS = "pegacorn.communicate.iris.transformer.room-state-view-lifespan-ms";
+    private static final String MESSAGE_EDIT_WINDOW_MILLIS = "pegacorn.communicate.iris.transformer.message-edit-window-ms";
+    private static final String NEAR_CACHE_MAXIMUM_ENTRIES = "pegacorn.communicate.iris.near-cache.maximum-entries";
+    private static final String WRITE_BEHIND_MAXIMUM_IN_FLIGHT = "pegacorn.communicate.iris.write-behind.maximum-in-flight";
+    private static final String WRITE_BEHIND_FLUSH_TIMEOUT_MILLIS = "pegacorn.communicate.iris.write-behind.flush-timeout-ms";
+    private static final String PERSISTENCE_DIRECTORY = "pegacorn.communicate.iris.persistence.directory";
+    private static final String PERSISTENCE_PASSIVATION = "pegacorn.communicate.iris.persistence.passivation";
+    private static final String PERSISTENCE_MAXIMUM_IN_MEMORY_ENTRIES = "pegacorn.communicate.iris.persistence.maximum-in-memory-entries";
+    private static final String COMMUNICATION_INDEX_LIFESPAN_MILLIS = "pegacorn.communicate.iris.communication-index.lifespan-ms";
+    private static final String COMMUNICATION_INDEX_MAXIMUM_ENTRIES = "pegacorn.communicate.iris.communication-index.maximum-entries";
+    private static final String DEDUPLICATION_EXPECTED_EVENTS = "pegacorn.communicate.iris.deduplication.expected-events";
+    private static final String DEDUPLICATION_FALSE_POSITIVE_RATE = "pegacorn.communicate.iris.deduplication.false-positive-rate";
+    private static final String DEDUPLICATION_EVENT_ID_LIFESPAN_MILLIS = "pegacorn.communicate.iris.deduplication.event-id-lifespan-ms";
+    private static final String DEDUPLICATION_EVENT_ID_MAXIMUM_ENTRIES = "pegacorn.communicate.iris.deduplication.event-id-maximum-entries";
+
+    private boolean ingressZeroCopySlicingEnabled;
+    private int ingressBufferCapacity;
+    private int ingressBufferHighWatermark;
+    private int ingressBufferLowWatermark;
+    private long ingressRetryAfterMillis;
+    private long ingressMaximumPayloadBytes;
+    private long ingressInFlightByteBudget;
+    private long ingressTransactionIDLifespanMillis;
+    private long ingressTransactionClaimLifespanMillis;
+    private int transformerRoomShardCount;
+    private boolean communicationBatchingEnabled;
+    private int communicationBatchSize;
+    private long communicationBatchLingerMillis;
+    private String communicationBatchEndpoint;
+    private boolean directJSONSerializationEnabled;
+    private long roomStateDebounceMillis;
+    private long roomStateViewLifespanMillis;
+    private long messageEditWindowMillis;
+    private long nearCacheMaximumEntries;
+    private int writeBehindMaximumInFlight;
+    private long writeBehindFlushTimeoutMillis;
+    private String persistenceDirectory;
+    private boolean persistencePassivationEnabled;
+    private long persistenceMaximumInMemoryEntries;
+    private long communicationIndexLifespanMillis;
+    private long communicationIndexMaximumEntries;
+    private long deduplicationExpectedEvents;
+    private double deduplicationFalsePositiveRate;
+    private long deduplicationEventIDLifespanMillis;
+    private long deduplicationEventIDMaximumEntries;
+
+    public IrisProcessingProperties() {
+        this.ingressZeroCopySlicingEnabled = Boolean.parseBoolean(System.getProperty(INGRESS_ZERO_COPY_SLICING, "false"));
+        this.ingressBufferCapacity = Integer.getInteger(INGRESS_BUFFER_CAPACITY, 1000);
+        this.ingressBufferHighWatermark = Integer.getInteger(INGRESS_BUFFER_HIGH_WATERMARK, 800);
+        this.ingressBufferLowWatermark = Integer.getInteger(INGRESS_BUFFER_LOW_WATERMARK, 500);
+        this.ingressRetryAfterMillis = Long.getLong(INGRESS_RETRY_AFTER_MILLIS, 1000L);
+        this.ingressMaximumPayloadBytes = Long.getLong(INGRESS_MAXIMUM_PAYLOAD_BYTES, 32L * 1024 * 1024);
+        this.ingressInFlightByteBudget = Long.getLong(INGRESS_IN_FLIGHT_BYTE_BUDGET, 256L * 1024 * 1024);
+        this.ingressTransactionIDLifespanMillis = Long.getLong(INGRESS_TRANSACTION_ID_LIFESPAN_MILLIS, 24L * 60 * 60 * 1000);
+        this.ingressTransactionClaimLifespanMillis = Long.getLong(INGRESS_TRANSACTION_CLAIM_LIFESPAN_MILLIS, 60L * 1000);
+        this.transformerRoomShardCount = Integer.getInteger(TRANSFORMER_ROOM_SHARD_COUNT, 1);
+        this.communicationBatchingEnabled = Boolean.parseBoolean(System.getProperty(COMMUNICATION_BATCHING, "false"));
+        this.communicationBatchSize = Integer.getInteger(COMMUNICATION_BATCH_SIZE, 100);
+        this.communicationBatchLingerMillis = Long.getLong(COMMUNICATION_BATCH_LINGER_MILLIS, 250L);
+        this.communicationBatchEndpoint = System.getProperty(COMMUNICATION_BATCH_ENDPOINT, "jms:topic:pegacorn.communicate.iris.raw-communication-transactions");
+        this.directJSONSerializationEnabled = Boolean.parseBoolean(System.getProperty(DIRECT_JSON_SERIALIZATION, "false"));
+        this.roomStateDebounceMillis = Long.getLong(ROOM_STATE_DEBOUNCE_MILLIS, 0L);
+        this.roomStateViewLifespanMillis = Long.getLong(ROOM_STATE_VIEW_LIFESPAN_MILLIS, 24L * 60 * 60 * 1000);
+        this.messageEditWindowMillis = Long.getLong(MESSAGE_EDIT_WINDOW_MILLIS, 2000L);
+        this.nearCacheMaximumEntries = Long.getLong(NEAR_CACHE_MAXIMUM_ENTRIES, 10000L);
+        this.writeBehindMaximumInFlight = Integer.getInteger(WRITE_BEHIND_MAXIMUM_IN_FLIGHT, 256);
+        this.writeBehindFlushTimeoutMillis = Long.getLong(WRITE_BEHIND_FLUSH_TIMEOUT_MILLIS, 10000L);
+        this.persistenceDirectory = System.getProperty(PERSISTENCE_DIRECTORY, "");
+        this.persistencePassivationEnabled = Boolean.parseBoolean(System.getProperty(PERSISTENCE_PASSIVATION, "false"));
+        this.persistenceMaximumInMemoryEntries = Long.getLong(PERSISTENCE_MAXIMUM_IN_MEMORY_ENTRIES, 1000000L);
+        this.communicationIndexLifespanMillis = Long.getLong(COMMUNICATION_INDEX_LIFESPAN_MILLIS, 35L * 24 * 60 * 60 * 1000);
+        this.communicationIndexMaximumEntries = Long.getLong(COMMUNICATION_INDEX_MAXIMUM_ENTRIES, 5000000L);
+        this.deduplicationExpectedEvents = Long.getLong(DEDUPLICATION_EXPECTED_EVENTS, 100000L);
+        this.deduplicationFalsePositiveRate = Double.parseDouble(System.getProperty(DEDUPLICATION_FALSE_POSITIVE_RATE, "0.001"));
+        this.deduplicationEventIDLifespanMillis = Long.getLong(DEDUPLICATION_EVENT_ID_LIFESPAN_MILLIS, 24L * 60 * 60 * 1000);
+        this.deduplicationEventIDMaximumEntries = Long.getLong(DEDUPLICATION_EVENT_ID_MAXIMUM_ENTRIES, 1000000L);
+    }
+
+    /**
+     * @return true if the UoW ingress content should hold offset/length views
+     * over the original RoomServer message rather than per-event Strings
+     */
+    public boolean isIngressZeroCopySlicingEnabled() {
+        return (this.ingressZeroCopySlicingEnabled);
+    }
+
+    /**
+     * @return The maximum number of RoomServer messages held in the ingress
+     * buffer (awaiting encapsulation and transformation)
+     */
+    public int getIngressBufferCapacity() {
+        return (this.ingressBufferCapacity);
+    }
+
+    /**
+     * @return The ingress buffer depth at which new RoomServer messages start
+     * being refused (with a "retry later" response)
+     */
+    public int getIngressBufferHighWatermark() {
+        return (this.ingressBufferHighWatermark);
+    }
+
+    /**
+     * @return The ingress buffer depth the buffer must drain to, once the high
+     * watermark has been reached, before RoomServer messages are accepted again
+     */
+    public int getIngressBufferLowWatermark() {
+        return (this.ingressBufferLowWatermark);
+    }
+
+    /**
+     * @return The back-off (in milliseconds) suggested to the RoomServer when
+     * a message is refused
+     */
+    public long getIngressRetryAfterMillis() {
+        return (this.ingressRetryAfterMillis);
+    }
+
+    /**
+     * @return The maximum (decoded, in-memory) size in bytes of a single
+     * RoomServer message
+     */
+    public long getIngressMaximumPayloadBytes() {
+        return (this.ingressMaximumPayloadBytes);
+    }
+
+    /**
+     * @return The maximum (decoded, in-memory) size in bytes of all the
+     * RoomServer messages being received or awaiting processing at once (a
+     * message is held until the last of its events has been processed, on
+     * whichever room shard)
+     */
+    public long getIngressInFlightByteBudget() {
+        return (this.ingressInFlightByteBudget);
+    }
+
+    /**
+     * @return How long (in milliseconds) a completed RoomServer transaction ID
+     * is remembered for, so that a retried transaction can be recognised
+     */
+    public long getIngressTransactionIDLifespanMillis() {
+        return (this.ingressTransactionIDLifespanMillis);
+    }
+
+    /**
+     * @return How long (in milliseconds) a RoomServer transaction that is
+     * still being handed over stays claimed - a small multiple of the
+     * hand-over time, so the claim of a node that dies mid-transaction
+     * doesn't hold up the RoomServer's retries for long
+     */
+    public long getIngressTransactionClaimLifespanMillis() {
+        return (this.ingressTransactionClaimLifespanMillis);
+    }
+
+    /**
+     * @return The number of (room_id based) shards the Matrix events are
+     * spread across for transformation - 1 (or less) means the events are
+     * processed sequentially, on the thread that split the RoomServer message
+     */
+    public int getTransformerRoomShardCount() {
+        return (this.transformerRoomShardCount);
+    }
+
+    /**
+     * @return true if the FHIR::Communication resources from m.room.message
+     * events should be published in (transaction) FHIR::Bundles of many,
+     * rather than in a (message) FHIR::Bundle each
+     */
+    public boolean isCommunicationBatchingEnabled() {
+        return (this.communicationBatchingEnabled);
+    }
+
+    /**
+     * @return The maximum number of FHIR::Communication resources in a batch
+     */
+    public int getCommunicationBatchSize() {
+        return (this.communicationBatchSize);
+    }
+
+    /**
+     * @return The maximum time (in milliseconds) a partial batch is held
+     * before it is published
+     */
+    public long getCommunicationBatchLingerMillis() {
+        return (this.communicationBatchLingerMillis);
+    }
+
+    /**
+     * @return The endpoint the (transaction) FHIR::Bundles of batched
+     * FHIR::Communication resources are published to - kept apart from the
+     * raw Communication topic, whose consumers expect a (message) FHIR::Bundle
+     * each
+     */
+    public String getCommunicationBatchEndpoint() {
+        return (this.communicationBatchEndpoint);
+    }
+
+    /**
+     * @return true if the (message) FHIR::Bundles published to the raw
+     * Communication topic (from m.room.message events, edits and redactions)
+     * should be FHIR JSON (written directly, where the message allows) rather
+     * than FHIR::Bundle objects - every consumer of the topic must expect
+     * FHIR JSON when this is set
+     */
+    public boolean isDirectJSONSerializationEnabled() {
+        return (this.directJSONSerializationEnabled);
+    }
+
+    /**
+     * @return The window (in milliseconds) over which the state events of a
+     * room are folded into one FHIR::Group update - 0 (or less) means each
+     * state event is transformed (and published) on its own
+     */
+    public long getRoomStateDebounceMillis() {
+        return (this.roomStateDebounceMillis);
+    }
+
+    /**
+     * @return How long (in milliseconds) the folded state of a room is kept
+     * in memory after its last state event
+     */
+    public long getRoomStateViewLifespanMillis() {
+        return (this.roomStateViewLifespanMillis);
+    }
+
+    /**
+     * @return How long (in milliseconds) successive edits (m.replace) of a
+     * message are collected, before the latest is published as a single
+     * update of the message's FHIR::Communication
+     */
+    public long getMessageEditWindowMillis() {
+        return (this.messageEditWindowMillis);
+    }
+
+    /**
+     * @return The number of entries each node keeps (locally) in the
+     * near-cache in front of each shared mapping cache
+     */
+    public long getNearCacheMaximumEntries() {
+        return (this.nearCacheMaximumEntries);
+    }
+
+    /**
+     * @return The number of (asynchronous) writes each mapping cache may have
+     * awaiting the cluster at once, before a writer has to wait
+     */
+    public int getWriteBehindMaximumInFlight() {
+        return (this.writeBehindMaximumInFlight);
+    }
+
+    /**
+     * @return How long (in milliseconds) a mapping cache waits, on shutdown,
+     * for its outstanding writes to be acknowledged by the cluster
+     */
+    public long getWriteBehindFlushTimeoutMillis() {
+        return (this.writeBehindFlushTimeoutMillis);
+    }
+
+    /**
+     * @return true if the mapping caches should be kept in a (node local) file
+     * store, i.e. if a persistence directory has been configured
+     */
+    public boolean isPersistenceEnabled() {
+        return (!this.persistenceDirectory.isEmpty());
+    }
+
+    /**
+     * @return The directory under which each persistent cache keeps its file
+     * store
+     */
+    public String getPersistenceDirectory() {
+        return (this.persistenceDirectory);
+    }
+
+    /**
+     * @return true if a persistent cache should only write entries to its
+     * file store as they are evicted from memory (so the cache can be larger
+     * than the heap)
+     */
+    public boolean isPersistencePassivationEnabled() {
+        return (this.persistencePassivationEnabled);
+    }
+
+    /**
+     * @return The number of entries each node keeps in memory for a
+     * passivating persistent cache (that has no bound of its own)
+     */
+    public long getPersistenceMaximumInMemoryEntries() {
+        return (this.persistenceMaximumInMemoryEntries);
+    }
+
+    /**
+     * @return How long (in milliseconds) the event_id to FHIR::Communication
+     * index keeps an entry, i.e. how old a message can be and still be
+     * redacted/edited
+     */
+    public long getCommunicationIndexLifespanMillis() {
+        return (this.communicationIndexLifespanMillis);
+    }
+
+    /**
+     * @return The number of entries each node keeps in memory for the
+     * event_id to FHIR::Communication index (the least recently used beyond
+     * this are evicted)
+     */
+    public long getCommunicationIndexMaximumEntries() {
+        return (this.communicationIndexMaximumEntries);
+    }
+
+    /**
+     * @return The number of event IDs each generation of the de-duplication
+     * (Bloom) filter holds - the filter remembers between one and two
+     * generations worth of events
+     */
+    public long getDeduplicationExpectedEvents() {
+        return (this.deduplicationExpectedEvents);
+    }
+
+    /**
+     * @return The target false positive rate of the de-duplication (Bloom)
+     * filter - a false positive costs an extra cluster cache lookup, not a
+     * lost event
+     */
+    public double getDeduplicationFalsePositiveRate() {
+        return (this.deduplicationFalsePositiveRate);
+    }
+
+    /**
+     * @return How long (in milliseconds) an event ID is kept in the exact
+     * (clustered) de-duplication map
+     */
+    public long getDeduplicationEventIDLifespanMillis() {
+        return (this.deduplicationEventIDLifespanMillis);
+    }
+
+    /**
+     * @return The number of entries each node keeps in memory for the exact
+     * (clustered) de-duplication map (the least recently used beyond this are
+     * evicted, and a repeat of an evicted event ID is passed as new)
+     */
+    public long getDeduplicationEventIDMaximumEntries() {
+        return (this.deduplicationEventIDMaximumEntries);
+    }
+}
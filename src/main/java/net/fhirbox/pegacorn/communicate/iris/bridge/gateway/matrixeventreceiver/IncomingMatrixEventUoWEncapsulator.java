@@ -23,11 +23,15 @@
  */
 package net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver;
 
+import java.nio.CharBuffer;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MatrixMessageException;
 import net.fhirbox.pegacorn.petasos.model.FDN;
 import net.fhirbox.pegacorn.petasos.model.RDN;
 import net.fhirbox.pegacorn.petasos.model.UoW;
@@ -46,9 +50,12 @@ public class IncomingMatrixEventUoWEncapsulator
     @Inject
     IncomingMatrixMessageSplitter messageSplitter;
 
-    public UoW encapsulateMatrixMessage(String matrixMessage)
+    @Inject
+    IrisProcessingProperties processingProperties;
+
+    public UoW encapsulateMatrixMessage(CharBuffer matrixMessage) throws MatrixMessageException
     {
-        LOG.debug("encapsulateMatrixMessage(): Entry, Matrix Message --> {}", matrixMessage);
+        LOG.debug("encapsulateMatrixMessage(): Entry, Matrix Message characters --> {}", matrixMessage.remaining());
         
         // First, create my FDN
         FDN myFDN = new FDN();
@@ -65,8 +72,15 @@ public class IncomingMatrixEventUoWEncapsulator
         LOG.trace("encapsulateMatrixMessage(): FDN Created, value --> {}", myFDN);
         
         // Now, create the UoW's ingress content list by splitting apart the incoming
-        // Matrix message (as the Matrix message itself is an array of messages
-        LinkedHashSet<String> newContent = messageSplitter.splitMessageIntoEvents(matrixMessage);
+        // Matrix message (as the Matrix message itself is an array of messages) - the
+        // splitter validates the message as it goes, so there is no separate validation pass.
+        // In zero-copy mode, the content is a set of views over the (decoded) message buffer.
+        Set<String> newContent;
+        if (processingProperties.isIngressZeroCopySlicingEnabled()) {
+            newContent = messageSplitter.sliceMessageIntoEvents(matrixMessage);
+        } else {
+            newContent = messageSplitter.splitMessageIntoEvents(matrixMessage);
+        }
         LOG.trace("encapsulateMatrixMessage(): Matrix Message split into discrete messages");
         UoW newUoW = new UoW( myFDN, newContent);
         LOG.debug("encapsulateMatrixMessage(): Exit, UoW create, FDN --> {}", newUoW.getUoWFDN().toString());
@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class controls admission of RoomServer (transaction) messages into
+ * the bounded ingress buffer that sits between the RoomServer facing
+ * endpoint and the encapsulation/transformation routes.
+ * <p>
+ * Admission uses a high/low watermark pair: once the buffer depth reaches
+ * the high watermark, messages are refused until the buffer has drained to
+ * the low watermark (so the RoomServer isn't flip-flopped between accepted
+ * and refused on every message). Refused messages are answered with the
+ * Matrix "M_LIMIT_EXCEEDED" (HTTP 429) response, which causes the RoomServer
+ * to back off and retry the transaction.
+ * <p>
+ * The depth is only ever advanced by a compare-and-set against the depth the
+ * decision was made on, so concurrent callers can't overshoot the high
+ * watermark.
+ *
+ * @author ACT Health
+ */
+@ApplicationScoped
+public class IncomingMatrixMessageAdmissionController {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IncomingMatrixMessageAdmissionController.class);
+
+    public static final int LIMIT_EXCEEDED_HTTP_STATUS = 429;
+
+    private static final String INGRESS_BUFFER_ENDPOINT = "seda:iris.matrixeventreceiver.IngressBuffer";
+
+    @Inject
+    IrisProcessingProperties processingProperties;
+
+    private final AtomicInteger bufferDepth = new AtomicInteger();
+    private final AtomicBoolean refusingMessages = new AtomicBoolean();
+    private int bufferCapacity;
+    private int highWatermark;
+    private int lowWatermark;
+    private String limitExceededResponse;
+
+    @PostConstruct
+    public void initialise() {
+        this.bufferCapacity = Math.max(1, processingProperties.getIngressBufferCapacity());
+        this.highWatermark = Math.min(Math.max(1, processingProperties.getIngressBufferHighWatermark()), this.bufferCapacity);
+        this.lowWatermark = Math.min(Math.max(0, processingProperties.getIngressBufferLowWatermark()), this.highWatermark - 1);
+        this.limitExceededResponse = "{\"errcode\":\"M_LIMIT_EXCEEDED\",\"error\":\"Too many requests, ingress buffer is full\",\"retry_after_ms\":"
+                + processingProperties.getIngressRetryAfterMillis() + "}";
+        LOG.info("initialise(): Ingress Buffer capacity --> {}, high watermark --> {}, low watermark --> {}", this.bufferCapacity, this.highWatermark, this.lowWatermark);
+    }
+
+    /**
+     * @return The (SEDA) endpoint URI of the ingress buffer, for both the
+     * producer and consumer side
+     */
+    public String getIngressBufferEndpoint() {
+        return (INGRESS_BUFFER_ENDPOINT + "?size=" + this.bufferCapacity + "&blockWhenFull=false");
+    }
+
+    /**
+     * Decides whether the next RoomServer message may be placed into the
+     * ingress buffer - and, if so, counts it in.
+     *
+     * @return true if the message is admitted
+     */
+    public boolean admitMessage() {
+        int currentDepth;
+        do {
+            currentDepth = this.bufferDepth.get();
+            if (this.refusingMessages.get()) {
+                if (currentDepth > this.lowWatermark) {
+                    LOG.trace("admitMessage(): Refused, buffer draining, depth --> {}", currentDepth);
+                    return (false);
+                }
+                if (this.refusingMessages.compareAndSet(true, false)) {
+                    LOG.info("admitMessage(): Ingress Buffer drained to low watermark, accepting messages again, depth --> {}", currentDepth);
+                }
+            }
+            if (currentDepth >= this.highWatermark) {
+                if (this.refusingMessages.compareAndSet(false, true)) {
+                    LOG.warn("admitMessage(): Ingress Buffer reached high watermark, refusing messages, depth --> {}", currentDepth);
+                }
+                return (false);
+            }
+        } while (!this.bufferDepth.compareAndSet(currentDepth, currentDepth + 1));
+        return (true);
+    }
+
+    /**
+     * Counts an admitted message back out, when the buffer hand-off itself
+     * failed (i.e. the buffer was full regardless of the watermarks).
+     */
+    public void admissionFailed() {
+        this.bufferDepth.decrementAndGet();
+        LOG.warn("admissionFailed(): Ingress Buffer hand-off failed, depth --> {}", this.bufferDepth.get());
+    }
+
+    /**
+     * Counts a message out of the buffer - called by the buffer consumer route
+     * as it picks the message up.
+     */
+    public void messageDequeued() {
+        this.bufferDepth.decrementAndGet();
+    }
+
+    public String getLimitExceededResponse() {
+        return (this.limitExceededResponse);
+    }
+
+    public int getBufferDepth() {
+        return (this.bufferDepth.get());
+    }
+
+    public boolean isRefusingMessages() {
+        return (this.refusingMessages.get());
+    }
+}
@@ -5,15 +5,29 @@
  */
 package net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver;
 
-import java.util.ArrayList;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.nio.CharBuffer;
 import java.util.LinkedHashSet;
 import javax.enterprise.context.ApplicationScoped;
-import org.json.JSONObject;
-import org.json.JSONArray;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MatrixMessageException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * This class validates and splits the RoomServer "transaction" message (a JSON
+ * object carrying an "events" array) into its discrete events.
+ * <p>
+ * It does so in a single pass using a streaming (Jackson) JsonParser: the
+ * "events" array is located, and each element is cut from the original
+ * message text using the parser's character offsets. No DOM is built for the
+ * batch and no event is re-serialised.
+ * <p>
+ * The message is taken as the CharBuffer view the IncomingMatrixPayloadDecoder
+ * decoded it into, and the parser reads that buffer in place - the message
+ * itself is never copied.
  *
  * @author Mark A. Hunter (ACT Health)
  */
@@ -22,24 +36,106 @@ public class IncomingMatrixMessageSplitter {
 
     private static final Logger LOG = LoggerFactory.getLogger(IncomingMatrixMessageSplitter.class);
 
-    public LinkedHashSet<String> splitMessageIntoEvents(String pRoomServerMessage) {
-        LOG.debug("splitMessageIntoEvents(): Entry: Message to split -->" + pRoomServerMessage);
+    private static final String EVENT_ARRAY_FIELD_NAME = "events";
+
+    // JsonFactory instances are thread-safe and expensive to create, so share one
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public LinkedHashSet<String> splitMessageIntoEvents(CharBuffer pRoomServerMessage) throws MatrixMessageException {
+        LOG.debug("splitMessageIntoEvents(): Entry: Message characters --> {}", pRoomServerMessage.remaining());
         LinkedHashSet<String> eventSet = new LinkedHashSet<String>();
-        if (pRoomServerMessage.isEmpty()) {
+        if (!pRoomServerMessage.hasRemaining()) {
             LOG.debug("splitMessageIntoEvents(): Exit: Empty message");
             return (eventSet);
         }
-        JSONObject localMessageObject = new JSONObject(pRoomServerMessage);
-        LOG.trace("splitMessageIntoEvents(): Converted to JSONObject --> " + localMessageObject.toString());
-        JSONArray localMessageEvents = localMessageObject.getJSONArray("events");
-        LOG.trace("splitMessageIntoEvents(): Converted to JSONArray, number of elements --> " + localMessageEvents.length());
-        for( Integer counter = 0; counter < localMessageEvents.length(); counter += 1){
-            JSONObject eventInstance = localMessageEvents.getJSONObject(counter);
-            LOG.trace("splitMessageIntoEvents(): Exctracted JSONObject --> " + eventInstance.toString());
-            eventSet.add(eventInstance.toString());
-            LOG.trace("splitMessageIntoEvents(): Added JSONObject to eventSet, count --> " + eventSet.size());
+        char[] batchBuffer = messageBuffer(pRoomServerMessage);
+        try (JsonParser messageParser = JSON_FACTORY.createParser(batchBuffer, 0, pRoomServerMessage.remaining())) {
+            scanEventBoundaries(messageParser, (eventStartOffset, eventEndOffset) -> {
+                eventSet.add(new String(batchBuffer, eventStartOffset, eventEndOffset - eventStartOffset));
+                LOG.trace("splitMessageIntoEvents(): Added event to eventSet, count --> " + eventSet.size());
+            });
+        } catch (IOException parsingException) {
+            throw (new MatrixMessageException("splitMessageIntoEvents(): RoomServer Message --> is not valid JSON", parsingException));
         }
         LOG.debug("splitMessageIntoEvents(): Exit: Event count --> " + eventSet.size());
         return (eventSet);
     }
+
+    /**
+     * Splits the RoomServer message into a set of (offset/length) views over
+     * the character buffer holding the message - no per-event String is
+     * created (and nothing is hashed) until a consumer asks for one.
+     *
+     * @param pRoomServerMessage The RoomServer (transaction) message
+     * @return A MatrixEventSliceSet, in "events" array order
+     * @throws MatrixMessageException If the message is not a valid event set
+     */
+    public MatrixEventSliceSet sliceMessageIntoEvents(CharBuffer pRoomServerMessage) throws MatrixMessageException {
+        LOG.debug("sliceMessageIntoEvents(): Entry: Message characters --> {}", pRoomServerMessage.remaining());
+        char[] batchBuffer = messageBuffer(pRoomServerMessage);
+        int batchLength = pRoomServerMessage.remaining();
+        MatrixEventSliceSet eventSliceSet = new MatrixEventSliceSet(batchBuffer);
+        if (batchLength == 0) {
+            LOG.debug("sliceMessageIntoEvents(): Exit: Empty message");
+            return (eventSliceSet);
+        }
+        // The parser reads straight from our buffer, so offsets are buffer indices
+        try (JsonParser messageParser = JSON_FACTORY.createParser(batchBuffer, 0, batchLength)) {
+            scanEventBoundaries(messageParser, (eventStartOffset, eventEndOffset) -> {
+                eventSliceSet.addEventSlice(eventStartOffset, eventEndOffset - eventStartOffset);
+            });
+        } catch (IOException parsingException) {
+            throw (new MatrixMessageException("sliceMessageIntoEvents(): RoomServer Message --> is not valid JSON", parsingException));
+        }
+        LOG.debug("sliceMessageIntoEvents(): Exit: Event count --> " + eventSliceSet.size());
+        return (eventSliceSet);
+    }
+
+    // The decoder's buffer is used as is - anything else (not array backed, or not starting at index 0) is copied once
+    private char[] messageBuffer(CharBuffer pRoomServerMessage) {
+        if (pRoomServerMessage.hasArray() && ((pRoomServerMessage.arrayOffset() + pRoomServerMessage.position()) == 0)) {
+            return (pRoomServerMessage.array());
+        }
+        char[] messageCopy = new char[pRoomServerMessage.remaining()];
+        pRoomServerMessage.duplicate().get(messageCopy);
+        return (messageCopy);
+    }
+
+    private void scanEventBoundaries(JsonParser messageParser, EventBoundaryListener boundaryListener)
+            throws IOException, MatrixMessageException {
+        if (messageParser.nextToken() != JsonToken.START_OBJECT) {
+            throw (new MatrixMessageException("scanEventBoundaries(): RoomServer Message --> is not a JSON object"));
+        }
+        boolean eventArrayFound = false;
+        while (messageParser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = messageParser.getCurrentName();
+            JsonToken fieldValueToken = messageParser.nextToken();
+            if (!EVENT_ARRAY_FIELD_NAME.equals(fieldName)) {
+                LOG.trace("scanEventBoundaries(): Skipping field --> {}", fieldName);
+                messageParser.skipChildren();
+                continue;
+            }
+            if (fieldValueToken != JsonToken.START_ARRAY) {
+                throw (new MatrixMessageException("scanEventBoundaries(): RoomServer Message --> -events- is not an array"));
+            }
+            eventArrayFound = true;
+            while (messageParser.nextToken() != JsonToken.END_ARRAY) {
+                if (messageParser.currentToken() != JsonToken.START_OBJECT) {
+                    throw (new MatrixMessageException("scanEventBoundaries(): RoomServer Message --> -events- contains a non-object element"));
+                }
+                int eventStartOffset = (int) messageParser.getTokenLocation().getCharOffset();
+                messageParser.skipChildren();
+                int eventEndOffset = (int) messageParser.getTokenLocation().getCharOffset() + 1;
+                boundaryListener.eventFound(eventStartOffset, eventEndOffset);
+            }
+        }
+        if (!eventArrayFound) {
+            throw (new MatrixMessageException("scanEventBoundaries(): RoomServer Message --> has no -events- array"));
+        }
+    }
+
+    private interface EventBoundaryListener {
+
+        void eventFound(int eventStartOffset, int eventEndOffset);
+    }
 }
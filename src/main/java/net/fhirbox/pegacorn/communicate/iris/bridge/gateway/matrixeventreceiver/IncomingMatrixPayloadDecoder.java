@@ -0,0 +1,257 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.IngressBudgetExceededException;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MatrixMessageException;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MatrixPayloadTooLargeException;
+import org.apache.camel.Body;
+import org.apache.camel.Exchange;
+import org.apache.camel.Header;
+import org.apache.camel.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class reads the (HTTP) body of a RoomServer message into memory,
+ * decompressing it on the fly if it is "gzip" or "deflate" encoded.
+ * <p>
+ * The body is decoded straight into one character buffer, which is handed on
+ * (as a CharBuffer view, without a copy) to the IncomingMatrixMessageSplitter.
+ * The buffer is sized from the Content-Length where the body isn't
+ * compressed, and otherwise grows as it is filled. Each allocation is charged
+ * against two limits: a per-message maximum and a budget shared by every
+ * message being received or awaiting processing (the "in-flight" bytes). A
+ * message that breaches either is abandoned as soon as it does - so a huge (or
+ * highly compressed) batch can't spike the heap. What is charged is the
+ * in-memory size of the buffer actually held (two bytes per character of its
+ * capacity), including the brief overlap of the old and new buffers while it
+ * grows.
+ * <p>
+ * The bytes charged for an accepted message are recorded (as a PayloadCharge)
+ * in the IrisIngressPayloadCharge header, and are handed back once every
+ * holder of the decode buffer has finished with it: the message itself, plus
+ * each event retained (see retainPayload()) as it is queued onto a room shard
+ * - the events' slices are views over the buffer, so it stays on the heap
+ * until the last shard has processed the message's last event. Each holder
+ * calls releasePayload() once, when it has finished (or the message is
+ * refused).
+ *
+ * @author ACT Health
+ */
+@ApplicationScoped
+public class IncomingMatrixPayloadDecoder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IncomingMatrixPayloadDecoder.class);
+
+    public static final String PAYLOAD_CHARGE_HEADER = "IrisIngressPayloadCharge";
+    public static final int PAYLOAD_TOO_LARGE_HTTP_STATUS = 413;
+
+    private static final int READ_CHUNK_CHARS = 8192;
+
+    @Inject
+    IrisProcessingProperties processingProperties;
+
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private long maximumPayloadBytes;
+    private long inFlightByteBudget;
+    private String payloadTooLargeResponse;
+
+    @PostConstruct
+    public void initialise() {
+        this.maximumPayloadBytes = processingProperties.getIngressMaximumPayloadBytes();
+        this.inFlightByteBudget = processingProperties.getIngressInFlightByteBudget();
+        this.payloadTooLargeResponse = "{\"errcode\":\"M_TOO_LARGE\",\"error\":\"RoomServer message exceeds "
+                + this.maximumPayloadBytes + " bytes\"}";
+        LOG.info("initialise(): Maximum payload bytes --> {}, In-flight byte budget --> {}", this.maximumPayloadBytes, this.inFlightByteBudget);
+    }
+
+    /**
+     * Decodes the RoomServer message body.
+     *
+     * @param messageBody The (possibly compressed) message body
+     * @param contentEncoding The HTTP Content-Encoding of the body (null for
+     * "identity")
+     * @param contentLength The HTTP Content-Length of the body (null if not
+     * known)
+     * @param message The Camel Message, to record the bytes charged (the
+     * PayloadCharge) against
+     * @return The decoded RoomServer message, a view over the decode buffer
+     * @throws MatrixMessageException If the body can't be read or decoded
+     * @throws MatrixPayloadTooLargeException If the message exceeds the
+     * per-message maximum
+     * @throws IngressBudgetExceededException If the message would exceed the
+     * in-flight byte budget
+     */
+    public CharBuffer decodeRoomServerMessage(@Body InputStream messageBody, @Header(Exchange.CONTENT_ENCODING) String contentEncoding,
+            @Header(Exchange.CONTENT_LENGTH) Long contentLength, Message message)
+            throws MatrixMessageException, MatrixPayloadTooLargeException, IngressBudgetExceededException {
+        LOG.debug("decodeRoomServerMessage(): Entry, Content-Encoding --> {}, Content-Length --> {}", contentEncoding, contentLength);
+        if (messageBody == null) {
+            throw (new MatrixMessageException("decodeRoomServerMessage(): RoomServer Message --> has no body"));
+        }
+        long chargedBytes = 0;
+        int decodedLength = 0;
+        char[] decodedBuffer;
+        try {
+            // The buffer never needs to be larger than one character past the per-message maximum
+            int maximumCapacity = (int) Math.min(this.maximumPayloadBytes / 2 + 1, Integer.MAX_VALUE - 8);
+            int initialCapacity = Math.min(READ_CHUNK_CHARS, maximumCapacity);
+            // An uncompressed UTF-8 body never decodes to more characters than it has bytes
+            if (isIdentityEncoding(contentEncoding) && (contentLength != null) && (contentLength > 0)) {
+                initialCapacity = (int) Math.min(contentLength + 1, maximumCapacity);
+            }
+            chargedBytes = chargeBytes(chargedBytes, 2L * initialCapacity);
+            decodedBuffer = new char[initialCapacity];
+            try (Reader payloadReader = new InputStreamReader(openDecodingStream(messageBody, contentEncoding), StandardCharsets.UTF_8)) {
+                int charsRead;
+                while ((charsRead = payloadReader.read(decodedBuffer, decodedLength, decodedBuffer.length - decodedLength)) != -1) {
+                    decodedLength += charsRead;
+                    if ((2L * decodedLength) > this.maximumPayloadBytes) {
+                        throw (new MatrixPayloadTooLargeException("decodeRoomServerMessage(): RoomServer Message --> exceeds " + this.maximumPayloadBytes + " bytes"));
+                    }
+                    if (decodedLength == decodedBuffer.length) {
+                        // The old buffer is held until it has been copied, so both are charged until then
+                        int newCapacity = (int) Math.min(2L * decodedBuffer.length, maximumCapacity);
+                        chargedBytes = chargeBytes(chargedBytes, 2L * newCapacity);
+                        long oldBufferBytes = 2L * decodedBuffer.length;
+                        decodedBuffer = Arrays.copyOf(decodedBuffer, newCapacity);
+                        chargedBytes = releaseBytes(chargedBytes, oldBufferBytes);
+                    }
+                }
+            }
+        } catch (IOException readException) {
+            this.inFlightBytes.addAndGet(-chargedBytes);
+            throw (new MatrixMessageException("decodeRoomServerMessage(): RoomServer Message --> could not be read/decoded", readException));
+        } catch (MatrixPayloadTooLargeException | IngressBudgetExceededException limitException) {
+            this.inFlightBytes.addAndGet(-chargedBytes);
+            LOG.warn("decodeRoomServerMessage(): Refusing RoomServer Message --> {}", limitException.getMessage());
+            throw (limitException);
+        }
+        message.setHeader(PAYLOAD_CHARGE_HEADER, new PayloadCharge(chargedBytes));
+        LOG.debug("decodeRoomServerMessage(): Exit, decoded characters --> {}, charged bytes --> {}, in-flight bytes --> {}", decodedLength, chargedBytes, this.inFlightBytes.get());
+        return (CharBuffer.wrap(decodedBuffer, 0, decodedLength));
+    }
+
+    private long chargeBytes(long chargedBytes, long additionalBytes) throws IngressBudgetExceededException {
+        if (this.inFlightBytes.addAndGet(additionalBytes) > this.inFlightByteBudget) {
+            this.inFlightBytes.addAndGet(-additionalBytes);
+            throw (new IngressBudgetExceededException("decodeRoomServerMessage(): In-flight byte budget --> exhausted"));
+        }
+        return (chargedBytes + additionalBytes);
+    }
+
+    private long releaseBytes(long chargedBytes, long releasedBytes) {
+        this.inFlightBytes.addAndGet(-releasedBytes);
+        return (chargedBytes - releasedBytes);
+    }
+
+    private boolean isIdentityEncoding(String contentEncoding) {
+        return ((contentEncoding == null) || contentEncoding.isEmpty() || "identity".equalsIgnoreCase(contentEncoding));
+    }
+
+    private InputStream openDecodingStream(InputStream messageBody, String contentEncoding) throws IOException, MatrixMessageException {
+        if (isIdentityEncoding(contentEncoding)) {
+            return (messageBody);
+        }
+        switch (contentEncoding.trim().toLowerCase()) {
+            case "gzip":
+            case "x-gzip":
+                return (new GZIPInputStream(messageBody, READ_CHUNK_CHARS));
+            case "deflate":
+                return (new InflaterInputStream(messageBody));
+            default:
+                throw (new MatrixMessageException("openDecodingStream(): Unsupported Content-Encoding --> " + contentEncoding));
+        }
+    }
+
+    /**
+     * Adds a holder (an event queued onto a room shard) to the message's
+     * decode buffer - it must call releasePayload() once it is finished.
+     *
+     * @param payloadCharge The message's charge, may be null (nothing
+     * charged)
+     */
+    public void retainPayload(@Header(PAYLOAD_CHARGE_HEADER) PayloadCharge payloadCharge) {
+        if (payloadCharge != null) {
+            payloadCharge.holderCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops a holder of the message's decode buffer - the last to do so hands
+     * back the bytes charged for the message to the in-flight byte budget.
+     *
+     * @param payloadCharge The message's charge, may be null (nothing
+     * charged)
+     */
+    public void releasePayload(@Header(PAYLOAD_CHARGE_HEADER) PayloadCharge payloadCharge) {
+        if ((payloadCharge == null) || (payloadCharge.holderCount.decrementAndGet() > 0) || (payloadCharge.chargedBytes == 0L)) {
+            return;
+        }
+        long remainingBytes = this.inFlightBytes.addAndGet(-payloadCharge.chargedBytes);
+        LOG.trace("releasePayload(): Released --> {}, in-flight bytes --> {}", payloadCharge.chargedBytes, remainingBytes);
+    }
+
+    public String getPayloadTooLargeResponse() {
+        return (this.payloadTooLargeResponse);
+    }
+
+    public long getInFlightBytes() {
+        return (this.inFlightBytes.get());
+    }
+
+    /**
+     * The bytes charged for a decoded message, and the number of holders of
+     * its decode buffer still to finish with it.
+     */
+    public static final class PayloadCharge {
+
+        private final long chargedBytes;
+        private final AtomicInteger holderCount = new AtomicInteger(1);
+
+        private PayloadCharge(long chargedBytes) {
+            this.chargedBytes = chargedBytes;
+        }
+
+        public long getChargedBytes() {
+            return (this.chargedBytes);
+        }
+    }
+}
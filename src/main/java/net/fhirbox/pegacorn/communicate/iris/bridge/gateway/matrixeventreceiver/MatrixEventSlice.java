@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver;
+
+/**
+ * A lightweight (offset/length) view of a single Matrix event within the
+ * character buffer of the RoomServer message that carried it.
+ * <p>
+ * The event only becomes a String when toString() is called (and that String
+ * is then kept, so it is only ever built once).
+ *
+ * @author ACT Health
+ */
+public class MatrixEventSlice implements CharSequence {
+
+    private final char[] batchBuffer;
+    private final int eventOffset;
+    private final int eventLength;
+    private String materialisedEvent;
+
+    public MatrixEventSlice(char[] batchBuffer, int eventOffset, int eventLength) {
+        this.batchBuffer = batchBuffer;
+        this.eventOffset = eventOffset;
+        this.eventLength = eventLength;
+    }
+
+    public char[] getBatchBuffer() {
+        return (this.batchBuffer);
+    }
+
+    public int getEventOffset() {
+        return (this.eventOffset);
+    }
+
+    public int getEventLength() {
+        return (this.eventLength);
+    }
+
+    @Override
+    public int length() {
+        return (this.eventLength);
+    }
+
+    @Override
+    public char charAt(int index) {
+        if ((index < 0) || (index >= this.eventLength)) {
+            throw (new IndexOutOfBoundsException("charAt(): index " + index + " is outside the event (length " + this.eventLength + ")"));
+        }
+        return (this.batchBuffer[this.eventOffset + index]);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if ((start < 0) || (end > this.eventLength) || (start > end)) {
+            throw (new IndexOutOfBoundsException("subSequence(): range " + start + "-" + end + " is outside the event (length " + this.eventLength + ")"));
+        }
+        return (new MatrixEventSlice(this.batchBuffer, this.eventOffset + start, end - start));
+    }
+
+    @Override
+    public String toString() {
+        if (this.materialisedEvent == null) {
+            this.materialisedEvent = new String(this.batchBuffer, this.eventOffset, this.eventLength);
+        }
+        return (this.materialisedEvent);
+    }
+}
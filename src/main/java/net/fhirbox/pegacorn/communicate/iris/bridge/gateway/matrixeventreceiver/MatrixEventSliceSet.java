@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The UoW ingress content for a RoomServer message when zero-copy slicing is
+ * enabled: a (read-only) Set of events, each held as a MatrixEventSlice over
+ * the one shared character buffer of the original message.
+ * <p>
+ * The Set is ordered (as per the "events" array) and is not hashed - Matrix
+ * events within a transaction carry unique "event_id" values, so there is no
+ * need to de-duplicate them. Iterating the Set (as a Set of String) will
+ * materialise each event, so downstream consumers that can work with the
+ * slices themselves should use getEventSlices() instead.
+ *
+ * @author ACT Health
+ */
+public class MatrixEventSliceSet extends AbstractSet<String> {
+
+    private final char[] batchBuffer;
+    private final List<MatrixEventSlice> eventSlices;
+
+    public MatrixEventSliceSet(char[] batchBuffer) {
+        this.batchBuffer = batchBuffer;
+        this.eventSlices = new ArrayList<>();
+    }
+
+    void addEventSlice(int eventOffset, int eventLength) {
+        this.eventSlices.add(new MatrixEventSlice(this.batchBuffer, eventOffset, eventLength));
+    }
+
+    public List<MatrixEventSlice> getEventSlices() {
+        return (Collections.unmodifiableList(this.eventSlices));
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        final Iterator<MatrixEventSlice> sliceIterator = this.eventSlices.iterator();
+        return (new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return (sliceIterator.hasNext());
+            }
+
+            @Override
+            public String next() {
+                return (sliceIterator.next().toString());
+            }
+        });
+    }
+
+    @Override
+    public int size() {
+        return (this.eventSlices.size());
+    }
+}
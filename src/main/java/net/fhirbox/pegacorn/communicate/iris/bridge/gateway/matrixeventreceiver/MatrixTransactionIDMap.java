@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisCacheMapNameSet;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisSharedCacheAccessorBean;
+import org.apache.camel.Exchange;
+import org.apache.camel.Header;
+import org.infinispan.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A (cluster-wide) record of the RoomServer application-service transactions
+ * (PUT /transactions/{txnId}) that have been accepted by Iris.
+ * <p>
+ * The RoomServer retries a transaction if it doesn't see our response in
+ * time - the retry carries the same txnId, so it can be acknowledged again
+ * without being re-processed. Entries expire (see IrisSharedCacheManager),
+ * as the RoomServer only retries for a limited period.
+ * <p>
+ * A transaction is claimed (atomically, with a putIfAbsent) as it arrives,
+ * and only marked as completed once it has been handed over for processing.
+ * A claim that doesn't complete because the message is refused is released,
+ * so the RoomServer's retry is processed afresh; a retry that arrives while
+ * the claim is still being handed over is asked to back off. The claim has
+ * its own (short) lifespan, so the claim of a node that dies mid-transaction
+ * expires quickly - only a completed transaction is remembered for the full
+ * lifespan.
+ * <p>
+ * The RoomServer is acknowledged at the (buffer) hand-off, so a transaction
+ * that fails after it can't be retried: it is logged and counted instead.
+ *
+ * @author ACT Health
+ *
+ * @see
+ * <a href="https://matrix.org/docs/spec/application_service/r0.1.2#put-matrix-app-v1-transactions-txnid">Matrix Application Service API, Release 0.1.2 - PUT /transactions/{txnId}</a>
+ */
+@Singleton
+public class MatrixTransactionIDMap {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MatrixTransactionIDMap.class);
+
+    public static final String TRANSACTION_ID_HEADER = "IrisMatrixTransactionID";
+    public static final String TRANSACTION_STATE_HEADER = "IrisMatrixTransactionState";
+
+    public static final String TRANSACTION_CLAIMED = "claimed";
+    public static final String TRANSACTION_IN_PROGRESS = "in-progress";
+    public static final String TRANSACTION_COMPLETED = "completed";
+
+    @Inject
+    private IrisSharedCacheAccessorBean theIrisCacheSetManager;
+
+    @Inject
+    IrisProcessingProperties processingProperties;
+
+    private IrisCacheMapNameSet cacheName = new IrisCacheMapNameSet();
+
+    private Cache<String, String> theTransactionIDMap;
+
+    private final LongAdder failedTransactionCount = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        LOG.debug("start(): Entry");
+        theTransactionIDMap = this.theIrisCacheSetManager.getIrisSharedCache(cacheName.getMatrixTransactionIDMap());
+        LOG.debug("start(): Exit, Got Cache -> " + theTransactionIDMap.getName());
+    }
+
+    /**
+     * Extracts the txnId from the request path - it is the last segment of
+     * .../transactions/{txnId}.
+     *
+     * @param requestPath The request path (relative to the endpoint)
+     * @param requestURI The full request URI (used if there is no path)
+     * @return The txnId, or null if the request doesn't carry one
+     */
+    public String extractTransactionID(@Header(Exchange.HTTP_PATH) String requestPath, @Header(Exchange.HTTP_URI) String requestURI) {
+        String transactionPath = ((requestPath == null) || requestPath.isEmpty()) ? requestURI : requestPath;
+        if ((transactionPath == null) || transactionPath.isEmpty()) {
+            return (null);
+        }
+        int queryStart = transactionPath.indexOf('?');
+        if (queryStart >= 0) {
+            transactionPath = transactionPath.substring(0, queryStart);
+        }
+        int lastSeparator = transactionPath.lastIndexOf('/', transactionPath.length() - 2);
+        String transactionID = transactionPath.substring(lastSeparator + 1);
+        if (transactionID.endsWith("/")) {
+            transactionID = transactionID.substring(0, transactionID.length() - 1);
+        }
+        LOG.trace("extractTransactionID(): Transaction ID --> {}", transactionID);
+        return (transactionID.isEmpty() ? null : transactionID);
+    }
+
+    /**
+     * Claims the transaction for processing by this exchange.
+     *
+     * @param pTransactionID The txnId (may be null, in which case the
+     * transaction can't be de-duplicated and is always claimed)
+     * @return TRANSACTION_CLAIMED if this exchange is to process the
+     * transaction, otherwise the state of the earlier claim
+     * (TRANSACTION_IN_PROGRESS or TRANSACTION_COMPLETED)
+     */
+    public String claimTransaction(@Header(TRANSACTION_ID_HEADER) String pTransactionID) {
+        if (pTransactionID == null) {
+            return (TRANSACTION_CLAIMED);
+        }
+        String existingState = this.theTransactionIDMap.putIfAbsent(pTransactionID, TRANSACTION_IN_PROGRESS,
+                processingProperties.getIngressTransactionClaimLifespanMillis(), TimeUnit.MILLISECONDS);
+        if (existingState == null) {
+            return (TRANSACTION_CLAIMED);
+        }
+        LOG.debug("claimTransaction(): Replayed Transaction --> {}, state --> {}", pTransactionID, existingState);
+        return (TRANSACTION_IN_PROGRESS.equals(existingState) ? TRANSACTION_IN_PROGRESS : TRANSACTION_COMPLETED);
+    }
+
+    /**
+     * Replaces this exchange's claim on the transaction with its completion,
+     * remembered for the full (completed transaction) lifespan. If the claim
+     * has expired the completion is only recorded if no other exchange has
+     * claimed the transaction since.
+     *
+     * @param pTransactionID The txnId
+     */
+    public void markTransactionCompleted(@Header(TRANSACTION_ID_HEADER) String pTransactionID) {
+        if (pTransactionID == null) {
+            return;
+        }
+        long completedLifespan = processingProperties.getIngressTransactionIDLifespanMillis();
+        if (!this.theTransactionIDMap.replace(pTransactionID, TRANSACTION_IN_PROGRESS, TRANSACTION_COMPLETED, completedLifespan, TimeUnit.MILLISECONDS)) {
+            String existingState = this.theTransactionIDMap.putIfAbsent(pTransactionID, TRANSACTION_COMPLETED, completedLifespan, TimeUnit.MILLISECONDS);
+            LOG.debug("markTransactionCompleted(): Claim on Transaction --> {} had lapsed, state --> {}", pTransactionID, existingState);
+        }
+    }
+
+    /**
+     * Releases the claim on a transaction that wasn't processed - a claim
+     * that has already completed is left alone.
+     *
+     * @param pTransactionID The txnId
+     */
+    public void releaseTransaction(@Header(TRANSACTION_ID_HEADER) String pTransactionID) {
+        if (pTransactionID == null) {
+            return;
+        }
+        if (this.theTransactionIDMap.remove(pTransactionID, TRANSACTION_IN_PROGRESS)) {
+            LOG.debug("releaseTransaction(): Released unprocessed Transaction --> {}", pTransactionID);
+        }
+    }
+
+    /**
+     * Records a transaction whose processing failed after the RoomServer was
+     * acknowledged - it won't be retried, so its events are lost. Its claim
+     * is left to expire.
+     *
+     * @param pTransactionID The txnId
+     */
+    public void transactionFailed(@Header(TRANSACTION_ID_HEADER) String pTransactionID) {
+        this.failedTransactionCount.increment();
+        LOG.error("transactionFailed(): Acknowledged Transaction --> {} failed, its events are lost, failed transactions --> {}", pTransactionID, this.failedTransactionCount.sum());
+    }
+
+    /**
+     * @return The number of acknowledged transactions whose processing failed
+     */
+    public long getFailedTransactionCount() {
+        return (this.failedTransactionCount.sum());
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.TimeZone;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Period;
+
+/**
+ * Encodes a FHIR::Identifier as a compact (binary) cache value - only the
+ * attributes Iris uses are kept: use, system, value, type (text and codings)
+ * and period (start/end, to their precision and time zone).
+ * <p>
+ * Each attribute present is flagged in a leading bitmask, so absent ones cost
+ * nothing. The encoding is deterministic, so (Base64 encoded, see
+ * fromIdentifier2Key()) it can also be used as a cache key.
+ * <p>
+ * The first byte is the format version. Enumerated values are written as
+ * their codes (the FHIR code, or the name of a HAPI enumeration) - never as
+ * ordinals - so the encoding doesn't depend on the HAPI version.
+ *
+ * @author ACT Health
+ */
+public class FHIRIdentifier2BytesUtility {
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final int HAS_USE = 0x01;
+    private static final int HAS_SYSTEM = 0x02;
+    private static final int HAS_VALUE = 0x04;
+    private static final int HAS_TYPE = 0x08;
+    private static final int HAS_PERIOD_START = 0x10;
+    private static final int HAS_PERIOD_END = 0x20;
+
+    private static final int HAS_CODING_SYSTEM = 0x01;
+    private static final int HAS_CODING_CODE = 0x02;
+    private static final int HAS_CODING_DISPLAY = 0x04;
+
+    private static final int NO_TIME_ZONE = 0;
+    private static final int ZULU_TIME_ZONE = 1;
+    private static final int OFFSET_TIME_ZONE = 2;
+
+    private final Identifier.IdentifierUseEnumFactory identifierUseFactory = new Identifier.IdentifierUseEnumFactory();
+
+    public byte[] fromIdentifier2Bytes(Identifier theIdentifier) {
+        if (theIdentifier == null) {
+            return (null);
+        }
+        ByteArrayOutputStream identifierBytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream identifierOutput = new DataOutputStream(identifierBytes)) {
+            identifierOutput.writeByte(FORMAT_VERSION);
+            writeIdentifier(identifierOutput, theIdentifier);
+        } catch (IOException ioEx) {
+            return (null);
+        }
+        return (identifierBytes.toByteArray());
+    }
+
+    public Identifier fromBytes2Identifier(byte[] theIdentifierBytes) {
+        if (theIdentifierBytes == null) {
+            return (null);
+        }
+        try (DataInputStream identifierInput = new DataInputStream(new ByteArrayInputStream(theIdentifierBytes))) {
+            if (identifierInput.readUnsignedByte() != FORMAT_VERSION) {
+                return (null);
+            }
+            return (readIdentifier(identifierInput));
+        } catch (IOException | RuntimeException decodeEx) {
+            return (null);
+        }
+    }
+
+    /**
+     * @param theIdentifier A FHIR::Identifier
+     * @return The (Base64) encoded FHIR::Identifier, for use as a cache key
+     */
+    public String fromIdentifier2Key(Identifier theIdentifier) {
+        byte[] identifierBytes = fromIdentifier2Bytes(theIdentifier);
+        if (identifierBytes == null) {
+            return (null);
+        }
+        return (Base64.getEncoder().withoutPadding().encodeToString(identifierBytes));
+    }
+
+    /**
+     * @return The format version written by fromIdentifier2Bytes()
+     */
+    static int getFormatVersion() {
+        return (FORMAT_VERSION);
+    }
+
+    void writeIdentifier(DataOutput identifierOutput, Identifier theIdentifier) throws IOException {
+        Period identifierPeriod = theIdentifier.hasPeriod() ? theIdentifier.getPeriod() : null;
+        int presentFlags = 0;
+        presentFlags |= theIdentifier.hasUse() ? HAS_USE : 0;
+        presentFlags |= theIdentifier.hasSystem() ? HAS_SYSTEM : 0;
+        presentFlags |= theIdentifier.hasValue() ? HAS_VALUE : 0;
+        presentFlags |= theIdentifier.hasType() ? HAS_TYPE : 0;
+        presentFlags |= ((identifierPeriod != null) && identifierPeriod.hasStart()) ? HAS_PERIOD_START : 0;
+        presentFlags |= ((identifierPeriod != null) && identifierPeriod.hasEnd()) ? HAS_PERIOD_END : 0;
+        identifierOutput.writeByte(presentFlags);
+        if ((presentFlags & HAS_USE) != 0) {
+            identifierOutput.writeUTF(theIdentifier.getUse().toCode());
+        }
+        if ((presentFlags & HAS_SYSTEM) != 0) {
+            identifierOutput.writeUTF(theIdentifier.getSystem());
+        }
+        if ((presentFlags & HAS_VALUE) != 0) {
+            identifierOutput.writeUTF(theIdentifier.getValue());
+        }
+        if ((presentFlags & HAS_TYPE) != 0) {
+            writeCodeableConcept(identifierOutput, theIdentifier.getType());
+        }
+        if ((presentFlags & HAS_PERIOD_START) != 0) {
+            writeDateTime(identifierOutput, identifierPeriod.getStartElement());
+        }
+        if ((presentFlags & HAS_PERIOD_END) != 0) {
+            writeDateTime(identifierOutput, identifierPeriod.getEndElement());
+        }
+    }
+
+    Identifier readIdentifier(DataInput identifierInput) throws IOException {
+        Identifier theIdentifier = new Identifier();
+        int presentFlags = identifierInput.readUnsignedByte();
+        if ((presentFlags & HAS_USE) != 0) {
+            theIdentifier.setUse(identifierUseFactory.fromCode(identifierInput.readUTF()));
+        }
+        if ((presentFlags & HAS_SYSTEM) != 0) {
+            theIdentifier.setSystem(identifierInput.readUTF());
+        }
+        if ((presentFlags & HAS_VALUE) != 0) {
+            theIdentifier.setValue(identifierInput.readUTF());
+        }
+        if ((presentFlags & HAS_TYPE) != 0) {
+            theIdentifier.setType(readCodeableConcept(identifierInput));
+        }
+        if ((presentFlags & HAS_PERIOD_START) != 0) {
+            theIdentifier.getPeriod().setStartElement(readDateTime(identifierInput));
+        }
+        if ((presentFlags & HAS_PERIOD_END) != 0) {
+            theIdentifier.getPeriod().setEndElement(readDateTime(identifierInput));
+        }
+        return (theIdentifier);
+    }
+
+    private void writeCodeableConcept(DataOutput conceptOutput, CodeableConcept theConcept) throws IOException {
+        conceptOutput.writeBoolean(theConcept.hasText());
+        if (theConcept.hasText()) {
+            conceptOutput.writeUTF(theConcept.getText());
+        }
+        conceptOutput.writeShort(theConcept.getCoding().size());
+        for (Coding theCoding : theConcept.getCoding()) {
+            int presentFlags = 0;
+            presentFlags |= theCoding.hasSystem() ? HAS_CODING_SYSTEM : 0;
+            presentFlags |= theCoding.hasCode() ? HAS_CODING_CODE : 0;
+            presentFlags |= theCoding.hasDisplay() ? HAS_CODING_DISPLAY : 0;
+            conceptOutput.writeByte(presentFlags);
+            if ((presentFlags & HAS_CODING_SYSTEM) != 0) {
+                conceptOutput.writeUTF(theCoding.getSystem());
+            }
+            if ((presentFlags & HAS_CODING_CODE) != 0) {
+                conceptOutput.writeUTF(theCoding.getCode());
+            }
+            if ((presentFlags & HAS_CODING_DISPLAY) != 0) {
+                conceptOutput.writeUTF(theCoding.getDisplay());
+            }
+        }
+    }
+
+    private CodeableConcept readCodeableConcept(DataInput conceptInput) throws IOException {
+        CodeableConcept theConcept = new CodeableConcept();
+        if (conceptInput.readBoolean()) {
+            theConcept.setText(conceptInput.readUTF());
+        }
+        int codingCount = conceptInput.readUnsignedShort();
+        for (int codingIndex = 0; codingIndex < codingCount; codingIndex++) {
+            Coding theCoding = theConcept.addCoding();
+            int presentFlags = conceptInput.readUnsignedByte();
+            if ((presentFlags & HAS_CODING_SYSTEM) != 0) {
+                theCoding.setSystem(conceptInput.readUTF());
+            }
+            if ((presentFlags & HAS_CODING_CODE) != 0) {
+                theCoding.setCode(conceptInput.readUTF());
+            }
+            if ((presentFlags & HAS_CODING_DISPLAY) != 0) {
+                theCoding.setDisplay(conceptInput.readUTF());
+            }
+        }
+        return (theConcept);
+    }
+
+    // The instant (epoch milliseconds), its precision and its time zone (none, Zulu or an offset zone)
+    private void writeDateTime(DataOutput dateOutput, DateTimeType theDateTime) throws IOException {
+        dateOutput.writeLong(theDateTime.getValue().getTime());
+        dateOutput.writeUTF(theDateTime.getPrecision().name());
+        if (theDateTime.isTimeZoneZulu()) {
+            dateOutput.writeByte(ZULU_TIME_ZONE);
+        } else if (theDateTime.getTimeZone() != null) {
+            dateOutput.writeByte(OFFSET_TIME_ZONE);
+            dateOutput.writeUTF(theDateTime.getTimeZone().getID());
+        } else {
+            dateOutput.writeByte(NO_TIME_ZONE);
+        }
+    }
+
+    private DateTimeType readDateTime(DataInput dateInput) throws IOException {
+        Date dateValue = new Date(dateInput.readLong());
+        TemporalPrecisionEnum datePrecision = TemporalPrecisionEnum.valueOf(dateInput.readUTF());
+        int timeZoneForm = dateInput.readUnsignedByte();
+        if (timeZoneForm == OFFSET_TIME_ZONE) {
+            return (new DateTimeType(dateValue, datePrecision, TimeZone.getTimeZone(dateInput.readUTF())));
+        }
+        DateTimeType theDateTime = new DateTimeType(dateValue, datePrecision);
+        if (timeZoneForm == ZULU_TIME_ZONE) {
+            theDateTime.setTimeZoneZulu(true);
+        }
+        return (theDateTime);
+    }
+}
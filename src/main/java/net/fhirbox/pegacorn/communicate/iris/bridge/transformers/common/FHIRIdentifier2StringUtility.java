@@ -35,13 +35,15 @@ import org.hl7.fhir.r4.model.Identifier;
  */
 public class FHIRIdentifier2StringUtility {
 
+    // ObjectMapper is thread-safe once configured, so one is shared rather than created per call
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
     public String fromIdentifier2String(Identifier theIdentifier) {
-        ObjectMapper mapper = new ObjectMapper();
         if (theIdentifier == null) {
             return (null);
         }
         try {
-            String identifierString = mapper.writeValueAsString(theIdentifier);
+            String identifierString = MAPPER.writeValueAsString(theIdentifier);
             return (identifierString);
         } catch (JsonProcessingException jsonEx) {
             return (null);
@@ -49,12 +51,11 @@ public class FHIRIdentifier2StringUtility {
     }
 
     public Identifier fromString2Identifier(String theIdentifierString) {
-        ObjectMapper mapper = new ObjectMapper();
         if (theIdentifierString == null) {
             return (null);
         }
         try {
-            Identifier theIdentifier = mapper.readValue(theIdentifierString, Identifier.class);
+            Identifier theIdentifier = MAPPER.readValue(theIdentifierString, Identifier.class);
             return (theIdentifier);
         } catch (IOException ioEx) {
             return (null);
@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import org.hl7.fhir.r4.model.Reference;
+
+/**
+ * Encodes a FHIR::Reference as a compact (binary) cache value - only the
+ * attributes Iris uses are kept: reference, type, display and identifier (see
+ * FHIRIdentifier2BytesUtility).
+ * <p>
+ * The encoding is deterministic, so (Base64 encoded, see
+ * fromReference2Key()) it can also be used as a cache key.
+ * <p>
+ * The first byte is the format version, which is that of the
+ * FHIRIdentifier2BytesUtility encoding of the identifier.
+ *
+ * @author ACT Health
+ */
+public class FHIRReference2BytesUtility {
+
+    private static final int HAS_REFERENCE = 0x01;
+    private static final int HAS_TYPE = 0x02;
+    private static final int HAS_DISPLAY = 0x04;
+    private static final int HAS_IDENTIFIER = 0x08;
+
+    private final FHIRIdentifier2BytesUtility identifierConverter = new FHIRIdentifier2BytesUtility();
+
+    public byte[] fromReference2Bytes(Reference theReference) {
+        if (theReference == null) {
+            return (null);
+        }
+        ByteArrayOutputStream referenceBytes = new ByteArrayOutputStream(96);
+        try (DataOutputStream referenceOutput = new DataOutputStream(referenceBytes)) {
+            int presentFlags = 0;
+            presentFlags |= theReference.hasReference() ? HAS_REFERENCE : 0;
+            presentFlags |= theReference.hasType() ? HAS_TYPE : 0;
+            presentFlags |= theReference.hasDisplay() ? HAS_DISPLAY : 0;
+            presentFlags |= theReference.hasIdentifier() ? HAS_IDENTIFIER : 0;
+            referenceOutput.writeByte(FHIRIdentifier2BytesUtility.getFormatVersion());
+            referenceOutput.writeByte(presentFlags);
+            if ((presentFlags & HAS_REFERENCE) != 0) {
+                referenceOutput.writeUTF(theReference.getReference());
+            }
+            if ((presentFlags & HAS_TYPE) != 0) {
+                referenceOutput.writeUTF(theReference.getType());
+            }
+            if ((presentFlags & HAS_DISPLAY) != 0) {
+                referenceOutput.writeUTF(theReference.getDisplay());
+            }
+            if ((presentFlags & HAS_IDENTIFIER) != 0) {
+                identifierConverter.writeIdentifier(referenceOutput, theReference.getIdentifier());
+            }
+        } catch (IOException ioEx) {
+            return (null);
+        }
+        return (referenceBytes.toByteArray());
+    }
+
+    public Reference fromBytes2Reference(byte[] theReferenceBytes) {
+        if (theReferenceBytes == null) {
+            return (null);
+        }
+        try (DataInputStream referenceInput = new DataInputStream(new ByteArrayInputStream(theReferenceBytes))) {
+            if (referenceInput.readUnsignedByte() != FHIRIdentifier2BytesUtility.getFormatVersion()) {
+                return (null);
+            }
+            Reference theReference = new Reference();
+            int presentFlags = referenceInput.readUnsignedByte();
+            if ((presentFlags & HAS_REFERENCE) != 0) {
+                theReference.setReference(referenceInput.readUTF());
+            }
+            if ((presentFlags & HAS_TYPE) != 0) {
+                theReference.setType(referenceInput.readUTF());
+            }
+            if ((presentFlags & HAS_DISPLAY) != 0) {
+                theReference.setDisplay(referenceInput.readUTF());
+            }
+            if ((presentFlags & HAS_IDENTIFIER) != 0) {
+                theReference.setIdentifier(identifierConverter.readIdentifier(referenceInput));
+            }
+            return (theReference);
+        } catch (IOException | RuntimeException decodeEx) {
+            return (null);
+        }
+    }
+
+    /**
+     * @param theReference A FHIR::Reference
+     * @return The (Base64) encoded FHIR::Reference, for use as a cache key
+     */
+    public String fromReference2Key(Reference theReference) {
+        byte[] referenceBytes = fromReference2Bytes(theReference);
+        if (referenceBytes == null) {
+            return (null);
+        }
+        return (Base64.getEncoder().withoutPadding().encodeToString(referenceBytes));
+    }
+}
@@ -34,13 +34,15 @@ import org.hl7.fhir.r4.model.Reference;
  */
 public class FHIRReference2StringUtility {
 
+    // ObjectMapper is thread-safe once configured, so one is shared rather than created per call
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
     public String fromReference2String(Reference theReference) {
-        ObjectMapper mapper = new ObjectMapper();
         if (theReference == null) {
             return (null);
         }
         try {
-            String identifierString = mapper.writeValueAsString(theReference);
+            String identifierString = MAPPER.writeValueAsString(theReference);
             return (identifierString);
         } catch (JsonProcessingException jsonEx) {
             return (null);
@@ -48,12 +50,11 @@ public class FHIRReference2StringUtility {
     }
 
     public Reference fromString2Reference(String theReferenceString) {
-        ObjectMapper mapper = new ObjectMapper();
         if (theReferenceString == null) {
             return (null);
         }
         try {
-            Reference theReference = mapper.readValue(theReferenceString, Reference.class);
+            Reference theReference = MAPPER.readValue(theReferenceString, Reference.class);
             return (theReference);
         } catch (IOException ioEx) {
             return (null);
@@ -0,0 +1,433 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEvent;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisCacheMapNameSet;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisSharedCacheAccessorBean;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Communication;
+import org.hl7.fhir.r4.model.Reference;
+import org.infinispan.Cache;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A clustered index of the FHIR::Communication resources transformed from
+ * Matrix(R) "m.room.message" events, and their (current) version - so that a
+ * later redaction (or edit) of a message can be applied to its
+ * FHIR::Communication with a single cache lookup, rather than a search of the
+ * FHIR server. Replies are resolved the same way (to a literal
+ * FHIR::Communication.inResponseTo reference).
+ * <p>
+ * The FHIR::Communication id is derived from the "event_id" (see
+ * deriveCommunicationID()), and the FHIR::Communication is created with a PUT
+ * to that id - so the id is known without asking the FHIR server, and is a
+ * valid FHIR id (which an "event_id" such as "$abc:server" is not).
+ * <p>
+ * Each entry also records the "event_id" the message is a reply to (if any),
+ * so that a reply chain can be walked from the cache alone.
+ * <p>
+ * The entries are kept compact: the key is the FHIR::Communication id, and
+ * the value is just the version, followed by "&gt;event_id" if the message is
+ * a reply. Entries are only recorded (or moved on to the next version) once
+ * the FHIR::Bundle that creates (or updates) the FHIR::Communication has been
+ * published. The cache is bounded by both age and entry count (see
+ * IrisSharedCacheManager), sized for the redaction/edit window.
+ *
+ * @author ACT Health
+ */
+@Singleton
+public class MatrixEventID2FHIRCommunicationMap {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MatrixEventID2FHIRCommunicationMap.class);
+
+    private static final String INITIAL_VERSION_ID = "1";
+    private static final char IN_REPLY_TO_SEPARATOR = '>';
+    private static final String COMMUNICATION_URL_PREFIX = "Communication/";
+
+    @Inject
+    private IrisSharedCacheAccessorBean theIrisCacheSetManager;
+
+    private IrisCacheMapNameSet cacheName = new IrisCacheMapNameSet();
+
+    // My actual Replicated Cache (CommunicationID, "Version[>InReplyToEventID]")
+    private Cache<String /* CommunicationID */, String /* Version[>InReplyToEventID] */> theEventID2CommunicationMap;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        LOG.debug("start(): Entry");
+        this.theEventID2CommunicationMap = this.theIrisCacheSetManager.getIrisSharedCache(cacheName.getMatrixEventID2FHIRCommunicationMap());
+        LOG.debug("start(): Exit, Got Cache --> {}", this.theEventID2CommunicationMap.getName());
+    }
+
+    /**
+     * The FHIR::Communication id for a Matrix event: a name-based UUID of the
+     * "event_id" - the same on every node, and made up only of characters a
+     * FHIR id may hold.
+     *
+     * @param eventID The Matrix "event_id"
+     * @return The FHIR::Communication id
+     */
+    public static String deriveCommunicationID(String eventID) {
+        return (UUID.nameUUIDFromBytes(eventID.getBytes(StandardCharsets.UTF_8)).toString());
+    }
+
+    /**
+     * Records the FHIR::Communication created for an "m.room.message" event -
+     * once the FHIR::Bundle creating it has been published. Being new, it is
+     * at its first version. The "event_id" it is a reply to
+     * ("m.relates_to"/"m.in_reply_to"), if any, is recorded with it.
+     * <p>
+     * An existing entry (i.e. a later version) is left as it is.
+     *
+     * @param roomMessage The (decoded) "m.room.message" event
+     */
+    public void recordCommunicationEvent(MatrixEvent roomMessage) {
+        if ((roomMessage == null) || (roomMessage.getEventID() == null)) {
+            LOG.trace("recordCommunicationEvent(): Event has no -event_id-, so can't be indexed");
+            return;
+        }
+        String communicationID = deriveCommunicationID(roomMessage.getEventID());
+        String inReplyToEventID = getInReplyToEventID(roomMessage);
+        this.theEventID2CommunicationMap.putIfAbsentAsync(communicationID, encode(new CommunicationVersion(communicationID, INITIAL_VERSION_ID, inReplyToEventID)));
+    }
+
+    /**
+     * Records each FHIR::Communication created by a (published) FHIR::Bundle -
+     * e.g. a transaction Bundle of a batch of messages. The "event_id" each is
+     * a reply to is taken from its FHIR::Communication.inResponseTo.
+     * <p>
+     * Existing entries (i.e. later versions) are left as they are.
+     *
+     * @param communicationBundle The FHIR::Bundle that has been published
+     */
+    public void recordCommunicationBundle(Bundle communicationBundle) {
+        if (communicationBundle == null) {
+            return;
+        }
+        for (BundleEntryComponent bundleEntry : communicationBundle.getEntry()) {
+            if (!(bundleEntry.getResource() instanceof Communication) || !bundleEntry.getResource().hasIdElement()) {
+                continue;
+            }
+            Communication newCommunication = (Communication) bundleEntry.getResource();
+            String communicationID = newCommunication.getIdElement().getIdPart();
+            String inReplyToEventID = null;
+            for (Reference inResponseTo : newCommunication.getInResponseTo()) {
+                if (inResponseTo.hasIdentifier() && inResponseTo.getIdentifier().hasValue()) {
+                    inReplyToEventID = inResponseTo.getIdentifier().getValue();
+                    break;
+                }
+            }
+            this.theEventID2CommunicationMap.putIfAbsentAsync(communicationID, encode(new CommunicationVersion(communicationID, INITIAL_VERSION_ID, inReplyToEventID)));
+        }
+    }
+
+    private String getInReplyToEventID(MatrixEvent roomMessage) {
+        if (!roomMessage.hasContent()) {
+            return (null);
+        }
+        JSONObject relatesTo = roomMessage.getContent().optJSONObject("m.relates_to");
+        JSONObject inReplyTo = (relatesTo == null) ? null : relatesTo.optJSONObject("m.in_reply_to");
+        String inReplyToEventID = (inReplyTo == null) ? null : inReplyTo.optString("event_id", null);
+        if ((inReplyToEventID == null) || inReplyToEventID.isEmpty()) {
+            return (null);
+        }
+        return (inReplyToEventID);
+    }
+
+    /**
+     * Moves each FHIR::Communication updated by a (published) FHIR::Bundle on
+     * to its next version. Only conditional updates are counted: an entry
+     * whose request is on "Communication/{id}" with an ifMatch version, where
+     * the index still holds that version (otherwise someone else's update got
+     * there first, and the FHIR server will reject this one).
+     *
+     * @param updateBundle The FHIR::Bundle that has been published
+     */
+    public void recordPublishedUpdate(Bundle updateBundle) {
+        if (updateBundle == null) {
+            return;
+        }
+        for (BundleEntryComponent bundleEntry : updateBundle.getEntry()) {
+            if (!bundleEntry.hasRequest() || !bundleEntry.getRequest().hasIfMatch() || !bundleEntry.getRequest().hasUrl()) {
+                continue;
+            }
+            String requestURL = bundleEntry.getRequest().getUrl();
+            if (!requestURL.startsWith(COMMUNICATION_URL_PREFIX)) {
+                continue;
+            }
+            String communicationID = requestURL.substring(COMMUNICATION_URL_PREFIX.length());
+            advanceCommunicationVersion(communicationID, versionFromETag(bundleEntry.getRequest().getIfMatch()));
+        }
+    }
+
+    /**
+     * Removes the entry of a redacted message - once the FHIR::Bundle marking
+     * its FHIR::Communication "entered-in-error" has been published - so that
+     * later edits of the message are dropped rather than applied, and later
+     * replies to it only carry its identifier.
+     *
+     * @param roomRedaction The (decoded) "m.room.redaction" event
+     */
+    public void recordRedaction(MatrixEvent roomRedaction) {
+        if ((roomRedaction == null) || (roomRedaction.getRedacts() == null)) {
+            return;
+        }
+        this.theEventID2CommunicationMap.remove(deriveCommunicationID(roomRedaction.getRedacts()));
+    }
+
+    /**
+     * Records (overwriting any existing version) the version of the
+     * FHIR::Communication for a Matrix event - e.g. as reported by the FHIR
+     * server. The "event_id" it is a reply to (if known) is kept.
+     *
+     * @param eventID The Matrix "event_id"
+     * @param versionID The FHIR::Communication version
+     */
+    public void setCommunicationVersion(String eventID, String versionID) {
+        LOG.debug("setCommunicationVersion(): Entry, eventID --> {}, versionID --> {}", eventID, versionID);
+        if ((eventID == null) || (versionID == null)) {
+            LOG.debug("setCommunicationVersion(): Exit, eventID or versionID == null");
+            return;
+        }
+        String communicationID = deriveCommunicationID(eventID);
+        // Compare-and-set, so that a concurrent change of the entry (e.g. a newly recorded in-reply-to) isn't lost
+        while (true) {
+            String existingVersion = this.theEventID2CommunicationMap.get(communicationID);
+            if (existingVersion == null) {
+                if (this.theEventID2CommunicationMap.putIfAbsent(communicationID, versionID) == null) {
+                    return;
+                }
+                continue;
+            }
+            String newVersion = encode(new CommunicationVersion(communicationID, versionID, decode(communicationID, existingVersion).getInReplyToEventID()));
+            if (existingVersion.equals(newVersion) || this.theEventID2CommunicationMap.replace(communicationID, existingVersion, newVersion)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param eventID The Matrix "event_id"
+     * @return The id and (current) version of the FHIR::Communication the
+     * event was transformed into, or null if it is not (or no longer) known
+     */
+    public CommunicationVersion getCommunicationVersion(String eventID) {
+        LOG.debug("getCommunicationVersion(): Entry, eventID --> {}", eventID);
+        if (eventID == null) {
+            return (null);
+        }
+        String communicationID = deriveCommunicationID(eventID);
+        String encodedVersion = this.theEventID2CommunicationMap.get(communicationID);
+        if (encodedVersion == null) {
+            this.missCount.increment();
+            LOG.debug("getCommunicationVersion(): Exit, Could not find FHIR::Communication for Event --> {}", eventID);
+            return (null);
+        }
+        this.hitCount.increment();
+        CommunicationVersion communicationVersion = decode(communicationID, encodedVersion);
+        LOG.debug("getCommunicationVersion(): Exit, Got FHIR::Communication --> {}", communicationVersion);
+        return (communicationVersion);
+    }
+
+    /**
+     * Moves the entry of a FHIR::Communication on to its next version -
+     * provided it is still at the version the update was made against.
+     *
+     * @param communicationID The FHIR::Communication id
+     * @param currentVersionID The version the update was made against
+     * @return The next version, or null if the entry has changed (or gone)
+     */
+    public CommunicationVersion advanceCommunicationVersion(String communicationID, String currentVersionID) {
+        LOG.debug("advanceCommunicationVersion(): Entry, communicationID --> {}, currentVersionID --> {}", communicationID, currentVersionID);
+        if ((communicationID == null) || (currentVersionID == null)) {
+            return (null);
+        }
+        String existingVersion = this.theEventID2CommunicationMap.get(communicationID);
+        CommunicationVersion currentVersion = (existingVersion == null) ? null : decode(communicationID, existingVersion);
+        if ((currentVersion == null) || !currentVersionID.equals(currentVersion.getVersionID())) {
+            LOG.debug("advanceCommunicationVersion(): Exit, Entry for FHIR::Communication --> {} has changed (or gone), not advanced", communicationID);
+            return (null);
+        }
+        CommunicationVersion nextVersion = currentVersion.nextVersion();
+        if (!this.theEventID2CommunicationMap.replace(communicationID, existingVersion, encode(nextVersion))) {
+            LOG.debug("advanceCommunicationVersion(): Exit, Entry for FHIR::Communication --> {} has changed, not advanced", communicationID);
+            return (null);
+        }
+        LOG.debug("advanceCommunicationVersion(): Exit, Advanced to --> {}", nextVersion);
+        return (nextVersion);
+    }
+
+    /**
+     * Walks a reply chain up from a message, using the cache alone: the
+     * message the event is a reply to, the one that is a reply to, and so on.
+     * The walk stops at the start of the thread, at a message that is not (or
+     * no longer) known, at a loop, or after maximumDepth messages.
+     *
+     * @param eventID The Matrix "event_id" of the message to walk up from
+     * @param maximumDepth The most messages to return
+     * @return The FHIR::Communication (id/version) of each message up the
+     * chain, nearest first (empty if the message is not a known reply)
+     */
+    public List<CommunicationVersion> walkReplyChain(String eventID, int maximumDepth) {
+        LOG.debug("walkReplyChain(): Entry, eventID --> {}, maximumDepth --> {}", eventID, maximumDepth);
+        ArrayList<CommunicationVersion> replyChain = new ArrayList<>();
+        if (eventID == null) {
+            return (replyChain);
+        }
+        HashSet<String> visitedEventIDs = new HashSet<>();
+        visitedEventIDs.add(eventID);
+        CommunicationVersion communicationVersion = getCommunicationVersion(eventID);
+        while ((communicationVersion != null) && (replyChain.size() < maximumDepth)) {
+            String inReplyToEventID = communicationVersion.getInReplyToEventID();
+            if ((inReplyToEventID == null) || !visitedEventIDs.add(inReplyToEventID)) {
+                break;
+            }
+            communicationVersion = getCommunicationVersion(inReplyToEventID);
+            if (communicationVersion != null) {
+                replyChain.add(communicationVersion);
+            }
+        }
+        LOG.debug("walkReplyChain(): Exit, chain length --> {}", replyChain.size());
+        return (replyChain);
+    }
+
+    public long getHitCount() {
+        return (this.hitCount.sum());
+    }
+
+    public long getMissCount() {
+        return (this.missCount.sum());
+    }
+
+    static String encode(CommunicationVersion communicationVersion) {
+        if (communicationVersion.getInReplyToEventID() == null) {
+            return (communicationVersion.getVersionID());
+        }
+        return (communicationVersion.getVersionID() + IN_REPLY_TO_SEPARATOR + communicationVersion.getInReplyToEventID());
+    }
+
+    static CommunicationVersion decode(String communicationID, String encodedVersion) {
+        int inReplyToIndex = encodedVersion.indexOf(IN_REPLY_TO_SEPARATOR);
+        if (inReplyToIndex < 0) {
+            return (new CommunicationVersion(communicationID, encodedVersion, null));
+        }
+        return (new CommunicationVersion(communicationID, encodedVersion.substring(0, inReplyToIndex), encodedVersion.substring(inReplyToIndex + 1)));
+    }
+
+    // W/"3" --> 3
+    private static String versionFromETag(String versionETag) {
+        String versionID = versionETag.startsWith("W/") ? versionETag.substring(2) : versionETag;
+        if ((versionID.length() >= 2) && versionID.startsWith("\"") && versionID.endsWith("\"")) {
+            versionID = versionID.substring(1, versionID.length() - 1);
+        }
+        return (versionID);
+    }
+
+    /**
+     * The id and version of a FHIR::Communication (and the "event_id" of the
+     * message it is a reply to, if any).
+     */
+    public static class CommunicationVersion {
+
+        private final String communicationID;
+        private final String versionID;
+        private final String inReplyToEventID;
+
+        public CommunicationVersion(String communicationID, String versionID) {
+            this(communicationID, versionID, null);
+        }
+
+        public CommunicationVersion(String communicationID, String versionID, String inReplyToEventID) {
+            this.communicationID = communicationID;
+            this.versionID = versionID;
+            this.inReplyToEventID = inReplyToEventID;
+        }
+
+        public String getCommunicationID() {
+            return (this.communicationID);
+        }
+
+        public String getVersionID() {
+            return (this.versionID);
+        }
+
+        /**
+         * @return The "event_id" of the message this one is a reply to, or
+         * null if it isn't a reply
+         */
+        public String getInReplyToEventID() {
+            return (this.inReplyToEventID);
+        }
+
+        /**
+         * @return The (literal, unversioned) reference to the
+         * FHIR::Communication, e.g. "Communication/{id}"
+         */
+        public String getCommunicationReference() {
+            return (COMMUNICATION_URL_PREFIX + this.communicationID);
+        }
+
+        /**
+         * @return The version as a (weak) ETag, for Bundle.entry.request.ifMatch
+         */
+        public String getVersionETag() {
+            return ("W/\"" + this.versionID + "\"");
+        }
+
+        /**
+         * @return The version that follows this one - FHIR server versions are
+         * sequential integers; anything else is treated as version 1
+         */
+        public CommunicationVersion nextVersion() {
+            long nextVersionID;
+            try {
+                nextVersionID = Long.parseLong(this.versionID) + 1;
+            } catch (NumberFormatException formatException) {
+                nextVersionID = 2;
+            }
+            return (new CommunicationVersion(this.communicationID, Long.toString(nextVersionID), this.inReplyToEventID));
+        }
+
+        @Override
+        public String toString() {
+            return (getCommunicationReference() + "/_history/" + this.versionID);
+        }
+    }
+}
@@ -25,8 +25,12 @@ package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyiden
 
 import net.fhirbox.pegacorn.communicate.iris.utilities.IrisSharedCacheAccessorBean;
 import net.fhirbox.pegacorn.communicate.iris.utilities.IrisCacheMapNameSet;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisNearCache;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisCacheWriteBehind;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -46,22 +50,37 @@ public class MatrixRoomID2MatrixRoomNameMap {
     @Inject
     private IrisSharedCacheAccessorBean theIrisCacheSetManager;
     
+    @Inject
+    private IrisProcessingProperties processingProperties;
+    
     private IrisCacheMapNameSet cacheName = new IrisCacheMapNameSet();
 
     private Cache<String, String> theRoomId2RoomNameMap;
+    private IrisNearCache<String, String> theRoomId2RoomNameNearCache;
+    // Room names are (re)written as room state arrives, so the writes go behind the message thread
+    private IrisCacheWriteBehind<String, String> theRoomId2RoomNameWriteBehind;
 
     @PostConstruct
     public void start() {
         LOG.debug("start(): Entry");
         theRoomId2RoomNameMap = this.theIrisCacheSetManager.getIrisSharedCache(cacheName.getMatrixRoomID2MatrixRoomMapName());;
+        theRoomId2RoomNameNearCache = new IrisNearCache<>(theRoomId2RoomNameMap, processingProperties.getNearCacheMaximumEntries());
+        theRoomId2RoomNameWriteBehind = new IrisCacheWriteBehind<>(theRoomId2RoomNameNearCache, processingProperties.getWriteBehindMaximumInFlight());
         LOG.debug("start(): Exit, Got Cache -> " + theRoomId2RoomNameMap.getName());
     }
 
+    @PreDestroy
+    public void stop() {
+        LOG.debug("stop(): Entry");
+        boolean flushed = theRoomId2RoomNameWriteBehind.flush(processingProperties.getWriteBehindFlushTimeoutMillis());
+        LOG.debug("stop(): Exit, flushed --> {}", flushed);
+    }
+
     public String getName(String pRoomId) {
         if (pRoomId == null) {
             return (null);
         }
-        String roomName = theRoomId2RoomNameMap.get(pRoomId);
+        String roomName = theRoomId2RoomNameWriteBehind.get(pRoomId);
         if (roomName != null) {
             return (roomName);
         }
@@ -75,7 +94,7 @@ public class MatrixRoomID2MatrixRoomNameMap {
         if (pRoomId == null) {
             return;
         }
-        this.theRoomId2RoomNameMap.put(pRoomId, pRoomName, 30, TimeUnit.DAYS);
+        this.theRoomId2RoomNameWriteBehind.put(pRoomId, pRoomName, 30, TimeUnit.DAYS);
     }
 
     public void modifyName(String pRoomId, String pRoomName ) {
@@ -85,14 +104,30 @@ public class MatrixRoomID2MatrixRoomNameMap {
         if (pRoomId == null) {
             return;
         }
-        this.theRoomId2RoomNameMap.replace(pRoomId, pRoomName, 30, TimeUnit.DAYS);
+        this.theRoomId2RoomNameWriteBehind.replace(pRoomId, pRoomName, 30, TimeUnit.DAYS);
     }
     
     public void removeName(String pRoomId) {
         if (pRoomId == null) {
             return;
         }
-        this.theRoomId2RoomNameMap.remove(pRoomId);
+        this.theRoomId2RoomNameWriteBehind.remove(pRoomId);
+    }
+
+    public long getNearCacheHitCount() {
+        return (this.theRoomId2RoomNameNearCache.getHitCount());
+    }
+
+    public long getNearCacheMissCount() {
+        return (this.theRoomId2RoomNameNearCache.getMissCount());
+    }
+
+    public long getNearCacheInvalidationCount() {
+        return (this.theRoomId2RoomNameNearCache.getInvalidationCount());
+    }
+
+    public long getCoalescedWriteCount() {
+        return (this.theRoomId2RoomNameWriteBehind.getCoalescedWriteCount());
     }
 
 }
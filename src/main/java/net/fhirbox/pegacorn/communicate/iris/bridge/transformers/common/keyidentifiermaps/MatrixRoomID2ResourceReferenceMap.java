@@ -25,9 +25,10 @@ package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyiden
 
 import net.fhirbox.pegacorn.communicate.iris.utilities.IrisSharedCacheAccessorBean;
 import net.fhirbox.pegacorn.communicate.iris.utilities.IrisCacheMapNameSet;
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisBidirectionalIndex;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -36,7 +37,7 @@ import org.infinispan.Cache;
 import org.infinispan.manager.DefaultCacheManager;
 
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.FHIRIdentifier2StringUtility;
-import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.FHIRReference2StringUtility;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.FHIRReference2BytesUtility;
 
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Resource;
@@ -56,28 +57,34 @@ public class MatrixRoomID2ResourceReferenceMap {
     @Inject
     private IrisSharedCacheAccessorBean theIrisCacheSetManager;
 
+    @Inject
+    private IrisProcessingProperties processingProperties;
+
     private IrisCacheMapNameSet cacheName = new IrisCacheMapNameSet();
     
-    // My actual Replicated Cache (UserName, UserToken) 
-    private Cache<String /* RoomID */, String /* FHIR Resource */> theRoomID2FHIRResourceMap;
-    private Cache<String /* FHIR Resource */, String /* RoomID */> theFHIRResource2RoomIDMap;
+    // My actual Replicated Cache (RoomID <--> FHIR Resource Key), both directions in the one index
+    private IrisBidirectionalIndex theRoomIDFHIRResourceIndex;
     
-        FhirContext r4FHIRContext; 
-    IParser r4Parser;
-    FHIRReference2StringUtility mySimpleReferenceConverter;
+    FHIRReference2BytesUtility mySimpleReferenceConverter;
 
     public MatrixRoomID2ResourceReferenceMap(){
-        r4FHIRContext = FhirContext.forR4();
-        r4Parser = r4FHIRContext.newJsonParser();
-        this.mySimpleReferenceConverter = new FHIRReference2StringUtility();
+        this.mySimpleReferenceConverter = new FHIRReference2BytesUtility();
     }
 
     @PostConstruct
     public void start() {
         LOG.debug("start(): Entry");
-        this.theRoomID2FHIRResourceMap = this.theIrisCacheSetManager.getIrisSharedCache(cacheName.getMatrixRoomID2FHIRResourceReferenceMap());
-        this.theFHIRResource2RoomIDMap = this.theIrisCacheSetManager.getIrisSharedCache(cacheName.getFHIRResourceReference2MatrixRoomIDMap());
-        LOG.debug("start(): Exit, Got Cache -> {}, and --> {}", this.theRoomID2FHIRResourceMap.getName(), this.theFHIRResource2RoomIDMap.getName());
+        Cache<String, byte[]> theRoomIDFHIRResourceCache = this.theIrisCacheSetManager.getIrisSharedCache(cacheName.getMatrixRoomIDFHIRResourceReferenceIndex());
+        this.theRoomIDFHIRResourceIndex = new IrisBidirectionalIndex(theRoomIDFHIRResourceCache, processingProperties.getNearCacheMaximumEntries(),
+                processingProperties.getWriteBehindMaximumInFlight());
+        LOG.debug("start(): Exit, Got Cache -> {}", theRoomIDFHIRResourceCache.getName());
+    }
+
+    @PreDestroy
+    public void stop() {
+        LOG.debug("stop(): Entry");
+        boolean flushed = this.theRoomIDFHIRResourceIndex.flush(processingProperties.getWriteBehindFlushTimeoutMillis());
+        LOG.debug("stop(): Exit, flushed --> {}", flushed);
     }
 
     /**
@@ -94,10 +101,10 @@ public class MatrixRoomID2ResourceReferenceMap {
             return (null);
         }
         LOG.trace("getFHIRResourceReferenceFromRoomID(): getting Resource Reference for Room with Name : {}", roomID);
-        String resourceReferenceString = this.theRoomID2FHIRResourceMap.get(roomID);
-        if (resourceReferenceString != null) {
-            Reference resourceReference = this.mySimpleReferenceConverter.fromString2Reference(resourceReferenceString);
-            LOG.debug("getFHIRResourceReferenceFromRoomID(): Got Resource Reference {} for Room Name {}", resourceReferenceString, roomID);
+        byte[] resourceReferenceBytes = this.theRoomIDFHIRResourceIndex.getForwardValue(roomID);
+        if (resourceReferenceBytes != null) {
+            Reference resourceReference = this.mySimpleReferenceConverter.fromBytes2Reference(resourceReferenceBytes);
+            LOG.debug("getFHIRResourceReferenceFromRoomID(): Got Resource Reference {} for Room Name {}", resourceReference, roomID);
             return (resourceReference);
         }
         LOG.debug("getFHIRResourceReferenceFromRoomID(): Could not find Resource Reference");
@@ -117,13 +124,13 @@ public class MatrixRoomID2ResourceReferenceMap {
             LOG.debug("getRoomIDFromResourceReference(): Exit, {}", resourceReference);
             return (null);
         }
-        String resourceReferenceString = this.mySimpleReferenceConverter.fromReference2String(resourceReference);
+        String resourceReferenceString = this.mySimpleReferenceConverter.fromReference2Key(resourceReference);
         if(resourceReferenceString == null ){
             LOG.debug("getRoomIDFromResourceReference(): Exit, couldn't convert the reference to a JSON string --> {}", resourceReference);
             return(null);
         }
         LOG.trace("getRoomIDFromResourceReference(): getting Room ID for Resource Reference {}", resourceReference);
-        String roomID = this.theFHIRResource2RoomIDMap.get(resourceReferenceString);
+        String roomID = this.theRoomIDFHIRResourceIndex.getForwardKey(resourceReferenceString);
         if (roomID != null) {
             LOG.debug("getRoomIDFromResourceReference(): Got Room Name {} for Resource Reference {}", roomID, resourceReferenceString);
             return (roomID);
@@ -142,14 +149,13 @@ public class MatrixRoomID2ResourceReferenceMap {
             LOG.debug("setResourceReferenceForRoomID(): Exit, resourceReference == null");
             return;
         }
-        String resourceReferenceString = this.mySimpleReferenceConverter.fromReference2String(resourceReference);
+        byte[] resourceReferenceBytes = this.mySimpleReferenceConverter.fromReference2Bytes(resourceReference);
+        String resourceReferenceString = this.mySimpleReferenceConverter.fromReference2Key(resourceReference);
         if( resourceReferenceString == null){
             return;
         }
-        LOG.trace("setResourceReferenceForRoomID(): adding roomID = {} and resourceReference = {} to the RoomID2ResourceReferenceMap", roomID, resourceReferenceString);
-        this.theRoomID2FHIRResourceMap.put(roomID, resourceReferenceString);
-        LOG.trace("setResourceReferenceForRoomID(): adding resourceReference = {} and roomID = {} to the ResourceReference2RoomIDMap", resourceReferenceString, roomID);
-        this.theFHIRResource2RoomIDMap.put(resourceReferenceString, roomID);
+        LOG.trace("setResourceReferenceForRoomID(): adding roomID = {} <--> resourceReference = {} to the RoomID/ResourceReference Index", roomID, resourceReferenceString);
+        this.theRoomIDFHIRResourceIndex.put(roomID, resourceReferenceString, resourceReferenceBytes);
     }
     
     public void setRoomIDForResourceReference(Reference resourceReference, String roomID){
@@ -165,4 +171,16 @@ public class MatrixRoomID2ResourceReferenceMap {
         setResourceReferenceForRoomID(roomID, resourceReference);
         LOG.debug("setRoomIDForResourceReference(): Exit");
     }
+
+    public long getNearCacheHitCount() {
+        return (this.theRoomIDFHIRResourceIndex.getNearCacheHitCount());
+    }
+
+    public long getNearCacheMissCount() {
+        return (this.theRoomIDFHIRResourceIndex.getNearCacheMissCount());
+    }
+
+    public long getNearCacheInvalidationCount() {
+        return (this.theRoomIDFHIRResourceIndex.getNearCacheInvalidationCount());
+    }
 }
@@ -25,9 +25,11 @@ package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyiden
 
 import net.fhirbox.pegacorn.communicate.iris.utilities.IrisSharedCacheAccessorBean;
 import net.fhirbox.pegacorn.communicate.iris.utilities.IrisCacheMapNameSet;
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisBidirectionalIndex;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
+import java.nio.charset.StandardCharsets;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.FHIRIdentifier2StringUtility;
@@ -50,19 +52,17 @@ public class MatrixUserID2MatrixUserTokenMap {
     @Inject
     private IrisSharedCacheAccessorBean theIrisCacheSetManager;
 
+    @Inject
+    private IrisProcessingProperties processingProperties;
+
     private IrisCacheMapNameSet cacheName = new IrisCacheMapNameSet();
 
-    // My actual Replicated Cache (UserName, UserToken) 
-    private Cache<String /* UserName */, String /* UserToken */> theMatrixUser2TokenMap;
-    private Cache<String /* UserToken */, String /* UserName */> theMatrixToken2UserMap;
+    // My actual Replicated Cache (UserName <--> UserToken), both directions in the one index
+    private IrisBidirectionalIndex theMatrixUserTokenIndex;
 
-    FhirContext r4FHIRContext;
-    IParser r4Parser;
     FHIRIdentifier2StringUtility mySimpleIdentifierConverter;
 
     public MatrixUserID2MatrixUserTokenMap() {
-        r4FHIRContext = FhirContext.forR4();
-        r4Parser = r4FHIRContext.newJsonParser();
         this.mySimpleIdentifierConverter = new FHIRIdentifier2StringUtility();
     }
 
@@ -74,9 +74,21 @@ public class MatrixUserID2MatrixUserTokenMap {
     @PostConstruct
     public void start() {
         LOG.debug("start(): Entry");
-        this.theMatrixUser2TokenMap = this.theIrisCacheSetManager.getIrisSharedCache(cacheName.getMatrixUser2TokenMap());
-        this.theMatrixToken2UserMap = this.theIrisCacheSetManager.getIrisSharedCache(cacheName.getMatrixToken2MatrixUserMap());
-        LOG.debug("start(): Exit, Got Cache -> {}, and --> {}", theMatrixUser2TokenMap.getName(), this.theMatrixToken2UserMap.getName());
+        Cache<String, byte[]> theMatrixUserTokenCache = this.theIrisCacheSetManager.getIrisSharedCache(cacheName.getMatrixUserTokenIndex());
+        this.theMatrixUserTokenIndex = new IrisBidirectionalIndex(theMatrixUserTokenCache, processingProperties.getNearCacheMaximumEntries(),
+                processingProperties.getWriteBehindMaximumInFlight());
+        LOG.debug("start(): Exit, Got Cache -> {}", theMatrixUserTokenCache.getName());
+    }
+
+    /**
+     * Waits (a bounded time) for the outstanding index writes to reach the
+     * cluster before this node goes away
+     */
+    @PreDestroy
+    public void stop() {
+        LOG.debug("stop(): Entry");
+        boolean flushed = this.theMatrixUserTokenIndex.flush(processingProperties.getWriteBehindFlushTimeoutMillis());
+        LOG.debug("stop(): Exit, flushed --> {}", flushed);
     }
 
     /**
@@ -90,12 +102,9 @@ public class MatrixUserID2MatrixUserTokenMap {
             LOG.debug("getUserToken(): No User Token available, userName == null");
             return (null);
         }
-        if (theMatrixUser2TokenMap.isEmpty()) {
-            LOG.debug("getUserToken(): No User Token available, User Name/Token Map is empty");
-            return (null);
-        }
-        String mappedUserToken = theMatrixUser2TokenMap.get(userName);
-        if (mappedUserToken != null) {
+        byte[] mappedUserTokenBytes = this.theMatrixUserTokenIndex.getForwardValue(userName);
+        if (mappedUserTokenBytes != null) {
+            String mappedUserToken = new String(mappedUserTokenBytes, StandardCharsets.UTF_8);
             LOG.debug("getUserToken(): Returning User Token -> {}", mappedUserToken);
             return (mappedUserToken);
         }
@@ -114,11 +123,7 @@ public class MatrixUserID2MatrixUserTokenMap {
             LOG.debug("getUserName(): No User Name found, userToken == null");
             return (null);
         }
-        if (theMatrixUser2TokenMap.isEmpty()) {
-            LOG.debug("getUserName(): No User Name found, User Name/Token Map is empty");
-            return (null);
-        }
-        String mappedUserName = theMatrixUser2TokenMap.get(userToken);
+        String mappedUserName = this.theMatrixUserTokenIndex.getForwardKey(userToken);
         if (mappedUserName != null) {
             LOG.debug("getUserName(): Returning User Name -> {}", mappedUserName);
             return (mappedUserName);
@@ -137,14 +142,12 @@ public class MatrixUserID2MatrixUserTokenMap {
             LOG.debug("setUserTokenForUserName(): Exit, no user name / user token entry made, userToken == null");
             return;
         }
-        if (this.theMatrixUser2TokenMap.get(userName) != null) {
+        if (this.theMatrixUserTokenIndex.getForwardValue(userName) != null) {
             LOG.debug("setUserTokenForUserName(): Exit, no user name / user token already in map: userName -> {}, userToken --> {}", userName, userToken);
             return;
         }
-        LOG.trace("setUserTokenForUserName(): adding map entry: userName -> {}, userToken --> {}", userName, userToken);
-        this.theMatrixUser2TokenMap.put(userName, userToken);
-        LOG.trace("setUserNameForUserToken(): adding map entry: userToken -> {}, userName --> {}", userToken, userName);
-        this.theMatrixToken2UserMap.put(userToken, userName);
+        LOG.trace("setUserTokenForUserName(): adding index entry: userName -> {} <--> userToken --> {}", userName, userToken);
+        this.theMatrixUserTokenIndex.put(userName, userToken, userToken.getBytes(StandardCharsets.UTF_8));
         LOG.debug("setFHIRResourceIdentifier(): Exit, Identifier/UserId added to cachemap");
     }
 
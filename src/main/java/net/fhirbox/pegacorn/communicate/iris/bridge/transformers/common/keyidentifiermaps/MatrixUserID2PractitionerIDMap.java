@@ -26,10 +26,11 @@ package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyiden
 
 import net.fhirbox.pegacorn.communicate.iris.utilities.IrisSharedCacheAccessorBean;
 import net.fhirbox.pegacorn.communicate.iris.utilities.IrisCacheMapNameSet;
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisBidirectionalIndex;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -37,7 +38,7 @@ import javax.inject.Singleton;
 
 import org.infinispan.manager.DefaultCacheManager;
 
-import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.FHIRIdentifier2StringUtility;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.FHIRIdentifier2BytesUtility;
 
 import org.infinispan.Cache;
 
@@ -89,21 +90,19 @@ public class MatrixUserID2PractitionerIDMap {
     // My pointed to the Replicated Cache Container
     @Inject
     private IrisSharedCacheAccessorBean theIrisCacheSetManager;
+
+    @Inject
+    private IrisProcessingProperties processingProperties;
     
     private IrisCacheMapNameSet cacheName = new IrisCacheMapNameSet();
     
-    // My actual Replicated Cache
-    private Cache<String /* User Name */, String /* Practitioner Identifier */> theUserName2PractitionerIdMap;
-    private Cache<String /* Practitioner Identifier */, String /* User Name */> thePractitionerId2UserNameMap;
+    // My actual Replicated Cache (User Name <--> Practitioner Identifier Key), both directions in the one index
+    private IrisBidirectionalIndex theUserNamePractitionerIdIndex;
     
-    FhirContext r4FHIRContext; 
-    IParser r4Parser;
-    FHIRIdentifier2StringUtility mySimpleIdentifierConverter;
+    FHIRIdentifier2BytesUtility mySimpleIdentifierConverter;
 
     public MatrixUserID2PractitionerIDMap(){
-        r4FHIRContext = FhirContext.forR4();
-        r4Parser = r4FHIRContext.newJsonParser();
-        this.mySimpleIdentifierConverter = new FHIRIdentifier2StringUtility();
+        this.mySimpleIdentifierConverter = new FHIRIdentifier2BytesUtility();
     }
     /**
      * The method is a post "Constructor" which initialises the replicated cache
@@ -113,9 +112,17 @@ public class MatrixUserID2PractitionerIDMap {
     @PostConstruct
     public void start() {
         LOG.debug("start(): Entry");
-        this.theUserName2PractitionerIdMap = this.theIrisCacheSetManager.getIrisSharedCache(cacheName.getMatrixUserName2FHIRPractitionerIdMap());
-        this.thePractitionerId2UserNameMap = this.theIrisCacheSetManager.getIrisSharedCache(cacheName.getFHIRPractitionerId2MatrixUserNameMap());
-        LOG.debug("start(): Exit, Got Cache -> {}, {}", theUserName2PractitionerIdMap.getName(), thePractitionerId2UserNameMap.getName());
+        Cache<String, byte[]> theUserNamePractitionerIdCache = this.theIrisCacheSetManager.getIrisSharedCache(cacheName.getMatrixUserNameFHIRPractitionerIdIndex());
+        this.theUserNamePractitionerIdIndex = new IrisBidirectionalIndex(theUserNamePractitionerIdCache, processingProperties.getNearCacheMaximumEntries(),
+                processingProperties.getWriteBehindMaximumInFlight());
+        LOG.debug("start(): Exit, Got Cache -> {}", theUserNamePractitionerIdCache.getName());
+    }
+
+    @PreDestroy
+    public void stop() {
+        LOG.debug("stop(): Entry");
+        boolean flushed = this.theUserNamePractitionerIdIndex.flush(processingProperties.getWriteBehindFlushTimeoutMillis());
+        LOG.debug("stop(): Exit, flushed --> {}", flushed);
     }
 
     /**
@@ -130,14 +137,10 @@ public class MatrixUserID2PractitionerIDMap {
             LOG.debug("getPractitionerID(): Exit, userName == null");
         }
         LOG.debug("getPractitionerID(): username -> {}", userName);
-        if (this.theUserName2PractitionerIdMap.isEmpty()) {
-            LOG.debug("getPractitionerID(): No Identifier found, User/Practitioner ID Map is empty");
-            return (null);
-        }
-        String practitionerIDString = this.theUserName2PractitionerIdMap.get(userName);
-        if (practitionerIDString != null) {
-            LOG.debug("getPractitionerID(): Returning an Identifier -> {}", practitionerIDString);
-            Identifier practitionerIdentifier = this.mySimpleIdentifierConverter.fromString2Identifier(practitionerIDString);
+        byte[] practitionerIDBytes = this.theUserNamePractitionerIdIndex.getForwardValue(userName);
+        if (practitionerIDBytes != null) {
+            Identifier practitionerIdentifier = this.mySimpleIdentifierConverter.fromBytes2Identifier(practitionerIDBytes);
+            LOG.debug("getPractitionerID(): Returning an Identifier -> {}", practitionerIdentifier);
             return (practitionerIdentifier);
         }
         LOG.debug("getPractitionerID(): No Identifier found, no User/Practitioner ID map entry found for RoomServer User Name: {}", userName);
@@ -157,12 +160,8 @@ public class MatrixUserID2PractitionerIDMap {
             LOG.debug("getUserName(): Exit, practitionerIdentifier == null");
         }
         LOG.trace("getUserName(): searching for user name for Identifier -> {}", practitionerIdentifier);
-        if (this.theUserName2PractitionerIdMap.isEmpty()) {
-            LOG.debug("getUserName(): No Identifier found, User/Practitioner ID Map is empty");
-            return (null);
-        }
-        String practitierIDString = this.mySimpleIdentifierConverter.fromIdentifier2String(practitionerIdentifier);
-        String userName = this.thePractitionerId2UserNameMap.get(practitierIDString);
+        String practitierIDString = this.mySimpleIdentifierConverter.fromIdentifier2Key(practitionerIdentifier);
+        String userName = this.theUserNamePractitionerIdIndex.getForwardKey(practitierIDString);
         if (userName != null) {
             LOG.debug("getUserName(): Returning a User Name -> {}", userName);
             return (userName);
@@ -187,10 +186,10 @@ public class MatrixUserID2PractitionerIDMap {
         if (practitionerIdentifier == null) {
             LOG.debug("setPractitionerIDForUserName(): No entry create in User Name / PractitionerId Map, practitionerIdentifier == null");
         }
-        String practitionerIDString = this.mySimpleIdentifierConverter.fromIdentifier2String(practitionerIdentifier);
+        byte[] practitionerIDBytes = this.mySimpleIdentifierConverter.fromIdentifier2Bytes(practitionerIdentifier);
+        String practitionerIDString = this.mySimpleIdentifierConverter.fromIdentifier2Key(practitionerIdentifier);
         LOG.trace("setPractitionerIDForUserName(): Adding entry to map: userName -> " + userName + " Identifier -> " + practitionerIDString);
-        this.theUserName2PractitionerIdMap.put(userName, practitionerIDString);
-        this.thePractitionerId2UserNameMap.put(practitionerIDString, userName);
+        this.theUserNamePractitionerIdIndex.put(userName, practitionerIDString, practitionerIDBytes);
         LOG.debug("setPractitionerIDForUserName(): User Name / Identifier added to cachemap");
     }
 
@@ -210,9 +209,21 @@ public class MatrixUserID2PractitionerIDMap {
         if (practitionerIdentifier == null) {
             LOG.debug("setUserNameForPractitionerID(): No entry create in User Name / PractitionerId Map, practitionerIdentifier == null");
         }
-        String practitionerIDString = this.mySimpleIdentifierConverter.fromIdentifier2String(practitionerIdentifier);
+        String practitionerIDString = this.mySimpleIdentifierConverter.fromIdentifier2Key(practitionerIdentifier);
         LOG.trace("setPractitionerID(): Adding entry to map: userName -> {}, Identifier -> {}", userName, practitionerIDString);
         this.setPractitionerIDForUserName(userName, practitionerIdentifier);
         LOG.debug("setPractitionerID(): User Name / Identifier added to cachemap");
     }
+
+    public long getNearCacheHitCount() {
+        return (this.theUserNamePractitionerIdIndex.getNearCacheHitCount());
+    }
+
+    public long getNearCacheMissCount() {
+        return (this.theUserNamePractitionerIdIndex.getNearCacheMissCount());
+    }
+
+    public long getNearCacheInvalidationCount() {
+        return (this.theUserNamePractitionerIdIndex.getNearCacheInvalidationCount());
+    }
 }
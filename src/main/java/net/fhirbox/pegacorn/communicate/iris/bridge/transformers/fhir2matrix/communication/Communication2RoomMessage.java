@@ -34,9 +34,9 @@ import org.hl7.fhir.r4.model.Period;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.StringType;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MinorTransformationException;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisFHIRContextService;
 import net.fhirbox.pegacorn.referencevalues.PegacornSystemReference;
 import org.hl7.fhir.r4.model.Extension;
 
@@ -95,8 +95,8 @@ public class Communication2RoomMessage {
 
     PegacornSystemReference pegacornSystemReference = new PegacornSystemReference();
 
-    FhirContext fhirContext = FhirContext.forR4();
-    ca.uhn.fhir.parser.IParser fhirParser = this.fhirContext.newJsonParser();
+    @Inject
+    IrisFHIRContextService fhirContextService;
 
     @Inject
     MatrixAttribute2FHIRIdentifierBuilders identifierBuilders;
@@ -123,7 +123,9 @@ public class Communication2RoomMessage {
     public List<JSONObject> transfromCommunicatinToMatrixRoomMessageSet(Communication communicationEvent) throws MinorTransformationException {
         LOG.debug(".doTransform(): Entry, Message In --> {}", communicationEvent);
         Communication localCommunicationEvent = new Communication();
-        LOG.trace("Message to be converted --> " + fhirParser.encodeResourceToString(communicationEvent));
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Message to be converted --> {}", fhirContextService.getJsonParser().encodeResourceToString(communicationEvent));
+        }
         try {
             LOG.trace("doTransform(): Create empty matrix room message");
             JSONObject newMatrixRoomMessage = new JSONObject();
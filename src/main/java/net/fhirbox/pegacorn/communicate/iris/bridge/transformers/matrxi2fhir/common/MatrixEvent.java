@@ -0,0 +1,245 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver.MatrixEventSlice;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MatrixMessageException;
+import org.json.JSONObject;
+
+/**
+ * <h1> A (decoded once) Matrix(R) Room Event </h1>
+ * <p>
+ * This class wraps a single Matrix event as received from the RoomServer. The
+ * top-level attributes used for routing and transformation ("type",
+ * "room_id", "sender", "event_id", "origin_server_ts", "state_key",
+ * "redacts") are
+ * extracted in one shallow (streaming) pass when the MatrixEvent is created.
+ * The "content" object is only located during that pass - it is converted to
+ * a JSONObject the first time it is asked for, and then kept.
+ * <p>
+ * The raw event may be a String or a MatrixEventSlice (a view over the
+ * RoomServer message buffer), in which case the event is never copied in
+ * full unless toString() is called.
+ *
+ * @author ACT Health
+ *
+ * @see
+ * <a href="https://matrix.org/docs/spec/client_server/r0.6.0#room-event-fields">Matrix Client-Server API Specificaton, Release 0.6.0 - Room Event Fields</a>
+ */
+public class MatrixEvent
+{
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final CharSequence rawEvent;
+    private int topLevelFieldCount;
+    private String type;
+    private String roomID;
+    private String sender;
+    private String eventID;
+    private String stateKey;
+    private String redacts;
+    private Long originServerTimestamp;
+    private int contentStartIndex = -1;
+    private int contentEndIndex = -1;
+    private JSONObject content;
+
+    public MatrixEvent(CharSequence rawEvent) throws MatrixMessageException
+    {
+        if (rawEvent == null) {
+            throw (new MatrixMessageException("MatrixEvent(): Matrix Event --> is null"));
+        }
+        this.rawEvent = rawEvent;
+        decodeTopLevelFields();
+    }
+
+    private void decodeTopLevelFields() throws MatrixMessageException
+    {
+        try (JsonParser eventParser = createEventParser()) {
+            if (eventParser.nextToken() != JsonToken.START_OBJECT) {
+                throw (new MatrixMessageException("decodeTopLevelFields(): Matrix Event --> is not a JSON object"));
+            }
+            // Parser offsets are mapped back to rawEvent indices relative to the opening brace
+            long openingBraceOffset = eventParser.getTokenLocation().getCharOffset();
+            int openingBraceIndex = indexOfOpeningBrace();
+            while (eventParser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = eventParser.getCurrentName();
+                JsonToken fieldValueToken = eventParser.nextToken();
+                this.topLevelFieldCount += 1;
+                switch (fieldName) {
+                    case "type":
+                        this.type = scalarAsText(eventParser, fieldValueToken);
+                        break;
+                    case "room_id":
+                        this.roomID = scalarAsText(eventParser, fieldValueToken);
+                        break;
+                    case "sender":
+                        this.sender = scalarAsText(eventParser, fieldValueToken);
+                        break;
+                    case "event_id":
+                        this.eventID = scalarAsText(eventParser, fieldValueToken);
+                        break;
+                    case "state_key":
+                        this.stateKey = scalarAsText(eventParser, fieldValueToken);
+                        break;
+                    case "redacts":
+                        this.redacts = scalarAsText(eventParser, fieldValueToken);
+                        break;
+                    case "origin_server_ts":
+                        if (fieldValueToken == JsonToken.VALUE_NUMBER_INT) {
+                            this.originServerTimestamp = eventParser.getLongValue();
+                        }
+                        break;
+                    case "content":
+                        if (fieldValueToken == JsonToken.START_OBJECT) {
+                            this.contentStartIndex = openingBraceIndex + (int) (eventParser.getTokenLocation().getCharOffset() - openingBraceOffset);
+                            eventParser.skipChildren();
+                            this.contentEndIndex = openingBraceIndex + (int) (eventParser.getTokenLocation().getCharOffset() - openingBraceOffset) + 1;
+                        } else {
+                            eventParser.skipChildren();
+                        }
+                        break;
+                    default:
+                        eventParser.skipChildren();
+                }
+            }
+        } catch (IOException parsingException) {
+            throw (new MatrixMessageException("decodeTopLevelFields(): Matrix Event --> is not valid JSON", parsingException));
+        }
+    }
+
+    private JsonParser createEventParser() throws IOException
+    {
+        if (this.rawEvent instanceof MatrixEventSlice) {
+            MatrixEventSlice eventSlice = (MatrixEventSlice) this.rawEvent;
+            return (JSON_FACTORY.createParser(eventSlice.getBatchBuffer(), eventSlice.getEventOffset(), eventSlice.getEventLength()));
+        }
+        return (JSON_FACTORY.createParser(this.rawEvent.toString()));
+    }
+
+    private int indexOfOpeningBrace()
+    {
+        int index = 0;
+        while ((index < this.rawEvent.length()) && Character.isWhitespace(this.rawEvent.charAt(index))) {
+            index += 1;
+        }
+        return (index);
+    }
+
+    private String scalarAsText(JsonParser eventParser, JsonToken valueToken) throws IOException
+    {
+        if (valueToken.isScalarValue() && (valueToken != JsonToken.VALUE_NULL)) {
+            return (eventParser.getText());
+        }
+        eventParser.skipChildren();
+        return (null);
+    }
+
+    public String getType()
+    {
+        return (this.type);
+    }
+
+    public String getRoomID()
+    {
+        return (this.roomID);
+    }
+
+    public String getSender()
+    {
+        return (this.sender);
+    }
+
+    public String getEventID()
+    {
+        return (this.eventID);
+    }
+
+    public String getStateKey()
+    {
+        return (this.stateKey);
+    }
+
+    /**
+     * @return The "event_id" of the event an "m.room.redaction" event redacts
+     * (top-level "redacts", or "content.redacts" in later room versions), or
+     * null if there is none
+     */
+    public String getRedacts()
+    {
+        if ((this.redacts == null) && hasContent()) {
+            String contentRedacts = getContent().optString("redacts", null);
+            if ((contentRedacts != null) && !contentRedacts.isEmpty()) {
+                return (contentRedacts);
+            }
+        }
+        return (this.redacts);
+    }
+
+    /**
+     * @return The "origin_server_ts" (milliseconds since the epoch), or null if
+     * the event does not carry one
+     */
+    public Long getOriginServerTimestamp()
+    {
+        return (this.originServerTimestamp);
+    }
+
+    public boolean hasContent()
+    {
+        return (this.contentStartIndex >= 0);
+    }
+
+    /**
+     * @return The "content" object of the event (decoded on first use), or
+     * null if the event has no (object) "content"
+     */
+    public JSONObject getContent()
+    {
+        if ((this.content == null) && hasContent()) {
+            this.content = new JSONObject(this.rawEvent.subSequence(this.contentStartIndex, this.contentEndIndex).toString());
+        }
+        return (this.content);
+    }
+
+    public boolean isEmpty()
+    {
+        return (this.topLevelFieldCount == 0);
+    }
+
+    public CharSequence getRawEvent()
+    {
+        return (this.rawEvent);
+    }
+
+    @Override
+    public String toString()
+    {
+        return (this.rawEvent.toString());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common;
+
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisCacheMapNameSet;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisSharedCacheAccessorBean;
+import net.fhirbox.pegacorn.communicate.iris.utilities.RotatingBloomFilter;
+import org.infinispan.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <h1> Matrix(R) Event De-duplication Filter </h1>
+ * <p>
+ * The same Matrix event (i.e. "event_id") can reach Iris more than once - via
+ * different nodes of the cluster, or via RoomServer backfill. This class
+ * filters out the repeats before they are transformed (and re-published).
+ * <p>
+ * Each node holds a fixed-size RotatingBloomFilter of the event IDs it has
+ * seen recently, and it is the fast path: an event the filter has not seen
+ * is passed without a cluster round-trip (its event ID is recorded in the
+ * clustered event ID map asynchronously). Only an event the filter has
+ * (possibly) seen is checked exactly, with a putIfAbsent on the (size
+ * bounded) event ID map - so a false positive costs one lookup, not a lost
+ * event.
+ * <p>
+ * Repeats that reach the same node are caught by the filter; a repeat whose
+ * first delivery went to another node is only caught if the filter happens
+ * to report it, so it is usually passed - the asynchronous record then finds
+ * the event ID already present, and it is counted as a missed duplicate.
+ *
+ * @author ACT Health
+ */
+@ApplicationScoped
+public class MatrixEventDeduplicationFilter
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(MatrixEventDeduplicationFilter.class);
+
+    @Inject
+    IrisSharedCacheAccessorBean theIrisCacheSetManager;
+
+    @Inject
+    IrisProcessingProperties processingProperties;
+
+    private IrisCacheMapNameSet cacheName = new IrisCacheMapNameSet();
+
+    private Cache<String, String> theEventIDMap;
+    private RotatingBloomFilter recentEventIDFilter;
+    private final LongAdder duplicateCount = new LongAdder();
+    private final LongAdder falsePositiveCount = new LongAdder();
+    private final LongAdder missedDuplicateCount = new LongAdder();
+
+    @PostConstruct
+    public void start()
+    {
+        LOG.debug("start(): Entry");
+        this.recentEventIDFilter = new RotatingBloomFilter(processingProperties.getDeduplicationExpectedEvents(), processingProperties.getDeduplicationFalsePositiveRate());
+        this.theEventIDMap = this.theIrisCacheSetManager.getIrisSharedCache(cacheName.getMatrixEventIDMap());
+        LOG.debug("start(): Exit, Got Cache --> {}, Bloom Filter bits --> {}, hashes --> {}", theEventIDMap.getName(),
+                recentEventIDFilter.getBitCount(), recentEventIDFilter.getHashCount());
+    }
+
+    /**
+     * @param matrixEvent The (decoded) Matrix event
+     * @return true if this is the first time the event has been seen (within
+     * the de-duplication window), false if it is a repeat
+     */
+    public boolean isFirstDelivery(MatrixEvent matrixEvent)
+    {
+        String eventID = matrixEvent.getEventID();
+        if (eventID == null) {
+            LOG.trace("isFirstDelivery(): Event has no -event_id-, so can't be de-duplicated");
+            return (true);
+        }
+        if (!this.recentEventIDFilter.put(eventID)) {
+            this.theEventIDMap.putIfAbsentAsync(eventID, eventID).whenComplete((existingEventID, recordEx) -> {
+                if (recordEx != null) {
+                    LOG.warn("isFirstDelivery(): Couldn't record Event --> {}, reason --> {}", eventID, recordEx.getMessage());
+                } else if (existingEventID != null) {
+                    LOG.debug("isFirstDelivery(): Event --> {} was first delivered to another node, passed as new", eventID);
+                    this.missedDuplicateCount.increment();
+                }
+            });
+            return (true);
+        }
+        if (this.theEventIDMap.putIfAbsent(eventID, eventID) == null) {
+            LOG.trace("isFirstDelivery(): Bloom Filter false positive for Event --> {}", eventID);
+            this.falsePositiveCount.increment();
+            return (true);
+        }
+        LOG.debug("isFirstDelivery(): Duplicate Event --> {}, discarding", eventID);
+        this.duplicateCount.increment();
+        return (false);
+    }
+
+    public long getDuplicateCount()
+    {
+        return (this.duplicateCount.sum());
+    }
+
+    public long getFalsePositiveCount()
+    {
+        return (this.falsePositiveCount.sum());
+    }
+
+    /**
+     * @return The number of repeats passed as new, because their first
+     * delivery went to another node
+     */
+    public long getMissedDuplicateCount()
+    {
+        return (this.missedDuplicateCount.sum());
+    }
+}
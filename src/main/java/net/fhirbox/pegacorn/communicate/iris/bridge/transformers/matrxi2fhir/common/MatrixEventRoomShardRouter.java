@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <h1> Matrix(R) Event Room Shard Router </h1>
+ * <p>
+ * This class assigns each (decoded) MatrixEvent to one of a fixed set of
+ * shards, based on its "room_id". Each shard is a SEDA queue with a single
+ * consumer, so events from different rooms are transformed in parallel while
+ * events within a room are transformed in the order the RoomServer sent them.
+ * <p>
+ * The depth of each shard queue (events enqueued but not yet picked up) is
+ * tracked so it can be reported/monitored.
+ *
+ * @author ACT Health
+ */
+@ApplicationScoped
+public class MatrixEventRoomShardRouter
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(MatrixEventRoomShardRouter.class);
+
+    private static final String SHARD_ENDPOINT_PREFIX = "seda:matrixEventRoomShard-";
+
+    @Inject
+    IrisProcessingProperties processingProperties;
+
+    private int shardCount;
+    private AtomicInteger[] shardQueueDepths;
+
+    @PostConstruct
+    public void initialise()
+    {
+        this.shardCount = Math.max(1, processingProperties.getTransformerRoomShardCount());
+        this.shardQueueDepths = new AtomicInteger[this.shardCount];
+        for (int shardIndex = 0; shardIndex < this.shardCount; shardIndex++) {
+            this.shardQueueDepths[shardIndex] = new AtomicInteger();
+        }
+        LOG.info("initialise(): Matrix Event Room Shard count --> {}", this.shardCount);
+    }
+
+    /**
+     * @return true if events should be spread across the room shards, false
+     * if they should be processed sequentially
+     */
+    public boolean isShardingEnabled()
+    {
+        return (this.shardCount > 1);
+    }
+
+    public int getShardCount()
+    {
+        return (this.shardCount);
+    }
+
+    public String getShardEndpoint(int shardIndex)
+    {
+        return (SHARD_ENDPOINT_PREFIX + shardIndex);
+    }
+
+    /**
+     * Resolves the shard endpoint for the event (and counts it onto that
+     * shard's queue). Used as the expression of a Camel recipientList().
+     *
+     * @param matrixEvent The (decoded) Matrix event
+     * @return The SEDA endpoint URI of the event's room shard
+     */
+    public String resolveShardRoute(MatrixEvent matrixEvent)
+    {
+        int shardIndex = shardIndexFor(matrixEvent);
+        int shardQueueDepth = this.shardQueueDepths[shardIndex].incrementAndGet();
+        LOG.trace("resolveShardRoute(): Room --> {}, Shard --> {}, Queue Depth --> {}", matrixEvent.getRoomID(), shardIndex, shardQueueDepth);
+        return (getShardEndpoint(shardIndex));
+    }
+
+    /**
+     * Counts the event off its shard's queue - called by the shard consumer
+     * route as it picks the event up.
+     *
+     * @param matrixEvent The (decoded) Matrix event
+     */
+    public void eventDequeued(MatrixEvent matrixEvent)
+    {
+        this.shardQueueDepths[shardIndexFor(matrixEvent)].decrementAndGet();
+    }
+
+    public int getShardQueueDepth(int shardIndex)
+    {
+        return (this.shardQueueDepths[shardIndex].get());
+    }
+
+    /**
+     * @return A snapshot of the queue depth of each shard
+     */
+    public int[] getShardQueueDepths()
+    {
+        int[] depthSnapshot = new int[this.shardCount];
+        for (int shardIndex = 0; shardIndex < this.shardCount; shardIndex++) {
+            depthSnapshot[shardIndex] = this.shardQueueDepths[shardIndex].get();
+        }
+        return (depthSnapshot);
+    }
+
+    private int shardIndexFor(MatrixEvent matrixEvent)
+    {
+        String roomID = matrixEvent.getRoomID();
+        if (roomID == null) {
+            return (0);
+        }
+        return (Math.floorMod(roomID.hashCode(), this.shardCount));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.enterprise.context.ApplicationScoped;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <h1> Matrix(R) Event Type Dispatcher </h1>
+ * <p>
+ * This class maps the "type" of a (decoded) MatrixEvent to the Camel endpoint
+ * of the route that handles it - a single table lookup per event, rather than
+ * a chain of content (substring) tests against the raw event.
+ * <p>
+ * Handlers are registered (typically within a RouteBuilder's configure()
+ * method) against the exact Matrix event type. Events of any other type are
+ * sent to the "unhandled" endpoint.
+ * <p>
+ * A count of the events dispatched is kept for each registered type (and
+ * one, in total, for all unhandled types - so that arbitrary event types
+ * from the RoomServer can't grow the count table).
+ *
+ * @author ACT Health
+ */
+@ApplicationScoped
+public class MatrixEventTypeDispatcher
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(MatrixEventTypeDispatcher.class);
+
+    public static final String UNHANDLED_EVENT_TYPE = "unhandled";
+
+    private final Map<String, String> eventRouteTable = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> eventTypeCounters = new ConcurrentHashMap<>();
+    private final LongAdder unhandledEventCounter = new LongAdder();
+    private String unhandledEventRoute;
+
+    /**
+     * Registers (or replaces) the endpoint for a given Matrix event type.
+     *
+     * @param eventType The Matrix event "type" (e.g. "m.room.message")
+     * @param eventRoute The Camel endpoint URI for that event type
+     */
+    public void registerEventRoute(String eventType, String eventRoute)
+    {
+        LOG.debug("registerEventRoute(): Entry, Event Type --> {}, Route --> {}", eventType, eventRoute);
+        if ((eventType == null) || (eventRoute == null)) {
+            throw (new IllegalArgumentException("registerEventRoute(): Event Type or Route --> is null"));
+        }
+        this.eventTypeCounters.putIfAbsent(eventType, new LongAdder());
+        this.eventRouteTable.put(eventType, eventRoute);
+    }
+
+    public void setUnhandledEventRoute(String eventRoute)
+    {
+        LOG.debug("setUnhandledEventRoute(): Entry, Route --> {}", eventRoute);
+        this.unhandledEventRoute = eventRoute;
+    }
+
+    /**
+     * Resolves the endpoint for the event (and counts it). Used as the
+     * expression of a Camel recipientList().
+     *
+     * @param matrixEvent The (decoded) Matrix event
+     * @return The Camel endpoint URI for the event's type, or the unhandled
+     * event endpoint if no handler is registered for it
+     */
+    public String resolveEventRoute(MatrixEvent matrixEvent)
+    {
+        String eventType = matrixEvent.getType();
+        String eventRoute = (eventType == null) ? null : this.eventRouteTable.get(eventType);
+        if (eventRoute == null) {
+            LOG.trace("resolveEventRoute(): No handler for Event Type --> {}", eventType);
+            this.unhandledEventCounter.increment();
+            return (this.unhandledEventRoute);
+        }
+        this.eventTypeCounters.get(eventType).increment();
+        LOG.trace("resolveEventRoute(): Event Type --> {}, Route --> {}", eventType, eventRoute);
+        return (eventRoute);
+    }
+
+    public long getEventCount(String eventType)
+    {
+        if (UNHANDLED_EVENT_TYPE.equals(eventType)) {
+            return (this.unhandledEventCounter.sum());
+        }
+        LongAdder eventTypeCounter = this.eventTypeCounters.get(eventType);
+        return ((eventTypeCounter == null) ? 0L : eventTypeCounter.sum());
+    }
+
+    /**
+     * @return A snapshot of the per-type event counts (including the
+     * "unhandled" total)
+     */
+    public Map<String, Long> getEventCounts()
+    {
+        Map<String, Long> eventCounts = new HashMap<>();
+        this.eventTypeCounters.forEach((eventType, eventTypeCounter) -> eventCounts.put(eventType, eventTypeCounter.sum()));
+        eventCounts.put(UNHANDLED_EVENT_TYPE, this.unhandledEventCounter.sum());
+        return (eventCounts);
+    }
+}
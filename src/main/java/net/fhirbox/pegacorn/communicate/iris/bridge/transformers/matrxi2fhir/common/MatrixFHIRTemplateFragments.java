@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import net.fhirbox.pegacorn.deploymentproperties.CommunicateProperties;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Narrative;
+import org.hl7.fhir.utilities.xhtml.NodeType;
+import org.hl7.fhir.utilities.xhtml.XhtmlNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <h1> Matrix(R) to FHIR Template Fragments </h1>
+ * <p>
+ * Every FHIR::Bundle built from a Matrix event carries the same constant
+ * fragments - the FHIR::MessageHeader (event coding and source), the
+ * FHIR::Communication.category CodeableConcepts and the generated
+ * FHIR::Narrative. This class builds each of them once (from the
+ * CommunicateProperties) and hands out copies, so the transformers no longer
+ * rebuild them (strings and all) for every message.
+ * <p>
+ * The templates themselves are never handed out - FHIR elements are mutable,
+ * and end up owned by the resource they are added to.
+ *
+ * @author ACT Health
+ */
+@ApplicationScoped
+public class MatrixFHIRTemplateFragments
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(MatrixFHIRTemplateFragments.class);
+
+    private static final String PEGACORN_MESSAGE_CODE_SYSTEM = "http://pegacorn.fhirbox.net/pegacorn/R1/message-codes";
+    private static final String MESSAGE_SOURCE_NAME = "Pegacorn Matrix2FHIR Integration Service";
+    private static final String MESSAGE_SOURCE_SOFTWARE = "Pegacorn::Communicate::Iris";
+    private static final String MATRIX_MESSAGE_CATEGORY_PREFIX = "Matrix::m.room.message::";
+    private static final String[] MATRIX_MESSAGE_TYPES = {"m.text", "m.emote", "m.notice", "m.image", "m.file", "m.audio", "m.location", "m.video"};
+
+    @Inject
+    CommunicateProperties communicateProperties;
+
+    private MessageHeader communicationBundleMessageHeader;
+    private MessageHeader groupBundleMessageHeader;
+    private CodeableConcept hl7NotificationCategory;
+    private Map<String, CodeableConcept> matrixMessageTypeCategories;
+    private Narrative roomServerMessageNarrative;
+
+    @PostConstruct
+    public void initialise()
+    {
+        LOG.debug("initialise(): Entry");
+        this.communicationBundleMessageHeader = buildMessageHeader("communication-bundle", communicateProperties.getIrisEndPointForIncomingCommunicationBundle());
+        this.groupBundleMessageHeader = buildMessageHeader("group-bundle", communicateProperties.getIrisEndPointForIncomingGroupBundle());
+        this.hl7NotificationCategory = buildHL7NotificationCategory();
+        Map<String, CodeableConcept> messageTypeCategories = new HashMap<>();
+        for (String messageType : MATRIX_MESSAGE_TYPES) {
+            messageTypeCategories.put(messageType, buildMatrixMessageTypeCategory(messageType));
+        }
+        this.matrixMessageTypeCategories = Collections.unmodifiableMap(messageTypeCategories);
+        this.roomServerMessageNarrative = buildRoomServerMessageNarrative();
+        LOG.debug("initialise(): Exit, Matrix msgtype categories --> {}", this.matrixMessageTypeCategories.keySet());
+    }
+
+    /**
+     * @return A (new) FHIR::MessageHeader for a Communication (message) Bundle
+     */
+    public MessageHeader newCommunicationBundleMessageHeader()
+    {
+        return (this.communicationBundleMessageHeader.copy());
+    }
+
+    /**
+     * @return A (new) FHIR::MessageHeader for a Group (message) Bundle
+     */
+    public MessageHeader newGroupBundleMessageHeader()
+    {
+        return (this.groupBundleMessageHeader.copy());
+    }
+
+    /**
+     * @return A (new) HL7 communication-category "notification"
+     * CodeableConcept
+     */
+    public CodeableConcept newHL7NotificationCategory()
+    {
+        return (this.hl7NotificationCategory.copy());
+    }
+
+    /**
+     * @param messageType The "msgtype" of the Matrix "m.room.message"
+     * @return A (new) CodeableConcept describing the Matrix msgtype - built
+     * from scratch only for (non-standard) msgtypes without a template
+     */
+    public CodeableConcept newMatrixMessageTypeCategory(String messageType)
+    {
+        CodeableConcept messageTypeCategory = this.matrixMessageTypeCategories.get(messageType);
+        if (messageTypeCategory == null) {
+            LOG.trace("newMatrixMessageTypeCategory(): No template for msgtype --> {}", messageType);
+            return (buildMatrixMessageTypeCategory(messageType));
+        }
+        return (messageTypeCategory.copy());
+    }
+
+    /**
+     * @return A (new) generated FHIR::Narrative for a RoomServer message
+     */
+    public Narrative newRoomServerMessageNarrative()
+    {
+        return (this.roomServerMessageNarrative.copy());
+    }
+
+    private MessageHeader buildMessageHeader(String eventCode, String sourceEndpoint)
+    {
+        MessageHeader messageHeaderElement = new MessageHeader();
+        Coding messageHeaderCode = new Coding();
+        messageHeaderCode.setSystem(PEGACORN_MESSAGE_CODE_SYSTEM);
+        messageHeaderCode.setCode(eventCode);
+        messageHeaderElement.setEvent(messageHeaderCode);
+        MessageHeader.MessageSourceComponent messageSource = new MessageHeader.MessageSourceComponent();
+        messageSource.setName(MESSAGE_SOURCE_NAME);
+        messageSource.setSoftware(MESSAGE_SOURCE_SOFTWARE);
+        messageSource.setEndpoint(sourceEndpoint);
+        messageHeaderElement.setSource(messageSource);
+        return (messageHeaderElement);
+    }
+
+    private CodeableConcept buildHL7NotificationCategory()
+    {
+        Coding notificationCode = new Coding();
+        notificationCode.setCode("notification");
+        notificationCode.setSystem("http://terminology.hl7.org/CodeSystem/communication-category");
+        notificationCode.setVersion("4.0.1"); // TODO - this needs to be a DeploymentVariable
+        notificationCode.setDisplay("Notification");
+        CodeableConcept notificationCategory = new CodeableConcept();
+        notificationCategory.addCoding(notificationCode);
+        notificationCategory.setText("HL7: Communication Category = Notification ");
+        return (notificationCategory);
+    }
+
+    private CodeableConcept buildMatrixMessageTypeCategory(String messageType)
+    {
+        Coding matrixBasedCode = new Coding();
+        matrixBasedCode.setCode(MATRIX_MESSAGE_CATEGORY_PREFIX + messageType);
+        matrixBasedCode.setSystem("https://matrix.org/docs/spec/client_server/r0.6.0");
+        matrixBasedCode.setVersion("0.6.0");
+        matrixBasedCode.setDisplay("Matrix.org: Room Instant Message --> " + MATRIX_MESSAGE_CATEGORY_PREFIX + messageType);
+        CodeableConcept matrixBasedCategory = new CodeableConcept();
+        matrixBasedCategory.addCoding(matrixBasedCode);
+        matrixBasedCategory.setText(MATRIX_MESSAGE_CATEGORY_PREFIX + messageType);
+        return (matrixBasedCategory);
+    }
+
+    private Narrative buildRoomServerMessageNarrative()
+    {
+        XhtmlNode narrativeDiv = new XhtmlNode(NodeType.Element, "div");
+        narrativeDiv.setAttribute("xmlns", "http://www.w3.org/1999/xhtml");
+        narrativeDiv.addTag("p").addText("A message generated on the Pegacorn::Communicate::RoomServer platform");
+        Narrative roomServerNarrative = new Narrative();
+        roomServerNarrative.setStatus(Narrative.NarrativeStatus.GENERATED);
+        roomServerNarrative.setDiv(narrativeDiv);
+        return (roomServerNarrative);
+    }
+}
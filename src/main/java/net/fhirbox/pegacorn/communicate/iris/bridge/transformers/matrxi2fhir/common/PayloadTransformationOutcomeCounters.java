@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.enterprise.context.ApplicationScoped;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationOutcomeEnum;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <h1> Payload Transformation Outcome Counters </h1>
+ * <p>
+ * Counts the outcomes (see PayloadTransformationOutcomeEnum) of each of the
+ * Matrix(R) to FHIR transformation steps. The steps are named by the
+ * transformers themselves (constants, not message content), so the set of
+ * counters is bounded.
+ *
+ * @author ACT Health
+ */
+@ApplicationScoped
+public class PayloadTransformationOutcomeCounters
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(PayloadTransformationOutcomeCounters.class);
+
+    private final Map<String, Map<PayloadTransformationOutcomeEnum, LongAdder>> transformationOutcomeCounters = new ConcurrentHashMap<>();
+
+    /**
+     * Counts the outcome of a transformation step.
+     *
+     * @param <T> The type of element the step produces
+     * @param transformation The name of the transformation step
+     * @param transformationResult The result of the step
+     * @return The (same) result, so the call can wrap the return statement
+     */
+    public <T> PayloadTransformationResult<T> count(String transformation, PayloadTransformationResult<T> transformationResult)
+    {
+        this.transformationOutcomeCounters.computeIfAbsent(transformation, PayloadTransformationOutcomeCounters::newOutcomeCounters)
+                .get(transformationResult.getOutcome()).increment();
+        if (!transformationResult.isSuccessful()) {
+            LOG.trace("count(): Transformation --> {}, Outcome --> {}, Reason --> {}", transformation, transformationResult.getOutcome(), transformationResult.getReason());
+        }
+        return (transformationResult);
+    }
+
+    public long getOutcomeCount(String transformation, PayloadTransformationOutcomeEnum outcome)
+    {
+        Map<PayloadTransformationOutcomeEnum, LongAdder> outcomeCounters = this.transformationOutcomeCounters.get(transformation);
+        if (outcomeCounters == null) {
+            return (0L);
+        }
+        return (outcomeCounters.get(outcome).sum());
+    }
+
+    /**
+     * @return A snapshot of the (non-zero) outcome counts, by transformation
+     * step
+     */
+    public Map<String, Map<PayloadTransformationOutcomeEnum, Long>> getOutcomeCounts()
+    {
+        Map<String, Map<PayloadTransformationOutcomeEnum, Long>> outcomeCounts = new HashMap<>();
+        this.transformationOutcomeCounters.forEach((transformation, outcomeCounters) -> {
+            Map<PayloadTransformationOutcomeEnum, Long> transformationCounts = new EnumMap<>(PayloadTransformationOutcomeEnum.class);
+            outcomeCounters.forEach((outcome, outcomeCounter) -> {
+                long outcomeCount = outcomeCounter.sum();
+                if (outcomeCount > 0L) {
+                    transformationCounts.put(outcome, outcomeCount);
+                }
+            });
+            outcomeCounts.put(transformation, transformationCounts);
+        });
+        return (Collections.unmodifiableMap(outcomeCounts));
+    }
+
+    private static Map<PayloadTransformationOutcomeEnum, LongAdder> newOutcomeCounters(String transformation)
+    {
+        Map<PayloadTransformationOutcomeEnum, LongAdder> outcomeCounters = new EnumMap<>(PayloadTransformationOutcomeEnum.class);
+        for (PayloadTransformationOutcomeEnum outcome : PayloadTransformationOutcomeEnum.values()) {
+            outcomeCounters.put(outcome, new LongAdder());
+        }
+        return (Collections.unmodifiableMap(outcomeCounters));
+    }
+}
@@ -24,9 +24,12 @@
 package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Set;
 import javax.enterprise.context.ApplicationScoped;
+import net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver.MatrixEventSlice;
+import net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver.MatrixEventSliceSet;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MatrixMessageException;
 import net.fhirbox.pegacorn.petasos.model.UoW;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,9 +45,31 @@ public class UoWMatrixMessageExtraction
 
     private static final Logger LOG = LoggerFactory.getLogger(UoWMatrixMessageExtraction.class);
 
-    public List<String> extractIndividualIngresObjects(UoW incomingUoW)
+    /**
+     * Decodes each event in the UoW ingress content (once) into a MatrixEvent,
+     * so that the routing and transformation stages do not need to re-parse
+     * the raw event JSON.
+     *
+     * @param incomingUoW The UoW created by the MatrixGatewayReceiverWUP
+     * @return The MatrixEvent set, in the order the RoomServer provided them
+     * @throws MatrixMessageException If an event is not a JSON object
+     */
+    public List<MatrixEvent> extractIndividualIngresObjects(UoW incomingUoW) throws MatrixMessageException
     {
-        List<String> messageList = new ArrayList<String>(incomingUoW.getUowIngressContent());
-        return(messageList);
+        Collection<String> ingressContent = incomingUoW.getUowIngressContent();
+        List<MatrixEvent> eventList = new ArrayList<MatrixEvent>(ingressContent.size());
+        if (ingressContent instanceof MatrixEventSliceSet) {
+            // Decode from the views themselves, so that events are only materialised as needed
+            LOG.trace("extractIndividualIngresObjects(): Ingress content is a MatrixEventSliceSet");
+            for (MatrixEventSlice eventSlice : ((MatrixEventSliceSet) ingressContent).getEventSlices()) {
+                eventList.add(new MatrixEvent(eventSlice));
+            }
+        } else {
+            for (String rawEvent : ingressContent) {
+                eventList.add(new MatrixEvent(rawEvent));
+            }
+        }
+        LOG.debug("extractIndividualIngresObjects(): Exit, Event count --> {}", eventList.size());
+        return (eventList);
     }
-}
+}
\ No newline at end of file
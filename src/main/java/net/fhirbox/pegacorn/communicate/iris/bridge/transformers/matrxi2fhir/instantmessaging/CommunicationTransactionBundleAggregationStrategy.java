@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging;
+
+import java.util.Date;
+import org.apache.camel.Exchange;
+import org.apache.camel.processor.aggregate.AggregationStrategy;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryRequestComponent;
+import org.hl7.fhir.r4.model.Communication;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class collects the FHIR::Communication resources transformed from a
+ * series of Matrix(R) "m.room.message" events into a single FHIR::Bundle of
+ * type "transaction" (one PUT entry per FHIR::Communication, to its event_id
+ * derived id), so that the series is published (and applied by the FHIR
+ * server) in one go.
+ * <p>
+ * Exchanges without a FHIR::Communication body (i.e. where the
+ * transformation produced nothing) are skipped.
+ *
+ * @author ACT Health
+ *
+ * @see
+ * <a href="https://www.hl7.org/fhir/http.html#transaction">FHIR Specification, Release 4.0.1, "Batch/Transaction"</a>
+ */
+public class CommunicationTransactionBundleAggregationStrategy implements AggregationStrategy
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(CommunicationTransactionBundleAggregationStrategy.class);
+
+    @Override
+    public Exchange aggregate(Exchange oldExchange, Exchange newExchange)
+    {
+        Exchange aggregateExchange = (oldExchange == null) ? newExchange : oldExchange;
+        Bundle transactionBundle = (oldExchange == null) ? null : oldExchange.getIn().getBody(Bundle.class);
+        if (transactionBundle == null) {
+            LOG.trace("aggregate(): Creating new FHIR::Bundle (type = transaction)");
+            transactionBundle = new Bundle();
+            transactionBundle.setType(Bundle.BundleType.TRANSACTION);
+        }
+        Object newBody = newExchange.getIn().getBody();
+        if (newBody instanceof Communication) {
+            BundleEntryRequestComponent bundleRequest = new BundleEntryRequestComponent();
+            Communication newCommunication = (Communication) newBody;
+            bundleRequest.setMethod(Bundle.HTTPVerb.PUT);
+            bundleRequest.setUrl("Communication/" + newCommunication.getIdElement().getIdPart());
+            BundleEntryComponent communicationEntry = new BundleEntryComponent();
+            communicationEntry.setResource(newCommunication);
+            communicationEntry.setRequest(bundleRequest);
+            transactionBundle.addEntry(communicationEntry);
+            LOG.trace("aggregate(): Added FHIR::Communication, entry count --> {}", transactionBundle.getEntry().size());
+        } else {
+            LOG.debug("aggregate(): No FHIR::Communication in Exchange, skipping --> {}", newBody);
+        }
+        transactionBundle.setTimestamp(new Date());
+        aggregateExchange.getIn().setBody(transactionBundle);
+        return (aggregateExchange);
+    }
+}
@@ -18,19 +18,21 @@ package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.in
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.contentbuilders.MatrixUserID2FHIRPractitionerReference;
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.contentbuilders.MatrixRoomIMTextMessageContent2FHIRCommunicationPayload;
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.contentbuilders.MatrixRoomID2FHIRGroupReference;
-import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.contentbuilders.MatrixRoomIMMediaContent2FHIRMediaReferenceSet;
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
 
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
+import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MajorTransformationException;
 import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MatrixMessageException;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationResult;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisFHIRContextService;
 import org.json.JSONObject;
 import org.json.JSONException;
 import org.slf4j.Logger;
@@ -39,7 +41,6 @@ import org.slf4j.LoggerFactory;
 import org.hl7.fhir.r4.model.Communication;
 import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.CodeableConcept;
-import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Communication.CommunicationPayloadComponent;
 import org.hl7.fhir.r4.model.Period;
 import org.hl7.fhir.r4.model.Reference;
@@ -48,14 +49,15 @@ import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryRequestComponent;
 import org.hl7.fhir.r4.model.MessageHeader;
-import org.hl7.fhir.r4.model.MessageHeader.MessageSourceComponent;
 
 import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MinorTransformationException;
-import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.WrongContentTypeException;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixEventID2FHIRCommunicationMap;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixEventID2FHIRCommunicationMap.CommunicationVersion;
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixRoomID2ResourceReferenceMap;
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixUserID2PractitionerIDMap;
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixAttribute2FHIRIdentifierBuilders;
-import net.fhirbox.pegacorn.deploymentproperties.CommunicateProperties;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEvent;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixFHIRTemplateFragments;
 import net.fhirbox.pegacorn.referencevalues.PegacornSystemReference;
 
 /**
@@ -112,16 +114,16 @@ public class MatrixRoomIM2FHIRCommunication
     PegacornSystemReference pegacornSystemReference;
 
     @Inject
-    CommunicateProperties communicateProperties;
+    MatrixFHIRTemplateFragments templateFragments;
 
     @Inject
     MatrixAttribute2FHIRIdentifierBuilders identifierBuilders;
 
     @Inject
-    private MatrixRoomIMMediaContent2FHIRMediaReferenceSet mediaReferenceGenerator;
+    MatrixRoomIMPayloadBuilderRegistry payloadBuilderRegistry;
 
     @Inject
-    private MatrixRoomID2FHIRGroupReference roomID2GroupReference;
+    MatrixRoomID2FHIRGroupReference roomID2GroupReference;
 
     @Inject
     MatrixUserID2FHIRPractitionerReference matrixUserID2PractitionerReferenceMapper;
@@ -132,6 +134,26 @@ public class MatrixRoomIM2FHIRCommunication
     @Inject
     MatrixRoomIM2FHIRCommunicationSkeleton communicationSkeletonFactory;
 
+    @Inject
+    IrisFHIRContextService fhirContextService;
+
+    @Inject
+    MatrixEventID2FHIRCommunicationMap eventID2CommunicationMap;
+
+    private MatrixRoomTextMessage2FHIRBundleJSONWriter textMessageBundleWriter;
+    private final LongAdder directJSONBundleCount = new LongAdder();
+    private final LongAdder parserJSONBundleCount = new LongAdder();
+
+    @PostConstruct
+    public void initialise()
+    {
+        this.textMessageBundleWriter = new MatrixRoomTextMessage2FHIRBundleJSONWriter(
+                templateFragments.newCommunicationBundleMessageHeader(),
+                templateFragments.newHL7NotificationCategory(),
+                templateFragments.newMatrixMessageTypeCategory(MatrixRoomTextMessage2FHIRBundleJSONWriter.TEXT_MESSAGE_TYPE),
+                templateFragments.newRoomServerMessageNarrative());
+    }
+
     /**
      *
      * This function takes an incoming Matrix Room Instant Message
@@ -156,7 +178,8 @@ public class MatrixRoomIM2FHIRCommunication
      * FHIR::Identifier for these may be queried from the
      * PractitionerID2MatrixName map.
      *
-     * @param roomInstantMessage The incoming Matrix Room Instant Message
+     * @param roomInstantMessage The incoming Matrix Room Instant Message (decoded
+     * once, at ingress, into a MatrixEvent)
      * @return A List of FHIR::Bundle element, each comprising -->
      * FHIR::MessageHeader, FHIR::Communication
      * @throws MatrixMessageException
@@ -168,7 +191,7 @@ public class MatrixRoomIM2FHIRCommunication
      * <a href="https://www.hl7.org/fhir/bundle.html">FHIR Specification, Release 4.0.1, "Bundle" Resource</a>
      *
      */
-    public List<Bundle> convertMatrixInstantMessage2FHIRElements(String roomInstantMessage)
+    public List<Bundle> convertMatrixInstantMessage2FHIRElements(MatrixEvent roomInstantMessage)
             throws MatrixMessageException, JSONException, MajorTransformationException
     {
         LOG.debug("convertMatrixInstantMessage2FHIRElements(): Entry, Matrix Room Instant Message --> {}", roomInstantMessage);
@@ -178,10 +201,6 @@ public class MatrixRoomIM2FHIRCommunication
         if (roomInstantMessage.isEmpty()) {
             throw (new MatrixMessageException("Matrix Room Instant Message --> is empty"));
         }
-        // We need some helper functions to encode/decode the FHIR based message structures
-        LOG.trace("wrapCommunicationBundle(): Initialising FHIR Resource Parser & Setting Pretty Print");
-        FhirContext fhirContextHandle = FhirContext.forR4();
-        IParser fhirResourceParser = fhirContextHandle.newJsonParser();
         // Now set up Iterator on the Ingres Content
         Communication newCommunication = matrix2Communication(roomInstantMessage);
         MessageHeader newMessageHeader = buildDefaultMessageHeader();
@@ -191,13 +210,114 @@ public class MatrixRoomIM2FHIRCommunication
         return (newOutputSet);
     }
 
+    /**
+     * This function takes an incoming Matrix Room Instant Message
+     * (Matrix::m.room.message) and converts it to a (bare) FHIR::Communication
+     * resource - for use where the resources are batched into a single
+     * (transaction) FHIR::Bundle downstream, rather than wrapped into a
+     * (message) FHIR::Bundle each.
+     *
+     * @param roomInstantMessage The incoming Matrix Room Instant Message
+     * @return The FHIR::Communication resource
+     * @throws MatrixMessageException
+     * @throws JSONException
+     * @throws MajorTransformationException
+     *
+     * @see CommunicationTransactionBundleAggregationStrategy
+     */
+    public Communication convertMatrixInstantMessage2FHIRCommunication(MatrixEvent roomInstantMessage)
+            throws MatrixMessageException, JSONException, MajorTransformationException
+    {
+        LOG.debug("convertMatrixInstantMessage2FHIRCommunication(): Entry, Matrix Room Instant Message --> {}", roomInstantMessage);
+        if (roomInstantMessage == null) {
+            throw (new MatrixMessageException("Matrix Room Instant Message --> is null"));
+        }
+        if (roomInstantMessage.isEmpty()) {
+            throw (new MatrixMessageException("Matrix Room Instant Message --> is empty"));
+        }
+        Communication newCommunication = matrix2Communication(roomInstantMessage);
+        LOG.debug("convertMatrixInstantMessage2FHIRCommunication(): Exit, FHIR::Communication --> {}", newCommunication);
+        return (newCommunication);
+    }
+
+    /**
+     * This function takes an incoming Matrix Room Instant Message
+     * (Matrix::m.room.message) and converts it to the FHIR JSON of the same
+     * (message) FHIR::Bundle that convertMatrixInstantMessage2FHIRElements()
+     * builds.
+     * <p>
+     * Plain "m.text" messages (the bulk of the traffic) are written directly,
+     * without building the HAPI object graph first - see
+     * MatrixRoomTextMessage2FHIRBundleJSONWriter. Everything else is built as a
+     * FHIR::Bundle and serialised by the (shared) HAPI JSON parser.
+     *
+     * @param roomInstantMessage The incoming Matrix Room Instant Message
+     * @return The FHIR JSON (UTF-8) of the FHIR::Bundle
+     * @throws MatrixMessageException
+     * @throws JSONException
+     * @throws MajorTransformationException
+     */
+    public byte[] convertMatrixInstantMessage2FHIRBundleJSON(MatrixEvent roomInstantMessage)
+            throws MatrixMessageException, JSONException, MajorTransformationException
+    {
+        LOG.debug("convertMatrixInstantMessage2FHIRBundleJSON(): Entry, Matrix Room Instant Message --> {}", roomInstantMessage);
+        if (roomInstantMessage == null) {
+            throw (new MatrixMessageException("Matrix Room Instant Message --> is null"));
+        }
+        if (roomInstantMessage.isEmpty()) {
+            throw (new MatrixMessageException("Matrix Room Instant Message --> is empty"));
+        }
+        if (this.textMessageBundleWriter.isPlainTextMessage(roomInstantMessage)) {
+            long startNanos = System.nanoTime();
+            Reference senderReference = null;
+            if ((roomInstantMessage.getSender() != null) && !roomInstantMessage.getSender().isEmpty()) {
+                try {
+                    senderReference = this.matrixUserID2PractitionerReferenceMapper.buildFHIRPractitionerReferenceFromMatrixUserID(roomInstantMessage.getSender(), true);
+                } catch (MinorTransformationException transformException) {
+                    LOG.trace("convertMatrixInstantMessage2FHIRBundleJSON(): No Communication Sender Reference created");
+                }
+            }
+            PayloadTransformationResult<Reference> subjectReferenceResult = this.roomID2GroupReference.buildFHIRGroupReferenceFromMatrixRoomID(roomInstantMessage.getRoomID(), true);
+            Reference subjectReference = subjectReferenceResult.isSuccessful() ? subjectReferenceResult.getResult() : null;
+            if (this.textMessageBundleWriter.canWrite(roomInstantMessage, subjectReference, senderReference)) {
+                try {
+                    byte[] bundleJSON = this.textMessageBundleWriter.writeCommunicationBundle(roomInstantMessage, subjectReference, senderReference, new Date());
+                    this.directJSONBundleCount.increment();
+                    // The direct path bypasses matrix2Communication(), so its m.text transformation is timed here
+                    this.payloadBuilderRegistry.recordTransformation(MatrixRoomTextMessage2FHIRBundleJSONWriter.TEXT_MESSAGE_TYPE, System.nanoTime() - startNanos);
+                    LOG.debug("convertMatrixInstantMessage2FHIRBundleJSON(): Exit, FHIR::Bundle written directly, bytes --> {}", bundleJSON.length);
+                    return (bundleJSON);
+                } catch (IOException writeException) {
+                    throw (new MajorTransformationException("convertMatrixInstantMessage2FHIRBundleJSON(): Could not write FHIR::Bundle", writeException));
+                }
+            }
+            LOG.trace("convertMatrixInstantMessage2FHIRBundleJSON(): Subject/Sender Reference can't be written directly, using HAPI");
+        }
+        List<Bundle> newCommunicationBundles = convertMatrixInstantMessage2FHIRElements(roomInstantMessage);
+        byte[] bundleJSON = fhirContextService.encodeResourceToJSON(newCommunicationBundles.get(0));
+        this.parserJSONBundleCount.increment();
+        LOG.debug("convertMatrixInstantMessage2FHIRBundleJSON(): Exit, FHIR::Bundle serialised by HAPI, bytes --> {}", bundleJSON.length);
+        return (bundleJSON);
+    }
+
+    public long getDirectJSONBundleCount()
+    {
+        return (this.directJSONBundleCount.sum());
+    }
+
+    public long getParserJSONBundleCount()
+    {
+        return (this.parserJSONBundleCount.sum());
+    }
+
     /**
      *
      * This function wraps FHIR::MessageHeader and FHIR::Communication element
      * set into a FHIR::Bundle.
      * <p>
-     * Note that The bundles are always of type POST for FHIR::Communication
-     * based FHIR::Bundles.
+     * Note that the FHIR::Communication is always created with a PUT to its
+     * (event_id derived) id - see MatrixEventID2FHIRCommunicationMap - so that
+     * later redactions and edits of the message can address it.
      *
      * @param newMessageHeader The FHIR::MessageHeader associated with the
      * FHIR::Communication element
@@ -231,8 +351,8 @@ public class MatrixRoomIM2FHIRCommunication
         BundleEntryComponent bundleEntryForCommunicationElement = new BundleEntryComponent();
         LOG.trace("wrapCommunicationBundle(): Creating FHIR::BundleEntryRequestComponent for the FHIR::Communication resource");
         BundleEntryRequestComponent bundleRequest = new BundleEntryRequestComponent();
-        bundleRequest.setMethod(Bundle.HTTPVerb.POST);
-        bundleRequest.setUrl("Communication");
+        bundleRequest.setMethod(Bundle.HTTPVerb.PUT);
+        bundleRequest.setUrl("Communication/" + newCommunication.getIdElement().getIdPart());
         bundleEntryForCommunicationElement.setRequest(bundleRequest);
         bundleEntryForCommunicationElement.setResource(newCommunication);
         LOG.trace("wrapCommunicationBundle(): Creating Adding the MessageHeader BundleEntryComponent & Communication BundleEntryComponent to the Bundle resource");
@@ -255,151 +375,62 @@ public class MatrixRoomIM2FHIRCommunication
      */
     private MessageHeader buildDefaultMessageHeader()
     {
-        MessageHeader messageHeaderElement = new MessageHeader();
-        Coding messageHeaderCode = new Coding();
-        messageHeaderCode.setSystem("http://pegacorn.fhirbox.net/pegacorn/R1/message-codes");
-        messageHeaderCode.setCode("communication-bundle");
-        messageHeaderElement.setEvent(messageHeaderCode);
-        MessageSourceComponent messageSource = new MessageSourceComponent();
-        messageSource.setName("Pegacorn Matrix2FHIR Integration Service");
-        messageSource.setSoftware("Pegacorn::Communicate::Iris");
-        messageSource.setEndpoint(communicateProperties.getIrisEndPointForIncomingCommunicationBundle());
-        return (messageHeaderElement);
+        return (templateFragments.newCommunicationBundleMessageHeader());
     }
 
     /**
      * The method is the primary method for performing the entity
-     * transformation. It incorporates a switch statement to derive the nature
-     * of the "payload" transformation (re-encapsulation) to be performed.
+     * transformation. The -msgtype- specific "payload" transformation
+     * (re-encapsulation) is resolved via the MatrixRoomIMPayloadBuilderRegistry.
      *
-     * @param theMatrixRoomInstantMessage A Matrix::m.room.message (see
+     * @param theMatrixRoomInstantMessage A (decoded) Matrix::m.room.message (see
      * https://matrix.org/docs/spec/client_server/r0.6.0#room-event-fields)
      * @return Communication A FHIR::Communication resource (see
      * https://www.hl7.org/fhir/communication.html)
      * @throws MinorTransformationException
      */
-    private Communication matrix2Communication(String theMatrixRoomInstantMessage)
+    private Communication matrix2Communication(MatrixEvent theMatrixRoomInstantMessage)
             throws MatrixMessageException, MajorTransformationException, JSONException
     {
         LOG.debug("matrix2Communication(): The incoming Matrix Instant Message is --> {}", theMatrixRoomInstantMessage);
+        long startNanos = System.nanoTime();
         // The code wouldn't have got here if the Incoming Message was empty or null, so don't check again.
-        LOG.trace("matrix2Communication(): Creating our two primary working objects, fhirCommunication (Communication) & matrixMessageObject (JSONObject)");
         Communication fhirCommunication;
-        JSONObject matrixMessageObject = new JSONObject(theMatrixRoomInstantMessage);
-        // So we now have a valid JSONObject for the incoming Matrix Instant Message
-        LOG.trace("matrix2Communication(): Conversion of incoming Matrix Instant Message into JSONObject successful, now extracting Instant Message -content- field");
-        if (!matrixMessageObject.has("content")) {
+        // The top-level fields were decoded at ingress, only the -content- is (lazily) converted here
+        LOG.trace("matrix2Communication(): Extracting Instant Message -content- field");
+        if (!theMatrixRoomInstantMessage.hasContent()) {
             LOG.error("matrix2Communication(): Exit, Matrix Room Instant Message (m.room.message) --> missing -content- field");
             throw (new MatrixMessageException("matrix2Communication(): Exit, Matrix Room Instant Message (m.room.message) --> missing -content- field"));
         }
-        JSONObject messageContent = matrixMessageObject.getJSONObject("content");
+        JSONObject messageContent = theMatrixRoomInstantMessage.getContent();
         LOG.trace("matrix2Communication(): Extracted -content- field from Message Object, -content- --> {}", messageContent);
         // OK, now build messageDate --> using present instant if none provided TODO : perhaps we shouldn't use instant
         Date messageDate;
-        if (matrixMessageObject.has("origin_server_ts")) {
-            messageDate = new Date(matrixMessageObject.getLong("origin_server_ts"));
+        if (theMatrixRoomInstantMessage.getOriginServerTimestamp() != null) {
+            messageDate = new Date(theMatrixRoomInstantMessage.getOriginServerTimestamp());
         } else {
             messageDate = Date.from(Instant.now());
         }
-        // OK, so now we want to build the basic structure of the Communication object, which is common irrespective of Instant Message type
-        LOG.trace("matrix2Communication(): Building the basic structure of the Communication object");
-        fhirCommunication = communicationSkeletonFactory.buildDefaultCommunicationEntity(matrixMessageObject);
-        ArrayList<CommunicationPayloadComponent> localPayloadList = new ArrayList<>();
-        LOG.trace("matrix2Communication(): Built default basic Communication object, now performing Swtich analysis for -content- type");
-        switch (messageContent.getString("msgtype")) {
-            case "m.audio": {
-                LOG.trace("matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> m.audio");
-                CommunicationPayloadComponent localPayload = new CommunicationPayloadComponent();
-                try {
-                    Reference newMediaReference = this.mediaReferenceGenerator.buildVideoReference(messageContent, messageDate);
-                    localPayloadList.add(localPayload.setContent(newMediaReference));
-                } catch (WrongContentTypeException | MinorTransformationException minorException) {
-                    if (minorException instanceof WrongContentTypeException) {
-                        LOG.trace("matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> thought it was m.audio --> not creating a FHIR::Media reference!");
-                    } else {
-                        LOG.trace("matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> m.audio, error decoding --> not creating a FHIR::Media reference!");
-                    }
-                }
-                break;
-            }
-            case "m.emote": {
-                LOG.trace(".matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> m.emote");
-                break;
-            }
-            case "m.file": {
-                LOG.trace(".matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> m.file");
-                CommunicationPayloadComponent localPayload = new CommunicationPayloadComponent();
-                try {
-                    Reference newMediaReference = this.mediaReferenceGenerator.buildFileReference(messageContent, messageDate);
-                    localPayloadList.add(localPayload.setContent(newMediaReference));
-                } catch (WrongContentTypeException | MinorTransformationException minorException) {
-                    if (minorException instanceof WrongContentTypeException) {
-                        LOG.trace("matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> thought it was m.file --> not creating a FHIR::Media reference!");
-                    } else {
-                        LOG.trace("matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> m.file, error decoding --> not creating a FHIR::Media reference!");
-                    }
-                }
-                break;
-            }
-            case "m.image": {
-                LOG.trace(".matrix2Communication(): MMatrix Room Instant Message (m.room.message), -content-, -msgtype- --> m.image");
-                CommunicationPayloadComponent localPayload = new CommunicationPayloadComponent();
-                try {
-                    Reference newMediaReference = this.mediaReferenceGenerator.buildVideoReference(messageContent, messageDate);
-                    localPayloadList.add(localPayload.setContent(newMediaReference));
-                } catch (WrongContentTypeException | MinorTransformationException minorException) {
-                    if (minorException instanceof WrongContentTypeException) {
-                        LOG.trace("matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> thought it was m.image --> not creating a FHIR::Media reference!");
-                    } else {
-                        LOG.trace("matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> m.image, error decoding --> not creating a FHIR::Media reference!");
-                    }
-                }
-                break;
-            }
-            case "m.location": {
-                LOG.trace(".matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> m.location");
-                break;
-            }
-            case "m.notice": {
-                LOG.trace(".matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> m.notice");
-                break;
-            }
-            case "m.server_notice": {
-                LOG.trace(".matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> m.server_notice");
-                break;
-            }
-            case "m.text": {
-                LOG.trace(".matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> m.text");
-                LOG.trace("matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> m.text: Finished");
-                break;
-            }
-            case "m.video": {
-                LOG.trace("matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> m.video");
-                CommunicationPayloadComponent localPayload = new CommunicationPayloadComponent();
-                try {
-                    Reference newMediaReference = this.mediaReferenceGenerator.buildVideoReference(messageContent, messageDate);
-                    localPayloadList.add(localPayload.setContent(newMediaReference));
-                } catch (WrongContentTypeException | MinorTransformationException minorException) {
-                    if (minorException instanceof WrongContentTypeException) {
-                        LOG.debug("matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> thought it was m.video --> not creating a FHIR::Media reference!!");
-                    } else {
-                        LOG.debug("matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> m.video, error decoding --> not creating a FHIR::Media reference!");
-                    }
-                }
-                break;
+        // The whole transformation (not just the -msgtype- specific payload) is timed, per msgtype
+        String messageType = messageContent.optString("msgtype");
+        try {
+            // OK, so now we want to build the basic structure of the Communication object, which is common irrespective of Instant Message type
+            LOG.trace("matrix2Communication(): Building the basic structure of the Communication object");
+            fhirCommunication = communicationSkeletonFactory.buildDefaultCommunicationEntity(theMatrixRoomInstantMessage);
+            ArrayList<CommunicationPayloadComponent> localPayloadList = new ArrayList<>();
+            LOG.trace("matrix2Communication(): Built default basic Communication object, now adding the -msgtype- specific payload");
+            payloadBuilderRegistry.addPayload(messageContent.getString("msgtype"), messageContent, messageDate, localPayloadList);
+            PayloadTransformationResult<CommunicationPayloadComponent> textPayloadResult = this.matrixTextContent2CommunicationPayloadMapper.buildTextPayload(messageContent);
+            if (textPayloadResult.isSuccessful()) {
+                localPayloadList.add(textPayloadResult.getResult());
             }
-            default: {
-                LOG.trace(".matrix2Communication(): Matrix Room Instant Message (m.room.message), -content-, -msgtype- --> unknown");
-                throw (new MatrixMessageException("matrix2Communication(): Matrix Room Instant Message (m.room.message) --> Unknown Message Type"));
+            fhirCommunication.setPayload(localPayloadList);
+            Reference referredToCommunicationEvent = this.buildInResponseTo(messageContent);
+            if (referredToCommunicationEvent != null) {
+                fhirCommunication.addInResponseTo(referredToCommunicationEvent);
             }
-        }
-
-        CommunicationPayloadComponent messageContentAsTextPayload = this.matrixTextContent2CommunicationPayloadMapper.buildTextPayload(messageContent);
-        localPayloadList.add(messageContentAsTextPayload);
-        fhirCommunication.setPayload(localPayloadList);
-        Reference referredToCommunicationEvent = this.buildInResponseTo(messageContent);
-        if (referredToCommunicationEvent != null) {
-            fhirCommunication.addInResponseTo(referredToCommunicationEvent);
+        } finally {
+            payloadBuilderRegistry.recordTransformation(messageType, System.nanoTime() - startNanos);
         }
         LOG.debug(".matrix2Communication(): Created Communication Message --> {}", fhirCommunication);
         return (fhirCommunication);
@@ -432,6 +463,12 @@ public class MatrixRoomIM2FHIRCommunication
         referredCommunicationMessage.setIdentifier(localResourceIdentifier);
         LOG.trace(".buildInResponseTo(): Add type to the Reference");
         referredCommunicationMessage.setType("Communication");
+        // Where the replied-to message is known (i.e. its Communication has been published), the Reference is also made literal - to its
+        // event_id derived id - so consumers needn't search on the Identifier. Otherwise only the Identifier is carried.
+        CommunicationVersion referredToCommunication = this.eventID2CommunicationMap.getCommunicationVersion(referredToMessage.getString("event_id"));
+        if (referredToCommunication != null) {
+            referredCommunicationMessage.setReference(referredToCommunication.getCommunicationReference());
+        }
         LOG.debug(".buildInResponseTo(): Exit, created Reference --> " + referredCommunicationMessage.toString());
         return (referredCommunicationMessage);
     }
@@ -455,22 +492,21 @@ public class MatrixRoomIM2FHIRCommunication
      * @return The FHIR::Reference for the subject (see
      * https://www.hl7.org/fhir/references.html#Reference)
      */
-    private Reference buildSubjectReference(JSONObject roomIM)
+    private Reference buildSubjectReference(MatrixEvent roomIM)
             throws MatrixMessageException, JSONException
     {
         LOG.debug("buildSubjectReference(): Entry, for Matrix Room Instant Message --> {}", roomIM);
         // For now, we are assuming it is a "FHIR::Group"
-        if (!roomIM.has("room_id")) {
+        if (roomIM.getRoomID() == null) {
             throw (new MatrixMessageException("Matrix Room Instant Message --> has not -room_id-"));
         }
-        try {
-            Reference subjectReference = this.roomID2GroupReference.buildFHIRGroupReferenceFromMatrixRoomID(roomIM.getString("room_id"), true);
-            LOG.debug(".buildSubjectReference(): Exit, Created FHIR::Group Reference --> {}", subjectReference);
-            return (subjectReference);
-        } catch (MinorTransformationException transformException) {
-            LOG.debug(".buildSubjectReference(): Exit, Could not create FHIR::Group Reference, room_id is null, returning null");
+        PayloadTransformationResult<Reference> subjectReferenceResult = this.roomID2GroupReference.buildFHIRGroupReferenceFromMatrixRoomID(roomIM.getRoomID(), true);
+        if (!subjectReferenceResult.isSuccessful()) {
+            LOG.debug(".buildSubjectReference(): Exit, Could not create FHIR::Group Reference ({}), returning null", subjectReferenceResult.getReason());
             return (null);
         }
+        LOG.debug(".buildSubjectReference(): Exit, Created FHIR::Group Reference --> {}", subjectReferenceResult.getResult());
+        return (subjectReferenceResult.getResult());
     }
 
 }
@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.contentbuilders.MatrixRoomIMPayloadBuilder;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MatrixMessageException;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationResult;
+import org.hl7.fhir.r4.model.Communication.CommunicationPayloadComponent;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <h1> Matrix(R) Room Instant Message Payload Builder Registry </h1>
+ * <p>
+ * Resolves the MatrixRoomIMPayloadBuilder for each -msgtype- once (at
+ * start-up) into an immutable map, and records how long the transformation
+ * of each msgtype takes - the whole m.room.message to FHIR::Communication
+ * conversion (see MatrixRoomIM2FHIRCommunication), not just the payload.
+ * <p>
+ * A msgtype claimed by more than one builder is a deployment error, so it
+ * fails the start-up rather than being resolved arbitrarily.
+ *
+ * @author ACT Health
+ */
+@ApplicationScoped
+public class MatrixRoomIMPayloadBuilderRegistry
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(MatrixRoomIMPayloadBuilderRegistry.class);
+
+    @Inject
+    Instance<MatrixRoomIMPayloadBuilder> payloadBuilders;
+
+    private Map<String, RegisteredPayloadBuilder> messageTypeBuilders;
+
+    @PostConstruct
+    public void initialise()
+    {
+        LOG.debug("initialise(): Entry");
+        Map<String, RegisteredPayloadBuilder> registeredBuilders = new HashMap<>();
+        for (MatrixRoomIMPayloadBuilder payloadBuilder : this.payloadBuilders) {
+            for (String messageType : payloadBuilder.getMessageTypes()) {
+                RegisteredPayloadBuilder existingBuilder = registeredBuilders.put(messageType, new RegisteredPayloadBuilder(payloadBuilder));
+                if (existingBuilder != null) {
+                    throw (new IllegalStateException("initialise(): More than one payload builder for -msgtype- --> " + messageType));
+                }
+            }
+        }
+        this.messageTypeBuilders = Collections.unmodifiableMap(registeredBuilders);
+        LOG.info("initialise(): Payload builders registered for -msgtype- --> {}", this.messageTypeBuilders.keySet());
+    }
+
+    /**
+     * Adds the msgtype specific payload (if there is one) of a Matrix
+     * "m.room.message" to the payload list.
+     *
+     * @param messageType The -msgtype- of the message
+     * @param messageContent The -content- of the message
+     * @param messageDate The time the message was sent
+     * @param payloadList The FHIR::Communication.payload list to add to
+     * @throws MatrixMessageException If there is no builder for the msgtype
+     */
+    public void addPayload(String messageType, JSONObject messageContent, Date messageDate, List<CommunicationPayloadComponent> payloadList)
+            throws MatrixMessageException
+    {
+        RegisteredPayloadBuilder registeredBuilder = this.messageTypeBuilders.get(messageType);
+        if (registeredBuilder == null) {
+            LOG.trace("addPayload(): No payload builder for -msgtype- --> {}", messageType);
+            throw (new MatrixMessageException("addPayload(): Matrix Room Instant Message (m.room.message) --> Unknown Message Type"));
+        }
+        PayloadTransformationResult<CommunicationPayloadComponent> payloadResult = registeredBuilder.payloadBuilder.buildPayload(messageContent, messageDate);
+        if (payloadResult.isSuccessful()) {
+            payloadList.add(payloadResult.getResult());
+        } else {
+            LOG.debug("addPayload(): No -msgtype- payload for --> {}, outcome --> {}, reason --> {}", messageType, payloadResult.getOutcome(), payloadResult.getReason());
+        }
+    }
+
+    /**
+     * @return The msgtypes that have a payload builder
+     */
+    public Set<String> getMessageTypes()
+    {
+        return (this.messageTypeBuilders.keySet());
+    }
+
+    /**
+     * Records how long the transformation of a message took.
+     *
+     * @param messageType The -msgtype- of the message (ignored if there is no
+     * builder for it)
+     * @param transformationNanos The time (in nanoseconds) taken
+     */
+    public void recordTransformation(String messageType, long transformationNanos)
+    {
+        RegisteredPayloadBuilder registeredBuilder = this.messageTypeBuilders.get(messageType);
+        if (registeredBuilder != null) {
+            registeredBuilder.recordLatency(transformationNanos);
+        }
+    }
+
+    public long getTransformationCount(String messageType)
+    {
+        RegisteredPayloadBuilder registeredBuilder = this.messageTypeBuilders.get(messageType);
+        return ((registeredBuilder == null) ? 0L : registeredBuilder.transformationCount.sum());
+    }
+
+    /**
+     * @param messageType The -msgtype-
+     * @return The mean time (in nanoseconds) taken to transform a message of
+     * the msgtype, 0 if none have been transformed
+     */
+    public long getMeanTransformationNanos(String messageType)
+    {
+        RegisteredPayloadBuilder registeredBuilder = this.messageTypeBuilders.get(messageType);
+        if (registeredBuilder == null) {
+            return (0L);
+        }
+        long transformationCount = registeredBuilder.transformationCount.sum();
+        return ((transformationCount == 0L) ? 0L : registeredBuilder.totalTransformationNanos.sum() / transformationCount);
+    }
+
+    /**
+     * @param messageType The -msgtype-
+     * @return The longest time (in nanoseconds) taken to transform a message
+     * of the msgtype, 0 if none have been transformed
+     */
+    public long getMaximumTransformationNanos(String messageType)
+    {
+        RegisteredPayloadBuilder registeredBuilder = this.messageTypeBuilders.get(messageType);
+        return ((registeredBuilder == null) ? 0L : registeredBuilder.maximumTransformationNanos.get());
+    }
+
+    // A builder, and the transformation latency of the (single) msgtype it is registered for
+    private static final class RegisteredPayloadBuilder
+    {
+
+        private final MatrixRoomIMPayloadBuilder payloadBuilder;
+        private final LongAdder transformationCount = new LongAdder();
+        private final LongAdder totalTransformationNanos = new LongAdder();
+        private final LongAccumulator maximumTransformationNanos = new LongAccumulator(Math::max, 0L);
+
+        private RegisteredPayloadBuilder(MatrixRoomIMPayloadBuilder payloadBuilder)
+        {
+            this.payloadBuilder = payloadBuilder;
+        }
+
+        private void recordLatency(long transformationNanos)
+        {
+            this.transformationCount.increment();
+            this.totalTransformationNanos.add(transformationNanos);
+            this.maximumTransformationNanos.accumulate(transformationNanos);
+        }
+    }
+}
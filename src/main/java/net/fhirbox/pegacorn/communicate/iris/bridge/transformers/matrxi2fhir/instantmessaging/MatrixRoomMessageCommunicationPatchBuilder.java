@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging;
+
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Communication;
+import org.hl7.fhir.r4.model.Communication.CommunicationPayloadComponent;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.StringType;
+
+/**
+ * Builds the FHIRPath Patch (a FHIR::Parameters resource) that applies a
+ * redaction (or an edit) of a Matrix(R) "m.room.message" to the
+ * FHIR::Communication it was transformed into - changing only what the
+ * redaction (or edit) changes, so that the sender, sent time, subject and
+ * inResponseTo of the FHIR::Communication are kept.
+ *
+ * @author ACT Health
+ *
+ * @see
+ * <a href="https://www.hl7.org/fhir/fhirpatch.html">FHIR Specification, Release 4.0.1, "FHIRPath Patch"</a>
+ */
+final class MatrixRoomMessageCommunicationPatchBuilder
+{
+
+    private MatrixRoomMessageCommunicationPatchBuilder()
+    {
+    }
+
+    /**
+     * As with a Matrix redaction, the message payload is removed - and the
+     * FHIR::Communication is marked "entered-in-error", with the reason.
+     *
+     * @param redactionReason The FHIR::Communication.statusReason
+     * @return The FHIRPath Patch
+     */
+    static Parameters buildRedactionPatch(CodeableConcept redactionReason)
+    {
+        Parameters communicationPatch = new Parameters();
+        addReplaceOperation(communicationPatch, "Communication.status", new CodeType(Communication.CommunicationStatus.ENTEREDINERROR.toCode()));
+        addDeleteOperation(communicationPatch, "Communication.statusReason");
+        addAddOperation(communicationPatch, "statusReason").setValue(redactionReason);
+        addDeleteOperation(communicationPatch, "Communication.payload");
+        return (communicationPatch);
+    }
+
+    /**
+     * As with a Matrix edit, the message content is replaced: the payload,
+     * and the categories (which follow the -msgtype-) are swapped for those
+     * of the FHIR::Communication transformed from the "m.new_content".
+     *
+     * @param replacementCommunication The FHIR::Communication transformed from
+     * the edit
+     * @return The FHIRPath Patch
+     */
+    static Parameters buildEditPatch(Communication replacementCommunication)
+    {
+        Parameters communicationPatch = new Parameters();
+        addDeleteOperation(communicationPatch, "Communication.category");
+        for (CodeableConcept replacementCategory : replacementCommunication.getCategory()) {
+            addAddOperation(communicationPatch, "category").setValue(replacementCategory);
+        }
+        addDeleteOperation(communicationPatch, "Communication.payload");
+        for (CommunicationPayloadComponent replacementPayload : replacementCommunication.getPayload()) {
+            // A backbone element is added as parts, one per child element
+            addAddOperation(communicationPatch, "payload").addPart().setName("content").setValue(replacementPayload.getContent());
+        }
+        return (communicationPatch);
+    }
+
+    private static void addReplaceOperation(Parameters communicationPatch, String path, CodeType value)
+    {
+        ParametersParameterComponent replaceOperation = communicationPatch.addParameter().setName("operation");
+        replaceOperation.addPart().setName("type").setValue(new CodeType("replace"));
+        replaceOperation.addPart().setName("path").setValue(new StringType(path));
+        replaceOperation.addPart().setName("value").setValue(value);
+    }
+
+    private static void addDeleteOperation(Parameters communicationPatch, String path)
+    {
+        ParametersParameterComponent deleteOperation = communicationPatch.addParameter().setName("operation");
+        deleteOperation.addPart().setName("type").setValue(new CodeType("delete"));
+        deleteOperation.addPart().setName("path").setValue(new StringType(path));
+    }
+
+    // Returns the -value- part, for the caller to fill in
+    private static ParametersParameterComponent addAddOperation(Parameters communicationPatch, String elementName)
+    {
+        ParametersParameterComponent addOperation = communicationPatch.addParameter().setName("operation");
+        addOperation.addPart().setName("type").setValue(new CodeType("add"));
+        addOperation.addPart().setName("path").setValue(new StringType("Communication"));
+        addOperation.addPart().setName("name").setValue(new StringType(elementName));
+        return (addOperation.addPart().setName("value"));
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixEventID2FHIRCommunicationMap;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixEventID2FHIRCommunicationMap.CommunicationVersion;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEvent;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MajorTransformationException;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MatrixMessageException;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisCacheMapNameSet;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisSharedCacheAccessorBean;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Communication;
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.commons.util.CloseableIterator;
+import org.infinispan.context.Flag;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.distribution.LocalizedCacheTopology;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <h1> Matrix(R) Room Message Edit Aggregator </h1>
+ * <p>
+ * An edit of a message is itself an "m.room.message" - one whose
+ * "m.relates_to" has a "rel_type" of "m.replace" and the "event_id" of the
+ * original message, and whose "m.new_content" is the replacement content.
+ * Transformed as-is, every edit would become a new (near duplicate)
+ * FHIR::Communication.
+ * <p>
+ * This class instead holds the latest edit of each message for the edit
+ * window (so a burst of corrections collapses into one), and then publishes
+ * it as an update of the original FHIR::Communication: a (transaction)
+ * FHIR::Bundle with a single PATCH, conditional (ifMatch) on the version
+ * held in the MatrixEventID2FHIRCommunicationMap. The patch only replaces
+ * the payload and categories (see MatrixRoomMessageCommunicationPatchBuilder)
+ * - the sender, sent time and inResponseTo of the original message are kept.
+ * <p>
+ * The pending edits are held in a clustered cache (keyed by the "event_id"
+ * of the edited message), so they outlive the node that received them. Each
+ * node only scans the entries held locally, and collects those it is the
+ * primary owner of once their window has elapsed - so the entries of a node
+ * that leaves are collected by their new primary owner. The (conditional)
+ * removal of an entry still decides which node publishes it, should two
+ * nodes see themselves as its primary owner during a rebalance. Edits of
+ * messages that are not (or no longer) in the index are counted and dropped.
+ *
+ * @author ACT Health
+ *
+ * @see
+ * <a href="https://spec.matrix.org/v1.1/client-server-api/#event-replacements">Matrix Client-Server API Specificaton, Release 1.1 - Event Replacements</a>
+ */
+@ApplicationScoped
+public class MatrixRoomMessageEditAggregator
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(MatrixRoomMessageEditAggregator.class);
+
+    private static final String REPLACE_RELATION_TYPE = "m.replace";
+
+    @Inject
+    MatrixRoomIM2FHIRCommunication roomMessage2Communication;
+
+    @Inject
+    MatrixEventID2FHIRCommunicationMap eventID2CommunicationMap;
+
+    @Inject
+    IrisProcessingProperties processingProperties;
+
+    @Inject
+    IrisSharedCacheAccessorBean theIrisCacheSetManager;
+
+    private IrisCacheMapNameSet cacheName = new IrisCacheMapNameSet();
+
+    // The pending edits (EditedEventID, "PendingSinceMillis:LatestEditTimestamp:LatestEdit")
+    private Cache<String /* EditedEventID */, String /* PendingEdit */> pendingEdits;
+
+    private final LongAdder foldedEditCount = new LongAdder();
+    private final LongAdder publishedUpdateCount = new LongAdder();
+    private final LongAdder unresolvedCount = new LongAdder();
+    private long editWindowMillis;
+
+    @PostConstruct
+    public void initialise()
+    {
+        this.editWindowMillis = processingProperties.getMessageEditWindowMillis();
+        this.pendingEdits = this.theIrisCacheSetManager.getIrisSharedCache(cacheName.getMatrixMessageEditPendingMap());
+        LOG.info("initialise(): Edit window (ms) --> {}, pending edits Cache --> {}", this.editWindowMillis, this.pendingEdits.getName());
+    }
+
+    /**
+     * Used as a route filter: an edit is folded into the pending update of the
+     * message it replaces (and so filtered out), anything else is passed on.
+     *
+     * @param roomMessage A (decoded) "m.room.message" event
+     * @return true if the event is a new message, false if it is an edit
+     */
+    public boolean isNewMessage(MatrixEvent roomMessage)
+    {
+        String replacedEventID = getReplacedEventID(roomMessage);
+        if (replacedEventID == null) {
+            return (true);
+        }
+        long editTimestamp = (roomMessage.getOriginServerTimestamp() != null) ? roomMessage.getOriginServerTimestamp() : System.currentTimeMillis();
+        String latestEdit = roomMessage.getRawEvent().toString();
+        boolean folded = false;
+        while (!folded) {
+            String existingEncoded = this.pendingEdits.get(replacedEventID);
+            if (existingEncoded == null) {
+                folded = (this.pendingEdits.putIfAbsent(replacedEventID, PendingEdit.encode(new PendingEdit(System.currentTimeMillis(), editTimestamp, latestEdit))) == null);
+                continue;
+            }
+            PendingEdit existingEdit = PendingEdit.decode(existingEncoded);
+            if (editTimestamp < existingEdit.latestEditTimestamp) {
+                // An older edit, arriving late, is superseded by the one already held
+                folded = true;
+                continue;
+            }
+            // A pending edit collected (i.e. removed) in the meantime is replaced by a new one on the next pass
+            folded = this.pendingEdits.replace(replacedEventID, existingEncoded, PendingEdit.encode(new PendingEdit(existingEdit.pendingSinceMillis, editTimestamp, latestEdit)));
+        }
+        this.foldedEditCount.increment();
+        LOG.debug("isNewMessage(): Folded Edit --> {} of Event --> {}", roomMessage.getEventID(), replacedEventID);
+        return (false);
+    }
+
+    // An edit without replacement content isn't applicable, so is treated as a new message
+    private String getReplacedEventID(MatrixEvent roomMessage)
+    {
+        if (!roomMessage.hasContent()) {
+            return (null);
+        }
+        JSONObject messageContent = roomMessage.getContent();
+        JSONObject relatesTo = messageContent.optJSONObject("m.relates_to");
+        if ((relatesTo == null) || !REPLACE_RELATION_TYPE.equals(relatesTo.optString("rel_type", null))) {
+            return (null);
+        }
+        if (messageContent.optJSONObject("m.new_content") == null) {
+            return (null);
+        }
+        String replacedEventID = relatesTo.optString("event_id", null);
+        return (((replacedEventID == null) || replacedEventID.isEmpty()) ? null : replacedEventID);
+    }
+
+    /**
+     * Collects a (transaction) FHIR::Bundle updating the FHIR::Communication of
+     * each message whose edit window has elapsed - of the pending edits held
+     * locally, those this node is the primary owner of. Only the node that
+     * removes a pending edit from the cache publishes it.
+     *
+     * @return The FHIR::Communication update Bundles to publish (may be empty)
+     */
+    public List<Bundle> collectDueCommunicationBundles()
+    {
+        long nowMillis = System.currentTimeMillis();
+        Map<String, String> dueEdits = new HashMap<>();
+        AdvancedCache<String, String> localPendingEdits = this.pendingEdits.getAdvancedCache().withFlags(Flag.CACHE_MODE_LOCAL);
+        // A local (non-clustered) cache has no distribution manager, and this node owns every entry
+        DistributionManager distributionManager = localPendingEdits.getDistributionManager();
+        LocalizedCacheTopology cacheTopology = (distributionManager != null) ? distributionManager.getCacheTopology() : null;
+        try (CloseableIterator<Map.Entry<String, String>> editIterator = localPendingEdits.entrySet().iterator()) {
+            while (editIterator.hasNext()) {
+                Map.Entry<String, String> editEntry = editIterator.next();
+                if ((cacheTopology != null) && !cacheTopology.getDistribution(editEntry.getKey()).isPrimary()) {
+                    continue;
+                }
+                if ((nowMillis - PendingEdit.decode(editEntry.getValue()).pendingSinceMillis) >= this.editWindowMillis) {
+                    dueEdits.put(editEntry.getKey(), editEntry.getValue());
+                }
+            }
+        }
+        List<Bundle> dueCommunicationBundles = new ArrayList<>();
+        for (Map.Entry<String, String> dueEdit : dueEdits.entrySet()) {
+            // Claimed by another node (during a rebalance), or folded into since it was read (and so collected on the next pass)
+            if (!this.pendingEdits.remove(dueEdit.getKey(), dueEdit.getValue())) {
+                continue;
+            }
+            Bundle updateBundle = buildCommunicationUpdateBundle(dueEdit.getKey(), PendingEdit.decode(dueEdit.getValue()));
+            if (updateBundle != null) {
+                dueCommunicationBundles.add(updateBundle);
+            }
+        }
+        if (!dueCommunicationBundles.isEmpty()) {
+            this.publishedUpdateCount.add(dueCommunicationBundles.size());
+            LOG.debug("collectDueCommunicationBundles(): Publishing coalesced Communication updates --> {}", dueCommunicationBundles.size());
+        }
+        return (dueCommunicationBundles);
+    }
+
+    private Bundle buildCommunicationUpdateBundle(String replacedEventID, PendingEdit pendingEdit)
+    {
+        CommunicationVersion currentVersion = this.eventID2CommunicationMap.getCommunicationVersion(replacedEventID);
+        if (currentVersion == null) {
+            this.unresolvedCount.increment();
+            LOG.debug("buildCommunicationUpdateBundle(): Edited Event --> {} has no (known) FHIR::Communication", replacedEventID);
+            return (null);
+        }
+        Communication replacementCommunication;
+        try {
+            replacementCommunication = roomMessage2Communication.convertMatrixInstantMessage2FHIRCommunication(buildReplacementMessage(replacedEventID, new MatrixEvent(pendingEdit.latestEdit)));
+        } catch (MatrixMessageException | MajorTransformationException | JSONException transformException) {
+            LOG.warn("buildCommunicationUpdateBundle(): Could not transform the Edit of Event --> {}: {}", replacedEventID, transformException.getMessage());
+            return (null);
+        }
+        Bundle transactionBundle = new Bundle();
+        transactionBundle.setType(Bundle.BundleType.TRANSACTION);
+        BundleEntryComponent communicationEntry = transactionBundle.addEntry();
+        communicationEntry.setResource(MatrixRoomMessageCommunicationPatchBuilder.buildEditPatch(replacementCommunication));
+        communicationEntry.getRequest().setMethod(Bundle.HTTPVerb.PATCH).setUrl(currentVersion.getCommunicationReference()).setIfMatch(currentVersion.getVersionETag());
+        transactionBundle.setTimestamp(new Date());
+        // The index is moved on to the next version once the Bundle is published (see MatrixEventID2FHIRCommunicationMap.recordPublishedUpdate())
+        return (transactionBundle);
+    }
+
+    // The edit's "m.new_content", as if it were the original message (only its payload and categories are patched in)
+    private MatrixEvent buildReplacementMessage(String replacedEventID, MatrixEvent latestEdit)
+            throws MatrixMessageException
+    {
+        JSONObject replacementContent = new JSONObject(latestEdit.getContent().getJSONObject("m.new_content").toString());
+        replacementContent.remove("m.relates_to");
+        JSONObject replacementMessage = new JSONObject();
+        replacementMessage.put("type", latestEdit.getType());
+        replacementMessage.put("room_id", latestEdit.getRoomID());
+        replacementMessage.put("sender", latestEdit.getSender());
+        replacementMessage.put("event_id", replacedEventID);
+        if (latestEdit.getOriginServerTimestamp() != null) {
+            // When the (replacement) payload was created - the sent time of the FHIR::Communication isn't patched
+            replacementMessage.put("origin_server_ts", latestEdit.getOriginServerTimestamp().longValue());
+        }
+        replacementMessage.put("content", replacementContent);
+        return (new MatrixEvent(replacementMessage.toString()));
+    }
+
+    /**
+     * @return How often (in milliseconds) the pending edits should be checked
+     * - a quarter of the edit window (at least 50ms)
+     */
+    public long getCollectionPeriodMillis()
+    {
+        return (Math.max(50L, this.editWindowMillis / 4));
+    }
+
+    public long getFoldedEditCount()
+    {
+        return (this.foldedEditCount.sum());
+    }
+
+    public long getPublishedUpdateCount()
+    {
+        return (this.publishedUpdateCount.sum());
+    }
+
+    public long getUnresolvedCount()
+    {
+        return (this.unresolvedCount.sum());
+    }
+
+    public int getPendingEditCount()
+    {
+        return (this.pendingEdits.size());
+    }
+
+    // A pending edit, as held in the cache: when it became pending, and the latest edit (and its timestamp)
+    static final class PendingEdit
+    {
+
+        private static final char FIELD_SEPARATOR = ':';
+
+        final long pendingSinceMillis;
+        final long latestEditTimestamp;
+        final String latestEdit;
+
+        PendingEdit(long pendingSinceMillis, long latestEditTimestamp, String latestEdit)
+        {
+            this.pendingSinceMillis = pendingSinceMillis;
+            this.latestEditTimestamp = latestEditTimestamp;
+            this.latestEdit = latestEdit;
+        }
+
+        static String encode(PendingEdit pendingEdit)
+        {
+            return (pendingEdit.pendingSinceMillis + String.valueOf(FIELD_SEPARATOR) + pendingEdit.latestEditTimestamp + FIELD_SEPARATOR + pendingEdit.latestEdit);
+        }
+
+        // The edit (JSON) is last, so may itself hold the separator
+        static PendingEdit decode(String encoded)
+        {
+            int firstSeparator = encoded.indexOf(FIELD_SEPARATOR);
+            int secondSeparator = encoded.indexOf(FIELD_SEPARATOR, firstSeparator + 1);
+            return (new PendingEdit(Long.parseLong(encoded.substring(0, firstSeparator)), Long.parseLong(encoded.substring(firstSeparator + 1, secondSeparator)), encoded.substring(secondSeparator + 1)));
+        }
+    }
+}
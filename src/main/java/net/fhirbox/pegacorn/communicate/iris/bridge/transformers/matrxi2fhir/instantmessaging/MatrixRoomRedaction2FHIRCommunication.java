@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixEventID2FHIRCommunicationMap;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixEventID2FHIRCommunicationMap.CommunicationVersion;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEvent;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MatrixMessageException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryRequestComponent;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <h1>Transform a Room Message Redaction to a FHIR::Communication Update</h1>
+ * <p>
+ * This class turns a Matrix(R) "m.room.redaction" of an "m.room.message" into
+ * an update of the FHIR::Communication the message was transformed into: a
+ * (transaction) FHIR::Bundle with a single PATCH of the FHIR::Communication,
+ * setting its status to "entered-in-error" (see
+ * MatrixRoomMessageCommunicationPatchBuilder). Everything the redaction
+ * doesn't change - sender, sent time, subject, categories, inResponseTo - is
+ * left as it is on the FHIR server.
+ * <p>
+ * The FHIR::Communication is resolved from the
+ * MatrixEventID2FHIRCommunicationMap (a single cache lookup). The PATCH is not
+ * conditional on a version: a redaction applies whatever updates came before
+ * it. Once the FHIR::Bundle is published, the route removes the message from
+ * the index (see MatrixEventID2FHIRCommunicationMap.recordRedaction()), so
+ * that later edits of it are dropped. Redactions of events that are not (or no
+ * longer) in the index - e.g. state events, or messages older than the index
+ * lifespan - produce nothing.
+ * <p>
+ * As with a Matrix redaction, the message payload is not carried forward into
+ * the updated FHIR::Communication.
+ *
+ * @author ACT Health
+ *
+ * @see
+ * <a href="https://matrix.org/docs/spec/client_server/r0.6.0#redactions">Matrix Client-Server API Specificaton, Release 0.6.0 - Redactions</a>
+ */
+@ApplicationScoped
+public class MatrixRoomRedaction2FHIRCommunication
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(MatrixRoomRedaction2FHIRCommunication.class);
+
+    private static final String DEFAULT_REDACTION_REASON = "Redacted in RoomServer";
+
+    @Inject
+    MatrixEventID2FHIRCommunicationMap eventID2CommunicationMap;
+
+    private final LongAdder redactedCount = new LongAdder();
+    private final LongAdder unresolvedCount = new LongAdder();
+
+    /**
+     * @param roomRedaction The incoming Matrix Room Redaction (m.room.redaction)
+     * @return A List holding the (transaction) FHIR::Bundle updating the
+     * redacted FHIR::Communication, or an empty List if the redacted event
+     * can't be resolved to a FHIR::Communication
+     * @throws MatrixMessageException If the redaction is empty, or doesn't
+     * identify the redacted event
+     */
+    public List<Bundle> convertMatrixRedaction2FHIRBundles(MatrixEvent roomRedaction)
+            throws MatrixMessageException
+    {
+        LOG.debug("convertMatrixRedaction2FHIRBundles(): Entry, Matrix Room Redaction --> {}", roomRedaction);
+        if (roomRedaction == null) {
+            throw (new MatrixMessageException("Matrix Room Redaction --> is null"));
+        }
+        if (roomRedaction.isEmpty()) {
+            throw (new MatrixMessageException("Matrix Room Redaction --> is empty"));
+        }
+        String redactedEventID = roomRedaction.getRedacts();
+        if ((redactedEventID == null) || redactedEventID.isEmpty()) {
+            throw (new MatrixMessageException("Matrix Room Redaction --> has no -redacts- field"));
+        }
+        ArrayList<Bundle> newOutputSet = new ArrayList<>();
+        CommunicationVersion currentVersion = this.eventID2CommunicationMap.getCommunicationVersion(redactedEventID);
+        if (currentVersion == null) {
+            this.unresolvedCount.increment();
+            LOG.debug("convertMatrixRedaction2FHIRBundles(): Exit, Redacted Event --> {} has no (known) FHIR::Communication", redactedEventID);
+            return (newOutputSet);
+        }
+        BundleEntryRequestComponent bundleRequest = new BundleEntryRequestComponent();
+        bundleRequest.setMethod(Bundle.HTTPVerb.PATCH);
+        bundleRequest.setUrl(currentVersion.getCommunicationReference());
+        BundleEntryComponent communicationEntry = new BundleEntryComponent();
+        communicationEntry.setResource(MatrixRoomMessageCommunicationPatchBuilder.buildRedactionPatch(buildRedactionReason(roomRedaction)));
+        communicationEntry.setRequest(bundleRequest);
+        Bundle transactionBundle = new Bundle();
+        transactionBundle.setType(Bundle.BundleType.TRANSACTION);
+        transactionBundle.addEntry(communicationEntry);
+        transactionBundle.setTimestamp(new Date());
+        newOutputSet.add(transactionBundle);
+        this.redactedCount.increment();
+        LOG.debug("convertMatrixRedaction2FHIRBundles(): Exit, Redacting --> {}", currentVersion);
+        return (newOutputSet);
+    }
+
+    private CodeableConcept buildRedactionReason(MatrixEvent roomRedaction)
+    {
+        String redactionReason = null;
+        if (roomRedaction.hasContent()) {
+            redactionReason = roomRedaction.getContent().optString("reason", null);
+        }
+        CodeableConcept statusReason = new CodeableConcept();
+        statusReason.setText(((redactionReason == null) || redactionReason.isEmpty()) ? DEFAULT_REDACTION_REASON : redactionReason);
+        return (statusReason);
+    }
+
+    public long getRedactedCount()
+    {
+        return (this.redactedCount.sum());
+    }
+
+    public long getUnresolvedCount()
+    {
+        return (this.unresolvedCount.sum());
+    }
+}
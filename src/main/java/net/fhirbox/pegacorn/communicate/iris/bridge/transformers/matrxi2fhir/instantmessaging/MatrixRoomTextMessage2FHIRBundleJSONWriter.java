@@ -0,0 +1,322 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.Date;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixEventID2FHIRCommunicationMap;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEvent;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Narrative;
+import org.hl7.fhir.r4.model.Reference;
+import org.json.JSONObject;
+
+/**
+ * <h1> Matrix(R) "m.text" to FHIR::Bundle JSON Writer </h1>
+ * <p>
+ * Most of the RoomServer traffic is plain "m.text" messages, and the
+ * (message) FHIR::Bundle built for each of them always has the same shape.
+ * This class writes the FHIR JSON of that FHIR::Bundle straight to the output
+ * stream - rather than building the HAPI object graph (Bundle, MessageHeader,
+ * Communication, Narrative, CodeableConcepts) and then serialising it.
+ * <p>
+ * The constant parts (the FHIR::MessageHeader, the FHIR::Communication
+ * categories and narrative) are serialised once, from the template fragments.
+ * The JSON mirrors that of the HAPI JsonParser - element order, omitted empty
+ * elements and date formats (the dates are formatted by the HAPI types
+ * themselves). Anything else - other msgtypes, replies, or references this
+ * class can't reproduce exactly (see canWrite()) - must go through HAPI.
+ *
+ * @author ACT Health
+ *
+ * @see MatrixRoomIM2FHIRCommunication#convertMatrixInstantMessage2FHIRBundleJSON(MatrixEvent)
+ */
+public class MatrixRoomTextMessage2FHIRBundleJSONWriter
+{
+
+    public static final String TEXT_MESSAGE_TYPE = "m.text";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    private static final int INITIAL_BUNDLE_BYTES = 2048;
+
+    private final String messageHeaderJSON;
+    private final String narrativeJSON;
+    private final String categoryJSON;
+
+    /**
+     * @param messageHeader The FHIR::MessageHeader of a Communication
+     * (message) Bundle
+     * @param notificationCategory The HL7 communication-category of the
+     * FHIR::Communication
+     * @param textMessageCategory The Matrix msgtype ("m.text") category of the
+     * FHIR::Communication
+     * @param narrative The (generated) FHIR::Narrative of the
+     * FHIR::Communication
+     */
+    public MatrixRoomTextMessage2FHIRBundleJSONWriter(MessageHeader messageHeader, CodeableConcept notificationCategory,
+            CodeableConcept textMessageCategory, Narrative narrative)
+    {
+        this.messageHeaderJSON = writeFragment(generator -> writeMessageHeader(generator, messageHeader));
+        this.narrativeJSON = writeFragment(generator -> writeNarrative(generator, narrative));
+        this.categoryJSON = writeFragment(generator -> {
+            generator.writeStartArray();
+            writeCodeableConcept(generator, notificationCategory);
+            writeCodeableConcept(generator, textMessageCategory);
+            generator.writeEndArray();
+        });
+    }
+
+    /**
+     * @param roomMessage A (decoded) Matrix "m.room.message" event
+     * @return true if the event is a plain "m.text" message (i.e. not a reply)
+     */
+    public boolean isPlainTextMessage(MatrixEvent roomMessage)
+    {
+        if ((roomMessage == null) || (roomMessage.getEventID() == null) || !roomMessage.hasContent()) {
+            return (false);
+        }
+        JSONObject messageContent = roomMessage.getContent();
+        return (TEXT_MESSAGE_TYPE.equals(messageContent.optString("msgtype")) && !messageContent.has("m.relates_to"));
+    }
+
+    /**
+     * @param roomMessage A (decoded) Matrix "m.room.message" event
+     * @param subjectReference The FHIR::Communication.subject (i.e. the Room)
+     * @param senderReference The FHIR::Communication.sender, may be null
+     * @return true if the FHIR::Bundle for the event can be written directly
+     */
+    public boolean canWrite(MatrixEvent roomMessage, Reference subjectReference, Reference senderReference)
+    {
+        if (!isPlainTextMessage(roomMessage) || !isSimpleReference(subjectReference)) {
+            return (false);
+        }
+        return ((senderReference == null) || isSimpleReference(senderReference));
+    }
+
+    /**
+     * Writes the (message) FHIR::Bundle for the event - see canWrite().
+     *
+     * @param roomMessage A plain "m.text" Matrix "m.room.message" event
+     * @param subjectReference The FHIR::Communication.subject (i.e. the Room)
+     * @param senderReference The FHIR::Communication.sender, may be null
+     * @param bundleTimestamp The FHIR::Bundle.timestamp
+     * @return The FHIR JSON (UTF-8) of the FHIR::Bundle
+     * @throws IOException If the JSON can't be written
+     */
+    public byte[] writeCommunicationBundle(MatrixEvent roomMessage, Reference subjectReference, Reference senderReference, Date bundleTimestamp)
+            throws IOException
+    {
+        ByteArrayOutputStream bundleOutput = new ByteArrayOutputStream(INITIAL_BUNDLE_BYTES);
+        writeCommunicationBundle(roomMessage, subjectReference, senderReference, bundleTimestamp, bundleOutput);
+        return (bundleOutput.toByteArray());
+    }
+
+    /**
+     * Writes the (message) FHIR::Bundle for the event - see canWrite() - to
+     * the output stream (which is flushed, but not closed).
+     *
+     * @param roomMessage A plain "m.text" Matrix "m.room.message" event
+     * @param subjectReference The FHIR::Communication.subject (i.e. the Room)
+     * @param senderReference The FHIR::Communication.sender, may be null
+     * @param bundleTimestamp The FHIR::Bundle.timestamp
+     * @param output The stream the FHIR JSON (UTF-8) is written to
+     * @throws IOException If the JSON can't be written
+     */
+    public void writeCommunicationBundle(MatrixEvent roomMessage, Reference subjectReference, Reference senderReference, Date bundleTimestamp, OutputStream output)
+            throws IOException
+    {
+        Date sentDate;
+        if (roomMessage.getOriginServerTimestamp() != null) {
+            sentDate = new Date(roomMessage.getOriginServerTimestamp());
+        } else {
+            sentDate = Date.from(Instant.now());
+        }
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(output, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeStringField("resourceType", "Bundle");
+            generator.writeStringField("type", "message");
+            generator.writeStringField("timestamp", new InstantType(bundleTimestamp).getValueAsString());
+            generator.writeArrayFieldStart("entry");
+            generator.writeStartObject();
+            generator.writeFieldName("resource");
+            generator.writeRawValue(this.messageHeaderJSON);
+            generator.writeEndObject();
+            generator.writeStartObject();
+            generator.writeObjectFieldStart("resource");
+            generator.writeStringField("resourceType", "Communication");
+            String communicationID = MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(roomMessage.getEventID());
+            generator.writeStringField("id", communicationID);
+            generator.writeFieldName("text");
+            generator.writeRawValue(this.narrativeJSON);
+            generator.writeStringField("status", "completed");
+            generator.writeFieldName("category");
+            generator.writeRawValue(this.categoryJSON);
+            generator.writeStringField("priority", "routine");
+            generator.writeFieldName("subject");
+            writeReference(generator, subjectReference);
+            generator.writeStringField("sent", new DateTimeType(sentDate).getValueAsString());
+            if (senderReference != null) {
+                generator.writeFieldName("sender");
+                writeReference(generator, senderReference);
+            }
+            generator.writeArrayFieldStart("payload");
+            generator.writeStartObject();
+            generator.writeStringField("contentString", roomMessage.getContent().toString());
+            generator.writeEndObject();
+            generator.writeEndArray();
+            generator.writeEndObject();
+            generator.writeObjectFieldStart("request");
+            generator.writeStringField("method", "PUT");
+            generator.writeStringField("url", "Communication/" + communicationID);
+            generator.writeEndObject();
+            generator.writeEndObject();
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+
+    // Only the Reference.type + Reference.identifier(use, system, value) shape built by the transformers is written directly
+    private static boolean isSimpleReference(Reference reference)
+    {
+        if ((reference == null) || reference.hasId() || reference.hasExtension() || reference.hasReference() || reference.hasDisplay()) {
+            return (false);
+        }
+        if (!reference.hasType() || !reference.hasIdentifier()) {
+            return (false);
+        }
+        Identifier identifier = reference.getIdentifier();
+        if (identifier.hasId() || identifier.hasExtension() || identifier.hasType() || identifier.hasPeriod() || identifier.hasAssigner()) {
+            return (false);
+        }
+        return (identifier.hasValue());
+    }
+
+    private static void writeReference(JsonGenerator generator, Reference reference) throws IOException
+    {
+        generator.writeStartObject();
+        generator.writeStringField("type", reference.getType());
+        Identifier identifier = reference.getIdentifier();
+        generator.writeObjectFieldStart("identifier");
+        if (identifier.hasUse()) {
+            generator.writeStringField("use", identifier.getUse().toCode());
+        }
+        if (identifier.hasSystem()) {
+            generator.writeStringField("system", identifier.getSystem());
+        }
+        generator.writeStringField("value", identifier.getValue());
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    private static void writeMessageHeader(JsonGenerator generator, MessageHeader messageHeader) throws IOException
+    {
+        generator.writeStartObject();
+        generator.writeStringField("resourceType", "MessageHeader");
+        if (messageHeader.hasEventCoding()) {
+            generator.writeFieldName("eventCoding");
+            writeCoding(generator, messageHeader.getEventCoding());
+        }
+        if (messageHeader.hasSource()) {
+            MessageHeader.MessageSourceComponent messageSource = messageHeader.getSource();
+            generator.writeObjectFieldStart("source");
+            writeOptionalStringField(generator, "name", messageSource.getName());
+            writeOptionalStringField(generator, "software", messageSource.getSoftware());
+            writeOptionalStringField(generator, "version", messageSource.getVersion());
+            writeOptionalStringField(generator, "endpoint", messageSource.getEndpoint());
+            generator.writeEndObject();
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeNarrative(JsonGenerator generator, Narrative narrative) throws IOException
+    {
+        generator.writeStartObject();
+        generator.writeStringField("status", narrative.getStatus().toCode());
+        generator.writeStringField("div", narrative.getDiv().getValueAsString());
+        generator.writeEndObject();
+    }
+
+    private static void writeCodeableConcept(JsonGenerator generator, CodeableConcept codeableConcept) throws IOException
+    {
+        generator.writeStartObject();
+        if (codeableConcept.hasCoding()) {
+            generator.writeArrayFieldStart("coding");
+            for (Coding coding : codeableConcept.getCoding()) {
+                writeCoding(generator, coding);
+            }
+            generator.writeEndArray();
+        }
+        writeOptionalStringField(generator, "text", codeableConcept.getText());
+        generator.writeEndObject();
+    }
+
+    private static void writeCoding(JsonGenerator generator, Coding coding) throws IOException
+    {
+        generator.writeStartObject();
+        writeOptionalStringField(generator, "system", coding.getSystem());
+        writeOptionalStringField(generator, "version", coding.getVersion());
+        writeOptionalStringField(generator, "code", coding.getCode());
+        writeOptionalStringField(generator, "display", coding.getDisplay());
+        generator.writeEndObject();
+    }
+
+    private static void writeOptionalStringField(JsonGenerator generator, String fieldName, String value) throws IOException
+    {
+        if ((value != null) && !value.isEmpty()) {
+            generator.writeStringField(fieldName, value);
+        }
+    }
+
+    private static String writeFragment(FragmentWriter fragmentWriter)
+    {
+        StringWriter fragment = new StringWriter();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(fragment)) {
+            fragmentWriter.write(generator);
+        } catch (IOException writeException) {
+            // A StringWriter doesn't throw, so this can't really happen
+            throw (new UncheckedIOException(writeException));
+        }
+        return (fragment.toString());
+    }
+
+    @FunctionalInterface
+    private interface FragmentWriter
+    {
+
+        void write(JsonGenerator generator) throws IOException;
+    }
+}
@@ -25,10 +25,9 @@ package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.in
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
-import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MatrixMessageException;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.PayloadTransformationOutcomeCounters;
 import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationOutcomeEnum;
-import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MinorTransformationException;
-import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.WrongContentTypeException;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationResult;
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixRoomID2ResourceReferenceMap;
 import net.fhirbox.pegacorn.deploymentproperties.CommunicateProperties;
 import net.fhirbox.pegacorn.referencevalues.PegacornSystemReference;
@@ -48,6 +47,7 @@ public class MatrixRoomID2FHIRGroupReference
 {
 
     private static final Logger LOG = LoggerFactory.getLogger(MatrixRoomID2FHIRGroupReference.class);
+    private static final String TRANSFORMATION_NAME = "MatrixRoomID2FHIRGroupReference";
 
     @Inject
     PegacornSystemReference pegacornSystemReference;
@@ -55,6 +55,9 @@ public class MatrixRoomID2FHIRGroupReference
     @Inject
     CommunicateProperties communicateProperties;
 
+    @Inject
+    PayloadTransformationOutcomeCounters outcomeCounters;
+
     /**
      * This method constructs a FHIR::Reference entity for the Subject of the
      * message based on the RoomServer.RoomID (i.e. "room_id").
@@ -72,19 +75,17 @@ public class MatrixRoomID2FHIRGroupReference
      * @param roomIM A Matrix(R) "m.room.message" message (see
      * https://matrix.org/docs/spec/client_server/r0.6.0#room-event-fields)
      * @return The FHIR::Reference for the subject (see
-     * https://www.hl7.org/fhir/references.html#Reference)
+     * https://www.hl7.org/fhir/references.html#Reference), or an
+     * INGRES_CONTENT_INCOMPLETE outcome if there is no Room ID
      */
-    public Reference buildFHIRGroupReferenceFromMatrixRoomID(String roomID, boolean createIfNotExist)
-            throws MinorTransformationException
+    public PayloadTransformationResult<Reference> buildFHIRGroupReferenceFromMatrixRoomID(String roomID, boolean createIfNotExist)
     {
         LOG.debug("buildFHIRGroupReferenceFromMatrixRoomID(): Entry, for Matrix Room Instant Message --> {}", roomID);
         // Get the associated Reference from the RoomServer.RoomID ("room_id")
-        if (roomID == null) {
-            throw (new MinorTransformationException("Exit, Matrix Room ID is null"));
-        }
-        if (roomID.isEmpty()) {
-            LOG.error("buildFHIRGroupReferenceFromMatrixRoomID(): Exit, Matrix Room ID is empty");
-            throw (new MinorTransformationException("Room Instant Message --> it is empty"));
+        if ((roomID == null) || roomID.isEmpty()) {
+            LOG.debug("buildFHIRGroupReferenceFromMatrixRoomID(): Exit, Matrix Room ID is null or empty");
+            return (outcomeCounters.count(TRANSFORMATION_NAME, PayloadTransformationResult.failure(
+                    PayloadTransformationOutcomeEnum.PAYLOAD_TRANSFORM_FAILURE_INGRES_CONTENT_INCOMPLETE, "Matrix Room ID is null or empty")));
         }
         // One didn't exist, so we'll create one and it will map to a FHIR::Group
         // Create the empty FHIR::Reference element
@@ -101,7 +102,7 @@ public class MatrixRoomID2FHIRGroupReference
         localSubjectReference.setIdentifier(localSubjectIdentifier);
         // Set the FHIR::Reference.type to "Group"
         localSubjectReference.setType("Group");
-        LOG.debug(".buildFHIRGroupReferenceFromMatrixRoomID(): Created new (Temporary) FHIR::Reference for the FHIR::Group --> " + localSubjectReference.toString());
-        return (localSubjectReference);
+        LOG.debug(".buildFHIRGroupReferenceFromMatrixRoomID(): Created new (Temporary) FHIR::Reference for the FHIR::Group --> {}", localSubjectReference);
+        return (outcomeCounters.count(TRANSFORMATION_NAME, PayloadTransformationResult.success(localSubjectReference)));
     }
 }
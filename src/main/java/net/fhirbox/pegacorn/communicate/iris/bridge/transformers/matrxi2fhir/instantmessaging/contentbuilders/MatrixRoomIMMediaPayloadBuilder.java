@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.contentbuilders;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import javax.inject.Inject;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.PayloadTransformationOutcomeCounters;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationResult;
+import org.hl7.fhir.r4.model.Communication.CommunicationPayloadComponent;
+import org.hl7.fhir.r4.model.Reference;
+import org.json.JSONObject;
+
+/**
+ * The (common) payload builder for the media msgtypes ("m.audio", "m.file",
+ * "m.image" and "m.video") - the payload is the (temporary) FHIR::Media
+ * Reference built by MatrixRoomIMMediaContent2FHIRMediaReferenceSet.
+ *
+ * @author ACT Health
+ */
+public abstract class MatrixRoomIMMediaPayloadBuilder implements MatrixRoomIMPayloadBuilder
+{
+
+    @Inject
+    protected MatrixRoomIMMediaContent2FHIRMediaReferenceSet mediaReferenceGenerator;
+
+    @Inject
+    protected PayloadTransformationOutcomeCounters outcomeCounters;
+
+    private final String messageType;
+    private final String transformationName;
+
+    protected MatrixRoomIMMediaPayloadBuilder(String messageType)
+    {
+        this.messageType = messageType;
+        this.transformationName = "MatrixRoomIMMediaPayloadBuilder::" + messageType;
+    }
+
+    @Override
+    public Set<String> getMessageTypes()
+    {
+        return (Collections.singleton(this.messageType));
+    }
+
+    @Override
+    public PayloadTransformationResult<CommunicationPayloadComponent> buildPayload(JSONObject messageContent, Date messageDate)
+    {
+        PayloadTransformationResult<Reference> mediaReferenceResult = buildMediaReference(messageContent, messageDate);
+        if (!mediaReferenceResult.isSuccessful()) {
+            return (outcomeCounters.count(this.transformationName, PayloadTransformationResult.failure(mediaReferenceResult.getOutcome(), mediaReferenceResult.getReason())));
+        }
+        CommunicationPayloadComponent mediaPayload = new CommunicationPayloadComponent();
+        mediaPayload.setContent(mediaReferenceResult.getResult());
+        return (outcomeCounters.count(this.transformationName, PayloadTransformationResult.success(mediaPayload)));
+    }
+
+    /**
+     * @param messageContent The -content- of a Matrix "m.room.message"
+     * @param messageDate The time the message was sent
+     * @return The FHIR::Media Reference for the message's attachment
+     */
+    protected abstract PayloadTransformationResult<Reference> buildMediaReference(JSONObject messageContent, Date messageDate);
+}
@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.contentbuilders;
+
+import java.util.Date;
+import java.util.Set;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationResult;
+import org.hl7.fhir.r4.model.Communication.CommunicationPayloadComponent;
+import org.json.JSONObject;
+
+/**
+ * <h1> Matrix(R) Room Instant Message Payload Builder </h1>
+ * <p>
+ * Builds the msgtype specific FHIR::Communication.payload of a Matrix
+ * "m.room.message" (e.g. the FHIR::Media Reference of an "m.image"). The
+ * -content- itself is always carried as a (string) payload as well, so a
+ * msgtype that needs nothing more returns a NOT_APPLICABLE outcome.
+ * <p>
+ * Every (CDI) bean implementing this interface is picked up by the
+ * MatrixRoomIMPayloadBuilderRegistry - so supporting a new msgtype doesn't
+ * touch the FHIR::Communication transformer itself.
+ *
+ * @author ACT Health
+ */
+public interface MatrixRoomIMPayloadBuilder
+{
+
+    /**
+     * @return The -msgtype- values (e.g. "m.image") this builder handles
+     */
+    Set<String> getMessageTypes();
+
+    /**
+     * @param messageContent The -content- of a Matrix "m.room.message"
+     * @param messageDate The time the message was sent
+     * @return The msgtype specific FHIR::Communication.payload, or a
+     * (NOT_APPLICABLE or failure) outcome if there isn't one
+     */
+    PayloadTransformationResult<CommunicationPayloadComponent> buildPayload(JSONObject messageContent, Date messageDate);
+}
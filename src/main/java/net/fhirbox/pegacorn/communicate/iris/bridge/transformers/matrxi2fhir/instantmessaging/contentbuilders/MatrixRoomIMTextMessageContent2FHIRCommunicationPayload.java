@@ -23,16 +23,13 @@
  */
 package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.contentbuilders;
 
-import java.util.ArrayList;
-import java.util.List;
 import javax.enterprise.context.ApplicationScoped;
-import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MatrixMessageException;
-import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MinorTransformationException;
-import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.WrongContentTypeException;
-import org.hl7.fhir.r4.model.Communication;
+import javax.inject.Inject;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.PayloadTransformationOutcomeCounters;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationOutcomeEnum;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationResult;
 import org.hl7.fhir.r4.model.Communication.CommunicationPayloadComponent;
 import org.hl7.fhir.r4.model.StringType;
-import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,21 +43,22 @@ public class MatrixRoomIMTextMessageContent2FHIRCommunicationPayload
 {
 
     private static final Logger LOG = LoggerFactory.getLogger(MatrixRoomIMTextMessageContent2FHIRCommunicationPayload.class);
+    private static final String TRANSFORMATION_NAME = "MatrixRoomIMTextMessageContent2FHIRCommunicationPayload";
 
-    public CommunicationPayloadComponent buildTextPayload(JSONObject roomIMContent)
-            throws MatrixMessageException, JSONException
+    @Inject
+    PayloadTransformationOutcomeCounters outcomeCounters;
+
+    public PayloadTransformationResult<CommunicationPayloadComponent> buildTextPayload(JSONObject roomIMContent)
     {
         LOG.debug("buildTextPayload(): Entry, roomIMContent --> {}", roomIMContent);
-        if (roomIMContent == null) {
-            throw (new MatrixMessageException("buildTextPayload(): Message is null"));
-        }
-        if (roomIMContent == null) {
-            throw (new MatrixMessageException("buildTextPayload(): Message is empty"));
+        if ((roomIMContent == null) || roomIMContent.isEmpty()) {
+            return (outcomeCounters.count(TRANSFORMATION_NAME, PayloadTransformationResult.failure(
+                    PayloadTransformationOutcomeEnum.PAYLOAD_TRANSFORM_FAILURE_INGRES_CONTENT_INCOMPLETE, "buildTextPayload(): Message is null or empty")));
         }
         LOG.trace("buildTextPayload(): Creating empty CommunicationPayloadComponent");
         CommunicationPayloadComponent payload = new CommunicationPayloadComponent();
         payload.setContent(new StringType(roomIMContent.toString()));
         LOG.debug("buildMTextPayload(): Exit, payload = {}", payload);
-        return (payload);
+        return (outcomeCounters.count(TRANSFORMATION_NAME, PayloadTransformationResult.success(payload)));
     }
 }
@@ -34,7 +34,6 @@ import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Period;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.BooleanType;
-import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.StringType;
 
@@ -44,8 +43,12 @@ import org.slf4j.LoggerFactory;
 
 import net.fhirbox.pegacorn.referencevalues.PegacornSystemReference;
 import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MinorTransformationException;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationOutcomeEnum;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationResult;
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixAttribute2FHIRIdentifierBuilders;
-import net.fhirbox.pegacorn.deploymentproperties.CommunicateProperties;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEvent;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixFHIRTemplateFragments;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.PayloadTransformationOutcomeCounters;
 import net.fhirbox.pegacorn.fhir.r4.model.common.GroupPC;
 import net.fhirbox.pegacorn.fhir.r4.model.common.helpers.GroupJoinRuleStatusEnum;
 import net.fhirbox.pegacorn.fhir.r4.model.common.helpers.IdentifierExtensionMeanings;
@@ -59,31 +62,36 @@ public class MatrixRoomEvent2FHIRGroup
 {
 
     private static final Logger LOG = LoggerFactory.getLogger(MatrixRoomEvent2FHIRGroup.class);
+    private static final String TRANSFORMATION_NAME = "MatrixRoomEvent2FHIRGroup";
 
     @Inject
     PegacornSystemReference pegacornSystemReference;
 
     @Inject
-    CommunicateProperties communicateProperties;
+    MatrixFHIRTemplateFragments templateFragments;
 
     @Inject
     MatrixAttribute2FHIRIdentifierBuilders identifierBuilders;
 
-    private MatrixRoomEvent2FHIRGroupAttributeBuilders groupAttributeBuilders = new MatrixRoomEvent2FHIRGroupAttributeBuilders();
+    @Inject
+    PayloadTransformationOutcomeCounters outcomeCounters;
+
+    @Inject
+    MatrixRoomEvent2FHIRGroupAttributeBuilders groupAttributeBuilders;
 
-    public Bundle matrixRoomCreateEvent2FHIRGroupBundle(String theMessage) throws MinorTransformationException
+    public Bundle matrixRoomCreateEvent2FHIRGroupBundle(MatrixEvent theMessage) throws MinorTransformationException
     {
         LOG.debug(".matrixRoomCreateEvent2FHIRGroupBundle(): Message In --> " + theMessage);
         Bundle newBundleElement = new Bundle();
-        GroupPC groupElement = new GroupPC();
         MessageHeader messageHeader = new MessageHeader();
         LOG.trace(".matrixRoomCreateEvent2FHIRGroupBundle(): Message to be converted --> " + theMessage);
         try {
-            groupElement = roomCreateEvent2Group(theMessage);
-            if (groupElement == null) {
-                LOG.debug(".matrixRoomCreateEvent2FHIRGroupBundle(): Exit, empty message, typically because there is nothing of interest for Ladon");
+            PayloadTransformationResult<GroupPC> groupResult = roomCreateEvent2Group(theMessage);
+            if (!groupResult.isSuccessful()) {
+                LOG.debug(".matrixRoomCreateEvent2FHIRGroupBundle(): Exit, no GroupPER element (typically because there is nothing of interest for Ladon) --> {}", groupResult.getReason());
                 return (null);
             }
+            GroupPC groupElement = groupResult.getResult();
             LOG.trace("matrixRoomCreateEvent2FHIRGroupBundle(): Created GroupPER element, now build MessageHeader");
             messageHeader = matrix2MessageHeader(groupElement, theMessage);
             LOG.trace("matrixRoomCreateEvent2FHIRGroupBundle(): Built MessageHeader, now build the Bundle");
@@ -105,60 +113,53 @@ public class MatrixRoomEvent2FHIRGroup
         }
     }
 
-    public MessageHeader matrix2MessageHeader(Group theResultantGroupElement, String theMessage)
+    public MessageHeader matrix2MessageHeader(Group theResultantGroupElement, MatrixEvent theMessage)
     {
-        MessageHeader messageHeaderElement = new MessageHeader();
-        Coding messageHeaderCode = new Coding();
-        messageHeaderCode.setSystem("http://pegacorn.fhirbox.net/pegacorn/R1/message-codes");
-        messageHeaderCode.setCode("group-bundle");
-        messageHeaderElement.setEvent(messageHeaderCode);
-        MessageHeader.MessageSourceComponent messageSource = new MessageHeader.MessageSourceComponent();
-        messageSource.setName("Pegacorn Matrix2FHIR Integration Service");
-        messageSource.setSoftware("Pegacorn::Communicate::Iris");
-        messageSource.setEndpoint(communicateProperties.getIrisEndPointForIncomingGroupBundle());
-        return (messageHeaderElement);
+        return (templateFragments.newGroupBundleMessageHeader());
     }
 
-    public GroupPC roomCreateEvent2Group(String theMessage) throws MinorTransformationException
+    public PayloadTransformationResult<GroupPC> roomCreateEvent2Group(MatrixEvent theMessage)
     {
-        LOG.debug(".doTransform(): Message In --> " + theMessage);
-        GroupPC localGroupElement = new GroupPC();
-        LOG.trace("Message to be converted --> " + theMessage);
+        LOG.debug(".roomCreateEvent2Group(): Message In --> {}", theMessage);
+        PayloadTransformationResult<GroupPC> localGroupResult;
         try {
-            JSONObject roomStatusEvent = new JSONObject(theMessage);
-            localGroupElement = buildFHIRGroupFromMatrixRoomEvent(roomStatusEvent);
-        } catch (Exception Ex) {
-            GroupPC emptyGroup = new GroupPC();
-            return (emptyGroup);
+            localGroupResult = buildFHIRGroupFromMatrixRoomEvent(theMessage);
+        } catch (JSONException jsonExtractionError) {
+            localGroupResult = PayloadTransformationResult.failure(PayloadTransformationOutcomeEnum.PAYLOAD_TRANSFORM_FAILURE_INGRES_CONTENT_MALFORMED,
+                    theMessage.getType() + " event has a malformed -content- --> " + jsonExtractionError.getMessage());
         }
-        return (localGroupElement);
+        return (outcomeCounters.count(TRANSFORMATION_NAME, localGroupResult));
     }
 
     /**
      * This method constructs a basic FHIR::Group entity and then calls a the
      * other methods within this class to populate the relevant attributes.
      *
-     * @param pMessageObject A Matrix(R) "m.room.create" message (see
+     * @param roomEvent A (decoded) Matrix(R) "m.room.create" message (see
      * https://matrix.org/docs/spec/client_server/r0.6.0#m-room-create)
-     * @return Communication A FHIR::Communication resource (see
-     * https://www.hl7.org/fhir/group.html)
+     * @return The FHIR::Group resource (see
+     * https://www.hl7.org/fhir/group.html), or a NOT_APPLICABLE outcome for
+     * room events that are of no interest
      */
-    private GroupPC buildFHIRGroupFromMatrixRoomEvent(JSONObject roomEvent)
+    private PayloadTransformationResult<GroupPC> buildFHIRGroupFromMatrixRoomEvent(MatrixEvent roomEvent)
     {
-        LOG.debug(".buildDefaultGroupElement() for Event --> " + roomEvent);
+        LOG.debug(".buildDefaultGroupElement() for Event --> {}", roomEvent);
+        if (!roomEvent.hasContent()) {
+            return (PayloadTransformationResult.failure(PayloadTransformationOutcomeEnum.PAYLOAD_TRANSFORM_FAILURE_INGRES_CONTENT_INCOMPLETE, roomEvent.getType() + " event has no -content-"));
+        }
         // Create the empty Pegacorn::FHIR::R4::Group entity.
         GroupPC theTargetGroup = new GroupPC();
         // Add the FHIR::Group.Identifier (type = FHIR::Identifier) Set
-        theTargetGroup.addIdentifier(this.groupAttributeBuilders.buildGroupIdentifier(roomEvent.getString("room_id")));
+        theTargetGroup.addIdentifier(this.groupAttributeBuilders.buildGroupIdentifier(roomEvent.getRoomID()));
         // Set the group type --> PRACTITIONER (all our groups are based on Practitioners)
         theTargetGroup.setType(Group.GroupType.PRACTITIONER);
         // The group is active
         theTargetGroup.setActual(true);
 
         LOG.trace("buildGroupEntity(): Extracting -content- subfield set");
-        JSONObject roomCreateContent = roomEvent.getJSONObject("content");
+        JSONObject roomCreateContent = roomEvent.getContent();
 
-        switch (roomEvent.getString("type")) {
+        switch (roomEvent.getType()) {
             case "m.room.create":
                 LOG.trace("buildGroupEntity(): Is a m.room.create event");
                 Reference roomManager = this.groupAttributeBuilders.buildGroupManagerReference(roomCreateContent);
@@ -225,23 +226,26 @@ public class MatrixRoomEvent2FHIRGroup
             case "m.room.member":
                 LOG.trace("buildGroupEntity(): is a m.room.member event");
                 Group.GroupMemberComponent newMembershipComponent = this.groupAttributeBuilders.buildMembershipComponent(roomEvent);
+                if (newMembershipComponent == null) {
+                    return (PayloadTransformationResult.failure(PayloadTransformationOutcomeEnum.PAYLOAD_TRANSFORM_FAILURE_INGRES_CONTENT_INCOMPLETE, "m.room.member event has no -state_key- or -membership-"));
+                }
                 theTargetGroup.addMember(newMembershipComponent);
                 break;
             case "m.room.redaction":
                 LOG.trace("buildGroupEntity(): is a m.room.redaction event");
-                LOG.debug("buildGroupEntity(): Exit, if the event is a m.room.redaction, we ignore it (so returning null)!");
-                return (null);
+                LOG.debug("buildGroupEntity(): Exit, if the event is a m.room.redaction, we ignore it!");
+                return (PayloadTransformationResult.notApplicable("m.room.redaction events are ignored"));
             case "m.room.power_levels":
                 LOG.trace("buildGroupEntity(): is a m.room.power_levels event");
-                LOG.debug("buildGroupEntity(): Exit, if the event is a m.room.power_levels, we ignore it (so returning null)!");
-                return (null);
+                LOG.debug("buildGroupEntity(): Exit, if the event is a m.room.power_levels, we ignore it!");
+                return (PayloadTransformationResult.notApplicable("m.room.power_levels events are ignored"));
             default:
                 LOG.trace("buildGroupEntity(): default for room event type, do nothing");
-                LOG.debug("buildGroupEntity(): Exit, if the event is not of interested, we ignore it (so returning null)!");
-                return (null);
+                LOG.debug("buildGroupEntity(): Exit, if the event is not of interested, we ignore it!");
+                return (PayloadTransformationResult.notApplicable(roomEvent.getType() + " events are of no interest"));
         }
-        LOG.debug(".buildDefaultGroupElement(): Created Identifier --> " + theTargetGroup.toString());
-        return (theTargetGroup);
+        LOG.debug(".buildDefaultGroupElement(): Created Group --> {}", theTargetGroup);
+        return (PayloadTransformationResult.success(theTargetGroup));
     }
 
 }
@@ -37,6 +37,7 @@ import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Group;
 import org.hl7.fhir.r4.model.Period;
 import org.hl7.fhir.r4.model.StringType;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEvent;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -103,16 +104,16 @@ public class MatrixRoomEvent2FHIRGroupAttributeBuilders
         return (newMemberComponent);
     }
 
-    public Group.GroupMemberComponent buildMembershipComponent(JSONObject roomMemberEvent)
+    public Group.GroupMemberComponent buildMembershipComponent(MatrixEvent roomMemberEvent)
     {
-        LOG.debug("buildMembershipComponent(): Entry, creating a GroupMembershipComponent for --> {}", roomMemberEvent.getString("state_key"));
+        LOG.debug("buildMembershipComponent(): Entry, creating a GroupMembershipComponent for --> {}", roomMemberEvent.getStateKey());
         boolean isValidMemberEvent = true;
         LOG.trace("buildMembershipComponent(): Check to see if -state_key- and -content- are present");
-        if (!roomMemberEvent.has("state_key")) {
+        if (roomMemberEvent.getStateKey() == null) {
             LOG.trace("buildMembershipComponent(): no -state_key-");
             isValidMemberEvent = false;
         }
-        if (!roomMemberEvent.has("content")) {
+        if (!roomMemberEvent.hasContent()) {
             LOG.trace("buildMembershipComponent(): no -content-");
             isValidMemberEvent = false;
         }
@@ -121,7 +122,7 @@ public class MatrixRoomEvent2FHIRGroupAttributeBuilders
             return (null);
         }
         LOG.trace("buildMembershipComponent(): Extract the -content- from the Event");
-        JSONObject roomMemberEventContent = roomMemberEvent.getJSONObject("content");
+        JSONObject roomMemberEventContent = roomMemberEvent.getContent();
         if (!roomMemberEventContent.has("membership")) {
             LOG.trace("buildMembershipComponent(): no -membership- field, this is Required");
             isValidMemberEvent = false;
@@ -131,7 +132,7 @@ public class MatrixRoomEvent2FHIRGroupAttributeBuilders
             return (null);
         }
         LOG.trace("buildMembershipComponent(): Create the Identifier for the Member associated with the Event");
-        Identifier memberIdentifier = this.identifierBuilders.buildFHIRPractitionerIdentifierFromMatrixUserID(roomMemberEvent.getString("state_key"));
+        Identifier memberIdentifier = this.identifierBuilders.buildFHIRPractitionerIdentifierFromMatrixUserID(roomMemberEvent.getStateKey());
         LOG.trace("buildMembershipComponent(): Check to see if there is an associated Display Name for the Member, if so add it to the Extensions");
         if (roomMemberEventContent.has("displayname")) {
             LOG.trace("buildMembershipComponent(): Adding a friendly name to the Identifier");
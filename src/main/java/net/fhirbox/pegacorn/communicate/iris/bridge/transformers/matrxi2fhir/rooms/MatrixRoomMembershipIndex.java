@@ -0,0 +1,416 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.rooms;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEvent;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <h1> Matrix(R) Room Membership Index </h1>
+ * <p>
+ * An (in-memory) roster of each active room: who has joined, been invited or
+ * been banned - maintained from the m.room.member events as they pass
+ * through, so "who is in this room" never has to be rebuilt from the events.
+ * <p>
+ * Each room interns the Matrix user IDs it sees to its own (dense) integer
+ * ordinals, and keeps its joined, invited and banned sets as bitsets over
+ * them - so a membership transition (join, leave, invite, ban, ...) is a
+ * couple of bit operations, and the bitsets are sized by the room's own
+ * membership (the users seen in it), not by every user known to Iris. The
+ * member diffs of the FHIR::Group updates (see MatrixRoomStateAggregator) are
+ * bitset differences between two joined snapshots.
+ * <p>
+ * A roster that has seen no m.room.member event for the room state view
+ * lifespan is evicted (see evictIdleRosters()), so only active rooms are
+ * held. A roster started after an eviction (or a restart) only knows the
+ * members seen since.
+ *
+ * @author ACT Health
+ *
+ * @see
+ * <a href="https://matrix.org/docs/spec/client_server/r0.6.0#m-room-member">Matrix Client-Server API Specificaton, Release 0.6.0 - "m.room.member"</a>
+ */
+@ApplicationScoped
+public class MatrixRoomMembershipIndex
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(MatrixRoomMembershipIndex.class);
+
+    @Inject
+    IrisProcessingProperties processingProperties;
+
+    private final Map<String, RoomRoster> roomRosters = new ConcurrentHashMap<>();
+    private long rosterLifespanMillis;
+
+    @PostConstruct
+    public void initialise()
+    {
+        this.rosterLifespanMillis = processingProperties.getRoomStateViewLifespanMillis();
+        LOG.info("initialise(): Roster lifespan (ms) --> {}", this.rosterLifespanMillis);
+    }
+
+    /**
+     * Applies an m.room.member event (the member is the -state_key-, the
+     * transition the -content- -membership-). Other events are ignored.
+     *
+     * @param roomMemberEvent A (decoded) Matrix "m.room.member" event
+     */
+    public void applyMembershipEvent(MatrixEvent roomMemberEvent)
+    {
+        if (!"m.room.member".equals(roomMemberEvent.getType()) || (roomMemberEvent.getStateKey() == null) || !roomMemberEvent.hasContent()) {
+            LOG.trace("applyMembershipEvent(): Not a (complete) m.room.member event --> {}", roomMemberEvent);
+            return;
+        }
+        JSONObject memberContent = roomMemberEvent.getContent();
+        applyMembership(roomMemberEvent.getRoomID(), roomMemberEvent.getStateKey(), memberContent.optString("membership"));
+    }
+
+    /**
+     * Applies a membership transition.
+     *
+     * @param roomID The room ("room_id")
+     * @param userID The member's Matrix user ID
+     * @param membership The new membership - "join", "invite", "ban",
+     * "leave" or "knock" (knocking, like leaving, removes the user from every
+     * set)
+     * @return false if the transition was not recognised (and so not applied)
+     */
+    public boolean applyMembership(String roomID, String userID, String membership)
+    {
+        if ((roomID == null) || (userID == null) || (membership == null)) {
+            return (false);
+        }
+        long nowMillis = System.currentTimeMillis();
+        while (true) {
+            RoomRoster roomRoster = this.roomRosters.computeIfAbsent(roomID, newRoomID -> new RoomRoster());
+            synchronized (roomRoster) {
+                // A roster evicted since it was looked up is no longer in the map - look up (or start) its successor
+                if (roomRoster.evicted) {
+                    continue;
+                }
+                int userOrdinal = roomRoster.internUserID(userID);
+                switch (membership) {
+                    case "join":
+                        roomRoster.joined.set(userOrdinal);
+                        roomRoster.invited.clear(userOrdinal);
+                        roomRoster.banned.clear(userOrdinal);
+                        break;
+                    case "invite":
+                        roomRoster.invited.set(userOrdinal);
+                        roomRoster.joined.clear(userOrdinal);
+                        roomRoster.banned.clear(userOrdinal);
+                        break;
+                    case "ban":
+                        roomRoster.banned.set(userOrdinal);
+                        roomRoster.joined.clear(userOrdinal);
+                        roomRoster.invited.clear(userOrdinal);
+                        break;
+                    case "leave":
+                    case "knock":
+                        roomRoster.joined.clear(userOrdinal);
+                        roomRoster.invited.clear(userOrdinal);
+                        roomRoster.banned.clear(userOrdinal);
+                        break;
+                    default:
+                        LOG.debug("applyMembership(): Unknown -membership- --> {}, for User --> {}, in Room --> {}", membership, userID, roomID);
+                        return (false);
+                }
+                roomRoster.lastEventMillis = nowMillis;
+            }
+            LOG.trace("applyMembership(): Room --> {}, User --> {}, membership --> {}", roomID, userID, membership);
+            return (true);
+        }
+    }
+
+    public boolean isJoined(String roomID, String userID)
+    {
+        return (isMember(roomID, userID, MembershipSet.JOINED));
+    }
+
+    public boolean isInvited(String roomID, String userID)
+    {
+        return (isMember(roomID, userID, MembershipSet.INVITED));
+    }
+
+    public boolean isBanned(String roomID, String userID)
+    {
+        return (isMember(roomID, userID, MembershipSet.BANNED));
+    }
+
+    public int getJoinedCount(String roomID)
+    {
+        return (getJoinedSnapshot(roomID).getJoinedCount());
+    }
+
+    /**
+     * @param roomID The room ("room_id")
+     * @return The user IDs of the room's joined members (e.g. for recipient
+     * expansion)
+     */
+    public List<String> getJoinedMembers(String roomID)
+    {
+        return (getMembers(roomID, MembershipSet.JOINED));
+    }
+
+    public List<String> getInvitedMembers(String roomID)
+    {
+        return (getMembers(roomID, MembershipSet.INVITED));
+    }
+
+    public List<String> getBannedMembers(String roomID)
+    {
+        return (getMembers(roomID, MembershipSet.BANNED));
+    }
+
+    /**
+     * @param roomID The room ("room_id")
+     * @return A copy of the room's joined set - to diff a later snapshot
+     * against
+     */
+    public JoinedSnapshot getJoinedSnapshot(String roomID)
+    {
+        RoomRoster roomRoster = this.roomRosters.get(roomID);
+        if (roomRoster == null) {
+            return (new JoinedSnapshot(null, new BitSet()));
+        }
+        synchronized (roomRoster) {
+            return (new JoinedSnapshot(roomRoster, (BitSet) roomRoster.joined.clone()));
+        }
+    }
+
+    /**
+     * @param previousSnapshot An earlier joined snapshot of the room, may be
+     * null (no earlier snapshot)
+     * @param currentSnapshot A later joined snapshot of the room
+     * @return The user IDs that have joined in between
+     */
+    public List<String> getJoinedSince(JoinedSnapshot previousSnapshot, JoinedSnapshot currentSnapshot)
+    {
+        return (getDifference(currentSnapshot, previousSnapshot));
+    }
+
+    /**
+     * @param previousSnapshot An earlier joined snapshot of the room, may be
+     * null (no earlier snapshot)
+     * @param currentSnapshot A later joined snapshot of the room
+     * @return The user IDs that have left (or been banned) in between
+     */
+    public List<String> getDepartedSince(JoinedSnapshot previousSnapshot, JoinedSnapshot currentSnapshot)
+    {
+        return (getDifference(previousSnapshot, currentSnapshot));
+    }
+
+    /**
+     * Evicts the rosters of the rooms that have seen no m.room.member event
+     * for the roster lifespan.
+     *
+     * @return The number of rosters evicted
+     */
+    public int evictIdleRosters()
+    {
+        long nowMillis = System.currentTimeMillis();
+        int evictedRosters = 0;
+        for (Map.Entry<String, RoomRoster> rosterEntry : this.roomRosters.entrySet()) {
+            RoomRoster roomRoster = rosterEntry.getValue();
+            synchronized (roomRoster) {
+                if ((nowMillis - roomRoster.lastEventMillis) >= this.rosterLifespanMillis) {
+                    // Evicted under its lock, so a transition that looked the roster up before it was removed starts a new one
+                    roomRoster.evicted = true;
+                    this.roomRosters.remove(rosterEntry.getKey(), roomRoster);
+                    evictedRosters += 1;
+                }
+            }
+        }
+        if (evictedRosters > 0) {
+            LOG.debug("evictIdleRosters(): Evicted idle Room rosters --> {}, remaining --> {}", evictedRosters, this.roomRosters.size());
+        }
+        return (evictedRosters);
+    }
+
+    /**
+     * @return How often (in milliseconds) the idle rosters should be evicted
+     * - a tenth of the roster lifespan (at least a second)
+     */
+    public long getEvictionPeriodMillis()
+    {
+        return (Math.max(1000L, this.rosterLifespanMillis / 10));
+    }
+
+    public int getRoomCount()
+    {
+        return (this.roomRosters.size());
+    }
+
+    /**
+     * @param roomID The room ("room_id")
+     * @return The number of users interned by the room's roster (the size its
+     * bitsets are bounded by)
+     */
+    public int getInternedUserCount(String roomID)
+    {
+        RoomRoster roomRoster = this.roomRosters.get(roomID);
+        if (roomRoster == null) {
+            return (0);
+        }
+        synchronized (roomRoster) {
+            return (roomRoster.ordinalUsers.size());
+        }
+    }
+
+    private boolean isMember(String roomID, String userID, MembershipSet membershipSet)
+    {
+        RoomRoster roomRoster = this.roomRosters.get(roomID);
+        if (roomRoster == null) {
+            return (false);
+        }
+        synchronized (roomRoster) {
+            Integer userOrdinal = roomRoster.userOrdinals.get(userID);
+            return ((userOrdinal != null) && roomRoster.getSet(membershipSet).get(userOrdinal));
+        }
+    }
+
+    private List<String> getMembers(String roomID, MembershipSet membershipSet)
+    {
+        RoomRoster roomRoster = this.roomRosters.get(roomID);
+        if (roomRoster == null) {
+            return (new ArrayList<>());
+        }
+        synchronized (roomRoster) {
+            return (roomRoster.getUserIDs(roomRoster.getSet(membershipSet)));
+        }
+    }
+
+    // The user IDs in the minuend snapshot but not the subtrahend - a bitset difference if both are of the same roster
+    private static List<String> getDifference(JoinedSnapshot minuendSnapshot, JoinedSnapshot subtrahendSnapshot)
+    {
+        if ((minuendSnapshot == null) || (minuendSnapshot.roomRoster == null)) {
+            return (new ArrayList<>());
+        }
+        if ((subtrahendSnapshot == null) || (subtrahendSnapshot.roomRoster == null)) {
+            return (minuendSnapshot.getUserIDs(minuendSnapshot.joined));
+        }
+        if (minuendSnapshot.roomRoster == subtrahendSnapshot.roomRoster) {
+            BitSet difference = (BitSet) minuendSnapshot.joined.clone();
+            difference.andNot(subtrahendSnapshot.joined);
+            return (minuendSnapshot.getUserIDs(difference));
+        }
+        // The roster was evicted (and restarted) in between, so the ordinals differ - compare the user IDs
+        Set<String> subtrahendUserIDs = new HashSet<>(subtrahendSnapshot.getUserIDs(subtrahendSnapshot.joined));
+        List<String> difference = minuendSnapshot.getUserIDs(minuendSnapshot.joined);
+        difference.removeIf(subtrahendUserIDs::contains);
+        return (difference);
+    }
+
+    /**
+     * A copy of a room's joined set, at a point in time.
+     */
+    public static final class JoinedSnapshot
+    {
+
+        private final RoomRoster roomRoster;
+        private final BitSet joined;
+
+        private JoinedSnapshot(RoomRoster roomRoster, BitSet joined)
+        {
+            this.roomRoster = roomRoster;
+            this.joined = joined;
+        }
+
+        public int getJoinedCount()
+        {
+            return (this.joined.cardinality());
+        }
+
+        private List<String> getUserIDs(BitSet userOrdinals)
+        {
+            synchronized (this.roomRoster) {
+                return (this.roomRoster.getUserIDs(userOrdinals));
+            }
+        }
+    }
+
+    private enum MembershipSet
+    {
+        JOINED, INVITED, BANNED
+    }
+
+    // Ordinals are never re-used within a roster, so a snapshot's ordinals stay valid for as long as it is held
+    private static final class RoomRoster
+    {
+
+        private final Map<String, Integer> userOrdinals = new HashMap<>();
+        private final List<String> ordinalUsers = new ArrayList<>();
+        private final BitSet joined = new BitSet();
+        private final BitSet invited = new BitSet();
+        private final BitSet banned = new BitSet();
+        private long lastEventMillis;
+        private boolean evicted;
+
+        private int internUserID(String userID)
+        {
+            Integer userOrdinal = this.userOrdinals.get(userID);
+            if (userOrdinal == null) {
+                userOrdinal = this.ordinalUsers.size();
+                this.ordinalUsers.add(userID);
+                this.userOrdinals.put(userID, userOrdinal);
+            }
+            return (userOrdinal);
+        }
+
+        private List<String> getUserIDs(BitSet userOrdinals)
+        {
+            List<String> userIDs = new ArrayList<>(userOrdinals.cardinality());
+            for (int userOrdinal = userOrdinals.nextSetBit(0); userOrdinal >= 0; userOrdinal = userOrdinals.nextSetBit(userOrdinal + 1)) {
+                userIDs.add(this.ordinalUsers.get(userOrdinal));
+            }
+            return (userIDs);
+        }
+
+        private BitSet getSet(MembershipSet membershipSet)
+        {
+            switch (membershipSet) {
+                case INVITED:
+                    return (this.invited);
+                case BANNED:
+                    return (this.banned);
+                default:
+                    return (this.joined);
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.rooms;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEvent;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixFHIRTemplateFragments;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.rooms.contentbuilders.RoomInfoName2Group;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationResult;
+import net.fhirbox.pegacorn.fhir.r4.model.common.GroupPC;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <h1> Matrix(R) Room State Aggregator </h1>
+ * <p>
+ * Room set-up produces a storm of state events (m.room.create, join_rules,
+ * aliases, name and a member event per participant) in quick succession -
+ * each of which would otherwise become a FHIR::Group (message) Bundle of its
+ * own. This class folds the state events of each room into an (in-memory)
+ * current FHIR::Group view instead, and publishes the view at most once per
+ * room per debounce window.
+ * <p>
+ * Each state event is transformed by the existing transformers
+ * (MatrixRoomEvent2FHIRGroup, RoomInfoName2Group) into a partial
+ * FHIR::Group, which is then merged into the view:
+ * <ul>
+ * <li>Identifiers are added (if their system + value isn't already
+ * present).</li>
+ * <li>Extensions replace any existing extension with the same url.</li>
+ * <li>Members replace any existing member whose entity has the same
+ * Identifier system + value (so a displayname or avatar change doesn't add a
+ * second member).</li>
+ * <li>The name, managing entity, type and flags are overwritten.</li>
+ * </ul>
+ * A view is only "complete" if it was started by the room's m.room.create
+ * event - only then does it hold everything the server knows about the room,
+ * and only then is it published as a conditional update (PUT
+ * Group?identifier=...) of the whole FHIR::Group. A view started part-way
+ * through a room's life (e.g. after a restart, or once an idle view has been
+ * dropped) publishes just the changes folded into it since it was last
+ * published, as a conditional FHIRPath Patch (see
+ * MatrixRoomStateGroupPatchBuilder) - so the members and other state already
+ * on the server are left alone.
+ * <p>
+ * When a view is published, its member diff since it was last published
+ * (the joined snapshots of the MatrixRoomMembershipIndex, which the
+ * m.room.member route keeps up to date) marks the members who have joined as
+ * active and those who have left (or been banned) as inactive; a complete
+ * view also carries the room's joined count as its quantity.
+ * <p>
+ * Views that have seen no state event for the view lifespan are dropped.
+ *
+ * @author ACT Health
+ */
+@ApplicationScoped
+public class MatrixRoomStateAggregator
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(MatrixRoomStateAggregator.class);
+
+    @Inject
+    MatrixRoomEvent2FHIRGroup roomState2Group;
+
+    @Inject
+    RoomInfoName2Group roomName2Group;
+
+    @Inject
+    MatrixFHIRTemplateFragments templateFragments;
+
+    @Inject
+    MatrixRoomMembershipIndex roomMembershipIndex;
+
+    @Inject
+    IrisProcessingProperties processingProperties;
+
+    private final Map<String, RoomStateView> roomStateViews = new ConcurrentHashMap<>();
+    private final LongAdder appliedEventCount = new LongAdder();
+    private final LongAdder publishedUpdateCount = new LongAdder();
+    private long debounceMillis;
+    private long viewLifespanMillis;
+
+    @PostConstruct
+    public void initialise()
+    {
+        this.debounceMillis = processingProperties.getRoomStateDebounceMillis();
+        this.viewLifespanMillis = processingProperties.getRoomStateViewLifespanMillis();
+        LOG.info("initialise(): Debounce window (ms) --> {}, View lifespan (ms) --> {}", this.debounceMillis, this.viewLifespanMillis);
+    }
+
+    /**
+     * Folds a room state event into the current FHIR::Group view of its room.
+     *
+     * @param roomStateEvent A (decoded) Matrix room state event
+     */
+    public void applyRoomStateEvent(MatrixEvent roomStateEvent)
+    {
+        LOG.debug("applyRoomStateEvent(): Entry, Room State Event --> {}", roomStateEvent);
+        String roomID = roomStateEvent.getRoomID();
+        if ((roomID == null) || roomID.isEmpty()) {
+            LOG.debug("applyRoomStateEvent(): Exit, Room State Event has no -room_id-");
+            return;
+        }
+        PayloadTransformationResult<GroupPC> groupUpdateResult;
+        if ("m.room.name".equals(roomStateEvent.getType())) {
+            groupUpdateResult = roomName2Group.roomInfoNameEvent2Group(roomStateEvent);
+        } else {
+            groupUpdateResult = roomState2Group.roomCreateEvent2Group(roomStateEvent);
+        }
+        if (!groupUpdateResult.isSuccessful()) {
+            LOG.debug("applyRoomStateEvent(): Exit, nothing to fold, outcome --> {}, reason --> {}", groupUpdateResult.getOutcome(), groupUpdateResult.getReason());
+            return;
+        }
+        long nowMillis = System.currentTimeMillis();
+        boolean folded = false;
+        while (!folded) {
+            RoomStateView roomStateView = this.roomStateViews.computeIfAbsent(roomID, newRoomID -> new RoomStateView());
+            synchronized (roomStateView) {
+                // A view retired (as idle) since it was looked up is no longer in the map - look up (or start) its successor
+                if (roomStateView.retired) {
+                    continue;
+                }
+                if (roomStateView.lastEventMillis == 0L) {
+                    roomStateView.complete = "m.room.create".equals(roomStateEvent.getType());
+                }
+                mergeGroupState(roomStateView.pendingChanges, groupUpdateResult.getResult().copy());
+                mergeGroupState(roomStateView.group, groupUpdateResult.getResult());
+                if (!roomStateView.pending) {
+                    roomStateView.pending = true;
+                    roomStateView.pendingSinceMillis = nowMillis;
+                }
+                roomStateView.lastEventMillis = nowMillis;
+                folded = true;
+            }
+        }
+        this.appliedEventCount.increment();
+        LOG.debug("applyRoomStateEvent(): Exit, folded {} into Room --> {}", roomStateEvent.getType(), roomID);
+    }
+
+    /**
+     * Collects a FHIR::Group (message) Bundle for each room whose view has
+     * changed, and whose debounce window has elapsed, since it was last
+     * published.
+     *
+     * @return The FHIR::Group Bundles to publish (may be empty)
+     */
+    public List<Bundle> collectDueGroupBundles()
+    {
+        long nowMillis = System.currentTimeMillis();
+        List<Bundle> dueGroupBundles = new ArrayList<>();
+        for (Map.Entry<String, RoomStateView> viewEntry : this.roomStateViews.entrySet()) {
+            RoomStateView roomStateView = viewEntry.getValue();
+            Group groupSnapshot = null;
+            Group groupChanges = null;
+            synchronized (roomStateView) {
+                if (roomStateView.pending && ((nowMillis - roomStateView.pendingSinceMillis) >= this.debounceMillis)) {
+                    applyMemberDiff(viewEntry.getKey(), roomStateView);
+                    groupSnapshot = roomStateView.group.copy();
+                    if (!roomStateView.complete) {
+                        groupChanges = roomStateView.pendingChanges;
+                    }
+                    roomStateView.pendingChanges = new Group();
+                    roomStateView.pending = false;
+                } else if (!roomStateView.pending && ((nowMillis - roomStateView.lastEventMillis) >= this.viewLifespanMillis)) {
+                    LOG.trace("collectDueGroupBundles(): Dropping idle view of Room --> {}", viewEntry.getKey());
+                    // Retired under its lock, so an event that looked the view up before it was removed folds into a new one
+                    roomStateView.retired = true;
+                    this.roomStateViews.remove(viewEntry.getKey(), roomStateView);
+                }
+            }
+            if (groupChanges != null) {
+                dueGroupBundles.add(buildGroupBundle(MatrixRoomStateGroupPatchBuilder.buildGroupPatch(groupChanges), Bundle.HTTPVerb.PATCH, groupSnapshot));
+            } else if (groupSnapshot != null) {
+                dueGroupBundles.add(buildGroupBundle(groupSnapshot, Bundle.HTTPVerb.PUT, groupSnapshot));
+            }
+        }
+        if (!dueGroupBundles.isEmpty()) {
+            this.publishedUpdateCount.add(dueGroupBundles.size());
+            LOG.debug("collectDueGroupBundles(): Publishing coalesced Group updates --> {}", dueGroupBundles.size());
+        }
+        return (dueGroupBundles);
+    }
+
+    /**
+     * @return How often (in milliseconds) the views should be checked for
+     * due updates - a quarter of the debounce window (at least 50ms)
+     */
+    public long getCollectionPeriodMillis()
+    {
+        return (Math.max(50L, this.debounceMillis / 4));
+    }
+
+    public long getAppliedEventCount()
+    {
+        return (this.appliedEventCount.sum());
+    }
+
+    public long getPublishedUpdateCount()
+    {
+        return (this.publishedUpdateCount.sum());
+    }
+
+    public int getRoomViewCount()
+    {
+        return (this.roomStateViews.size());
+    }
+
+    // Called holding the view's lock
+    private void applyMemberDiff(String roomID, RoomStateView roomStateView)
+    {
+        MatrixRoomMembershipIndex.JoinedSnapshot joinedSnapshot = roomMembershipIndex.getJoinedSnapshot(roomID);
+        Set<String> joinedSince = new HashSet<>(roomMembershipIndex.getJoinedSince(roomStateView.publishedMembership, joinedSnapshot));
+        Set<String> departedSince = new HashSet<>(roomMembershipIndex.getDepartedSince(roomStateView.publishedMembership, joinedSnapshot));
+        roomStateView.publishedMembership = joinedSnapshot;
+        if (roomStateView.complete) {
+            roomStateView.group.setQuantity(joinedSnapshot.getJoinedCount());
+        }
+        if (joinedSince.isEmpty() && departedSince.isEmpty()) {
+            return;
+        }
+        markMembers(roomStateView.group, joinedSince, departedSince);
+        markMembers(roomStateView.pendingChanges, joinedSince, departedSince);
+        LOG.debug("applyMemberDiff(): Room --> {}, joined --> {}, departed --> {}", roomID, joinedSince.size(), departedSince.size());
+    }
+
+    private static void markMembers(Group group, Set<String> joinedSince, Set<String> departedSince)
+    {
+        for (Group.GroupMemberComponent member : group.getMember()) {
+            if (!member.getEntity().hasIdentifier()) {
+                continue;
+            }
+            String memberUserID = member.getEntity().getIdentifier().getValue();
+            if (joinedSince.contains(memberUserID)) {
+                member.setInactive(false);
+            } else if (departedSince.contains(memberUserID)) {
+                member.setInactive(true);
+            }
+        }
+    }
+
+    private static void mergeGroupState(Group groupView, Group groupUpdate)
+    {
+        for (Identifier updateIdentifier : groupUpdate.getIdentifier()) {
+            if (groupView.getIdentifier().stream().noneMatch(viewIdentifier -> isSameIdentifier(viewIdentifier, updateIdentifier))) {
+                groupView.addIdentifier(updateIdentifier);
+            }
+        }
+        for (Extension updateExtension : groupUpdate.getExtension()) {
+            groupView.getExtension().removeIf(viewExtension -> updateExtension.getUrl().equals(viewExtension.getUrl()));
+            groupView.addExtension(updateExtension);
+        }
+        for (Group.GroupMemberComponent updateMember : groupUpdate.getMember()) {
+            groupView.getMember().removeIf(viewMember -> isSameMember(viewMember, updateMember));
+            groupView.addMember(updateMember);
+        }
+        if (groupUpdate.hasName()) {
+            groupView.setName(groupUpdate.getName());
+        }
+        if (groupUpdate.hasManagingEntity()) {
+            groupView.setManagingEntity(groupUpdate.getManagingEntity());
+        }
+        if (groupUpdate.hasType()) {
+            groupView.setType(groupUpdate.getType());
+        }
+        if (groupUpdate.hasActual()) {
+            groupView.setActual(groupUpdate.getActual());
+        }
+        if (groupUpdate.hasActive()) {
+            groupView.setActive(groupUpdate.getActive());
+        }
+    }
+
+    // The transformers stamp the (same) room_id Identifier with different periods, so match on system + value only
+    private static boolean isSameIdentifier(Identifier viewIdentifier, Identifier updateIdentifier)
+    {
+        return (Objects.equals(viewIdentifier.getSystem(), updateIdentifier.getSystem()) && Objects.equals(viewIdentifier.getValue(), updateIdentifier.getValue()));
+    }
+
+    // The member Identifier carries the displayname/avatar as extensions, so match on the Identifier's system + value only
+    private static boolean isSameMember(Group.GroupMemberComponent viewMember, Group.GroupMemberComponent updateMember)
+    {
+        if (viewMember.getEntity().hasIdentifier() && updateMember.getEntity().hasIdentifier()) {
+            return (isSameIdentifier(viewMember.getEntity().getIdentifier(), updateMember.getEntity().getIdentifier()));
+        }
+        return (Objects.equals(viewMember.getEntity().getReference(), updateMember.getEntity().getReference()));
+    }
+
+    private Bundle buildGroupBundle(Resource groupEntryResource, Bundle.HTTPVerb groupEntryMethod, Group groupSnapshot)
+    {
+        Bundle groupBundle = new Bundle();
+        groupBundle.setType(Bundle.BundleType.MESSAGE);
+        groupBundle.addEntry().setResource(templateFragments.newGroupBundleMessageHeader());
+        Bundle.BundleEntryComponent groupEntry = groupBundle.addEntry();
+        groupEntry.setResource(groupEntryResource);
+        groupEntry.getRequest().setMethod(groupEntryMethod).setUrl(buildConditionalGroupURL(groupSnapshot));
+        groupBundle.setTimestamp(new Date());
+        return (groupBundle);
+    }
+
+    // The first Identifier is the one built from the -room_id-
+    private static String buildConditionalGroupURL(Group groupSnapshot)
+    {
+        if (!groupSnapshot.hasIdentifier()) {
+            return ("Group");
+        }
+        Identifier roomIdentifier = groupSnapshot.getIdentifierFirstRep();
+        try {
+            return ("Group?identifier=" + URLEncoder.encode(roomIdentifier.getSystem() + "|" + roomIdentifier.getValue(), "UTF-8"));
+        } catch (UnsupportedEncodingException encodingException) {
+            // UTF-8 is always supported
+            throw (new IllegalStateException(encodingException));
+        }
+    }
+
+    private static final class RoomStateView
+    {
+
+        private final GroupPC group = new GroupPC();
+        private Group pendingChanges = new Group();
+        private MatrixRoomMembershipIndex.JoinedSnapshot publishedMembership;
+        private boolean complete;
+        private boolean retired;
+        private boolean pending;
+        private long pendingSinceMillis;
+        private long lastEventMillis;
+    }
+}
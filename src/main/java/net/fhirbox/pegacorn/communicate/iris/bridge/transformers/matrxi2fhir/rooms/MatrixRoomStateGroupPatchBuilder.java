@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.rooms;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Type;
+import org.hl7.fhir.r4.model.UriType;
+
+/**
+ * Builds the FHIRPath Patch (a FHIR::Parameters resource) that applies the
+ * state changes folded into a partial FHIR::Group view (see
+ * MatrixRoomStateAggregator) to the FHIR::Group held by the server - without
+ * touching anything the view doesn't know about.
+ * <p>
+ * Each changed element is deleted (where present) and then added, so the
+ * patch behaves as an "upsert":
+ * <ul>
+ * <li>Members are matched on their entity's Identifier system + value.</li>
+ * <li>Identifiers are matched on system + value.</li>
+ * <li>Extensions are matched on url.</li>
+ * <li>The name, managing entity, type and flags are replaced.</li>
+ * </ul>
+ *
+ * @author ACT Health
+ *
+ * @see
+ * <a href="https://www.hl7.org/fhir/fhirpatch.html">FHIR Specification, Release 4.0.1, "FHIRPath Patch"</a>
+ */
+final class MatrixRoomStateGroupPatchBuilder
+{
+
+    private MatrixRoomStateGroupPatchBuilder()
+    {
+    }
+
+    /**
+     * @param groupChanges The state changes (as a partial FHIR::Group)
+     * @return The FHIRPath Patch, with no operations if there are no changes
+     */
+    static Parameters buildGroupPatch(Group groupChanges)
+    {
+        Parameters groupPatch = new Parameters();
+        for (Identifier changedIdentifier : groupChanges.getIdentifier()) {
+            addDeleteOperation(groupPatch, "Group.identifier.where(system = " + literal(changedIdentifier.getSystem())
+                    + " and value = " + literal(changedIdentifier.getValue()) + ")");
+            addAddOperation(groupPatch, "identifier").setValue(changedIdentifier.copy());
+        }
+        for (Extension changedExtension : groupChanges.getExtension()) {
+            addDeleteOperation(groupPatch, "Group.extension.where(url = " + literal(changedExtension.getUrl()) + ")");
+            addExtensionParts(addAddOperation(groupPatch, "extension"), changedExtension);
+        }
+        for (Group.GroupMemberComponent changedMember : groupChanges.getMember()) {
+            Identifier memberIdentifier = changedMember.getEntity().getIdentifier();
+            addDeleteOperation(groupPatch, "Group.member.where(entity.identifier.system = " + literal(memberIdentifier.getSystem())
+                    + " and entity.identifier.value = " + literal(memberIdentifier.getValue()) + ")");
+            addMemberParts(addAddOperation(groupPatch, "member"), changedMember);
+        }
+        if (groupChanges.hasName()) {
+            addReplaceOperations(groupPatch, "name", new StringType(groupChanges.getName()));
+        }
+        if (groupChanges.hasManagingEntity()) {
+            addReplaceOperations(groupPatch, "managingEntity", groupChanges.getManagingEntity().copy());
+        }
+        if (groupChanges.hasType()) {
+            addReplaceOperations(groupPatch, "type", new CodeType(groupChanges.getType().toCode()));
+        }
+        if (groupChanges.hasActual()) {
+            addReplaceOperations(groupPatch, "actual", new BooleanType(groupChanges.getActual()));
+        }
+        if (groupChanges.hasActive()) {
+            addReplaceOperations(groupPatch, "active", new BooleanType(groupChanges.getActive()));
+        }
+        return (groupPatch);
+    }
+
+    private static void addReplaceOperations(Parameters groupPatch, String elementName, Type elementValue)
+    {
+        addDeleteOperation(groupPatch, "Group." + elementName);
+        addAddOperation(groupPatch, elementName).setValue(elementValue);
+    }
+
+    private static void addDeleteOperation(Parameters groupPatch, String path)
+    {
+        ParametersParameterComponent deleteOperation = groupPatch.addParameter().setName("operation");
+        deleteOperation.addPart().setName("type").setValue(new CodeType("delete"));
+        deleteOperation.addPart().setName("path").setValue(new StringType(path));
+    }
+
+    // Returns the -value- part, for the caller to fill in
+    private static ParametersParameterComponent addAddOperation(Parameters groupPatch, String elementName)
+    {
+        ParametersParameterComponent addOperation = groupPatch.addParameter().setName("operation");
+        addOperation.addPart().setName("type").setValue(new CodeType("add"));
+        addOperation.addPart().setName("path").setValue(new StringType("Group"));
+        addOperation.addPart().setName("name").setValue(new StringType(elementName));
+        return (addOperation.addPart().setName("value"));
+    }
+
+    // A member is a backbone element, so it is carried as one part per child
+    private static void addMemberParts(ParametersParameterComponent memberPart, Group.GroupMemberComponent member)
+    {
+        for (Extension memberExtension : member.getExtension()) {
+            addExtensionParts(memberPart.addPart().setName("extension"), memberExtension);
+        }
+        memberPart.addPart().setName("entity").setValue(member.getEntity().copy());
+        if (member.hasPeriod()) {
+            memberPart.addPart().setName("period").setValue(member.getPeriod().copy());
+        }
+        if (member.hasInactive()) {
+            memberPart.addPart().setName("inactive").setValue(new BooleanType(member.getInactive()));
+        }
+    }
+
+    private static void addExtensionParts(ParametersParameterComponent extensionPart, Extension extension)
+    {
+        extensionPart.addPart().setName("url").setValue(new UriType(extension.getUrl()));
+        for (Extension nestedExtension : extension.getExtension()) {
+            addExtensionParts(extensionPart.addPart().setName("extension"), nestedExtension);
+        }
+        if (extension.hasValue()) {
+            String valueType = extension.getValue().fhirType();
+            extensionPart.addPart().setName("value" + Character.toUpperCase(valueType.charAt(0)) + valueType.substring(1)).setValue(extension.getValue().copy());
+        }
+    }
+
+    private static String literal(String value)
+    {
+        String literalValue = (value == null) ? "" : value;
+        return ("'" + literalValue.replace("\\", "\\\\").replace("'", "\\'") + "'");
+    }
+}
@@ -9,15 +9,18 @@ import java.util.Date;
 import javax.inject.Inject;
 
 import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MinorTransformationException;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationOutcomeEnum;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationResult;
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixRoomID2MatrixRoomNameMap;
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixRoomID2ResourceReferenceMap;
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixAttribute2FHIRIdentifierBuilders;
-import net.fhirbox.pegacorn.deploymentproperties.CommunicateProperties;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEvent;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixFHIRTemplateFragments;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.PayloadTransformationOutcomeCounters;
 import net.fhirbox.pegacorn.referencevalues.PegacornSystemReference;
 import net.fhirbox.pegacorn.fhir.r4.model.common.GroupPC;
 import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Communication;
 import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.Group;
@@ -39,12 +42,13 @@ import org.slf4j.LoggerFactory;
 public class RoomInfoName2Group {
 
     private static final Logger LOG = LoggerFactory.getLogger(RoomInfoName2Group.class);
+    private static final String TRANSFORMATION_NAME = "RoomInfoName2Group";
 
     @Inject
     PegacornSystemReference pegacornSystemReference;
 
     @Inject
-    CommunicateProperties communicateProperties;
+    MatrixFHIRTemplateFragments templateFragments;
 
     @Inject
     MatrixAttribute2FHIRIdentifierBuilders identifierBuilders;
@@ -54,15 +58,22 @@ public class RoomInfoName2Group {
 
     @Inject
     MatrixRoomID2MatrixRoomNameMap roomNameMap;
+
+    @Inject
+    PayloadTransformationOutcomeCounters outcomeCounters;
     
-    public Bundle matrixRoomNameEvent2FHIRGroupBundle(String theMessage) throws MinorTransformationException {
+    public Bundle matrixRoomNameEvent2FHIRGroupBundle(MatrixEvent theMessage) throws MinorTransformationException {
         Bundle newBundleElement = new Bundle();
         LOG.debug(".matrixRoomNameEvent2FHIRGroupBundle(): Message In --> " + theMessage);
-        GroupPC groupElement = new GroupPC();
         MessageHeader messageHeader = new MessageHeader();
         LOG.trace(".matrixRoomNameEvent2FHIRGroupBundle(): Message to be converted --> " + theMessage);
         try {
-            groupElement = roomInfoNameEvent2Group(theMessage);
+            PayloadTransformationResult<GroupPC> groupResult = roomInfoNameEvent2Group(theMessage);
+            if (!groupResult.isSuccessful()) {
+                LOG.debug(".matrixRoomNameEvent2FHIRGroupBundle(): Exit, no GroupPER element ({}), returning null", groupResult.getReason());
+                return (null);
+            }
+            GroupPC groupElement = groupResult.getResult();
             messageHeader = matrix2MessageHeader(groupElement, theMessage);
             newBundleElement.setType(Bundle.BundleType.MESSAGE);
             Bundle.BundleEntryComponent bundleEntryForMessageHeaderElement = new Bundle.BundleEntryComponent();
@@ -81,50 +92,40 @@ public class RoomInfoName2Group {
         }
     }
     
-    public MessageHeader matrix2MessageHeader(Group theResultantGroupElement, String theMessage) {
-        MessageHeader messageHeaderElement = new MessageHeader();
-        Coding messageHeaderCode = new Coding();
-        messageHeaderCode.setSystem("http://pegacorn.fhirbox.net/pegacorn/R1/message-codes");
-        messageHeaderCode.setCode("group-bundle");
-        messageHeaderElement.setEvent(messageHeaderCode);
-        MessageHeader.MessageSourceComponent messageSource = new MessageHeader.MessageSourceComponent();
-        messageSource.setName("Pegacorn Matrix2FHIR Integration Service");
-        messageSource.setSoftware("Pegacorn::Communicate::Iris");
-        messageSource.setEndpoint(communicateProperties.getIrisEndPointForIncomingGroupBundle());
-        return (messageHeaderElement);
+    public MessageHeader matrix2MessageHeader(Group theResultantGroupElement, MatrixEvent theMessage) {
+        return (templateFragments.newGroupBundleMessageHeader());
     }
 
-    public GroupPC roomInfoNameEvent2Group(String theMessage) throws MinorTransformationException {
-        LOG.debug(".roomInfoNameEvent2Group(): Message In --> " + theMessage);
-        GroupPC newGroup;
-        LOG.trace(".roomInfoNameEvent2Group(): Message to be converted --> " + theMessage);
+    public PayloadTransformationResult<GroupPC> roomInfoNameEvent2Group(MatrixEvent theMessage) {
+        LOG.debug(".roomInfoNameEvent2Group(): Message In --> {}", theMessage);
+        PayloadTransformationResult<GroupPC> newGroupResult;
         try {
-            JSONObject roomStatusEvent = new JSONObject(theMessage);
-            newGroup = buildGroupEntityFromRoomNameEvent(roomStatusEvent);
-        } catch (Exception Ex) {
-            GroupPC emptyGroup = new GroupPC();
-            return (emptyGroup);
+            newGroupResult = buildGroupEntityFromRoomNameEvent(theMessage);
+        } catch (JSONException jsonExtractionError) {
+            newGroupResult = PayloadTransformationResult.failure(PayloadTransformationOutcomeEnum.PAYLOAD_TRANSFORM_FAILURE_INGRES_CONTENT_MALFORMED,
+                    "m.room.name event has a malformed -content- --> " + jsonExtractionError.getMessage());
         }
-        return (newGroup);
+        return (outcomeCounters.count(TRANSFORMATION_NAME, newGroupResult));
     }
 
     /**
      * This method constructs a basic FHIR::Group entity and then calls a the
      * other methods within this class to populate the relevant attributes.
      *
-     * @param pMessageObject A Matrix(R) "m.room.create" message (see
+     * @param pRoomServerEvent A (decoded) Matrix(R) "m.room.name" message (see
      * https://matrix.org/docs/spec/client_server/r0.6.0#m-room-create)
-     * @return Communication A FHIR::Communication resource (see
-     * https://www.hl7.org/fhir/group.html)
+     * @return The FHIR::Group resource (see
+     * https://www.hl7.org/fhir/group.html), or an INGRES_CONTENT_INCOMPLETE
+     * outcome if the event has no -content- or -name-
      */
-    private GroupPC buildGroupEntityFromRoomNameEvent(JSONObject pRoomServerEvent) throws MinorTransformationException{
-        LOG.debug(".buildGroupEntityFromRoomNameEvent() for Event --> " + pRoomServerEvent);
-        if( !pRoomServerEvent.has("content") ){
-            throw(new MinorTransformationException("m.room.name event has no -content-"));
+    private PayloadTransformationResult<GroupPC> buildGroupEntityFromRoomNameEvent(MatrixEvent pRoomServerEvent) {
+        LOG.debug(".buildGroupEntityFromRoomNameEvent() for Event --> {}", pRoomServerEvent);
+        if( !pRoomServerEvent.hasContent() ){
+            return (PayloadTransformationResult.failure(PayloadTransformationOutcomeEnum.PAYLOAD_TRANSFORM_FAILURE_INGRES_CONTENT_INCOMPLETE, "m.room.name event has no -content-"));
         }
-        JSONObject roomServerEventContent = pRoomServerEvent.getJSONObject("content");
+        JSONObject roomServerEventContent = pRoomServerEvent.getContent();
         if( !roomServerEventContent.has("name")){
-            throw(new MinorTransformationException("m.room.name event has no -name-"));
+            return (PayloadTransformationResult.failure(PayloadTransformationOutcomeEnum.PAYLOAD_TRANSFORM_FAILURE_INGRES_CONTENT_INCOMPLETE, "m.room.name event has no -name-"));
         }
         // Create the empty FHIR::Group entity.
         GroupPC newGroup = new GroupPC();
@@ -136,15 +137,15 @@ public class RoomInfoName2Group {
         newGroup.setType(Group.GroupType.PRACTITIONER);
         newGroup.setActual(true);
         newGroup.setName(roomServerEventContent.getString("name"));
-        if(roomNameMap.getName(pRoomServerEvent.getString("room_id")) == null){
+        if(roomNameMap.getName(pRoomServerEvent.getRoomID()) == null){
             LOG.trace("buildGroupEntityFromRoomNameEvent(): No existing name in RoomID2RoomNameReferenceMap, so adding");
-            roomNameMap.setName(pRoomServerEvent.getString("room_id"), roomServerEventContent.getString("name"));
+            roomNameMap.setName(pRoomServerEvent.getRoomID(), roomServerEventContent.getString("name"));
         } else {
             LOG.trace("buildGroupEntityFromRoomNameEvent(): An existing name in RoomID2RoomNameReferenceMap, so modifying");
-            roomNameMap.modifyName(pRoomServerEvent.getString("room_id"), roomServerEventContent.getString("name"));
+            roomNameMap.modifyName(pRoomServerEvent.getRoomID(), roomServerEventContent.getString("name"));
         }
-        LOG.debug(".buildGroupEntityFromRoomNameEvent(): Created Identifier --> " + newGroup.toString());
-        return (newGroup);
+        LOG.debug(".buildGroupEntityFromRoomNameEvent(): Created Group --> {}", newGroup);
+        return (PayloadTransformationResult.success(newGroup));
     }
 
     /**
@@ -154,25 +155,25 @@ public class RoomInfoName2Group {
      * system), one being the base RoomServer ID and the other being canonical
      * defined within Pegacorn::Ladon
      *
-     * @param pRoomEventMessage A Matrix(R) "m.room.name" message (see
+     * @param pRoomEventMessage A (decoded) Matrix(R) "m.room.name" message (see
      * https://matrix.org/docs/spec/client_server/r0.6.0#m-room-name)
      * @return Identifier A FHIR::Identifier resource (see
      * https://www.hl7.org/fhir/datatypes.html#Identifier)
      */
-    private Identifier buildGroupIdentifier(JSONObject pRoomEventMessage) {
+    private Identifier buildGroupIdentifier(MatrixEvent pRoomEventMessage) {
         if ((pRoomEventMessage == null) || pRoomEventMessage.isEmpty()) {
             LOG.debug("buildGroupIdentifier(): Room Event Message is Empty");
             return (null);
         }
-        String localRoomID = pRoomEventMessage.getString("room_id");
-        if (localRoomID.isEmpty()) {
+        String localRoomID = pRoomEventMessage.getRoomID();
+        if ((localRoomID == null) || localRoomID.isEmpty()) {
             LOG.debug("buildGroupIdentifier(): Room ID from RoomServer is Empty");
             return (null);
         }
         LOG.trace(".buildGroupIdentifier(): for Event --> " + localRoomID);
         Long localGroupAge;
-        if (pRoomEventMessage.has("origin_server_ts")) {
-            localGroupAge = pRoomEventMessage.getLong("origin_server_ts");
+        if (pRoomEventMessage.getOriginServerTimestamp() != null) {
+            localGroupAge = pRoomEventMessage.getOriginServerTimestamp();
         } else {
             localGroupAge = 0L;
         }
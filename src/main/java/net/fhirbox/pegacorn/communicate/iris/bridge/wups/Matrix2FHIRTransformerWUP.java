@@ -19,15 +19,22 @@
  */
 package net.fhirbox.pegacorn.communicate.iris.bridge.wups;
 
-import net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver.IncomingEventListValidator;
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.rooms.contentbuilders.RoomInfoName2Group;
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.rooms.MatrixRoomEvent2FHIRGroup;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.rooms.MatrixRoomMembershipIndex;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.rooms.MatrixRoomStateAggregator;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.CommunicationTransactionBundleAggregationStrategy;
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.MatrixRoomIM2FHIRCommunication;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.MatrixRoomMessageEditAggregator;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.MatrixRoomRedaction2FHIRCommunication;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixEventID2FHIRCommunicationMap;
 import javax.annotation.Resource;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.jms.ConnectionFactory;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisFHIRContextService;
 import net.fhirbox.pegacorn.communicate.iris.IrisWUPIntersectPoints;
 
 import org.apache.camel.builder.RouteBuilder;
@@ -40,6 +47,10 @@ import org.slf4j.LoggerFactory;
 
 import net.fhirbox.pegacorn.deploymentproperties.CommunicateProperties;
 import net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver.IncomingMatrixMessageSplitter;
+import net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver.IncomingMatrixPayloadDecoder;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEventDeduplicationFilter;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEventRoomShardRouter;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEventTypeDispatcher;
 import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.UoWMatrixMessageExtraction;
 
 import org.apache.camel.LoggingLevel;
@@ -55,7 +66,7 @@ public class Matrix2FHIRTransformerWUP extends RouteBuilder
     private static final String EVENT_UNHANDLED = "direct:queueEvent-unhandled";
 
     private static final String EVENT_M_ROOM_ALIASES = "direct:queueEvent-m.room.aliases";
-    private static final String EVENT_M_ROOM_CANONICAL_ALIASES = "direct:queueEvent-m.room.canonical_aliases";
+    private static final String EVENT_M_ROOM_CANONICAL_ALIAS = "direct:queueEvent-m.room.canonical_alias";
     private static final String EVENT_M_ROOM_CREATE = "direct:queueEvent-m.room.create";
     private static final String EVENT_M_ROOM_JOIN_RULES = "direct:queueEvent-m.room.join_rules";
     private static final String EVENT_M_ROOM_MEMBER = "direct:queueEvent-m.room.member";
@@ -66,6 +77,12 @@ public class Matrix2FHIRTransformerWUP extends RouteBuilder
 
     private static final String EVENT_ROOM_CREATE_TO_COMMUNICATION = "direct:queueEvent-RoomCreate2Communication";
     private static final String EVENT_ROOM_CREATE_TO_GROUP = "direct:queueEvent-RoomCreate2Group";
+    private static final String EVENT_ROOM_STATE_TO_GROUP_VIEW = "direct:queueEvent-RoomState2GroupView";
+    private static final String PUBLISH_COMMUNICATION_BUNDLE = "direct:publishCommunicationBundle";
+
+    // Exchange properties holding the (decoded) Matrix event, and the FHIR::Bundle, across the transformation/serialisation steps
+    private static final String MATRIX_EVENT_PROPERTY = "IrisMatrixEvent";
+    private static final String COMMUNICATION_BUNDLE_PROPERTY = "IrisCommunicationBundle";
 
     private static final String RECIPIENT_IS_A_PRACTIONER = "direct:recipient_is_a_practitioner";
     private static final String RECIPIENT_IS_A_PRACTROLE = "direct:recipient_is_a_practitionerrole";
@@ -81,23 +98,53 @@ public class Matrix2FHIRTransformerWUP extends RouteBuilder
     MatrixRoomIM2FHIRCommunication roomMessage2Communication;
 
     @Inject
-    IncomingEventListValidator messageValidator;
+    MatrixRoomRedaction2FHIRCommunication roomRedaction2Communication;
+
+    @Inject
+    MatrixEventID2FHIRCommunicationMap eventID2CommunicationMap;
+
+    @Inject
+    MatrixRoomMessageEditAggregator messageEditAggregator;
 
     @Inject
     IncomingMatrixMessageSplitter roomServerMessageSplitter;
 
+    @Inject
+    IncomingMatrixPayloadDecoder payloadDecoder;
+
     @Inject
     MatrixRoomEvent2FHIRGroup roomState2Group;
 
     @Inject
     RoomInfoName2Group roomName2Group;
 
+    @Inject
+    MatrixRoomStateAggregator roomStateAggregator;
+
+    @Inject
+    MatrixRoomMembershipIndex roomMembershipIndex;
+
     @Inject
     IrisWUPIntersectPoints wupHandoverPoints;
     
     @Inject
     UoWMatrixMessageExtraction messageExtractor;
 
+    @Inject
+    MatrixEventTypeDispatcher eventTypeDispatcher;
+
+    @Inject
+    MatrixEventRoomShardRouter roomShardRouter;
+
+    @Inject
+    MatrixEventDeduplicationFilter eventDeduplicationFilter;
+
+    @Inject
+    IrisProcessingProperties processingProperties;
+
+    @Inject
+    IrisFHIRContextService fhirContextService;
+
     @Resource(mappedName = "java:jboss/DefaultJMSConnectionFactory")
     protected ConnectionFactory connectionFactory;
 
@@ -113,85 +160,200 @@ public class Matrix2FHIRTransformerWUP extends RouteBuilder
 
         LOG.info(".configure(): Iris Room Event (RoomServer --> Iris) Endpoint = " + deploymentProperties.getIrisEndPointForRoomServerEvent());
 
-        from(wupHandoverPoints.getRAWMatrixRoomServerMessagePoint())
-                .routeId("MatrixEvents2FHIR-Message2EventIterator-Route")
-                .log(LoggingLevel.DEBUG, "RoomServer Message Split and Distribution")
-                .split().method(messageExtractor, "extractIndividualIngresObjects")
-                .choice()
-                .when(simple("${body} contains 'm.room.aliases'")).to(EVENT_M_ROOM_ALIASES)
-                .when(simple("${body} contains 'm.room.canonical_aliases'")).to(EVENT_M_ROOM_CANONICAL_ALIASES)
-                .when(simple("${body} contains 'm.room.create'")).to(EVENT_M_ROOM_CREATE)
-                .when(simple("${body} contains 'm.room.join_rules'")).to(EVENT_M_ROOM_JOIN_RULES)
-                .when(simple("${body} contains 'm.room.member'")).to(EVENT_M_ROOM_MEMBER)
-                .when(simple("${body} contains 'm.room.power_levels'")).to(EVENT_M_ROOM_POWER_LEVELS)
-                .when(simple("${body} contains 'm.room.redaction'")).to(EVENT_M_ROOM_REDACTION)
-                .when(simple("${body} contains 'm.room.message'")).to(EVENT_M_ROOM_MESSAGE)
-                .when(simple("${body} contains 'm.room.name'")).to(EVENT_M_ROOM_NAME)
-                .otherwise().to(EVENT_UNHANDLED)
-                .endChoice()
-                .end();
+        eventTypeDispatcher.registerEventRoute("m.room.aliases", EVENT_M_ROOM_ALIASES);
+        eventTypeDispatcher.registerEventRoute("m.room.canonical_alias", EVENT_M_ROOM_CANONICAL_ALIAS);
+        eventTypeDispatcher.registerEventRoute("m.room.create", EVENT_M_ROOM_CREATE);
+        eventTypeDispatcher.registerEventRoute("m.room.join_rules", EVENT_M_ROOM_JOIN_RULES);
+        eventTypeDispatcher.registerEventRoute("m.room.member", EVENT_M_ROOM_MEMBER);
+        eventTypeDispatcher.registerEventRoute("m.room.power_levels", EVENT_M_ROOM_POWER_LEVELS);
+        eventTypeDispatcher.registerEventRoute("m.room.redaction", EVENT_M_ROOM_REDACTION);
+        eventTypeDispatcher.registerEventRoute("m.room.message", EVENT_M_ROOM_MESSAGE);
+        eventTypeDispatcher.registerEventRoute("m.room.name", EVENT_M_ROOM_NAME);
+        eventTypeDispatcher.setUnhandledEventRoute(EVENT_UNHANDLED);
+
+        if (roomShardRouter.isShardingEnabled()) {
+            // Events are spread across single-consumer queues by room_id: rooms run in parallel, each room stays in order
+            from(wupHandoverPoints.getRAWMatrixRoomServerMessagePoint())
+                    .routeId("MatrixEvents2FHIR-Message2EventIterator-Route")
+                    .log(LoggingLevel.DEBUG, "RoomServer Message Split and (Room Sharded) Distribution")
+                    .split().method(messageExtractor, "extractIndividualIngresObjects")
+                    .setExchangePattern(ExchangePattern.InOnly)
+                    // Each queued event holds the message's decode buffer (its slices are views over it) until its shard is done
+                    .bean(payloadDecoder, "retainPayload")
+                    .recipientList(method(roomShardRouter, "resolveShardRoute"))
+                    .end();
+
+            for (int shardIndex = 0; shardIndex < roomShardRouter.getShardCount(); shardIndex++) {
+                from(roomShardRouter.getShardEndpoint(shardIndex) + "?concurrentConsumers=1")
+                        .routeId("MatrixEvents2FHIR-RoomShard-" + shardIndex + "-Route")
+                        .onCompletion()
+                        .bean(payloadDecoder, "releasePayload")
+                        .end()
+                        .bean(roomShardRouter, "eventDequeued")
+                        .recipientList(method(eventTypeDispatcher, "resolveEventRoute"))
+                        .end();
+            }
+        } else {
+            from(wupHandoverPoints.getRAWMatrixRoomServerMessagePoint())
+                    .routeId("MatrixEvents2FHIR-Message2EventIterator-Route")
+                    .log(LoggingLevel.DEBUG, "RoomServer Message Split and Distribution")
+                    .split().method(messageExtractor, "extractIndividualIngresObjects")
+                    .recipientList(method(eventTypeDispatcher, "resolveEventRoute"))
+                    .end();
+        }
 
-        from(EVENT_M_ROOM_MESSAGE)
-                .routeId("MatrixEvents2FHIR-m_room_message-Route")
-                .log(LoggingLevel.INFO, "m.room.message --> ${body}")
-                .bean(roomMessage2Communication, "convertMatrixInstantMessage2FHIRElements")
+        if (processingProperties.isCommunicationBatchingEnabled()) {
+            // Communications are collected (up to a size, or for a linger period) into a single transaction Bundle, published
+            // to its own endpoint (the raw Communication topic carries a message Bundle each), and flushed on shutdown.
+            // Each Communication is indexed once the Bundle creating it is published.
+            from(EVENT_M_ROOM_MESSAGE)
+                    .routeId("MatrixEvents2FHIR-m_room_message-Route")
+                    .log(LoggingLevel.DEBUG, "m.room.message --> ${body}")
+                    .filter(method(eventDeduplicationFilter, "isFirstDelivery"))
+                    .filter(method(messageEditAggregator, "isNewMessage"))
+                    .bean(roomMessage2Communication, "convertMatrixInstantMessage2FHIRCommunication")
+                    .aggregate(constant(true), new CommunicationTransactionBundleAggregationStrategy())
+                    .completionSize(processingProperties.getCommunicationBatchSize())
+                    .completionTimeout(processingProperties.getCommunicationBatchLingerMillis())
+                    .forceCompletionOnStop()
+                    .to(processingProperties.getCommunicationBatchEndpoint())
+                    .bean(eventID2CommunicationMap, "recordCommunicationBundle")
+                    .end()
+                    .end()
+                    .end();
+        } else if (processingProperties.isDirectJSONSerializationEnabled()) {
+            // Each (message) Bundle is published as FHIR JSON - plain m.text messages are written without a HAPI object graph
+            from(EVENT_M_ROOM_MESSAGE)
+                    .routeId("MatrixEvents2FHIR-m_room_message-Route")
+                    .log(LoggingLevel.DEBUG, "m.room.message --> ${body}")
+                    .filter(method(eventDeduplicationFilter, "isFirstDelivery"))
+                    .filter(method(messageEditAggregator, "isNewMessage"))
+                    .setProperty(MATRIX_EVENT_PROPERTY, body())
+                    .bean(roomMessage2Communication, "convertMatrixInstantMessage2FHIRBundleJSON")
+                    .to(deploymentProperties.getRawCommunicationTopic())
+                    .bean(eventID2CommunicationMap, "recordCommunicationEvent(${exchangeProperty." + MATRIX_EVENT_PROPERTY + "})")
+                    .end()
+                    .end();
+        } else {
+            from(EVENT_M_ROOM_MESSAGE)
+                    .routeId("MatrixEvents2FHIR-m_room_message-Route")
+                    .log(LoggingLevel.DEBUG, "m.room.message --> ${body}")
+                    .filter(method(eventDeduplicationFilter, "isFirstDelivery"))
+                    .filter(method(messageEditAggregator, "isNewMessage"))
+                    .setProperty(MATRIX_EVENT_PROPERTY, body())
+                    .bean(roomMessage2Communication, "convertMatrixInstantMessage2FHIRElements")
+                    .split(body())
+                    .to(deploymentProperties.getRawCommunicationTopic())
+                    .end()
+                    .bean(eventID2CommunicationMap, "recordCommunicationEvent(${exchangeProperty." + MATRIX_EVENT_PROPERTY + "})")
+                    .end()
+                    .end();
+        }
+
+        // Edits (m.replace) are held for the edit window, then the latest is published as an update of the original Communication
+        from("timer:iris-message-edits?period=" + messageEditAggregator.getCollectionPeriodMillis())
+                .routeId("MatrixEvents2FHIR-MessageEdit2Communication-Route")
+                .bean(messageEditAggregator, "collectDueCommunicationBundles")
                 .split(body())
-                .to(deploymentProperties.getRawCommunicationTopic())
+                .to(PUBLISH_COMMUNICATION_BUNDLE)
                 .end()
                 .end();
 
-        from(EVENT_M_ROOM_NAME)
-                .routeId("MatrixEvents2FHIR-m_room_name-Route")
-                .log(LoggingLevel.INFO, "m.room.name --> ${body}")
-                .bean(roomName2Group, "matrixRoomNameEvent2FHIRGroupBundle")
-                .to(deploymentProperties.getRawGroupTopic())
-                .end();
+        // Every other FHIR::Bundle for the raw Communication topic takes the same form as the m.room.message ones - FHIR JSON in direct-JSON mode.
+        // The versions of the Communications it updates are moved on once it is published.
+        if (processingProperties.isDirectJSONSerializationEnabled()) {
+            from(PUBLISH_COMMUNICATION_BUNDLE)
+                    .routeId("MatrixEvents2FHIR-CommunicationBundle2JSON-Route")
+                    .setProperty(COMMUNICATION_BUNDLE_PROPERTY, body())
+                    .bean(fhirContextService, "encodeResourceToJSON")
+                    .to(deploymentProperties.getRawCommunicationTopic())
+                    .bean(eventID2CommunicationMap, "recordPublishedUpdate(${exchangeProperty." + COMMUNICATION_BUNDLE_PROPERTY + "})")
+                    .end();
+        } else {
+            from(PUBLISH_COMMUNICATION_BUNDLE)
+                    .routeId("MatrixEvents2FHIR-CommunicationBundle-Route")
+                    .to(deploymentProperties.getRawCommunicationTopic())
+                    .bean(eventID2CommunicationMap, "recordPublishedUpdate")
+                    .end();
+        }
+
+        // Room state events are either folded into a per-room Group view (published once per debounce window), or transformed one by one
+        boolean aggregateRoomState = processingProperties.getRoomStateDebounceMillis() > 0;
+
+        if (aggregateRoomState) {
+            from(EVENT_M_ROOM_NAME)
+                    .routeId("MatrixEvents2FHIR-m_room_name-Route")
+                    .log(LoggingLevel.DEBUG, "m.room.name --> ${body}")
+                    .to(EVENT_ROOM_STATE_TO_GROUP_VIEW)
+                    .end();
+        } else {
+            from(EVENT_M_ROOM_NAME)
+                    .routeId("MatrixEvents2FHIR-m_room_name-Route")
+                    .log(LoggingLevel.DEBUG, "m.room.name --> ${body}")
+                    .bean(roomName2Group, "matrixRoomNameEvent2FHIRGroupBundle")
+                    .to(deploymentProperties.getRawGroupTopic())
+                    .end();
+        }
 
         from(EVENT_M_ROOM_ALIASES)
                 .routeId("MatrixEvents2FHIR-m_room_aliases-Route")
-                .log(LoggingLevel.INFO, "m.room.aliases --> ${body}")
-                .to("stub:nowhere")
+                .log(LoggingLevel.DEBUG, "m.room.aliases --> ${body}")
+                .to(aggregateRoomState ? EVENT_ROOM_STATE_TO_GROUP_VIEW : "stub:nowhere")
                 .end();
 
-        from(EVENT_M_ROOM_CANONICAL_ALIASES)
-                .routeId("MatrixEvents2FHIR-m_room_canonical-aliases-Route")
-                .log(LoggingLevel.INFO, "m.room.canonical_aliases --> ${body}")
-                .to("stub:nowhere")
+        from(EVENT_M_ROOM_CANONICAL_ALIAS)
+                .routeId("MatrixEvents2FHIR-m_room_canonical_alias-Route")
+                .log(LoggingLevel.DEBUG, "m.room.canonical_alias --> ${body}")
+                .to(aggregateRoomState ? EVENT_ROOM_STATE_TO_GROUP_VIEW : "stub:nowhere")
                 .end();
 
         from(EVENT_M_ROOM_CREATE)
                 .routeId("MatrixEvents2FHIR-m_room_create-Route")
-                .log(LoggingLevel.INFO, "m.room.create --> ${body}")
-                .to(EVENT_ROOM_CREATE_TO_GROUP)
+                .log(LoggingLevel.DEBUG, "m.room.create --> ${body}")
+                .to(aggregateRoomState ? EVENT_ROOM_STATE_TO_GROUP_VIEW : EVENT_ROOM_CREATE_TO_GROUP)
                 .end();
 
         from(EVENT_M_ROOM_JOIN_RULES)
                 .routeId("MatrixEvents2FHIR-m_room_join_rules-Route")
-                .log(LoggingLevel.INFO, "m.room.join_rules --> ${body}")
-                .to("stub:nowhere")
+                .log(LoggingLevel.DEBUG, "m.room.join_rules --> ${body}")
+                .to(aggregateRoomState ? EVENT_ROOM_STATE_TO_GROUP_VIEW : "stub:nowhere")
                 .end();
 
         from(EVENT_M_ROOM_MEMBER)
                 .routeId("MatrixEvents2FHIR-m_room_member-Route")
-                .log(LoggingLevel.INFO, "m.room.member --> ${body}")
-                .to("stub:nowhere")
+                .log(LoggingLevel.DEBUG, "m.room.member --> ${body}")
+                .bean(roomMembershipIndex, "applyMembershipEvent")
+                .to(aggregateRoomState ? EVENT_ROOM_STATE_TO_GROUP_VIEW : "stub:nowhere")
+                .end();
+
+        // The rosters of rooms with no recent membership changes are evicted, so only the active rooms are held
+        from("timer:iris-room-membership?period=" + roomMembershipIndex.getEvictionPeriodMillis())
+                .routeId("MatrixEvents2FHIR-RoomMembershipEviction-Route")
+                .bean(roomMembershipIndex, "evictIdleRosters")
                 .end();
 
         from(EVENT_M_ROOM_POWER_LEVELS)
                 .routeId("MatrixEvents2FHIR-m_room_power_levels-Route")
-                .log(LoggingLevel.INFO, "m.room.power_levels --> ${body}")
+                .log(LoggingLevel.DEBUG, "m.room.power_levels --> ${body}")
                 .to("stub:nowhere")
                 .end();
 
         from(EVENT_M_ROOM_REDACTION)
                 .routeId("MatrixEvents2FHIR-m_room_redaction-Route")
-                .log(LoggingLevel.INFO, "m.room.redaction --> ${body}")
-                .to("stub:nowhere")
+                .log(LoggingLevel.DEBUG, "m.room.redaction --> ${body}")
+                .filter(method(eventDeduplicationFilter, "isFirstDelivery"))
+                .setProperty(MATRIX_EVENT_PROPERTY, body())
+                .bean(roomRedaction2Communication, "convertMatrixRedaction2FHIRBundles")
+                .split(body())
+                .to(PUBLISH_COMMUNICATION_BUNDLE)
+                .end()
+                .bean(eventID2CommunicationMap, "recordRedaction(${exchangeProperty." + MATRIX_EVENT_PROPERTY + "})")
+                .end()
                 .end();
 
         from(EVENT_UNHANDLED)
                 .routeId("MatrixEvents2FHIR-unhandled_event-Route")
-                .log(LoggingLevel.INFO, "undhandled event --> ${body}")
+                .log(LoggingLevel.DEBUG, "undhandled event --> ${body}")
                 .to("stub:nowhere")
                 .end();
 
@@ -202,6 +364,21 @@ public class Matrix2FHIRTransformerWUP extends RouteBuilder
                 .bean(roomState2Group, "matrixRoomCreateEvent2FHIRGroupBundle")
                 .to(deploymentProperties.getRawGroupTopic());
 
+        if (aggregateRoomState) {
+            from(EVENT_ROOM_STATE_TO_GROUP_VIEW)
+                    .routeId("MatrixEvents2FHIR-RoomState2GroupView-Route")
+                    .bean(roomStateAggregator, "applyRoomStateEvent")
+                    .end();
+
+            from("timer:iris-room-state-groups?period=" + roomStateAggregator.getCollectionPeriodMillis())
+                    .routeId("MatrixEvents2FHIR-GroupView2Group-Route")
+                    .bean(roomStateAggregator, "collectDueGroupBundles")
+                    .split(body())
+                    .to(deploymentProperties.getRawGroupTopic())
+                    .end()
+                    .end();
+        }
+
     }
 
     protected RouteDefinition asyncDistributeTo(RouteDefinition route, String shardName)
@@ -5,9 +5,14 @@ import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.jms.ConnectionFactory;
 import net.fhirbox.pegacorn.communicate.iris.IrisWUPIntersectPoints;
-import net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver.IncomingEventListValidator;
 import net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver.IncomingMatrixEventUoWEncapsulator;
+import net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver.IncomingMatrixMessageAdmissionController;
+import net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver.IncomingMatrixPayloadDecoder;
+import net.fhirbox.pegacorn.communicate.iris.bridge.gateway.matrixeventreceiver.MatrixTransactionIDMap;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.IngressBudgetExceededException;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MatrixPayloadTooLargeException;
 import net.fhirbox.pegacorn.deploymentproperties.CommunicateProperties;
+import org.apache.camel.Exchange;
 import org.apache.camel.ExchangePattern;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.builder.RouteBuilder;
@@ -25,15 +30,21 @@ public class MatrixGatewayReceiverWUP extends RouteBuilder {
     @Inject
     CommunicateProperties deploymentProperties;
 
-    @Inject
-    IncomingEventListValidator messageValidator;
-    
     @Inject
     IrisWUPIntersectPoints wupHandoverPoints;
     
     @Inject
     IncomingMatrixEventUoWEncapsulator incomingMessageHandler;
 
+    @Inject
+    IncomingMatrixMessageAdmissionController admissionController;
+
+    @Inject
+    MatrixTransactionIDMap transactionIDMap;
+
+    @Inject
+    IncomingMatrixPayloadDecoder payloadDecoder;
+
     @Override
     public void configure() throws Exception {
 
@@ -45,15 +56,79 @@ public class MatrixGatewayReceiverWUP extends RouteBuilder {
 
         LOG.info(".configure(): Iris Room Event (RoomServer --> Iris) Endpoint = " + deploymentProperties.getIrisEndPointForRoomServerEvent());
 
+        // The RoomServer is acknowledged once the message is in the (bounded) ingress buffer, or told to back off
         from(deploymentProperties.getIrisEndPointForRoomServerEvent())
                 .routeId("MatrixEvents2FHIR-RoomServer2Iris-Route -->")
-                .transform(simple("${bodyAs(String)}"))
+                .onCompletion().onFailureOnly()
+                .bean(transactionIDMap, "releaseTransaction")
+                .end()
+                .onException(IngressBudgetExceededException.class)
+                .handled(true)
+                .bean(transactionIDMap, "releaseTransaction")
+                .removeHeader(Exchange.CONTENT_ENCODING)
+                .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(IncomingMatrixMessageAdmissionController.LIMIT_EXCEEDED_HTTP_STATUS))
+                .transform(method(admissionController, "getLimitExceededResponse"))
+                .end()
+                .onException(MatrixPayloadTooLargeException.class)
+                .handled(true)
+                .bean(transactionIDMap, "releaseTransaction")
+                .removeHeader(Exchange.CONTENT_ENCODING)
+                .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(IncomingMatrixPayloadDecoder.PAYLOAD_TOO_LARGE_HTTP_STATUS))
+                .transform(method(payloadDecoder, "getPayloadTooLargeResponse"))
+                .end()
                 .log(LoggingLevel.DEBUG, "Message received!!!")
-                .bean(messageValidator, "validateEventSetMessage")
+                .setHeader(MatrixTransactionIDMap.TRANSACTION_ID_HEADER, method(transactionIDMap, "extractTransactionID"))
+                .setHeader(MatrixTransactionIDMap.TRANSACTION_STATE_HEADER, method(transactionIDMap, "claimTransaction"))
+                .choice()
+                .when(header(MatrixTransactionIDMap.TRANSACTION_STATE_HEADER).isEqualTo(MatrixTransactionIDMap.TRANSACTION_COMPLETED))
+                .log(LoggingLevel.DEBUG, "Transaction already processed, acknowledging replay!!!")
+                .transform().simple("{}")
+                .when(header(MatrixTransactionIDMap.TRANSACTION_STATE_HEADER).isEqualTo(MatrixTransactionIDMap.TRANSACTION_IN_PROGRESS))
+                .log(LoggingLevel.DEBUG, "Transaction still being processed, asking for a retry!!!")
+                .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(IncomingMatrixMessageAdmissionController.LIMIT_EXCEEDED_HTTP_STATUS))
+                .transform(method(admissionController, "getLimitExceededResponse"))
+                .otherwise()
+                // The body is read (and decompressed) incrementally, within the per-message and in-flight byte limits
+                .transform(method(payloadDecoder, "decodeRoomServerMessage"))
+                .removeHeader(Exchange.CONTENT_ENCODING)
+                .choice()
+                .when(method(admissionController, "admitMessage"))
+                // Only the hand-off itself is guarded: the (non-blocking) SEDA producer throws IllegalStateException when the queue is full
+                .doTry()
+                .to(ExchangePattern.InOnly, admissionController.getIngressBufferEndpoint())
+                .doCatch(IllegalStateException.class)
+                .log(LoggingLevel.WARN, "Ingress Buffer full, refusing message!!!")
+                .bean(admissionController, "admissionFailed")
+                .bean(payloadDecoder, "releasePayload")
+                .bean(transactionIDMap, "releaseTransaction")
+                .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(IncomingMatrixMessageAdmissionController.LIMIT_EXCEEDED_HTTP_STATUS))
+                .transform(method(admissionController, "getLimitExceededResponse"))
+                .stop()
+                .end()
+                .transform().simple("{}")
+                .otherwise()
+                .log(LoggingLevel.DEBUG, "Ingress Buffer above watermark, refusing message!!!")
+                .bean(payloadDecoder, "releasePayload")
+                .bean(transactionIDMap, "releaseTransaction")
+                .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(IncomingMatrixMessageAdmissionController.LIMIT_EXCEEDED_HTTP_STATUS))
+                .transform(method(admissionController, "getLimitExceededResponse"))
+                .end()
+                .end();
+
+        from(admissionController.getIngressBufferEndpoint())
+                .routeId("MatrixEvents2FHIR-IngressBuffer2Encapsulation-Route")
+                .onCompletion()
+                .bean(payloadDecoder, "releasePayload")
+                // The RoomServer has already been acknowledged, so a failure here can't be retried - it is only logged and counted
+                .filter(exchangeProperty(Exchange.EXCEPTION_CAUGHT).isNotNull())
+                .bean(transactionIDMap, "transactionFailed")
+                .end()
+                .end()
+                .bean(admissionController, "messageDequeued")
                 .bean(incomingMessageHandler, "encapsulateMatrixMessage")
                 .log(LoggingLevel.DEBUG, "Message Validated, Forwarding!!!")
-                .to(ExchangePattern.InOnly, wupHandoverPoints.getRAWMatrixRoomServerMessagePoint())
-                .transform().simple("{}")
+                .to(wupHandoverPoints.getRAWMatrixRoomServerMessagePoint())
+                .bean(transactionIDMap, "markTransactionCompleted")
                 .end();
     }
 }
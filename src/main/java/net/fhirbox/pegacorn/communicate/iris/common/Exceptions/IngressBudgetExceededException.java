@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.common.Exceptions;
+
+/**
+ * Thrown when accepting the RoomServer message would exceed the in-flight byte budget.
+ *
+ * @author ACT Health
+ */
+public class IngressBudgetExceededException extends Exception {
+
+    /**
+     * Creates a new instance of <code>IngressBudgetExceededException</code> without detail
+     * message.
+     */
+    public IngressBudgetExceededException() {
+    }
+
+    /**
+     * Constructs an instance of <code>IngressBudgetExceededException</code> with the specified
+     * detail message.
+     *
+     * @param msg the detail message.
+     */
+    public IngressBudgetExceededException(String msg) {
+        super(msg);
+    }
+
+    /**
+     * Constructs an instance of <code>IngressBudgetExceededException</code> with the specified
+     * detail message and cause.
+     *
+     * @param msg the detail message.
+     * @param cause the underlying cause.
+     */
+    public IngressBudgetExceededException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+}
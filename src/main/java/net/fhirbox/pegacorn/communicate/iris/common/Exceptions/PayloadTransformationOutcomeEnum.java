@@ -11,6 +11,7 @@ package net.fhirbox.pegacorn.communicate.iris.common.Exceptions;
  */
 public enum PayloadTransformationOutcomeEnum {
     PAYLOAD_TRANSFORM_SUCCESSFUL("pegacorn.communicate.iris.transforms.outcome.success"),
+    PAYLOAD_TRANSFORM_NOT_APPLICABLE("pegacorn.communicate.iris.transforms.outcome.not_applicable"),
     PAYLOAD_TRANSFORM_FAILURE("pegacorn.communicate.iris.transforms.outcome.failure"),
     PAYLOAD_TRANSFORM_FAILURE_INGRES_CONTENT_MALFORMED("pegacorn.communicate.iris.transforms.outcome.failure.content_malformed"),
     PAYLOAD_TRANSFORM_FAILURE_INGRES_CONTENT_INCOMPLETE("pegacorn.communicate.iris.transforms.outcome.failure.ingres_content_incomplete"),
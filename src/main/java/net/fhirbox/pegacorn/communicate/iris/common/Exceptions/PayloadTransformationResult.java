@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.common.Exceptions;
+
+/**
+ * The result of a (payload) transformation step: its outcome and - if it was
+ * successful - the element it produced.
+ * <p>
+ * Ordinary conditions (e.g. content that isn't of the type the step handles,
+ * or content that is incomplete) are reported as an outcome, rather than by
+ * throwing an exception - exceptions (and the stack traces they build) are
+ * left for genuine faults.
+ *
+ * @author ACT Health
+ * @param <T> The type of element the transformation produces
+ */
+public final class PayloadTransformationResult<T> {
+
+    private final PayloadTransformationOutcomeEnum outcome;
+    private final T result;
+    private final String reason;
+
+    private PayloadTransformationResult(PayloadTransformationOutcomeEnum outcome, T result, String reason) {
+        this.outcome = outcome;
+        this.result = result;
+        this.reason = reason;
+    }
+
+    public static <T> PayloadTransformationResult<T> success(T result) {
+        return (new PayloadTransformationResult<>(PayloadTransformationOutcomeEnum.PAYLOAD_TRANSFORM_SUCCESSFUL, result, null));
+    }
+
+    public static <T> PayloadTransformationResult<T> notApplicable(String reason) {
+        return (new PayloadTransformationResult<>(PayloadTransformationOutcomeEnum.PAYLOAD_TRANSFORM_NOT_APPLICABLE, null, reason));
+    }
+
+    public static <T> PayloadTransformationResult<T> failure(PayloadTransformationOutcomeEnum outcome, String reason) {
+        if (outcome == PayloadTransformationOutcomeEnum.PAYLOAD_TRANSFORM_SUCCESSFUL) {
+            throw (new IllegalArgumentException("failure(): Outcome --> can't be " + outcome));
+        }
+        return (new PayloadTransformationResult<>(outcome, null, reason));
+    }
+
+    public PayloadTransformationOutcomeEnum getOutcome() {
+        return (this.outcome);
+    }
+
+    /**
+     * @return The element produced, or null if the transformation wasn't
+     * successful
+     */
+    public T getResult() {
+        return (this.result);
+    }
+
+    /**
+     * @return Why the transformation wasn't successful (null if it was)
+     */
+    public String getReason() {
+        return (this.reason);
+    }
+
+    public boolean isSuccessful() {
+        return (this.outcome == PayloadTransformationOutcomeEnum.PAYLOAD_TRANSFORM_SUCCESSFUL);
+    }
+
+    @Override
+    public String toString() {
+        return ("PayloadTransformationResult{outcome=" + this.outcome + ", reason=" + this.reason + ", result=" + this.result + "}");
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.utilities;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.infinispan.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bidirectional (forward key to value, value key back to forward key) index
+ * held in a single shared (transactional) Iris cache, with a per-node
+ * near-cache in front of it.
+ * <p>
+ * Both directions live in the one cache under prefixed keys ("F:" + forward
+ * key, "R:" + reverse key), and both entries hold the same encoded pair
+ * (forward key, reverse key, forward value). Setting a pair is one putAll()
+ * of the two entries - a single (auto-commit) transaction, in one cluster
+ * round-trip. The transaction is committed in one phase, so it is not atomic
+ * if an owner fails part way through the commit: one entry may be written
+ * without the other. The write is issued write-behind (see
+ * IrisCacheWriteBehind), so the writer doesn't wait on it, and repeated
+ * writes of a forward key are coalesced.
+ * <p>
+ * When a forward key is re-pointed to a new reverse key, the old reverse key
+ * (named by the previous forward entry) is released in the same putAll() -
+ * Infinispan can't remove within a putAll(), so its entry is emptied, and an
+ * empty entry never decodes as a pair.
+ * <p>
+ * A reverse lookup only answers if the forward entry of the pair it found
+ * still holds exactly the same pair - so it never returns a half-written
+ * pair, nor a pair whose forward key has since been re-pointed elsewhere
+ * (e.g. if the previous forward entry wasn't yet visible on the writing
+ * node, so its reverse key wasn't released).
+ * <p>
+ * The index caches replaced the two per-direction caches each paired map
+ * used to have (see IrisCacheMapNameSet) - the old caches are no longer
+ * read, so their mappings are not carried over on upgrade.
+ *
+ * @author ACT Health
+ */
+public class IrisBidirectionalIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IrisBidirectionalIndex.class);
+
+    private static final String FORWARD_KEY_PREFIX = "F:";
+    private static final String REVERSE_KEY_PREFIX = "R:";
+    private static final int FORMAT_VERSION = 1;
+    private static final byte[] RELEASED_ENTRY = new byte[0];
+
+    private final IrisCacheWriteBehind<String, byte[]> indexWriteBehind;
+
+    /**
+     * @param sharedCache The shared (transactional) cache holding the index
+     * @param nearCacheMaximumEntries The number of entries kept locally
+     * @param maximumInFlightWrites The number of writes that may be awaiting
+     * the shared cache at once
+     */
+    public IrisBidirectionalIndex(Cache<String, byte[]> sharedCache, long nearCacheMaximumEntries, int maximumInFlightWrites) {
+        this.indexWriteBehind = new IrisCacheWriteBehind<>(new IrisNearCache<>(sharedCache, nearCacheMaximumEntries), maximumInFlightWrites);
+    }
+
+    /**
+     * @param forwardKey The forward key
+     * @return The value for the forward key, or null if it isn't indexed
+     */
+    public byte[] getForwardValue(String forwardKey) {
+        if (forwardKey == null) {
+            return (null);
+        }
+        IndexedPair forwardPair = IndexedPair.decode(this.indexWriteBehind.get(FORWARD_KEY_PREFIX + forwardKey));
+        if (forwardPair == null) {
+            return (null);
+        }
+        return (forwardPair.forwardValue);
+    }
+
+    /**
+     * @param reverseKey The reverse key (i.e. the key of a forward value)
+     * @return The forward key the reverse key is (currently) paired with, or
+     * null if it isn't
+     */
+    public String getForwardKey(String reverseKey) {
+        if (reverseKey == null) {
+            return (null);
+        }
+        byte[] reverseEntry = this.indexWriteBehind.get(REVERSE_KEY_PREFIX + reverseKey);
+        IndexedPair reversePair = IndexedPair.decode(reverseEntry);
+        if (reversePair == null) {
+            return (null);
+        }
+        byte[] forwardEntry = this.indexWriteBehind.get(FORWARD_KEY_PREFIX + reversePair.forwardKey);
+        if (!Arrays.equals(reverseEntry, forwardEntry)) {
+            LOG.trace("getForwardKey(): Reverse Key --> {} is not (or no longer) paired with Forward Key --> {}", reverseKey, reversePair.forwardKey);
+            return (null);
+        }
+        return (reversePair.forwardKey);
+    }
+
+    /**
+     * Pairs the forward key (and its value) with the reverse key, in both
+     * directions at once - releasing the reverse key the forward key was
+     * previously paired with (if any).
+     *
+     * @param forwardKey The forward key
+     * @param reverseKey The reverse key (i.e. the key of the forward value)
+     * @param forwardValue The value for the forward key
+     */
+    public void put(String forwardKey, String reverseKey, byte[] forwardValue) {
+        byte[] pairEntry = IndexedPair.encode(forwardKey, reverseKey, forwardValue);
+        if (pairEntry == null) {
+            LOG.debug("put(): Could not encode pair, Forward Key --> {}, Reverse Key --> {}", forwardKey, reverseKey);
+            return;
+        }
+        Map<String, byte[]> pairEntries = new HashMap<>(4);
+        pairEntries.put(FORWARD_KEY_PREFIX + forwardKey, pairEntry);
+        pairEntries.put(REVERSE_KEY_PREFIX + reverseKey, pairEntry);
+        IndexedPair previousPair = IndexedPair.decode(this.indexWriteBehind.get(FORWARD_KEY_PREFIX + forwardKey));
+        if ((previousPair != null) && !previousPair.reverseKey.equals(reverseKey)) {
+            LOG.trace("put(): Forward Key --> {} re-pointed, releasing Reverse Key --> {}", forwardKey, previousPair.reverseKey);
+            pairEntries.put(REVERSE_KEY_PREFIX + previousPair.reverseKey, RELEASED_ENTRY);
+        }
+        this.indexWriteBehind.putAll(FORWARD_KEY_PREFIX + forwardKey, pairEntries);
+    }
+
+    /**
+     * @param timeoutMillis How long to wait
+     * @return true if every pair written so far has been acknowledged by the
+     * shared cache
+     */
+    public boolean flush(long timeoutMillis) {
+        return (this.indexWriteBehind.flush(timeoutMillis));
+    }
+
+    public Cache<String, byte[]> getSharedCache() {
+        return (this.indexWriteBehind.getNearCache().getSharedCache());
+    }
+
+    public long getNearCacheHitCount() {
+        return (this.indexWriteBehind.getNearCache().getHitCount());
+    }
+
+    public long getNearCacheMissCount() {
+        return (this.indexWriteBehind.getNearCache().getMissCount());
+    }
+
+    public long getNearCacheInvalidationCount() {
+        return (this.indexWriteBehind.getNearCache().getInvalidationCount());
+    }
+
+    public long getCoalescedWriteCount() {
+        return (this.indexWriteBehind.getCoalescedWriteCount());
+    }
+
+    public long getFailedWriteCount() {
+        return (this.indexWriteBehind.getFailedWriteCount());
+    }
+
+    private static final class IndexedPair {
+
+        private final String forwardKey;
+        private final String reverseKey;
+        private final byte[] forwardValue;
+
+        private IndexedPair(String forwardKey, String reverseKey, byte[] forwardValue) {
+            this.forwardKey = forwardKey;
+            this.reverseKey = reverseKey;
+            this.forwardValue = forwardValue;
+        }
+
+        private static byte[] encode(String forwardKey, String reverseKey, byte[] forwardValue) {
+            if ((forwardKey == null) || (reverseKey == null) || (forwardValue == null)) {
+                return (null);
+            }
+            ByteArrayOutputStream pairBytes = new ByteArrayOutputStream(forwardValue.length + 64);
+            try (DataOutputStream pairOutput = new DataOutputStream(pairBytes)) {
+                pairOutput.writeByte(FORMAT_VERSION);
+                pairOutput.writeUTF(forwardKey);
+                pairOutput.writeUTF(reverseKey);
+                pairOutput.writeInt(forwardValue.length);
+                pairOutput.write(forwardValue);
+            } catch (IOException ioEx) {
+                return (null);
+            }
+            return (pairBytes.toByteArray());
+        }
+
+        private static IndexedPair decode(byte[] pairEntry) {
+            if (pairEntry == null) {
+                return (null);
+            }
+            try (DataInputStream pairInput = new DataInputStream(new ByteArrayInputStream(pairEntry))) {
+                if (pairInput.readUnsignedByte() != FORMAT_VERSION) {
+                    return (null);
+                }
+                String forwardKey = pairInput.readUTF();
+                String reverseKey = pairInput.readUTF();
+                byte[] forwardValue = new byte[pairInput.readInt()];
+                pairInput.readFully(forwardValue);
+                return (new IndexedPair(forwardKey, reverseKey, forwardValue));
+            } catch (IOException | RuntimeException decodeEx) {
+                return (null);
+            }
+        }
+    }
+}
@@ -35,38 +35,45 @@ import javax.persistence.Id;
  */
 public class IrisCacheMapNameSet {
     private static final String IRIS_MATRIX_ROOM_ID_2_ROOM_NAME_MAP = "Pegacorn.Communicate.Iris.MatrixRoomID2MatrixRoomNameMap";
-    private static final String IRIS_MATRIX_ROOM_ID_2_FHIR_RESOURCE_REFERENCE_MAP = "Pegacorn.Communicate.Iris.MatrixRoomID2FHIRResourceReferenceMap";
-    private static final String IRIS_FHIR_RESOURCE_REFERENCE_2_MATRIX_ROOM_ID_MAP = "Pegacorn.Communicate.Iris.FHIRResourceReference2MatrixRoomIDMap";
-    private static final String IRIS_MATRIX_USER_ID_2_MATRIX_TOKEN_MAP = "Pegacorn.Communicate.Iris.MatrixUser2TokenMap";
-    private static final String IRIS_MATRIX_USER_TOKEN_2_MATRIX_USER_ID_MAP = "Pegacorn.Communicate.Iris.MatrixToken2UserMap";
-    private static final String IRIS_MATRIX_USER_NAME_2_FHIR_PRACTITIONER_ID_MAP = "Pegacorn.Communicate.Iris.UserName2PractitionerIdMap";
-    private static final String IRIS_FHIR_PRACTITIONER_ID_2_MATRIX_USER_NAME_MAP = "Pegacorn.Communicate.Iris.PractitionerId2UserNameMap";
+    // The (bidirectional) indexes replaced the per-direction maps (e.g. "...UserName2PractitionerIdMap" and "...PractitionerId2UserNameMap"),
+    // which are no longer read - so the mappings held in them are dropped on upgrade, and are re-created as they are next resolved
+    private static final String IRIS_MATRIX_ROOM_ID_FHIR_RESOURCE_REFERENCE_INDEX = "Pegacorn.Communicate.Iris.MatrixRoomIDFHIRResourceReferenceIndex";
+    private static final String IRIS_MATRIX_USER_ID_MATRIX_TOKEN_INDEX = "Pegacorn.Communicate.Iris.MatrixUserTokenIndex";
+    private static final String IRIS_MATRIX_USER_NAME_FHIR_PRACTITIONER_ID_INDEX = "Pegacorn.Communicate.Iris.UserNamePractitionerIdIndex";
+    private static final String IRIS_MATRIX_TRANSACTION_ID_MAP = "Pegacorn.Communicate.Iris.MatrixTransactionIDMap";
+    private static final String IRIS_MATRIX_EVENT_ID_MAP = "Pegacorn.Communicate.Iris.MatrixEventIDMap";
+    private static final String IRIS_MATRIX_EVENT_ID_2_FHIR_COMMUNICATION_MAP = "Pegacorn.Communicate.Iris.MatrixEventID2FHIRCommunicationMap";
+    private static final String IRIS_MATRIX_MESSAGE_EDIT_PENDING_MAP = "Pegacorn.Communicate.Iris.MatrixMessageEditPendingMap";
 
     public String getMatrixRoomID2MatrixRoomMapName(){
         return(IRIS_MATRIX_ROOM_ID_2_ROOM_NAME_MAP);
     }
 
-    public String getMatrixRoomID2FHIRResourceReferenceMap(){
-        return(IRIS_MATRIX_ROOM_ID_2_FHIR_RESOURCE_REFERENCE_MAP);
+    public String getMatrixRoomIDFHIRResourceReferenceIndex(){
+        return(IRIS_MATRIX_ROOM_ID_FHIR_RESOURCE_REFERENCE_INDEX);
     }
-
-    public String getFHIRResourceReference2MatrixRoomIDMap(){
-        return(IRIS_FHIR_RESOURCE_REFERENCE_2_MATRIX_ROOM_ID_MAP);
+    
+    public String getMatrixUserTokenIndex(){
+        return(IRIS_MATRIX_USER_ID_MATRIX_TOKEN_INDEX);
+    }
+    
+    public String getMatrixUserNameFHIRPractitionerIdIndex(){
+        return(IRIS_MATRIX_USER_NAME_FHIR_PRACTITIONER_ID_INDEX);
     }
     
-    public String getMatrixUser2TokenMap(){
-        return(IRIS_MATRIX_USER_ID_2_MATRIX_TOKEN_MAP);
+    public String getMatrixTransactionIDMap(){
+        return(IRIS_MATRIX_TRANSACTION_ID_MAP);
     }
     
-    public String getMatrixToken2MatrixUserMap(){
-        return(IRIS_MATRIX_USER_TOKEN_2_MATRIX_USER_ID_MAP);
+    public String getMatrixEventIDMap(){
+        return(IRIS_MATRIX_EVENT_ID_MAP);
     }
     
-    public String getMatrixUserName2FHIRPractitionerIdMap(){
-        return(IRIS_MATRIX_USER_NAME_2_FHIR_PRACTITIONER_ID_MAP);
+    public String getMatrixEventID2FHIRCommunicationMap(){
+        return(IRIS_MATRIX_EVENT_ID_2_FHIR_COMMUNICATION_MAP);
     }
     
-    public String getFHIRPractitionerId2MatrixUserNameMap(){
-        return(IRIS_FHIR_PRACTITIONER_ID_2_MATRIX_USER_NAME_MAP);
+    public String getMatrixMessageEditPendingMap(){
+        return(IRIS_MATRIX_MESSAGE_EDIT_PENDING_MAP);
     }
 }
@@ -0,0 +1,348 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.utilities;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.infinispan.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An asynchronous (write-behind) write path to a shared Iris cache, so that
+ * the thread creating a mapping doesn't wait on its (DIST_SYNC) replication.
+ * <p>
+ * Each write is issued with the cache's async API, and is visible to reads
+ * through this class (on this node) until the shared cache has acknowledged
+ * it - so a mapping can be read back as soon as it is written. The number of
+ * writes in flight is bounded: a writer only waits when the bound is reached.
+ * <p>
+ * Writes are coalesced by key: while a write for a key is in flight, later
+ * writes for the same key replace each other, and only the latest is issued
+ * (with the in-flight write's permit) once the in-flight write completes. So
+ * a burst of updates to one key costs at most two cache writes, applied in
+ * order. A superseded write is never issued, so the values it made visible
+ * (for keys its successor doesn't write) are withdrawn when it is replaced.
+ * <p>
+ * A failed write is retried (up to MAXIMUM_WRITE_ATTEMPTS in all, ahead of
+ * any write queued behind it). A write that still fails is abandoned: its
+ * values are no longer visible, it is logged and counted, and the next
+ * flush() reports it.
+ * <p>
+ * replace() is conditional on the key being present, so its value is only
+ * visible before it has been applied if the key has a pending put.
+ *
+ * @author ACT Health
+ */
+public class IrisCacheWriteBehind<K, V> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IrisCacheWriteBehind.class);
+
+    private static final Object REMOVED_VALUE = new Object();
+    private static final long IMMORTAL_LIFESPAN = -1L;
+    private static final long FLUSH_POLL_MILLIS = 10L;
+    private static final int MAXIMUM_WRITE_ATTEMPTS = 3;
+
+    private enum WriteKind {
+        PUT, REPLACE, REMOVE
+    }
+
+    private final IrisNearCache<K, V> nearCache;
+    private final Semaphore inFlightPermits;
+    private final ConcurrentHashMap<K, WriteSlot> writeSlots = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<K, Object> pendingValues = new ConcurrentHashMap<>();
+    private final LongAdder writeCount = new LongAdder();
+    private final LongAdder coalescedWriteCount = new LongAdder();
+    private final LongAdder retriedWriteCount = new LongAdder();
+    private final LongAdder failedWriteCount = new LongAdder();
+    private volatile long flushedFailedWriteCount;
+
+    /**
+     * @param nearCache The near-cache (and so shared cache) written to
+     * @param maximumInFlightWrites The number of writes that may be awaiting
+     * the shared cache at once
+     */
+    public IrisCacheWriteBehind(IrisNearCache<K, V> nearCache, int maximumInFlightWrites) {
+        if (maximumInFlightWrites < 1) {
+            throw (new IllegalArgumentException("IrisCacheWriteBehind(): maximumInFlightWrites must be positive"));
+        }
+        this.nearCache = nearCache;
+        this.inFlightPermits = new Semaphore(maximumInFlightWrites);
+    }
+
+    /**
+     * @param key The key
+     * @return The value (including any not yet acknowledged by the shared
+     * cache), or null if there isn't one
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        Object pendingValue = this.pendingValues.get(key);
+        if (pendingValue != null) {
+            return ((pendingValue == REMOVED_VALUE) ? null : (V) pendingValue);
+        }
+        return (this.nearCache.get(key));
+    }
+
+    public void put(K key, V value) {
+        put(key, value, IMMORTAL_LIFESPAN, TimeUnit.MILLISECONDS);
+    }
+
+    public void put(K key, V value, long lifespan, TimeUnit lifespanUnit) {
+        submit(key, new Write<>(WriteKind.PUT, Collections.singletonMap(key, value), lifespanUnit.toMillis(lifespan)));
+    }
+
+    /**
+     * Writes the entries together (in one putAll()), coalesced with other
+     * writes under the given key.
+     *
+     * @param coalescingKey The key the write is coalesced under
+     * @param entries The entries
+     */
+    public void putAll(K coalescingKey, Map<K, V> entries) {
+        submit(coalescingKey, new Write<>(WriteKind.PUT, entries, IMMORTAL_LIFESPAN));
+    }
+
+    public void replace(K key, V value, long lifespan, TimeUnit lifespanUnit) {
+        submit(key, new Write<>(WriteKind.REPLACE, Collections.singletonMap(key, value), lifespanUnit.toMillis(lifespan)));
+    }
+
+    public void remove(K key) {
+        submit(key, new Write<>(WriteKind.REMOVE, Collections.singletonMap(key, (V) null), IMMORTAL_LIFESPAN));
+    }
+
+    /**
+     * Waits for every write submitted so far to be acknowledged by the shared
+     * cache.
+     *
+     * @param timeoutMillis How long to wait
+     * @return true if every write was acknowledged, false if the wait timed
+     * out or any write was abandoned (after its retries) since the previous
+     * flush
+     */
+    public boolean flush(long timeoutMillis) {
+        long flushDeadline = System.currentTimeMillis() + timeoutMillis;
+        while (!this.writeSlots.isEmpty()) {
+            if (System.currentTimeMillis() >= flushDeadline) {
+                LOG.warn("flush(): Timed out, unacknowledged writes to --> {}, count --> {}", this.nearCache.getSharedCache().getName(), this.writeSlots.size());
+                return (false);
+            }
+            try {
+                Thread.sleep(FLUSH_POLL_MILLIS);
+            } catch (InterruptedException interruptedEx) {
+                Thread.currentThread().interrupt();
+                return (this.writeSlots.isEmpty() && noWritesAbandoned());
+            }
+        }
+        return (noWritesAbandoned());
+    }
+
+    // Whether any write has been abandoned since this was last asked
+    private boolean noWritesAbandoned() {
+        long failedWrites = this.failedWriteCount.sum();
+        long abandonedWrites = failedWrites - this.flushedFailedWriteCount;
+        this.flushedFailedWriteCount = failedWrites;
+        if (abandonedWrites > 0) {
+            LOG.warn("flush(): Writes to --> {} abandoned since the last flush, count --> {}", this.nearCache.getSharedCache().getName(), abandonedWrites);
+            return (false);
+        }
+        return (true);
+    }
+
+    public IrisNearCache<K, V> getNearCache() {
+        return (this.nearCache);
+    }
+
+    public long getWriteCount() {
+        return (this.writeCount.sum());
+    }
+
+    public long getCoalescedWriteCount() {
+        return (this.coalescedWriteCount.sum());
+    }
+
+    public long getRetriedWriteCount() {
+        return (this.retriedWriteCount.sum());
+    }
+
+    /**
+     * @return The number of writes abandoned, having failed every attempt
+     */
+    public long getFailedWriteCount() {
+        return (this.failedWriteCount.sum());
+    }
+
+    public int getPendingWriteCount() {
+        return (this.writeSlots.size());
+    }
+
+    private void submit(K coalescingKey, Write<K, V> write) {
+        for (Map.Entry<K, V> writeEntry : write.entries.entrySet()) {
+            if (write.kind == WriteKind.PUT) {
+                this.pendingValues.put(writeEntry.getKey(), writeEntry.getValue());
+            } else if (write.kind == WriteKind.REMOVE) {
+                this.pendingValues.put(writeEntry.getKey(), REMOVED_VALUE);
+            } else {
+                V replaceValue = writeEntry.getValue();
+                this.pendingValues.computeIfPresent(writeEntry.getKey(), (pendingKey, pendingValue) -> (pendingValue == REMOVED_VALUE) ? pendingValue : replaceValue);
+            }
+        }
+        boolean[] issueNow = new boolean[1];
+        this.writeSlots.compute(coalescingKey, (slotKey, writeSlot) -> {
+            if (writeSlot == null) {
+                issueNow[0] = true;
+                WriteSlot newSlot = new WriteSlot();
+                newSlot.inFlightWrite = write;
+                return (newSlot);
+            }
+            Write<K, V> slotWrite = write;
+            if (writeSlot.queuedWrite != null) {
+                this.coalescedWriteCount.increment();
+                // A replace after a (queued) put still creates the key, after a (queued) remove it does nothing
+                if ((writeSlot.queuedWrite.kind == WriteKind.PUT) && (write.kind == WriteKind.REPLACE)) {
+                    slotWrite = new Write<>(WriteKind.PUT, write.entries, write.lifespanMillis);
+                } else if ((writeSlot.queuedWrite.kind == WriteKind.REMOVE) && (write.kind == WriteKind.REPLACE)) {
+                    return (writeSlot);
+                }
+                withdrawSupersededValues(writeSlot, writeSlot.queuedWrite, slotWrite);
+            }
+            writeSlot.queuedWrite = slotWrite;
+            return (writeSlot);
+        });
+        if (issueNow[0]) {
+            this.inFlightPermits.acquireUninterruptibly();
+            issue(coalescingKey, write);
+        }
+    }
+
+    // The superseded (queued) write is never issued: for each key its successor doesn't write, its visible value falls back
+    // to that of the in-flight write (if it writes the key), or to the shared cache
+    private void withdrawSupersededValues(WriteSlot writeSlot, Write<K, V> supersededWrite, Write<K, V> successorWrite) {
+        for (Map.Entry<K, V> supersededEntry : supersededWrite.entries.entrySet()) {
+            K supersededKey = supersededEntry.getKey();
+            if (successorWrite.entries.containsKey(supersededKey)) {
+                continue;
+            }
+            Object supersededValue = supersededWrite.pendingValue(supersededEntry.getValue());
+            Write<K, V> inFlightWrite = writeSlot.inFlightWrite;
+            if ((inFlightWrite != null) && (inFlightWrite.kind != WriteKind.REPLACE) && inFlightWrite.entries.containsKey(supersededKey)) {
+                this.pendingValues.replace(supersededKey, supersededValue, inFlightWrite.pendingValue(inFlightWrite.entries.get(supersededKey)));
+            } else {
+                this.pendingValues.remove(supersededKey, supersededValue);
+            }
+        }
+    }
+
+    // Called holding an in-flight permit, which is either handed on to the next (coalesced) write or released
+    private void issue(K coalescingKey, Write<K, V> write) {
+        this.writeCount.increment();
+        Cache<K, V> sharedCache = this.nearCache.getSharedCache();
+        CompletableFuture<?> writeFuture;
+        try {
+            switch (write.kind) {
+                case REPLACE: {
+                    Map.Entry<K, V> replaceEntry = write.entries.entrySet().iterator().next();
+                    writeFuture = sharedCache.replaceAsync(replaceEntry.getKey(), replaceEntry.getValue(), write.lifespanMillis, TimeUnit.MILLISECONDS);
+                    break;
+                }
+                case REMOVE:
+                    writeFuture = sharedCache.removeAsync(write.entries.keySet().iterator().next());
+                    break;
+                default:
+                    writeFuture = sharedCache.putAllAsync(write.entries, write.lifespanMillis, TimeUnit.MILLISECONDS);
+                    break;
+            }
+        } catch (RuntimeException issueEx) {
+            writeFuture = new CompletableFuture<>();
+            writeFuture.completeExceptionally(issueEx);
+        }
+        writeFuture.whenComplete((writeResult, writeEx) -> completed(coalescingKey, write, writeEx));
+    }
+
+    private void completed(K coalescingKey, Write<K, V> write, Throwable writeEx) {
+        if (writeEx != null) {
+            write.attempts += 1;
+            if (write.attempts < MAXIMUM_WRITE_ATTEMPTS) {
+                // Retried (with the same permit) before anything queued behind it, so the writes still apply in order
+                this.retriedWriteCount.increment();
+                LOG.debug("completed(): Write to --> {} failed, retrying, keys --> {}, attempt --> {}, reason --> {}", this.nearCache.getSharedCache().getName(), write.entries.keySet(), write.attempts, writeEx.getMessage());
+                issue(coalescingKey, write);
+                return;
+            }
+            this.failedWriteCount.increment();
+            LOG.error("completed(): Write to --> {} abandoned after --> {} attempts, keys --> {}, reason --> {}", this.nearCache.getSharedCache().getName(), write.attempts, write.entries.keySet(), writeEx.getMessage());
+        }
+        for (Map.Entry<K, V> writeEntry : write.entries.entrySet()) {
+            this.nearCache.invalidate(writeEntry.getKey());
+            this.pendingValues.remove(writeEntry.getKey(), write.pendingValue(writeEntry.getValue()));
+        }
+        @SuppressWarnings("unchecked")
+        Write<K, V>[] nextWrite = new Write[1];
+        this.writeSlots.computeIfPresent(coalescingKey, (slotKey, writeSlot) -> {
+            if (writeSlot.queuedWrite == null) {
+                return (null);
+            }
+            nextWrite[0] = writeSlot.queuedWrite;
+            writeSlot.inFlightWrite = writeSlot.queuedWrite;
+            writeSlot.queuedWrite = null;
+            return (writeSlot);
+        });
+        if (nextWrite[0] != null) {
+            issue(coalescingKey, nextWrite[0]);
+        } else {
+            this.inFlightPermits.release();
+        }
+    }
+
+    private static final class Write<K, V> {
+
+        private final WriteKind kind;
+        private final Map<K, V> entries;
+        private final long lifespanMillis;
+        // Only changed by the (single) in-flight path of the write's slot
+        private int attempts;
+
+        private Write(WriteKind kind, Map<K, V> entries, long lifespanMillis) {
+            this.kind = kind;
+            this.entries = entries;
+            this.lifespanMillis = lifespanMillis;
+        }
+
+        // The value this write makes visible (in pendingValues) for one of its entries
+        private Object pendingValue(V entryValue) {
+            return ((this.kind == WriteKind.REMOVE) ? REMOVED_VALUE : entryValue);
+        }
+    }
+
+    private final class WriteSlot {
+
+        private Write<K, V> inFlightWrite;
+        private Write<K, V> queuedWrite;
+    }
+}
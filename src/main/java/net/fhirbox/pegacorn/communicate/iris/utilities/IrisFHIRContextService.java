@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.utilities;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Communication;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.Media;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The (one) FHIR R4 context used by Iris.
+ * <p>
+ * A FhirContext is expensive to build, and it scans the model lazily - so the
+ * first use of each resource type is slow. This service builds the context
+ * once, when the application starts, and scans the resource types Iris
+ * emits up-front, so that the first messages after a deployment aren't
+ * penalised.
+ * <p>
+ * The context is thread-safe, but its parsers are not: getJsonParser()
+ * returns a parser owned by the calling thread. Callers must not change the
+ * configuration of that parser (pretty printing etc.) - use newJsonParser()
+ * for a parser of their own instead.
+ *
+ * @author ACT Health
+ */
+@ApplicationScoped
+public class IrisFHIRContextService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IrisFHIRContextService.class);
+
+    private static final List<Class<? extends IBaseResource>> EMITTED_RESOURCE_TYPES = Collections.unmodifiableList(Arrays.asList(
+            Bundle.class, MessageHeader.class, Communication.class, Group.class, Media.class));
+
+    private FhirContext r4FHIRContext;
+    private ThreadLocal<IParser> threadJsonParser;
+
+    @PostConstruct
+    public void initialise() {
+        LOG.debug("initialise(): Entry");
+        long startTime = System.nanoTime();
+        this.r4FHIRContext = FhirContext.forR4();
+        for (Class<? extends IBaseResource> resourceType : EMITTED_RESOURCE_TYPES) {
+            this.r4FHIRContext.getResourceDefinition(resourceType);
+        }
+        this.threadJsonParser = ThreadLocal.withInitial(() -> this.r4FHIRContext.newJsonParser());
+        LOG.info("initialise(): Exit, FHIR R4 Context scanned for --> {} resource types, in --> {}ms",
+                EMITTED_RESOURCE_TYPES.size(), (System.nanoTime() - startTime) / 1000000L);
+    }
+
+    /**
+     * Forces the (ApplicationScoped) service to be created - and so the
+     * context to be built - when the application starts, rather than on the
+     * first message.
+     *
+     * @param applicationContext The (ignored) application context
+     */
+    public void onApplicationStartup(@Observes @Initialized(ApplicationScoped.class) Object applicationContext) {
+        LOG.debug("onApplicationStartup(): FHIR R4 Context --> {}", this.r4FHIRContext.getVersion().getVersion());
+    }
+
+    public FhirContext getFHIRContext() {
+        return (this.r4FHIRContext);
+    }
+
+    /**
+     * @return The calling thread's JSON parser (default configuration)
+     */
+    public IParser getJsonParser() {
+        return (this.threadJsonParser.get());
+    }
+
+    /**
+     * Serialises a resource as FHIR JSON, with the calling thread's parser.
+     *
+     * @param resource The resource (typically a FHIR::Bundle) to serialise
+     * @return The FHIR JSON (UTF-8) of the resource
+     */
+    public byte[] encodeResourceToJSON(IBaseResource resource) {
+        return (getJsonParser().encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return A new JSON parser, which the caller is free to configure
+     */
+    public IParser newJsonParser() {
+        return (this.r4FHIRContext.newJsonParser());
+    }
+}
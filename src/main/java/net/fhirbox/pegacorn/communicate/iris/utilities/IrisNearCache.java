@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.utilities;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.infinispan.Cache;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryCreated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryExpired;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded, per-node (least recently used) near-cache in front of a shared
+ * (DIST_SYNC) Iris cache - so that the hot keys are served from local memory
+ * rather than by a synchronous remote get on the nodes that don't own them.
+ * <p>
+ * Absent keys are cached too (the mapping lookups are mostly for keys that
+ * are already known, or are about to be created).
+ * <p>
+ * A clustered listener on the shared cache invalidates the local entry of a
+ * key whenever it is created, modified, removed or expires on any node; writes
+ * through this class go straight to the shared cache (and invalidate the
+ * local entry). A value read from the shared cache is only kept locally if no
+ * invalidation happened while it was being read, so a stale value can't
+ * overwrite a newer invalidation.
+ * <p>
+ * The local entries are split into lock stripes (by key hash), each its own
+ * (access ordered) LRU map, so concurrent gets of different keys don't
+ * contend on one lock. Eviction is least recently used within a stripe; a
+ * small near-cache is kept as a single stripe, so is an exact LRU.
+ *
+ * @author ACT Health
+ */
+public class IrisNearCache<K, V> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IrisNearCache.class);
+
+    private static final Object ABSENT_VALUE = new Object();
+    private static final int MAXIMUM_STRIPES = 16;
+    private static final int MINIMUM_STRIPE_ENTRIES = 64;
+
+    private final Cache<K, V> sharedCache;
+    private final LocalStripe<K>[] localStripes;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder invalidationCount = new LongAdder();
+
+    /**
+     * @param sharedCache The shared (clustered) cache
+     * @param maximumEntries The number of entries kept locally
+     */
+    public IrisNearCache(Cache<K, V> sharedCache, long maximumEntries) {
+        if (maximumEntries < 1) {
+            throw (new IllegalArgumentException("IrisNearCache(): maximumEntries must be positive"));
+        }
+        this.sharedCache = sharedCache;
+        int localCapacity = (int) Math.min(maximumEntries, Integer.MAX_VALUE);
+        // A power of two, and no more stripes than leave each a useful share of the entries
+        int stripeCount = Integer.highestOneBit(Math.max(1, Math.min(MAXIMUM_STRIPES, localCapacity / MINIMUM_STRIPE_ENTRIES)));
+        this.localStripes = newLocalStripes(stripeCount, localCapacity);
+        this.sharedCache.addListener(new SharedCacheInvalidationListener(this));
+        LOG.debug("IrisNearCache(): Near-cache for --> {}, maximum entries --> {}, stripes --> {}", sharedCache.getName(), localCapacity, stripeCount);
+    }
+
+    // The capacity is shared out exactly, so the stripes together hold at most maximumEntries
+    @SuppressWarnings("unchecked")
+    private static <K> LocalStripe<K>[] newLocalStripes(int stripeCount, int localCapacity) {
+        LocalStripe<K>[] newStripes = new LocalStripe[stripeCount];
+        for (int stripeIndex = 0; stripeIndex < stripeCount; stripeIndex++) {
+            int stripeCapacity = (localCapacity / stripeCount) + ((stripeIndex < (localCapacity % stripeCount)) ? 1 : 0);
+            newStripes[stripeIndex] = new LocalStripe<>(stripeCapacity);
+        }
+        return (newStripes);
+    }
+
+    private LocalStripe<K> stripeFor(Object key) {
+        int keyHash = key.hashCode();
+        return (this.localStripes[(keyHash ^ (keyHash >>> 16)) & (this.localStripes.length - 1)]);
+    }
+
+    /**
+     * @param key The key
+     * @return The value (from local memory if possible), or null if the shared
+     * cache has no entry for the key
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        LocalStripe<K> localStripe = stripeFor(key);
+        long readSequence;
+        synchronized (localStripe) {
+            Object localValue = localStripe.entries.get(key);
+            if (localValue != null) {
+                this.hitCount.increment();
+                return ((localValue == ABSENT_VALUE) ? null : (V) localValue);
+            }
+            readSequence = localStripe.invalidationSequence;
+        }
+        this.missCount.increment();
+        V sharedValue = this.sharedCache.get(key);
+        synchronized (localStripe) {
+            if (readSequence == localStripe.invalidationSequence) {
+                localStripe.entries.put(key, (sharedValue == null) ? ABSENT_VALUE : sharedValue);
+            }
+        }
+        return (sharedValue);
+    }
+
+    public void put(K key, V value) {
+        this.sharedCache.put(key, value);
+        invalidate(key);
+    }
+
+    /**
+     * Writes the entries to the shared cache in one call (so, on a
+     * transactional cache, in one transaction).
+     *
+     * @param entries The entries
+     */
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        this.sharedCache.putAll(entries);
+        for (K key : entries.keySet()) {
+            invalidate(key);
+        }
+    }
+
+    public void put(K key, V value, long lifespan, TimeUnit lifespanUnit) {
+        this.sharedCache.put(key, value, lifespan, lifespanUnit);
+        invalidate(key);
+    }
+
+    public void replace(K key, V value, long lifespan, TimeUnit lifespanUnit) {
+        this.sharedCache.replace(key, value, lifespan, lifespanUnit);
+        invalidate(key);
+    }
+
+    public void remove(K key) {
+        this.sharedCache.remove(key);
+        invalidate(key);
+    }
+
+    /**
+     * Drops the local entry (if any) for the key.
+     *
+     * @param key The key
+     */
+    public void invalidate(K key) {
+        LocalStripe<K> localStripe = stripeFor(key);
+        synchronized (localStripe) {
+            localStripe.entries.remove(key);
+            localStripe.invalidationSequence += 1;
+        }
+        this.invalidationCount.increment();
+    }
+
+    public Cache<K, V> getSharedCache() {
+        return (this.sharedCache);
+    }
+
+    public long getHitCount() {
+        return (this.hitCount.sum());
+    }
+
+    public long getMissCount() {
+        return (this.missCount.sum());
+    }
+
+    public long getInvalidationCount() {
+        return (this.invalidationCount.sum());
+    }
+
+    public int getEntryCount() {
+        int entryCount = 0;
+        for (LocalStripe<K> localStripe : this.localStripes) {
+            synchronized (localStripe) {
+                entryCount += localStripe.entries.size();
+            }
+        }
+        return (entryCount);
+    }
+
+    public int getStripeCount() {
+        return (this.localStripes.length);
+    }
+
+    /**
+     * One lock stripe of the local entries: an access ordered (LRU) map, and
+     * the count of invalidations of its keys (guarded by the stripe itself).
+     */
+    private static final class LocalStripe<K> {
+
+        private final Map<K, Object> entries;
+        private long invalidationSequence;
+
+        private LocalStripe(final int stripeCapacity) {
+            this.entries = new LinkedHashMap<K, Object>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Object> eldestEntry) {
+                    return (size() > stripeCapacity);
+                }
+            };
+        }
+    }
+
+    /**
+     * Invalidates this node's entry for every key changed (on any node) in the
+     * shared cache.
+     */
+    @Listener(clustered = true)
+    public static class SharedCacheInvalidationListener {
+
+        private final IrisNearCache<?, ?> nearCache;
+
+        public SharedCacheInvalidationListener(IrisNearCache<?, ?> nearCache) {
+            this.nearCache = nearCache;
+        }
+
+        @CacheEntryCreated
+        @CacheEntryModified
+        @CacheEntryRemoved
+        @CacheEntryExpired
+        public void sharedEntryChanged(CacheEntryEvent<?, ?> changeEvent) {
+            if (!changeEvent.isPre()) {
+                invalidateKey(this.nearCache, changeEvent.getKey());
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <K> void invalidateKey(IrisNearCache<K, ?> nearCache, Object key) {
+            nearCache.invalidate((K) key);
+        }
+    }
+}
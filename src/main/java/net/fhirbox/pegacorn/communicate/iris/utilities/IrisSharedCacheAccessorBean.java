@@ -24,11 +24,11 @@ public class IrisSharedCacheAccessorBean {
     @Inject
     IrisSharedCacheManager cacheManagerProvider;
 
-    public Cache<String, String> getIrisSharedCache(String cacheName) {
+    public <K, V> Cache<K, V> getIrisSharedCache(String cacheName) {
         LOG.debug("getIrisSharedCache(): entry, cacheName --> {}", cacheName);
         DefaultCacheManager tempCacheManager = cacheManagerProvider.getDefaultCacheManager();
         LOG.trace("getIrisSharedCache(): got the DefaultCacheManager, name --> {}", tempCacheManager.getName() );
-        Cache<String, String> newCache = tempCacheManager.getCache(cacheName, true);
+        Cache<K, V> newCache = tempCacheManager.getCache(cacheName, true);
         LOG.debug("getIrisSharedCache(): exit, got the new Cache, name --> {} ", newCache.getName() );
         return( newCache);
     }
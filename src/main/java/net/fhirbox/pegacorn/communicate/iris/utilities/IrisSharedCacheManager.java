@@ -5,14 +5,24 @@
  */
 package net.fhirbox.pegacorn.communicate.iris.utilities;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
 import org.infinispan.manager.DefaultCacheManager;
 import org.infinispan.configuration.global.GlobalConfiguration;
 import org.infinispan.configuration.global.GlobalConfigurationBuilder;
 import org.infinispan.configuration.cache.Configuration;
 import org.infinispan.configuration.cache.ConfigurationBuilder;
 import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.context.Flag;
+import org.infinispan.persistence.sifs.configuration.SoftIndexFileStoreConfigurationBuilder;
+import org.infinispan.transaction.LockingMode;
+import org.infinispan.transaction.TransactionMode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,12 +39,17 @@ public class IrisSharedCacheManager {
 
     private DefaultCacheManager shareCacheManager;
     private IrisCacheMapNameSet nameCacheSet = new IrisCacheMapNameSet();
+    private List<String> persistentCacheNames = new ArrayList<>();
+    private long preloadMillis;
+
+    @Inject
+    IrisProcessingProperties processingProperties;
 
     public DefaultCacheManager getDefaultCacheManager() {
         LOG.info("getCacheManager(): Entry");
         if (shareCacheManager == null) {
             LOG.info("getCacheManager(): configuring a named clustered cache configuration using Infinispan defined defaults");
-            GlobalConfigurationBuilder builder = new GlobalConfigurationBuilder().clusteredDefault();
+            GlobalConfigurationBuilder builder = withGlobalState(new GlobalConfigurationBuilder().clusteredDefault());
 
             LOG.info("getCacheManager(): completing the config with a cluster name, jgroups config");
             GlobalConfiguration globalConfig = builder.defaultCacheName("pegacorn-communicate-iris-default-cache")
@@ -47,25 +62,111 @@ public class IrisSharedCacheManager {
 
             LOG.info("getCacheManager(): creating a cache manager based on the configurations");
             shareCacheManager = new DefaultCacheManager(globalConfig, localConfig, true);
-            LOG.info("getCacheManager(): About to add specific Caches: 1st is --> {} ", nameCacheSet.getFHIRPractitionerId2MatrixUserNameMap());
-            shareCacheManager.defineConfiguration(nameCacheSet.getFHIRPractitionerId2MatrixUserNameMap(), "pegacorn-communicate-iris-default-cache", localConfig);
-            LOG.info("getCacheManager(): About to add specific Caches: 2nd is --> {} ", nameCacheSet.getFHIRResourceReference2MatrixRoomIDMap());
-            shareCacheManager.defineConfiguration(nameCacheSet.getFHIRResourceReference2MatrixRoomIDMap(), "pegacorn-communicate-iris-default-cache", localConfig);
-            LOG.info("getCacheManager(): About to add specific Caches: 3rd is --> {} ", nameCacheSet.getMatrixRoomID2FHIRResourceReferenceMap());
-            shareCacheManager.defineConfiguration(nameCacheSet.getMatrixRoomID2FHIRResourceReferenceMap(), "pegacorn-communicate-iris-default-cache", localConfig);
-            LOG.info("getCacheManager(): About to add specific Caches: 4th is --> {} ", nameCacheSet.getMatrixRoomID2MatrixRoomMapName());
-            shareCacheManager.defineConfiguration(nameCacheSet.getMatrixRoomID2MatrixRoomMapName(), "pegacorn-communicate-iris-default-cache", localConfig);
-            LOG.info("getCacheManager(): About to add specific Caches: 5th is --> {} ", nameCacheSet.getMatrixToken2MatrixUserMap());
-            shareCacheManager.defineConfiguration(nameCacheSet.getMatrixToken2MatrixUserMap(), "pegacorn-communicate-iris-default-cache", localConfig);
-            LOG.info("getCacheManager(): About to add specific Caches: 6th is --> {} ", nameCacheSet.getMatrixUser2TokenMap());
-            shareCacheManager.defineConfiguration(nameCacheSet.getMatrixUser2TokenMap(), "pegacorn-communicate-iris-default-cache", localConfig);
-            LOG.info("getCacheManager(): About to add specific Caches: 7th is --> {} ", nameCacheSet.getMatrixUserName2FHIRPractitionerIdMap());
-            shareCacheManager.defineConfiguration(nameCacheSet.getMatrixUserName2FHIRPractitionerIdMap(), "pegacorn-communicate-iris-default-cache", localConfig);
+            // The bidirectional indexes write both directions of a pair in one auto-commit transaction, committed in one phase
+            // (one round-trip, but not atomic if an owner fails mid-commit - the reverse lookups check the forward entry)
+            Configuration bidirectionalIndexConfig = new ConfigurationBuilder().read(localConfig)
+                    .transaction().transactionMode(TransactionMode.TRANSACTIONAL).lockingMode(LockingMode.OPTIMISTIC)
+                    .autoCommit(true).use1PcForAutoCommitTransactions(true).build();
+            LOG.info("getCacheManager(): About to add specific Caches: 1st is --> {} ", nameCacheSet.getMatrixUserNameFHIRPractitionerIdIndex());
+            shareCacheManager.defineConfiguration(nameCacheSet.getMatrixUserNameFHIRPractitionerIdIndex(), "pegacorn-communicate-iris-default-cache", persistent(nameCacheSet.getMatrixUserNameFHIRPractitionerIdIndex(), bidirectionalIndexConfig));
+            LOG.info("getCacheManager(): About to add specific Caches: 2nd is --> {} ", nameCacheSet.getMatrixRoomIDFHIRResourceReferenceIndex());
+            shareCacheManager.defineConfiguration(nameCacheSet.getMatrixRoomIDFHIRResourceReferenceIndex(), "pegacorn-communicate-iris-default-cache", persistent(nameCacheSet.getMatrixRoomIDFHIRResourceReferenceIndex(), bidirectionalIndexConfig));
+            LOG.info("getCacheManager(): About to add specific Caches: 3rd is --> {} ", nameCacheSet.getMatrixRoomID2MatrixRoomMapName());
+            shareCacheManager.defineConfiguration(nameCacheSet.getMatrixRoomID2MatrixRoomMapName(), "pegacorn-communicate-iris-default-cache", persistent(nameCacheSet.getMatrixRoomID2MatrixRoomMapName(), localConfig));
+            LOG.info("getCacheManager(): About to add specific Caches: 4th is --> {} ", nameCacheSet.getMatrixUserTokenIndex());
+            shareCacheManager.defineConfiguration(nameCacheSet.getMatrixUserTokenIndex(), "pegacorn-communicate-iris-default-cache", persistent(nameCacheSet.getMatrixUserTokenIndex(), bidirectionalIndexConfig));
+            LOG.info("getCacheManager(): About to add specific Caches: 5th is --> {} ", nameCacheSet.getMatrixTransactionIDMap());
+            // The transaction ID map only needs to outlive the RoomServer's retry window, so entries expire cluster-wide
+            Configuration transactionIDConfig = new ConfigurationBuilder().read(localConfig)
+                    .expiration().lifespan(processingProperties.getIngressTransactionIDLifespanMillis(), TimeUnit.MILLISECONDS).build();
+            shareCacheManager.defineConfiguration(nameCacheSet.getMatrixTransactionIDMap(), "pegacorn-communicate-iris-default-cache", transactionIDConfig);
+            LOG.info("getCacheManager(): About to add specific Caches: 6th is --> {} ", nameCacheSet.getMatrixEventIDMap());
+            // The event ID map is the exact (confirming) check behind the de-duplication Bloom filter, it too only needs a window (and is bounded by count)
+            Configuration eventIDConfig = new ConfigurationBuilder().read(localConfig)
+                    .expiration().lifespan(processingProperties.getDeduplicationEventIDLifespanMillis(), TimeUnit.MILLISECONDS)
+                    .memory().size(processingProperties.getDeduplicationEventIDMaximumEntries()).build();
+            shareCacheManager.defineConfiguration(nameCacheSet.getMatrixEventIDMap(), "pegacorn-communicate-iris-default-cache", eventIDConfig);
+            LOG.info("getCacheManager(): About to add specific Caches: 7th is --> {} ", nameCacheSet.getMatrixEventID2FHIRCommunicationMap());
+            // The Communication index must cover the whole redaction/edit window (weeks), so it is bounded by count as well as age
+            Configuration communicationIndexConfig = new ConfigurationBuilder().read(localConfig)
+                    .expiration().lifespan(processingProperties.getCommunicationIndexLifespanMillis(), TimeUnit.MILLISECONDS)
+                    .memory().size(processingProperties.getCommunicationIndexMaximumEntries()).build();
+            shareCacheManager.defineConfiguration(nameCacheSet.getMatrixEventID2FHIRCommunicationMap(), "pegacorn-communicate-iris-default-cache", persistent(nameCacheSet.getMatrixEventID2FHIRCommunicationMap(), communicationIndexConfig));
+            LOG.info("getCacheManager(): About to add specific Caches: 8th is --> {} ", nameCacheSet.getMatrixMessageEditPendingMap());
+            // The pending (not yet published) message edits, held in the cluster so they outlive the node that received them
+            shareCacheManager.defineConfiguration(nameCacheSet.getMatrixMessageEditPendingMap(), "pegacorn-communicate-iris-default-cache", persistent(nameCacheSet.getMatrixMessageEditPendingMap(), localConfig));
             LOG.info("CacheConfig count = " + shareCacheManager.getCacheConfigurationNames().size());
+            preloadPersistentCaches();
         }
         return shareCacheManager;
     }
 
+    /**
+     * Enables the cache manager's global state, if persistence is enabled -
+     * kept under the persistence directory, so a restarted node finds its
+     * previous (cluster topology and cache) state alongside its stores.
+     */
+    GlobalConfigurationBuilder withGlobalState(GlobalConfigurationBuilder globalBuilder) {
+        if (!processingProperties.isPersistenceEnabled()) {
+            return (globalBuilder);
+        }
+        String globalStateDirectory = Paths.get(processingProperties.getPersistenceDirectory(), "global-state").toString();
+        globalBuilder.globalState().enable().persistentLocation(globalStateDirectory);
+        LOG.info("withGlobalState(): Global state --> {}", globalStateDirectory);
+        return (globalBuilder);
+    }
+
+    /**
+     * Adds a (node local) soft-index file store to the cache's configuration,
+     * if persistence is enabled - so the mappings survive a full-cluster
+     * restart. The store is preloaded when the cache starts and, if
+     * passivation is enabled, only holds the entries evicted from memory.
+     */
+    Configuration persistent(String cacheName, Configuration cacheConfig) {
+        if (!processingProperties.isPersistenceEnabled()) {
+            return (cacheConfig);
+        }
+        ConfigurationBuilder persistentBuilder = new ConfigurationBuilder().read(cacheConfig);
+        boolean passivation = processingProperties.isPersistencePassivationEnabled();
+        if (passivation && (cacheConfig.memory().size() <= 0)) {
+            persistentBuilder.memory().size(processingProperties.getPersistenceMaximumInMemoryEntries());
+        }
+        String cacheDirectory = Paths.get(processingProperties.getPersistenceDirectory(), cacheName).toString();
+        persistentBuilder.persistence().passivation(passivation)
+                .addStore(SoftIndexFileStoreConfigurationBuilder.class)
+                .dataLocation(Paths.get(cacheDirectory, "data").toString())
+                .indexLocation(Paths.get(cacheDirectory, "index").toString())
+                .preload(true).shared(false).purgeOnStartup(false);
+        this.persistentCacheNames.add(cacheName);
+        LOG.info("persistent(): Cache --> {}, store --> {}, passivation --> {}", cacheName, cacheDirectory, passivation);
+        return (persistentBuilder.build());
+    }
+
+    // Starts (and so preloads) the persistent caches in parallel, and reports how long the warm start took
+    private void preloadPersistentCaches() {
+        if (this.persistentCacheNames.isEmpty()) {
+            return;
+        }
+        long preloadStart = System.currentTimeMillis();
+        shareCacheManager.startCaches(this.persistentCacheNames.toArray(new String[0]));
+        this.preloadMillis = System.currentTimeMillis() - preloadStart;
+        long preloadedEntries = 0;
+        for (String cacheName : this.persistentCacheNames) {
+            int cacheEntries = shareCacheManager.getCache(cacheName).getAdvancedCache().withFlags(Flag.CACHE_MODE_LOCAL, Flag.SKIP_CACHE_LOAD).size();
+            LOG.info("preloadPersistentCaches(): Cache --> {}, preloaded (in memory) entries --> {}", cacheName, cacheEntries);
+            preloadedEntries += cacheEntries;
+        }
+        LOG.info("preloadPersistentCaches(): Preloaded --> {} caches, entries --> {}, in --> {} ms", this.persistentCacheNames.size(), preloadedEntries, this.preloadMillis);
+    }
+
+    /**
+     * @return How long (in milliseconds) the persistent caches took to start
+     * (and preload), 0 if persistence isn't enabled
+     */
+    public long getPreloadMillis() {
+        return (this.preloadMillis);
+    }
+
     @PreDestroy
     public void cleanUp() {
         shareCacheManager.stop();
@@ -0,0 +1,185 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.utilities;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A (thread-safe) Bloom filter over String keys, made up of two generations
+ * so that its memory use is fixed: once the current generation has taken its
+ * expected number of insertions, it becomes the previous generation (and the
+ * old previous generation is discarded).
+ * <p>
+ * A key is reported as (possibly) present if either generation contains it,
+ * so a key is remembered for at least one full generation after it was last
+ * inserted. Within that window, the false positive rate is bounded by
+ * (roughly) twice the configured per-generation rate; there are no false
+ * negatives.
+ *
+ * @author ACT Health
+ */
+public class RotatingBloomFilter {
+
+    private final long bitCount;
+    private final int hashCount;
+    private final long expectedInsertions;
+    private volatile Generation currentGeneration;
+    private volatile Generation previousGeneration;
+
+    /**
+     * @param expectedInsertions The number of keys each generation holds
+     * before the filter rotates
+     * @param falsePositiveRate The target false positive rate of a (full)
+     * generation, e.g. 0.001
+     */
+    public RotatingBloomFilter(long expectedInsertions, double falsePositiveRate) {
+        if (expectedInsertions < 1) {
+            throw (new IllegalArgumentException("RotatingBloomFilter(): expectedInsertions must be positive"));
+        }
+        if ((falsePositiveRate <= 0.0) || (falsePositiveRate >= 1.0)) {
+            throw (new IllegalArgumentException("RotatingBloomFilter(): falsePositiveRate must be between 0 and 1"));
+        }
+        this.expectedInsertions = expectedInsertions;
+        // Standard sizing: m = -n.ln(p)/(ln 2)^2, k = (m/n).ln 2
+        long optimalBitCount = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bitCount = Math.max(64L, ((optimalBitCount + 63L) / 64L) * 64L);
+        this.hashCount = Math.max(1, (int) Math.round(((double) this.bitCount / expectedInsertions) * Math.log(2)));
+        this.currentGeneration = new Generation(this.bitCount);
+        this.previousGeneration = new Generation(this.bitCount);
+    }
+
+    /**
+     * Inserts the key into the current generation.
+     *
+     * @param key The key
+     * @return true if the key was (possibly) already present, false if it was
+     * definitely not
+     */
+    public boolean put(String key) {
+        long primaryHash = primaryHash(key);
+        long secondaryHash = secondaryHash(primaryHash);
+        boolean wasPresent = this.previousGeneration.mightContain(primaryHash, secondaryHash);
+        Generation generation = this.currentGeneration;
+        wasPresent = generation.put(primaryHash, secondaryHash) || wasPresent;
+        if (!wasPresent && (generation.insertions.incrementAndGet() >= this.expectedInsertions)) {
+            rotate(generation);
+        }
+        return (wasPresent);
+    }
+
+    /**
+     * @param key The key
+     * @return true if the key is (possibly) present, false if it is definitely
+     * not
+     */
+    public boolean mightContain(String key) {
+        long primaryHash = primaryHash(key);
+        long secondaryHash = secondaryHash(primaryHash);
+        return (this.currentGeneration.mightContain(primaryHash, secondaryHash)
+                || this.previousGeneration.mightContain(primaryHash, secondaryHash));
+    }
+
+    public long getBitCount() {
+        return (this.bitCount);
+    }
+
+    public int getHashCount() {
+        return (this.hashCount);
+    }
+
+    private synchronized void rotate(Generation fullGeneration) {
+        if (this.currentGeneration != fullGeneration) {
+            return;
+        }
+        this.previousGeneration = fullGeneration;
+        this.currentGeneration = new Generation(this.bitCount);
+    }
+
+    // 64-bit FNV-1a over the UTF-16 code units, finished with the MurmurHash3 fmix64 avalanche
+    private static long primaryHash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int index = 0; index < key.length(); index++) {
+            hash ^= key.charAt(index);
+            hash *= 0x100000001b3L;
+        }
+        return (fmix64(hash));
+    }
+
+    private static long secondaryHash(long primaryHash) {
+        return (fmix64(primaryHash ^ 0x9e3779b97f4a7c15L) | 1L);
+    }
+
+    private static long fmix64(long value) {
+        value ^= (value >>> 33);
+        value *= 0xff51afd7ed558ccdL;
+        value ^= (value >>> 33);
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= (value >>> 33);
+        return (value);
+    }
+
+    private final class Generation {
+
+        private final AtomicLongArray bits;
+        private final AtomicLong insertions = new AtomicLong();
+
+        private Generation(long bitCount) {
+            this.bits = new AtomicLongArray((int) (bitCount / 64L));
+        }
+
+        // Kirsch-Mitzenmacher double hashing: index(i) = h1 + i.h2 (mod m)
+        private boolean put(long primaryHash, long secondaryHash) {
+            boolean allBitsSet = true;
+            long combinedHash = primaryHash;
+            for (int hashIndex = 0; hashIndex < hashCount; hashIndex++) {
+                long bitIndex = Math.floorMod(combinedHash, bitCount);
+                int wordIndex = (int) (bitIndex >>> 6);
+                long bitMask = 1L << (bitIndex & 63L);
+                long word = this.bits.get(wordIndex);
+                while ((word & bitMask) == 0L) {
+                    allBitsSet = false;
+                    if (this.bits.compareAndSet(wordIndex, word, word | bitMask)) {
+                        break;
+                    }
+                    word = this.bits.get(wordIndex);
+                }
+                combinedHash += secondaryHash;
+            }
+            return (allBitsSet);
+        }
+
+        private boolean mightContain(long primaryHash, long secondaryHash) {
+            long combinedHash = primaryHash;
+            for (int hashIndex = 0; hashIndex < hashCount; hashIndex++) {
+                long bitIndex = Math.floorMod(combinedHash, bitCount);
+                if ((this.bits.get((int) (bitIndex >>> 6)) & (1L << (bitIndex & 63L))) == 0L) {
+                    return (false);
+                }
+                combinedHash += secondaryHash;
+            }
+            return (true);
+        }
+    }
+}
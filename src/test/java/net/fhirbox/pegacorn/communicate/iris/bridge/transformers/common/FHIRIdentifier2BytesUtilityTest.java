@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.util.Date;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Period;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author ACT Health
+ */
+public class FHIRIdentifier2BytesUtilityTest
+{
+
+    private static Identifier practitionerIdentifier()
+    {
+        Identifier testIdentifier = new Identifier();
+        testIdentifier.setUse(Identifier.IdentifierUse.SECONDARY);
+        testIdentifier.setSystem("http://pegacorn.fhirbox.net/pegacorn/R1/communicate/roomserver");
+        testIdentifier.setValue("@alice:matrix.fhirbox.net");
+        CodeableConcept identifierType = new CodeableConcept();
+        identifierType.addCoding().setSystem("http://terminology.hl7.org/CodeSystem/v2-0203").setCode("RI");
+        identifierType.setText("RoomServer User ID");
+        testIdentifier.setType(identifierType);
+        Period identifierPeriod = new Period();
+        identifierPeriod.setStart(new Date(1589184000000L));
+        testIdentifier.setPeriod(identifierPeriod);
+        return (testIdentifier);
+    }
+
+    @Test
+    public void testIdentifierRoundTrip()
+    {
+        FHIRIdentifier2BytesUtility identifierConverter = new FHIRIdentifier2BytesUtility();
+        Identifier testIdentifier = practitionerIdentifier();
+        Identifier decodedIdentifier = identifierConverter.fromBytes2Identifier(identifierConverter.fromIdentifier2Bytes(testIdentifier));
+        assertTrue(testIdentifier.equalsDeep(decodedIdentifier));
+        assertFalse(decodedIdentifier.getPeriod().hasEnd());
+    }
+
+    @Test
+    public void testIdentifierIsCompact()
+    {
+        FHIRIdentifier2BytesUtility identifierConverter = new FHIRIdentifier2BytesUtility();
+        // The strings themselves come to ~150 bytes, the encoding adds ~40 on top
+        assertTrue(identifierConverter.fromIdentifier2Bytes(practitionerIdentifier()).length < 200);
+    }
+
+    @Test
+    public void testKeyIsDeterministic()
+    {
+        FHIRIdentifier2BytesUtility identifierConverter = new FHIRIdentifier2BytesUtility();
+        assertEquals(identifierConverter.fromIdentifier2Key(practitionerIdentifier()), identifierConverter.fromIdentifier2Key(practitionerIdentifier()));
+    }
+
+    @Test
+    public void testPeriodKeepsItsTimeZoneAndPrecision()
+    {
+        FHIRIdentifier2BytesUtility identifierConverter = new FHIRIdentifier2BytesUtility();
+        Identifier testIdentifier = practitionerIdentifier();
+        testIdentifier.getPeriod().setStartElement(new DateTimeType("2020-05-11T18:00:00+10:00"));
+        testIdentifier.getPeriod().setEndElement(new DateTimeType("2020-06-30T00:00:00Z"));
+        Identifier decodedIdentifier = identifierConverter.fromBytes2Identifier(identifierConverter.fromIdentifier2Bytes(testIdentifier));
+        assertEquals("2020-05-11T18:00:00+10:00", decodedIdentifier.getPeriod().getStartElement().getValueAsString());
+        assertEquals(10 * 60 * 60 * 1000, decodedIdentifier.getPeriod().getStartElement().getTimeZone().getRawOffset());
+        assertTrue(decodedIdentifier.getPeriod().getEndElement().isTimeZoneZulu());
+        assertEquals("2020-06-30T00:00:00Z", decodedIdentifier.getPeriod().getEndElement().getValueAsString());
+        Identifier dayIdentifier = practitionerIdentifier();
+        dayIdentifier.getPeriod().setStartElement(new DateTimeType("2020-05-11"));
+        Identifier decodedDayIdentifier = identifierConverter.fromBytes2Identifier(identifierConverter.fromIdentifier2Bytes(dayIdentifier));
+        assertEquals(TemporalPrecisionEnum.DAY, decodedDayIdentifier.getPeriod().getStartElement().getPrecision());
+    }
+
+    @Test
+    public void testUseIsEncodedAsItsCode() throws Exception
+    {
+        byte[] identifierBytes = new FHIRIdentifier2BytesUtility().fromIdentifier2Bytes(practitionerIdentifier());
+        DataInputStream identifierInput = new DataInputStream(new ByteArrayInputStream(identifierBytes));
+        assertEquals(FHIRIdentifier2BytesUtility.getFormatVersion(), identifierInput.readUnsignedByte());
+        identifierInput.readUnsignedByte();
+        assertEquals("secondary", identifierInput.readUTF());
+    }
+
+    @Test
+    public void testUnknownFormatIsRejected()
+    {
+        assertNull(new FHIRIdentifier2BytesUtility().fromBytes2Identifier(new byte[]{(byte) 0x7f, 0x00}));
+        assertNull(new FHIRIdentifier2BytesUtility().fromBytes2Identifier(new byte[0]));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common;
+
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author ACT Health
+ */
+public class FHIRReference2BytesUtilityTest
+{
+
+    private static Reference groupReference()
+    {
+        Reference testReference = new Reference();
+        testReference.setType("Group");
+        testReference.setDisplay("Ward 7 Handover");
+        Identifier groupIdentifier = new Identifier();
+        groupIdentifier.setUse(Identifier.IdentifierUse.SECONDARY);
+        groupIdentifier.setSystem("http://pegacorn.fhirbox.net/pegacorn/R1/communicate/roomserver");
+        groupIdentifier.setValue("!ward7:matrix.fhirbox.net");
+        testReference.setIdentifier(groupIdentifier);
+        return (testReference);
+    }
+
+    @Test
+    public void testReferenceRoundTrip()
+    {
+        FHIRReference2BytesUtility referenceConverter = new FHIRReference2BytesUtility();
+        Reference testReference = groupReference();
+        Reference decodedReference = referenceConverter.fromBytes2Reference(referenceConverter.fromReference2Bytes(testReference));
+        assertTrue(testReference.equalsDeep(decodedReference));
+        assertFalse(decodedReference.hasReference());
+    }
+
+    @Test
+    public void testLiteralReferenceRoundTrip()
+    {
+        FHIRReference2BytesUtility referenceConverter = new FHIRReference2BytesUtility();
+        Reference testReference = new Reference("Group/ward7");
+        Reference decodedReference = referenceConverter.fromBytes2Reference(referenceConverter.fromReference2Bytes(testReference));
+        assertEquals("Group/ward7", decodedReference.getReference());
+        assertFalse(decodedReference.hasIdentifier());
+    }
+
+    @Test
+    public void testKeyIsDeterministic()
+    {
+        FHIRReference2BytesUtility referenceConverter = new FHIRReference2BytesUtility();
+        assertEquals(referenceConverter.fromReference2Key(groupReference()), referenceConverter.fromReference2Key(groupReference()));
+        assertNotEquals(referenceConverter.fromReference2Key(groupReference()), referenceConverter.fromReference2Key(new Reference("Group/ward7")));
+    }
+
+    @Test
+    public void testUnknownFormatIsRejected()
+    {
+        assertNull(new FHIRReference2BytesUtility().fromBytes2Reference(new byte[0]));
+        assertNull(new FHIRReference2BytesUtility().fromBytes2Reference(new byte[]{(byte) 0x7f, 0x00}));
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixEventID2FHIRCommunicationMap.CommunicationVersion;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEvent;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisSharedCacheAccessorBean;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Communication;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Reference;
+import org.infinispan.Cache;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author ACT Health
+ */
+public class MatrixEventID2FHIRCommunicationMapTest
+{
+
+    private static final String ORIGINAL_EVENT = "$original:matrix.fhirbox.net";
+    private static final String REPLY_EVENT = "$reply:matrix.fhirbox.net";
+    private static final String SECOND_REPLY_EVENT = "$reply2:matrix.fhirbox.net";
+
+    private Map<String, String> sharedEntries;
+    private Cache<String, String> sharedCache;
+
+    @Mock
+    IrisSharedCacheAccessorBean cacheAccessor;
+
+    @InjectMocks
+    MatrixEventID2FHIRCommunicationMap eventID2CommunicationMap;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp()
+    {
+        MockitoAnnotations.initMocks(this);
+        sharedEntries = new HashMap<>();
+        sharedCache = mock(Cache.class);
+        when(sharedCache.get(anyString())).thenAnswer(invocation -> sharedEntries.get((String) invocation.getArguments()[0]));
+        when(sharedCache.putIfAbsent(anyString(), anyString())).thenAnswer(invocation -> sharedEntries.putIfAbsent((String) invocation.getArguments()[0], (String) invocation.getArguments()[1]));
+        when(sharedCache.putIfAbsentAsync(anyString(), anyString())).thenAnswer(invocation -> CompletableFuture.completedFuture(sharedEntries.putIfAbsent((String) invocation.getArguments()[0], (String) invocation.getArguments()[1])));
+        when(sharedCache.replace(anyString(), anyString(), anyString())).thenAnswer(invocation -> sharedEntries.replace((String) invocation.getArguments()[0], (String) invocation.getArguments()[1], (String) invocation.getArguments()[2]));
+        when(sharedCache.remove(anyString())).thenAnswer(invocation -> sharedEntries.remove((String) invocation.getArguments()[0]));
+        doReturn(sharedCache).when(cacheAccessor).getIrisSharedCache(anyString());
+        eventID2CommunicationMap.start();
+    }
+
+    private static MatrixEvent roomMessage(String eventID, String inReplyToEventID) throws Exception
+    {
+        String relatesTo = (inReplyToEventID == null) ? "" : ",\"m.relates_to\":{\"m.in_reply_to\":{\"event_id\":\"" + inReplyToEventID + "\"}}";
+        return (new MatrixEvent("{\"type\":\"m.room.message\",\"room_id\":\"!room:matrix.fhirbox.net\",\"sender\":\"@doug:matrix.fhirbox.net\","
+                + "\"event_id\":\"" + eventID + "\",\"content\":{\"msgtype\":\"m.text\",\"body\":\"text\"" + relatesTo + "}}"));
+    }
+
+    private static Bundle updateBundle(CommunicationVersion currentVersion)
+    {
+        Bundle transactionBundle = new Bundle();
+        transactionBundle.setType(Bundle.BundleType.TRANSACTION);
+        transactionBundle.addEntry().getRequest().setMethod(Bundle.HTTPVerb.PATCH).setUrl(currentVersion.getCommunicationReference()).setIfMatch(currentVersion.getVersionETag());
+        return (transactionBundle);
+    }
+
+    @Test
+    public void testCommunicationIDIsAStableFHIRId()
+    {
+        String communicationID = MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(ORIGINAL_EVENT);
+        assertEquals(communicationID, MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(ORIGINAL_EVENT));
+        assertNotEquals(communicationID, MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(REPLY_EVENT));
+        assertTrue(communicationID.matches("[A-Za-z0-9\\-\\.]{1,64}"));
+    }
+
+    @Test
+    public void testMessageIsRecordedAtTheFirstVersion() throws Exception
+    {
+        eventID2CommunicationMap.recordCommunicationEvent(roomMessage(ORIGINAL_EVENT, null));
+        String communicationID = MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(ORIGINAL_EVENT);
+        assertEquals("1", sharedEntries.get(communicationID));
+        CommunicationVersion communicationVersion = eventID2CommunicationMap.getCommunicationVersion(ORIGINAL_EVENT);
+        assertEquals(communicationID, communicationVersion.getCommunicationID());
+        assertEquals("1", communicationVersion.getVersionID());
+        assertNull(communicationVersion.getInReplyToEventID());
+        assertEquals("Communication/" + communicationID, communicationVersion.getCommunicationReference());
+        assertEquals("W/\"1\"", communicationVersion.getVersionETag());
+    }
+
+    @Test
+    public void testReplyIsRecordedWithTheEventItRepliesTo() throws Exception
+    {
+        eventID2CommunicationMap.recordCommunicationEvent(roomMessage(REPLY_EVENT, ORIGINAL_EVENT));
+        assertEquals("1>" + ORIGINAL_EVENT, sharedEntries.get(MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(REPLY_EVENT)));
+        CommunicationVersion communicationVersion = eventID2CommunicationMap.getCommunicationVersion(REPLY_EVENT);
+        assertEquals("1", communicationVersion.getVersionID());
+        assertEquals(ORIGINAL_EVENT, communicationVersion.getInReplyToEventID());
+    }
+
+    @Test
+    public void testBatchedCommunicationsAreRecordedFromTheBundle()
+    {
+        Communication reply = new Communication();
+        reply.setId(MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(REPLY_EVENT));
+        Reference inResponseTo = reply.addInResponseTo();
+        inResponseTo.setType("Communication");
+        inResponseTo.setIdentifier(new Identifier().setValue(ORIGINAL_EVENT));
+        Bundle transactionBundle = new Bundle();
+        transactionBundle.setType(Bundle.BundleType.TRANSACTION);
+        transactionBundle.addEntry().setResource(reply).getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl("Communication/" + reply.getIdElement().getIdPart());
+        eventID2CommunicationMap.recordCommunicationBundle(transactionBundle);
+        CommunicationVersion communicationVersion = eventID2CommunicationMap.getCommunicationVersion(REPLY_EVENT);
+        assertEquals("1", communicationVersion.getVersionID());
+        assertEquals(ORIGINAL_EVENT, communicationVersion.getInReplyToEventID());
+    }
+
+    @Test
+    public void testPublishedUpdateAdvancesTheVersionItWasMadeAgainst() throws Exception
+    {
+        eventID2CommunicationMap.recordCommunicationEvent(roomMessage(REPLY_EVENT, ORIGINAL_EVENT));
+        CommunicationVersion firstVersion = eventID2CommunicationMap.getCommunicationVersion(REPLY_EVENT);
+        // Nothing moves until the update is published
+        assertEquals("1", eventID2CommunicationMap.getCommunicationVersion(REPLY_EVENT).getVersionID());
+        eventID2CommunicationMap.recordPublishedUpdate(updateBundle(firstVersion));
+        CommunicationVersion secondVersion = eventID2CommunicationMap.getCommunicationVersion(REPLY_EVENT);
+        assertEquals("2", secondVersion.getVersionID());
+        assertEquals(ORIGINAL_EVENT, secondVersion.getInReplyToEventID());
+        // A (stale) update made against the first version doesn't move it again
+        eventID2CommunicationMap.recordPublishedUpdate(updateBundle(firstVersion));
+        assertEquals("2", eventID2CommunicationMap.getCommunicationVersion(REPLY_EVENT).getVersionID());
+    }
+
+    @Test
+    public void testRedactedMessageIsForgotten() throws Exception
+    {
+        eventID2CommunicationMap.recordCommunicationEvent(roomMessage(ORIGINAL_EVENT, null));
+        eventID2CommunicationMap.recordRedaction(new MatrixEvent("{\"type\":\"m.room.redaction\",\"room_id\":\"!room:matrix.fhirbox.net\","
+                + "\"event_id\":\"$redaction:matrix.fhirbox.net\",\"redacts\":\"" + ORIGINAL_EVENT + "\",\"content\":{}}"));
+        assertNull(eventID2CommunicationMap.getCommunicationVersion(ORIGINAL_EVENT));
+        assertTrue(sharedEntries.isEmpty());
+    }
+
+    @Test
+    public void testEncodingRoundTrips()
+    {
+        CommunicationVersion reply = new CommunicationVersion("c1", "12", ORIGINAL_EVENT);
+        assertEquals("12>" + ORIGINAL_EVENT, MatrixEventID2FHIRCommunicationMap.encode(reply));
+        CommunicationVersion decodedReply = MatrixEventID2FHIRCommunicationMap.decode("c1", "12>" + ORIGINAL_EVENT);
+        assertEquals("c1", decodedReply.getCommunicationID());
+        assertEquals("12", decodedReply.getVersionID());
+        assertEquals(ORIGINAL_EVENT, decodedReply.getInReplyToEventID());
+        assertEquals("3", MatrixEventID2FHIRCommunicationMap.encode(new CommunicationVersion("c1", "3")));
+        assertNull(MatrixEventID2FHIRCommunicationMap.decode("c1", "3").getInReplyToEventID());
+        // An event_id holding the separator survives, as only the first one splits the value
+        assertEquals("$a>b:matrix.fhirbox.net", MatrixEventID2FHIRCommunicationMap.decode("c1", "1>$a>b:matrix.fhirbox.net").getInReplyToEventID());
+        assertEquals("13", reply.nextVersion().getVersionID());
+        assertEquals(ORIGINAL_EVENT, reply.nextVersion().getInReplyToEventID());
+        assertEquals("2", new CommunicationVersion("c1", "unknown").nextVersion().getVersionID());
+    }
+
+    @Test
+    public void testSetVersionKeepsTheInReplyTo() throws Exception
+    {
+        eventID2CommunicationMap.recordCommunicationEvent(roomMessage(REPLY_EVENT, ORIGINAL_EVENT));
+        eventID2CommunicationMap.setCommunicationVersion(REPLY_EVENT, "5");
+        assertEquals("5>" + ORIGINAL_EVENT, sharedEntries.get(MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(REPLY_EVENT)));
+        eventID2CommunicationMap.setCommunicationVersion(ORIGINAL_EVENT, "2");
+        assertEquals("2", sharedEntries.get(MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(ORIGINAL_EVENT)));
+    }
+
+    @Test
+    public void testSetVersionRetriesWhenTheEntryChanges() throws Exception
+    {
+        String communicationID = MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(REPLY_EVENT);
+        sharedEntries.put(communicationID, "1");
+        // Another node records the in-reply-to between this node's read and its write
+        when(sharedCache.replace(anyString(), anyString(), anyString())).thenAnswer(invocation -> {
+            sharedEntries.replace(communicationID, "1", "1>" + ORIGINAL_EVENT);
+            return (sharedEntries.replace((String) invocation.getArguments()[0], (String) invocation.getArguments()[1], (String) invocation.getArguments()[2]));
+        });
+        eventID2CommunicationMap.setCommunicationVersion(REPLY_EVENT, "2");
+        assertEquals("2>" + ORIGINAL_EVENT, sharedEntries.get(communicationID));
+        verify(sharedCache, times(2)).replace(anyString(), anyString(), anyString());
+        verify(sharedCache, never()).put(anyString(), anyString());
+    }
+
+    @Test
+    public void testReplyChainIsWalkedNearestFirst() throws Exception
+    {
+        eventID2CommunicationMap.recordCommunicationEvent(roomMessage(ORIGINAL_EVENT, null));
+        eventID2CommunicationMap.recordCommunicationEvent(roomMessage(REPLY_EVENT, ORIGINAL_EVENT));
+        eventID2CommunicationMap.recordCommunicationEvent(roomMessage(SECOND_REPLY_EVENT, REPLY_EVENT));
+        List<CommunicationVersion> replyChain = eventID2CommunicationMap.walkReplyChain(SECOND_REPLY_EVENT, 10);
+        assertEquals(2, replyChain.size());
+        assertEquals(MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(REPLY_EVENT), replyChain.get(0).getCommunicationID());
+        assertEquals(MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(ORIGINAL_EVENT), replyChain.get(1).getCommunicationID());
+        assertEquals(1, eventID2CommunicationMap.walkReplyChain(SECOND_REPLY_EVENT, 1).size());
+        assertTrue(eventID2CommunicationMap.walkReplyChain(ORIGINAL_EVENT, 10).isEmpty());
+    }
+
+    @Test
+    public void testReplyChainStopsAtUnknownMessagesAndLoops() throws Exception
+    {
+        // The original is unknown (e.g. older than the index lifespan)
+        eventID2CommunicationMap.recordCommunicationEvent(roomMessage(REPLY_EVENT, ORIGINAL_EVENT));
+        assertTrue(eventID2CommunicationMap.walkReplyChain(REPLY_EVENT, 10).isEmpty());
+        assertTrue(eventID2CommunicationMap.walkReplyChain("$unknown:matrix.fhirbox.net", 10).isEmpty());
+        // A (malformed) loop: each message replies to the other
+        eventID2CommunicationMap.recordCommunicationEvent(roomMessage(ORIGINAL_EVENT, SECOND_REPLY_EVENT));
+        eventID2CommunicationMap.recordCommunicationEvent(roomMessage(SECOND_REPLY_EVENT, REPLY_EVENT));
+        List<CommunicationVersion> replyChain = eventID2CommunicationMap.walkReplyChain(REPLY_EVENT, 10);
+        assertEquals(2, replyChain.size());
+        assertEquals(MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(ORIGINAL_EVENT), replyChain.get(0).getCommunicationID());
+        assertEquals(MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(SECOND_REPLY_EVENT), replyChain.get(1).getCommunicationID());
+    }
+
+    @Test
+    public void testUnknownEventIsAMiss()
+    {
+        assertNull(eventID2CommunicationMap.getCommunicationVersion(ORIGINAL_EVENT));
+        assertEquals(1L, eventID2CommunicationMap.getMissCount());
+        assertEquals(0L, eventID2CommunicationMap.getHitCount());
+    }
+}
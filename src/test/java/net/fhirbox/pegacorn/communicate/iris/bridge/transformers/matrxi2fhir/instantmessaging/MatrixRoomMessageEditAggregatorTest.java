@@ -0,0 +1,325 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixEventID2FHIRCommunicationMap;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixEventID2FHIRCommunicationMap.CommunicationVersion;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEvent;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisSharedCacheAccessorBean;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Communication;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.StringType;
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.CacheSet;
+import org.infinispan.commons.util.CloseableIterator;
+import org.infinispan.context.Flag;
+import org.infinispan.distribution.DistributionInfo;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.distribution.LocalizedCacheTopology;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.mockito.ArgumentCaptor;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author ACT Health
+ */
+public class MatrixRoomMessageEditAggregatorTest
+{
+
+    private static final String ORIGINAL_EVENT = "$original:matrix.fhirbox.net";
+    private static final String COMMUNICATION_ID = MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(ORIGINAL_EVENT);
+
+    private Map<String, String> sharedEntries;
+    private MatrixRoomIM2FHIRCommunication roomMessage2Communication;
+    private MatrixEventID2FHIRCommunicationMap eventID2CommunicationMap;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        sharedEntries = new HashMap<>();
+        roomMessage2Communication = mock(MatrixRoomIM2FHIRCommunication.class);
+        // The transformation is stood in for by a payload of the -body-, and a category of the -msgtype-
+        when(roomMessage2Communication.convertMatrixInstantMessage2FHIRCommunication(any(MatrixEvent.class))).thenAnswer(invocation -> {
+            MatrixEvent replacementMessage = (MatrixEvent) invocation.getArguments()[0];
+            Communication replacementCommunication = new Communication();
+            replacementCommunication.setSent(new Date(replacementMessage.getOriginServerTimestamp()));
+            replacementCommunication.addCategory().setText(replacementMessage.getContent().getString("msgtype"));
+            replacementCommunication.addPayload().setContent(new StringType(replacementMessage.getContent().getString("body")));
+            return (replacementCommunication);
+        });
+        eventID2CommunicationMap = mock(MatrixEventID2FHIRCommunicationMap.class);
+    }
+
+    private static <E> CloseableIterator<E> closeableIterator(Iterator<E> entryIterator)
+    {
+        return (new CloseableIterator<E>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return (entryIterator.hasNext());
+            }
+
+            @Override
+            public E next()
+            {
+                return (entryIterator.next());
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        });
+    }
+
+    // A node's view of the shared cache: every entry is held locally, and the node is (or isn't) the primary owner of them all
+    @SuppressWarnings("unchecked")
+    private Cache<String, String> newNodeCache(Boolean primaryOwner)
+    {
+        Cache<String, String> nodeCache = mock(Cache.class);
+        when(nodeCache.get(anyString())).thenAnswer(invocation -> sharedEntries.get((String) invocation.getArguments()[0]));
+        when(nodeCache.putIfAbsent(anyString(), anyString())).thenAnswer(invocation -> sharedEntries.putIfAbsent((String) invocation.getArguments()[0], (String) invocation.getArguments()[1]));
+        when(nodeCache.replace(anyString(), anyString(), anyString())).thenAnswer(invocation -> sharedEntries.replace((String) invocation.getArguments()[0], (String) invocation.getArguments()[1], (String) invocation.getArguments()[2]));
+        when(nodeCache.remove(anyString(), anyString())).thenAnswer(invocation -> sharedEntries.remove((String) invocation.getArguments()[0], (String) invocation.getArguments()[1]));
+        when(nodeCache.size()).thenAnswer(invocation -> sharedEntries.size());
+        AdvancedCache<String, String> localCache = mock(AdvancedCache.class);
+        CacheSet<Map.Entry<String, String>> localEntrySet = mock(CacheSet.class);
+        when(localEntrySet.iterator()).thenAnswer(invocation -> closeableIterator(new ArrayList<>(sharedEntries.entrySet()).iterator()));
+        when(localCache.entrySet()).thenReturn(localEntrySet);
+        if (primaryOwner != null) {
+            DistributionInfo keyDistribution = mock(DistributionInfo.class);
+            when(keyDistribution.isPrimary()).thenReturn(primaryOwner);
+            LocalizedCacheTopology cacheTopology = mock(LocalizedCacheTopology.class);
+            when(cacheTopology.getDistribution(any())).thenReturn(keyDistribution);
+            DistributionManager distributionManager = mock(DistributionManager.class);
+            when(distributionManager.getCacheTopology()).thenReturn(cacheTopology);
+            when(localCache.getDistributionManager()).thenReturn(distributionManager);
+        }
+        AdvancedCache<String, String> advancedCache = mock(AdvancedCache.class);
+        when(advancedCache.withFlags(Flag.CACHE_MODE_LOCAL)).thenReturn(localCache);
+        when(nodeCache.getAdvancedCache()).thenReturn(advancedCache);
+        return (nodeCache);
+    }
+
+    // One aggregator per (simulated) node, all sharing the one cache (a null primaryOwner is a local, non-clustered, cache)
+    private MatrixRoomMessageEditAggregator newAggregator(long editWindowMillis, Boolean primaryOwner)
+    {
+        Cache<String, String> nodeCache = newNodeCache(primaryOwner);
+        IrisProcessingProperties processingProperties = mock(IrisProcessingProperties.class);
+        when(processingProperties.getMessageEditWindowMillis()).thenReturn(editWindowMillis);
+        IrisSharedCacheAccessorBean cacheAccessor = mock(IrisSharedCacheAccessorBean.class);
+        doReturn(nodeCache).when(cacheAccessor).getIrisSharedCache(anyString());
+        MatrixRoomMessageEditAggregator messageEditAggregator = new MatrixRoomMessageEditAggregator();
+        messageEditAggregator.roomMessage2Communication = roomMessage2Communication;
+        messageEditAggregator.eventID2CommunicationMap = eventID2CommunicationMap;
+        messageEditAggregator.processingProperties = processingProperties;
+        messageEditAggregator.theIrisCacheSetManager = cacheAccessor;
+        messageEditAggregator.initialise();
+        return (messageEditAggregator);
+    }
+
+    private MatrixRoomMessageEditAggregator newAggregator(long editWindowMillis)
+    {
+        return (newAggregator(editWindowMillis, null));
+    }
+
+    private static MatrixEvent messageEdit(String eventID, long originServerTimestamp, String newBody) throws Exception
+    {
+        return (new MatrixEvent("{\"type\":\"m.room.message\",\"room_id\":\"!room:matrix.fhirbox.net\",\"sender\":\"@doug:matrix.fhirbox.net\","
+                + "\"event_id\":\"" + eventID + "\",\"origin_server_ts\":" + originServerTimestamp + ",\"content\":{\"msgtype\":\"m.text\",\"body\":\"* " + newBody + "\","
+                + "\"m.new_content\":{\"msgtype\":\"m.notice\",\"body\":\"" + newBody + "\"},"
+                + "\"m.relates_to\":{\"rel_type\":\"m.replace\",\"event_id\":\"" + ORIGINAL_EVENT + "\"}}}"));
+    }
+
+    private static String describeOperation(ParametersParameterComponent operation)
+    {
+        String operationType = null;
+        String operationTarget = null;
+        for (ParametersParameterComponent operationPart : operation.getPart()) {
+            if ("type".equals(operationPart.getName())) {
+                operationType = operationPart.getValue().primitiveValue();
+            } else if ("path".equals(operationPart.getName()) && (operationTarget == null)) {
+                operationTarget = operationPart.getValue().primitiveValue();
+            } else if ("name".equals(operationPart.getName())) {
+                operationTarget = operationPart.getValue().primitiveValue();
+            }
+        }
+        return (operationType + " " + operationTarget);
+    }
+
+    private static ParametersParameterComponent getValuePart(ParametersParameterComponent operation)
+    {
+        for (ParametersParameterComponent operationPart : operation.getPart()) {
+            if ("value".equals(operationPart.getName())) {
+                return (operationPart);
+            }
+        }
+        return (null);
+    }
+
+    @Test
+    public void testNewMessageIsPassedOn() throws Exception
+    {
+        MatrixRoomMessageEditAggregator messageEditAggregator = newAggregator(0L);
+        MatrixEvent roomMessage = new MatrixEvent("{\"type\":\"m.room.message\",\"room_id\":\"!room:matrix.fhirbox.net\",\"sender\":\"@doug:matrix.fhirbox.net\","
+                + "\"event_id\":\"" + ORIGINAL_EVENT + "\",\"content\":{\"msgtype\":\"m.text\",\"body\":\"text\"}}");
+        assertTrue(messageEditAggregator.isNewMessage(roomMessage));
+        assertTrue(sharedEntries.isEmpty());
+    }
+
+    @Test
+    public void testEditsAreFoldedIntoThePatchOfTheLatest() throws Exception
+    {
+        when(eventID2CommunicationMap.getCommunicationVersion(ORIGINAL_EVENT)).thenReturn(new CommunicationVersion(COMMUNICATION_ID, "2"));
+        MatrixRoomMessageEditAggregator messageEditAggregator = newAggregator(0L);
+        assertFalse(messageEditAggregator.isNewMessage(messageEdit("$edit1:matrix.fhirbox.net", 2000L, "first")));
+        assertFalse(messageEditAggregator.isNewMessage(messageEdit("$edit2:matrix.fhirbox.net", 3000L, "second")));
+        // Arriving late, an older edit doesn't replace a newer one
+        assertFalse(messageEditAggregator.isNewMessage(messageEdit("$edit0:matrix.fhirbox.net", 1500L, "stale")));
+        assertEquals(1, messageEditAggregator.getPendingEditCount());
+        assertEquals(3, messageEditAggregator.getFoldedEditCount());
+
+        List<Bundle> updateBundles = messageEditAggregator.collectDueCommunicationBundles();
+        assertEquals(1, updateBundles.size());
+        assertEquals(0, messageEditAggregator.getPendingEditCount());
+        assertEquals(1, messageEditAggregator.getPublishedUpdateCount());
+        BundleEntryComponent updateEntry = updateBundles.get(0).getEntryFirstRep();
+        assertEquals(Bundle.BundleType.TRANSACTION, updateBundles.get(0).getType());
+        assertEquals(Bundle.HTTPVerb.PATCH, updateEntry.getRequest().getMethod());
+        assertEquals("Communication/" + COMMUNICATION_ID, updateEntry.getRequest().getUrl());
+        assertEquals("W/\"2\"", updateEntry.getRequest().getIfMatch());
+
+        ArgumentCaptor<MatrixEvent> replacementCaptor = ArgumentCaptor.forClass(MatrixEvent.class);
+        verify(roomMessage2Communication).convertMatrixInstantMessage2FHIRCommunication(replacementCaptor.capture());
+        assertEquals(ORIGINAL_EVENT, replacementCaptor.getValue().getEventID());
+        assertEquals("second", replacementCaptor.getValue().getContent().getString("body"));
+        assertFalse(replacementCaptor.getValue().getContent().has("m.relates_to"));
+        // The index is only moved on once the update is published
+        verify(eventID2CommunicationMap, never()).setCommunicationVersion(anyString(), anyString());
+    }
+
+    @Test
+    public void testEditPatchOnlyReplacesThePayloadAndCategories() throws Exception
+    {
+        when(eventID2CommunicationMap.getCommunicationVersion(ORIGINAL_EVENT)).thenReturn(new CommunicationVersion(COMMUNICATION_ID, "1"));
+        MatrixRoomMessageEditAggregator messageEditAggregator = newAggregator(0L);
+        messageEditAggregator.isNewMessage(messageEdit("$edit1:matrix.fhirbox.net", 2000L, "corrected"));
+
+        Parameters editPatch = (Parameters) messageEditAggregator.collectDueCommunicationBundles().get(0).getEntryFirstRep().getResource();
+        List<String> operations = new ArrayList<>();
+        for (ParametersParameterComponent operation : editPatch.getParameter()) {
+            operations.add(describeOperation(operation));
+        }
+        assertEquals(4, operations.size());
+        assertEquals("delete Communication.category", operations.get(0));
+        assertEquals("add category", operations.get(1));
+        assertEquals("delete Communication.payload", operations.get(2));
+        assertEquals("add payload", operations.get(3));
+        // The sent time (and sender, inResponseTo) of the original message are not touched
+        for (String operation : operations) {
+            assertFalse(operation.contains("sent"));
+            assertFalse(operation.contains("sender"));
+            assertFalse(operation.contains("inResponseTo"));
+        }
+        assertEquals("m.notice", ((CodeableConcept) getValuePart(editPatch.getParameter().get(1)).getValue()).getText());
+        ParametersParameterComponent payloadValue = getValuePart(editPatch.getParameter().get(3));
+        assertEquals("content", payloadValue.getPartFirstRep().getName());
+        assertEquals("corrected", payloadValue.getPartFirstRep().getValue().primitiveValue());
+    }
+
+    @Test
+    public void testEditsAreHeldForTheEditWindow() throws Exception
+    {
+        MatrixRoomMessageEditAggregator messageEditAggregator = newAggregator(60000L);
+        messageEditAggregator.isNewMessage(messageEdit("$edit1:matrix.fhirbox.net", 2000L, "first"));
+        assertTrue(messageEditAggregator.collectDueCommunicationBundles().isEmpty());
+        assertEquals(1, messageEditAggregator.getPendingEditCount());
+        verify(roomMessage2Communication, never()).convertMatrixInstantMessage2FHIRCommunication(any(MatrixEvent.class));
+    }
+
+    @Test
+    public void testPendingEditsAreCollectedByAnotherNode() throws Exception
+    {
+        when(eventID2CommunicationMap.getCommunicationVersion(ORIGINAL_EVENT)).thenReturn(new CommunicationVersion(COMMUNICATION_ID, "1"));
+        MatrixRoomMessageEditAggregator receivingNode = newAggregator(0L, false);
+        receivingNode.isNewMessage(messageEdit("$edit1:matrix.fhirbox.net", 2000L, "first"));
+        // e.g. the receiving node has since stopped: the edit is in the shared cache, not the node
+        MatrixRoomMessageEditAggregator otherNode = newAggregator(0L, true);
+        assertEquals(1, otherNode.collectDueCommunicationBundles().size());
+        assertTrue(receivingNode.collectDueCommunicationBundles().isEmpty());
+        assertTrue(sharedEntries.isEmpty());
+    }
+
+    @Test
+    public void testOnlyThePrimaryOwnerCollectsAPendingEdit() throws Exception
+    {
+        when(eventID2CommunicationMap.getCommunicationVersion(ORIGINAL_EVENT)).thenReturn(new CommunicationVersion(COMMUNICATION_ID, "1"));
+        MatrixRoomMessageEditAggregator backupNode = newAggregator(0L, false);
+        MatrixRoomMessageEditAggregator primaryNode = newAggregator(0L, true);
+        backupNode.isNewMessage(messageEdit("$edit1:matrix.fhirbox.net", 2000L, "first"));
+        // The (backup) copy held by the other node is due, but is left to the primary owner
+        assertTrue(backupNode.collectDueCommunicationBundles().isEmpty());
+        assertEquals(1, sharedEntries.size());
+        verify(roomMessage2Communication, never()).convertMatrixInstantMessage2FHIRCommunication(any(MatrixEvent.class));
+        assertEquals(1, primaryNode.collectDueCommunicationBundles().size());
+        assertTrue(sharedEntries.isEmpty());
+    }
+
+    @Test
+    public void testEditOfAnUnknownMessageIsDropped() throws Exception
+    {
+        MatrixRoomMessageEditAggregator messageEditAggregator = newAggregator(0L);
+        messageEditAggregator.isNewMessage(messageEdit("$edit1:matrix.fhirbox.net", 2000L, "first"));
+        assertTrue(messageEditAggregator.collectDueCommunicationBundles().isEmpty());
+        assertEquals(1, messageEditAggregator.getUnresolvedCount());
+        assertEquals(0, messageEditAggregator.getPendingEditCount());
+    }
+
+    @Test
+    public void testPendingEditEncodingRoundTrips()
+    {
+        String latestEdit = "{\"event_id\":\"$edit:matrix.fhirbox.net\",\"content\":{\"body\":\"a:b\"}}";
+        MatrixRoomMessageEditAggregator.PendingEdit pendingEdit = MatrixRoomMessageEditAggregator.PendingEdit.decode(
+                MatrixRoomMessageEditAggregator.PendingEdit.encode(new MatrixRoomMessageEditAggregator.PendingEdit(1000L, 2000L, latestEdit)));
+        assertEquals(1000L, pendingEdit.pendingSinceMillis);
+        assertEquals(2000L, pendingEdit.latestEditTimestamp);
+        assertEquals(latestEdit, pendingEdit.latestEdit);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging;
+
+import java.util.List;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixEventID2FHIRCommunicationMap;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixEventID2FHIRCommunicationMap.CommunicationVersion;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEvent;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.MatrixMessageException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.Type;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import static org.mockito.Mockito.*;
+import org.mockito.junit.MockitoJUnitRunner;
+
+/**
+ *
+ * @author ACT Health
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class MatrixRoomRedaction2FHIRCommunicationTest
+{
+
+    private static final String ORIGINAL_EVENT = "$original:matrix.fhirbox.net";
+
+    @Mock
+    MatrixEventID2FHIRCommunicationMap eventID2CommunicationMap;
+
+    @InjectMocks
+    MatrixRoomRedaction2FHIRCommunication roomRedaction2Communication;
+
+    private static MatrixEvent roomRedaction(String contentJSON) throws Exception
+    {
+        return (new MatrixEvent("{\"type\":\"m.room.redaction\",\"room_id\":\"!room:matrix.fhirbox.net\",\"sender\":\"@doug:matrix.fhirbox.net\","
+                + "\"event_id\":\"$redaction:matrix.fhirbox.net\",\"redacts\":\"" + ORIGINAL_EVENT + "\",\"content\":" + contentJSON + "}"));
+    }
+
+    // The -path- (delete, replace) or -name- (add) of each operation, with its type
+    private static String describeOperation(ParametersParameterComponent operation)
+    {
+        String operationType = null;
+        String operationTarget = null;
+        for (ParametersParameterComponent operationPart : operation.getPart()) {
+            if ("type".equals(operationPart.getName())) {
+                operationType = operationPart.getValue().primitiveValue();
+            } else if ("path".equals(operationPart.getName()) && (operationTarget == null)) {
+                operationTarget = operationPart.getValue().primitiveValue();
+            } else if ("name".equals(operationPart.getName())) {
+                operationTarget = operationPart.getValue().primitiveValue();
+            }
+        }
+        return (operationType + " " + operationTarget);
+    }
+
+    private static Type operationValue(ParametersParameterComponent operation)
+    {
+        for (ParametersParameterComponent operationPart : operation.getPart()) {
+            if ("value".equals(operationPart.getName())) {
+                return (operationPart.getValue());
+            }
+        }
+        return (null);
+    }
+
+    @Test
+    public void testRedactionPatchesOnlyWhatItChanges() throws Exception
+    {
+        String communicationID = MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(ORIGINAL_EVENT);
+        when(eventID2CommunicationMap.getCommunicationVersion(ORIGINAL_EVENT)).thenReturn(new CommunicationVersion(communicationID, "3"));
+        List<Bundle> redactionBundles = roomRedaction2Communication.convertMatrixRedaction2FHIRBundles(roomRedaction("{\"reason\":\"Wrong patient\"}"));
+        assertEquals(1, redactionBundles.size());
+        Bundle redactionBundle = redactionBundles.get(0);
+        assertEquals(Bundle.BundleType.TRANSACTION, redactionBundle.getType());
+        assertEquals(1, redactionBundle.getEntry().size());
+        Bundle.BundleEntryComponent redactionEntry = redactionBundle.getEntry().get(0);
+        assertEquals(Bundle.HTTPVerb.PATCH, redactionEntry.getRequest().getMethod());
+        assertEquals("Communication/" + communicationID, redactionEntry.getRequest().getUrl());
+        assertFalse(redactionEntry.getRequest().hasIfMatch());
+        Parameters redactionPatch = (Parameters) redactionEntry.getResource();
+        assertEquals(4, redactionPatch.getParameter().size());
+        assertEquals("replace Communication.status", describeOperation(redactionPatch.getParameter().get(0)));
+        assertEquals("entered-in-error", operationValue(redactionPatch.getParameter().get(0)).primitiveValue());
+        assertEquals("delete Communication.statusReason", describeOperation(redactionPatch.getParameter().get(1)));
+        assertEquals("add statusReason", describeOperation(redactionPatch.getParameter().get(2)));
+        assertEquals("Wrong patient", ((CodeableConcept) operationValue(redactionPatch.getParameter().get(2))).getText());
+        assertEquals("delete Communication.payload", describeOperation(redactionPatch.getParameter().get(3)));
+        // Nothing about the sender, sent time, subject, categories or inResponseTo is touched
+        for (ParametersParameterComponent operation : redactionPatch.getParameter()) {
+            assertFalse(describeOperation(operation).matches(".*(sender|sent|subject|category|inResponseTo).*"));
+        }
+        // The index only moves on once the Bundle is published
+        verify(eventID2CommunicationMap, never()).recordRedaction(any(MatrixEvent.class));
+        verify(eventID2CommunicationMap, never()).advanceCommunicationVersion(anyString(), anyString());
+        assertEquals(1L, roomRedaction2Communication.getRedactedCount());
+    }
+
+    @Test
+    public void testRedactionWithoutReasonHasTheDefaultReason() throws Exception
+    {
+        when(eventID2CommunicationMap.getCommunicationVersion(ORIGINAL_EVENT)).thenReturn(new CommunicationVersion(MatrixEventID2FHIRCommunicationMap.deriveCommunicationID(ORIGINAL_EVENT), "1"));
+        Parameters redactionPatch = (Parameters) roomRedaction2Communication.convertMatrixRedaction2FHIRBundles(roomRedaction("{}")).get(0).getEntry().get(0).getResource();
+        assertEquals("Redacted in RoomServer", ((CodeableConcept) operationValue(redactionPatch.getParameter().get(2))).getText());
+    }
+
+    @Test
+    public void testUnknownEventProducesNothing() throws Exception
+    {
+        when(eventID2CommunicationMap.getCommunicationVersion(ORIGINAL_EVENT)).thenReturn(null);
+        assertTrue(roomRedaction2Communication.convertMatrixRedaction2FHIRBundles(roomRedaction("{}")).isEmpty());
+        assertEquals(1L, roomRedaction2Communication.getUnresolvedCount());
+        assertEquals(0L, roomRedaction2Communication.getRedactedCount());
+    }
+
+    @Test(expected = MatrixMessageException.class)
+    public void testRedactionMustIdentifyTheRedactedEvent() throws Exception
+    {
+        roomRedaction2Communication.convertMatrixRedaction2FHIRBundles(new MatrixEvent("{\"type\":\"m.room.redaction\",\"room_id\":\"!room:matrix.fhirbox.net\","
+                + "\"event_id\":\"$redaction:matrix.fhirbox.net\",\"content\":{}}"));
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import javax.enterprise.inject.Instance;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.common.keyidentifiermaps.MatrixEventID2FHIRCommunicationMap;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEvent;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixFHIRTemplateFragments;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.PayloadTransformationOutcomeCounters;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.contentbuilders.MatrixRoomID2FHIRGroupReference;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.contentbuilders.MatrixRoomIMPayloadBuilder;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.contentbuilders.MatrixRoomIMTextMessageContent2FHIRCommunicationPayload;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.contentbuilders.MatrixRoomIMTextOnlyPayloadBuilder;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.instantmessaging.contentbuilders.MatrixUserID2FHIRPractitionerReference;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationResult;
+import net.fhirbox.pegacorn.communicate.iris.utilities.IrisFHIRContextService;
+import net.fhirbox.pegacorn.deploymentproperties.CommunicateProperties;
+import net.fhirbox.pegacorn.referencevalues.PegacornSystemReference;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import static org.mockito.Mockito.*;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnitRunner;
+
+/**
+ * Golden-file tests for the direct m.text FHIR::Bundle JSON writer - the
+ * expected output (src/test/resources/golden) is what the HAPI JsonParser
+ * produces for the FHIR::Bundle MatrixRoomIM2FHIRCommunication builds.
+ * <p>
+ * The writer is built from the MatrixFHIRTemplateFragments, and its output is
+ * compared with that of the transformer itself (only the FHIR::Group and
+ * FHIR::Practitioner Reference lookups are mocked).
+ *
+ * @author ACT Health
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class MatrixRoomTextMessage2FHIRBundleJSONWriterTest
+{
+
+    private static final String ROOMSERVER_IDENTIFIER_SYSTEM = "http://pegacorn.fhirbox.net/pegacorn/R1/roomserver-details";
+    private static final Date BUNDLE_TIMESTAMP = new Date(1588291201250L);
+
+    private static TimeZone defaultTimeZone;
+
+    @Mock
+    MatrixRoomID2FHIRGroupReference roomID2GroupReference;
+
+    @Mock
+    MatrixUserID2FHIRPractitionerReference userID2PractitionerReference;
+
+    @Mock
+    MatrixEventID2FHIRCommunicationMap eventID2CommunicationMap;
+
+    @Mock
+    Instance<MatrixRoomIMPayloadBuilder> payloadBuilders;
+
+    @Spy
+    PayloadTransformationOutcomeCounters outcomeCounters = new PayloadTransformationOutcomeCounters();
+
+    @Spy
+    CommunicateProperties communicateProperties = new CommunicateProperties();
+
+    @InjectMocks
+    MatrixRoomIMTextMessageContent2FHIRCommunicationPayload textPayloadMapper;
+
+    @InjectMocks
+    MatrixFHIRTemplateFragments templateFragments;
+
+    private MatrixRoomIM2FHIRCommunication roomMessage2Communication;
+
+    @BeforeClass
+    public static void setTimeZone()
+    {
+        // The golden files were captured in AEST (+10:00, no daylight saving in May)
+        defaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("Australia/Sydney"));
+    }
+
+    @AfterClass
+    public static void restoreTimeZone()
+    {
+        TimeZone.setDefault(defaultTimeZone);
+    }
+
+    @Before
+    public void setUp()
+    {
+        PegacornSystemReference pegacornSystemReference = new PegacornSystemReference();
+        templateFragments.initialise();
+        MatrixRoomIM2FHIRCommunicationSkeleton communicationSkeletonFactory = new MatrixRoomIM2FHIRCommunicationSkeleton();
+        communicationSkeletonFactory.pegacornSystemReference = pegacornSystemReference;
+        communicationSkeletonFactory.communicateProperties = communicateProperties;
+        communicationSkeletonFactory.roomID2GroupReference = roomID2GroupReference;
+        communicationSkeletonFactory.matrixUserID2PractitionerReferenceMapper = userID2PractitionerReference;
+        communicationSkeletonFactory.templateFragments = templateFragments;
+        MatrixRoomIMPayloadBuilderRegistry payloadBuilderRegistry = new MatrixRoomIMPayloadBuilderRegistry();
+        payloadBuilderRegistry.payloadBuilders = payloadBuilders;
+        IrisFHIRContextService fhirContextService = new IrisFHIRContextService();
+        fhirContextService.initialise();
+        roomMessage2Communication = new MatrixRoomIM2FHIRCommunication();
+        roomMessage2Communication.pegacornSystemReference = pegacornSystemReference;
+        roomMessage2Communication.templateFragments = templateFragments;
+        roomMessage2Communication.payloadBuilderRegistry = payloadBuilderRegistry;
+        roomMessage2Communication.roomID2GroupReference = roomID2GroupReference;
+        roomMessage2Communication.matrixUserID2PractitionerReferenceMapper = userID2PractitionerReference;
+        roomMessage2Communication.matrixTextContent2CommunicationPayloadMapper = textPayloadMapper;
+        roomMessage2Communication.communicationSkeletonFactory = communicationSkeletonFactory;
+        roomMessage2Communication.fhirContextService = fhirContextService;
+        roomMessage2Communication.eventID2CommunicationMap = eventID2CommunicationMap;
+    }
+
+    // Only the transformer tests need the payload builders and the Reference lookups
+    private void setUpTransformer(MatrixEvent event, Reference sender) throws Exception
+    {
+        when(payloadBuilders.iterator()).thenReturn(Collections.<MatrixRoomIMPayloadBuilder>singletonList(new MatrixRoomIMTextOnlyPayloadBuilder()).iterator());
+        roomMessage2Communication.payloadBuilderRegistry.initialise();
+        roomMessage2Communication.initialise();
+        when(roomID2GroupReference.buildFHIRGroupReferenceFromMatrixRoomID(event.getRoomID(), true))
+                .thenAnswer(invocation -> PayloadTransformationResult.success(subjectReference(event)));
+        when(userID2PractitionerReference.buildFHIRPractitionerReferenceFromMatrixUserID(event.getSender(), true))
+                .thenAnswer(invocation -> (sender == null) ? null : sender.copy());
+    }
+
+    private static String readResource(String resourceName) throws IOException
+    {
+        try (InputStream resourceStream = MatrixRoomTextMessage2FHIRBundleJSONWriterTest.class.getResourceAsStream(resourceName)) {
+            assertNotNull(resourceName, resourceStream);
+            byte[] resourceBytes = new byte[8192];
+            int resourceLength = 0;
+            int bytesRead;
+            while ((bytesRead = resourceStream.read(resourceBytes, resourceLength, resourceBytes.length - resourceLength)) > 0) {
+                resourceLength += bytesRead;
+            }
+            return (new String(resourceBytes, 0, resourceLength, StandardCharsets.UTF_8).trim());
+        }
+    }
+
+    private static MatrixEvent textEvent() throws Exception
+    {
+        return (new MatrixEvent(readResource("/golden/m.text-event.json")));
+    }
+
+    private static Reference identifierReference(String resourceType, Identifier.IdentifierUse use, String value)
+    {
+        Identifier identifier = new Identifier();
+        identifier.setUse(use);
+        identifier.setSystem(ROOMSERVER_IDENTIFIER_SYSTEM);
+        identifier.setValue(value);
+        Reference reference = new Reference();
+        reference.setIdentifier(identifier);
+        reference.setType(resourceType);
+        return (reference);
+    }
+
+    private static Reference subjectReference(MatrixEvent event)
+    {
+        return (identifierReference("Group", Identifier.IdentifierUse.SECONDARY, event.getRoomID()));
+    }
+
+    private static Reference senderReference(MatrixEvent event)
+    {
+        return (identifierReference("Practitioner", Identifier.IdentifierUse.TEMP, event.getSender()));
+    }
+
+    // Built exactly as MatrixRoomIM2FHIRCommunication.initialise() builds it
+    private MatrixRoomTextMessage2FHIRBundleJSONWriter newWriter()
+    {
+        return (new MatrixRoomTextMessage2FHIRBundleJSONWriter(
+                templateFragments.newCommunicationBundleMessageHeader(),
+                templateFragments.newHL7NotificationCategory(),
+                templateFragments.newMatrixMessageTypeCategory(MatrixRoomTextMessage2FHIRBundleJSONWriter.TEXT_MESSAGE_TYPE),
+                templateFragments.newRoomServerMessageNarrative()));
+    }
+
+    // The FHIR::Bundle as the transformer builds it, with the (otherwise "now") timestamp fixed
+    private String transformerBundleJSON(MatrixEvent event) throws Exception
+    {
+        List<Bundle> bundles = roomMessage2Communication.convertMatrixInstantMessage2FHIRElements(event);
+        assertEquals(1, bundles.size());
+        bundles.get(0).setTimestamp(BUNDLE_TIMESTAMP);
+        return (roomMessage2Communication.fhirContextService.newJsonParser().encodeResourceToString(bundles.get(0)));
+    }
+
+    private static JsonNode withoutTimestamp(JsonNode bundleNode)
+    {
+        ((ObjectNode) bundleNode).remove("timestamp");
+        return (bundleNode);
+    }
+
+    @Test
+    public void testWritesGoldenBundle() throws Exception
+    {
+        MatrixEvent event = textEvent();
+        MatrixRoomTextMessage2FHIRBundleJSONWriter writer = newWriter();
+        assertTrue(writer.canWrite(event, subjectReference(event), senderReference(event)));
+        byte[] bundleJSON = writer.writeCommunicationBundle(event, subjectReference(event), senderReference(event), BUNDLE_TIMESTAMP);
+        assertEquals(readResource("/golden/m.text-bundle.json"), new String(bundleJSON, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testWritesGoldenBundleWithoutSender() throws Exception
+    {
+        MatrixEvent event = textEvent();
+        MatrixRoomTextMessage2FHIRBundleJSONWriter writer = newWriter();
+        assertTrue(writer.canWrite(event, subjectReference(event), null));
+        byte[] bundleJSON = writer.writeCommunicationBundle(event, subjectReference(event), null, BUNDLE_TIMESTAMP);
+        assertEquals(readResource("/golden/m.text-bundle-no-sender.json"), new String(bundleJSON, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testMatchesTransformer() throws Exception
+    {
+        MatrixEvent event = textEvent();
+        setUpTransformer(event, senderReference(event));
+        ObjectMapper jsonMapper = new ObjectMapper();
+        String transformerJSON = transformerBundleJSON(event);
+        byte[] bundleJSON = newWriter().writeCommunicationBundle(event, subjectReference(event), senderReference(event), BUNDLE_TIMESTAMP);
+        assertEquals(jsonMapper.readTree(transformerJSON), jsonMapper.readTree(bundleJSON));
+        assertEquals(jsonMapper.readTree(readResource("/golden/m.text-bundle.json")), jsonMapper.readTree(transformerJSON));
+    }
+
+    @Test
+    public void testMatchesTransformerWithoutSender() throws Exception
+    {
+        MatrixEvent event = textEvent();
+        setUpTransformer(event, null);
+        ObjectMapper jsonMapper = new ObjectMapper();
+        String transformerJSON = transformerBundleJSON(event);
+        byte[] bundleJSON = newWriter().writeCommunicationBundle(event, subjectReference(event), null, BUNDLE_TIMESTAMP);
+        assertEquals(jsonMapper.readTree(transformerJSON), jsonMapper.readTree(bundleJSON));
+    }
+
+    @Test
+    public void testDirectJSONMatchesHAPISerialisation() throws Exception
+    {
+        MatrixEvent event = textEvent();
+        setUpTransformer(event, senderReference(event));
+        ObjectMapper jsonMapper = new ObjectMapper();
+        byte[] directJSON = roomMessage2Communication.convertMatrixInstantMessage2FHIRBundleJSON(event);
+        assertEquals(1L, roomMessage2Communication.getDirectJSONBundleCount());
+        assertEquals(0L, roomMessage2Communication.getParserJSONBundleCount());
+        assertEquals(withoutTimestamp(jsonMapper.readTree(transformerBundleJSON(event))), withoutTimestamp(jsonMapper.readTree(directJSON)));
+    }
+
+    @Test
+    public void testUnusualMessagesAreLeftToHAPI() throws Exception
+    {
+        MatrixRoomTextMessage2FHIRBundleJSONWriter writer = newWriter();
+        MatrixEvent reply = new MatrixEvent("{\"type\":\"m.room.message\",\"room_id\":\"!room:matrix.fhirbox.net\",\"sender\":\"@doug:matrix.fhirbox.net\","
+                + "\"event_id\":\"$reply:matrix.fhirbox.net\",\"content\":{\"msgtype\":\"m.text\",\"body\":\"> quoted\\n\\nreply\","
+                + "\"m.relates_to\":{\"m.in_reply_to\":{\"event_id\":\"$original:matrix.fhirbox.net\"}}}}");
+        assertFalse(writer.canWrite(reply, subjectReference(reply), senderReference(reply)));
+        MatrixEvent notice = new MatrixEvent("{\"type\":\"m.room.message\",\"room_id\":\"!room:matrix.fhirbox.net\",\"sender\":\"@doug:matrix.fhirbox.net\","
+                + "\"event_id\":\"$notice:matrix.fhirbox.net\",\"content\":{\"msgtype\":\"m.notice\",\"body\":\"Server restarting\"}}");
+        assertFalse(writer.canWrite(notice, subjectReference(notice), senderReference(notice)));
+        MatrixEvent event = textEvent();
+        assertFalse(writer.canWrite(event, null, senderReference(event)));
+        Reference mappedSender = senderReference(event);
+        mappedSender.getIdentifier().setPeriod(new Period().setStart(new Date()));
+        assertFalse(writer.canWrite(event, subjectReference(event), mappedSender));
+        Reference displayedSender = senderReference(event);
+        displayedSender.setDisplay("Doug Burrows");
+        assertFalse(writer.canWrite(event, subjectReference(event), displayedSender));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.rooms;
+
+import java.util.Arrays;
+import java.util.Collections;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEvent;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author ACT Health
+ */
+public class MatrixRoomMembershipIndexTest
+{
+
+    private static final String WARD_ROOM = "!ward4b:matrix.fhirbox.net";
+    private static final String THEATRE_ROOM = "!theatre2:matrix.fhirbox.net";
+    private static final String DOUG = "@doug:matrix.fhirbox.net";
+    private static final String ALICE = "@alice:matrix.fhirbox.net";
+
+    private static MatrixRoomMembershipIndex newIndex(long rosterLifespanMillis)
+    {
+        MatrixRoomMembershipIndex testIndex = new MatrixRoomMembershipIndex();
+        testIndex.processingProperties = mock(IrisProcessingProperties.class);
+        when(testIndex.processingProperties.getRoomStateViewLifespanMillis()).thenReturn(rosterLifespanMillis);
+        testIndex.initialise();
+        return (testIndex);
+    }
+
+    private static MatrixRoomMembershipIndex newIndex()
+    {
+        return (newIndex(60000L));
+    }
+
+    @Test
+    public void testMembershipTransitions()
+    {
+        MatrixRoomMembershipIndex testIndex = newIndex();
+        assertTrue(testIndex.applyMembership(WARD_ROOM, DOUG, "invite"));
+        assertTrue(testIndex.isInvited(WARD_ROOM, DOUG));
+        assertFalse(testIndex.isJoined(WARD_ROOM, DOUG));
+        assertTrue(testIndex.applyMembership(WARD_ROOM, DOUG, "join"));
+        assertTrue(testIndex.isJoined(WARD_ROOM, DOUG));
+        assertFalse(testIndex.isInvited(WARD_ROOM, DOUG));
+        assertTrue(testIndex.applyMembership(WARD_ROOM, DOUG, "ban"));
+        assertTrue(testIndex.isBanned(WARD_ROOM, DOUG));
+        assertFalse(testIndex.isJoined(WARD_ROOM, DOUG));
+        assertTrue(testIndex.applyMembership(WARD_ROOM, DOUG, "leave"));
+        assertFalse(testIndex.isBanned(WARD_ROOM, DOUG));
+        assertFalse(testIndex.applyMembership(WARD_ROOM, DOUG, "promoted"));
+        assertEquals(0, testIndex.getJoinedCount(WARD_ROOM));
+    }
+
+    @Test
+    public void testRoomsAreIndependent()
+    {
+        MatrixRoomMembershipIndex testIndex = newIndex();
+        testIndex.applyMembership(WARD_ROOM, DOUG, "join");
+        testIndex.applyMembership(WARD_ROOM, ALICE, "join");
+        testIndex.applyMembership(THEATRE_ROOM, ALICE, "invite");
+        assertEquals(Arrays.asList(DOUG, ALICE), testIndex.getJoinedMembers(WARD_ROOM));
+        assertEquals(Collections.emptyList(), testIndex.getJoinedMembers(THEATRE_ROOM));
+        assertEquals(Collections.singletonList(ALICE), testIndex.getInvitedMembers(THEATRE_ROOM));
+        assertEquals(2, testIndex.getRoomCount());
+    }
+
+    @Test
+    public void testOrdinalsAreSizedByRoomMembership()
+    {
+        MatrixRoomMembershipIndex testIndex = newIndex();
+        for (int memberIndex = 0; memberIndex < 1000; memberIndex++) {
+            testIndex.applyMembership(WARD_ROOM, "@staff" + memberIndex + ":matrix.fhirbox.net", "join");
+        }
+        testIndex.applyMembership(THEATRE_ROOM, "@staff999:matrix.fhirbox.net", "join");
+        assertEquals(1000, testIndex.getInternedUserCount(WARD_ROOM));
+        assertEquals(1, testIndex.getInternedUserCount(THEATRE_ROOM));
+    }
+
+    @Test
+    public void testJoinedSnapshotDiffs()
+    {
+        MatrixRoomMembershipIndex testIndex = newIndex();
+        for (int memberIndex = 0; memberIndex < 1000; memberIndex++) {
+            testIndex.applyMembership(WARD_ROOM, "@staff" + memberIndex + ":matrix.fhirbox.net", "join");
+        }
+        MatrixRoomMembershipIndex.JoinedSnapshot previousSnapshot = testIndex.getJoinedSnapshot(WARD_ROOM);
+        testIndex.applyMembership(WARD_ROOM, "@staff10:matrix.fhirbox.net", "leave");
+        testIndex.applyMembership(WARD_ROOM, "@staff20:matrix.fhirbox.net", "ban");
+        testIndex.applyMembership(WARD_ROOM, DOUG, "join");
+        MatrixRoomMembershipIndex.JoinedSnapshot currentSnapshot = testIndex.getJoinedSnapshot(WARD_ROOM);
+        assertEquals(999, currentSnapshot.getJoinedCount());
+        assertEquals(Collections.singletonList(DOUG), testIndex.getJoinedSince(previousSnapshot, currentSnapshot));
+        assertEquals(Arrays.asList("@staff10:matrix.fhirbox.net", "@staff20:matrix.fhirbox.net"), testIndex.getDepartedSince(previousSnapshot, currentSnapshot));
+        assertEquals(999, testIndex.getJoinedSince(null, currentSnapshot).size());
+        assertEquals(Collections.emptyList(), testIndex.getDepartedSince(null, currentSnapshot));
+    }
+
+    @Test
+    public void testIdleRostersAreEvicted()
+    {
+        MatrixRoomMembershipIndex testIndex = newIndex(0L);
+        testIndex.applyMembership(WARD_ROOM, DOUG, "join");
+        testIndex.applyMembership(WARD_ROOM, ALICE, "join");
+        MatrixRoomMembershipIndex.JoinedSnapshot previousSnapshot = testIndex.getJoinedSnapshot(WARD_ROOM);
+        assertEquals(1, testIndex.evictIdleRosters());
+        assertEquals(0, testIndex.getRoomCount());
+        assertFalse(testIndex.isJoined(WARD_ROOM, DOUG));
+        // A roster started after the eviction has its own ordinals, so the diff falls back to the user IDs
+        testIndex.applyMembership(WARD_ROOM, ALICE, "join");
+        testIndex.applyMembership(WARD_ROOM, "@carol:matrix.fhirbox.net", "join");
+        MatrixRoomMembershipIndex.JoinedSnapshot currentSnapshot = testIndex.getJoinedSnapshot(WARD_ROOM);
+        assertEquals(Collections.singletonList("@carol:matrix.fhirbox.net"), testIndex.getJoinedSince(previousSnapshot, currentSnapshot));
+        assertEquals(Collections.singletonList(DOUG), testIndex.getDepartedSince(previousSnapshot, currentSnapshot));
+    }
+
+    @Test
+    public void testActiveRostersAreKept()
+    {
+        MatrixRoomMembershipIndex testIndex = newIndex();
+        testIndex.applyMembership(WARD_ROOM, DOUG, "join");
+        assertEquals(0, testIndex.evictIdleRosters());
+        assertTrue(testIndex.isJoined(WARD_ROOM, DOUG));
+    }
+
+    @Test
+    public void testAppliesMemberEvents() throws Exception
+    {
+        MatrixRoomMembershipIndex testIndex = newIndex();
+        testIndex.applyMembershipEvent(new MatrixEvent("{\"type\":\"m.room.member\",\"room_id\":\"" + WARD_ROOM + "\",\"sender\":\"" + DOUG + "\","
+                + "\"state_key\":\"" + DOUG + "\",\"event_id\":\"$join:matrix.fhirbox.net\",\"content\":{\"membership\":\"join\",\"displayname\":\"Doug\"}}"));
+        testIndex.applyMembershipEvent(new MatrixEvent("{\"type\":\"m.room.message\",\"room_id\":\"" + WARD_ROOM + "\",\"sender\":\"" + ALICE + "\","
+                + "\"event_id\":\"$text:matrix.fhirbox.net\",\"content\":{\"msgtype\":\"m.text\",\"body\":\"join\"}}"));
+        assertEquals(Collections.singletonList(DOUG), testIndex.getJoinedMembers(WARD_ROOM));
+    }
+}
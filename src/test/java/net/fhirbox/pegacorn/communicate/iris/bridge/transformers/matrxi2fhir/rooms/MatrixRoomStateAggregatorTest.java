@@ -0,0 +1,246 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.rooms;
+
+import java.util.ArrayList;
+import java.util.List;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixEvent;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.common.MatrixFHIRTemplateFragments;
+import net.fhirbox.pegacorn.communicate.iris.bridge.transformers.matrxi2fhir.rooms.contentbuilders.RoomInfoName2Group;
+import net.fhirbox.pegacorn.communicate.iris.common.Exceptions.PayloadTransformationResult;
+import net.fhirbox.pegacorn.fhir.r4.model.common.GroupPC;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import static org.mockito.Mockito.*;
+import org.mockito.junit.MockitoJUnitRunner;
+
+/**
+ *
+ * @author ACT Health
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class MatrixRoomStateAggregatorTest
+{
+
+    private static final String ROOMSERVER_IDENTIFIER_SYSTEM = "http://pegacorn.fhirbox.net/pegacorn/R1/roomserver-details";
+    private static final String DISPLAY_NAME_URL = "http://pegacorn.fhirbox.net/pegacorn/R1/identifier-friendly-name";
+    private static final String WARD_ROOM = "!ward4b:matrix.fhirbox.net";
+    private static final String DOUG = "@doug:matrix.fhirbox.net";
+    private static final String ALICE = "@alice:matrix.fhirbox.net";
+
+    @Mock
+    MatrixRoomEvent2FHIRGroup roomState2Group;
+
+    @Mock
+    RoomInfoName2Group roomName2Group;
+
+    @Mock
+    MatrixFHIRTemplateFragments templateFragments;
+
+    private MatrixRoomMembershipIndex roomMembershipIndex;
+    private MatrixRoomStateAggregator aggregator;
+
+    @Before
+    public void setUp()
+    {
+        aggregator = new MatrixRoomStateAggregator();
+        aggregator.roomState2Group = roomState2Group;
+        aggregator.roomName2Group = roomName2Group;
+        aggregator.templateFragments = templateFragments;
+        // The default debounce window is 0, so every changed view is due at once
+        aggregator.processingProperties = new IrisProcessingProperties();
+        aggregator.initialise();
+        roomMembershipIndex = new MatrixRoomMembershipIndex();
+        roomMembershipIndex.processingProperties = aggregator.processingProperties;
+        roomMembershipIndex.initialise();
+        aggregator.roomMembershipIndex = roomMembershipIndex;
+    }
+
+    private static MatrixEvent stateEvent(String eventType, String stateKey) throws Exception
+    {
+        return (new MatrixEvent("{\"type\":\"" + eventType + "\",\"room_id\":\"" + WARD_ROOM + "\",\"state_key\":\"" + stateKey
+                + "\",\"event_id\":\"$" + eventType + stateKey + ":matrix.fhirbox.net\",\"content\":{}}"));
+    }
+
+    private static Identifier identifier(String value)
+    {
+        return (new Identifier().setSystem(ROOMSERVER_IDENTIFIER_SYSTEM).setValue(value));
+    }
+
+    private static GroupPC roomGroup()
+    {
+        GroupPC roomGroup = new GroupPC();
+        roomGroup.addIdentifier(identifier(WARD_ROOM));
+        return (roomGroup);
+    }
+
+    // As MatrixRoomEvent2FHIRGroupAttributeBuilders builds it - the displayname is an extension of the member Identifier
+    private static GroupPC memberGroup(String userID, String displayName)
+    {
+        Identifier memberIdentifier = identifier(userID);
+        memberIdentifier.addExtension(DISPLAY_NAME_URL, new StringType(displayName));
+        GroupPC memberGroup = roomGroup();
+        memberGroup.addMember().setEntity(new Reference().setIdentifier(memberIdentifier).setType("Practitioner"));
+        return (memberGroup);
+    }
+
+    // As the m.room.member route does - the membership index first, then the view
+    private void applyMember(String userID, String displayName, String membership) throws Exception
+    {
+        MatrixEvent memberEvent = stateEvent("m.room.member", userID);
+        when(roomState2Group.roomCreateEvent2Group(memberEvent)).thenReturn(PayloadTransformationResult.success(memberGroup(userID, displayName)));
+        roomMembershipIndex.applyMembership(WARD_ROOM, userID, membership);
+        aggregator.applyRoomStateEvent(memberEvent);
+    }
+
+    private void applyMember(String userID, String displayName) throws Exception
+    {
+        applyMember(userID, displayName, "join");
+    }
+
+    private void applyCreate() throws Exception
+    {
+        MatrixEvent createEvent = stateEvent("m.room.create", "");
+        GroupPC createGroup = roomGroup();
+        createGroup.setName("Ward 4B");
+        when(roomState2Group.roomCreateEvent2Group(createEvent)).thenReturn(PayloadTransformationResult.success(createGroup));
+        aggregator.applyRoomStateEvent(createEvent);
+    }
+
+    private Bundle.BundleEntryComponent collectSingleGroupEntry()
+    {
+        when(templateFragments.newGroupBundleMessageHeader()).thenReturn(new MessageHeader());
+        List<Bundle> groupBundles = aggregator.collectDueGroupBundles();
+        assertEquals(1, groupBundles.size());
+        assertEquals(2, groupBundles.get(0).getEntry().size());
+        Bundle.BundleEntryComponent groupEntry = groupBundles.get(0).getEntry().get(1);
+        assertTrue(groupEntry.getRequest().getUrl().startsWith("Group?identifier="));
+        return (groupEntry);
+    }
+
+    private static List<String> operationPaths(Parameters groupPatch)
+    {
+        List<String> operationPaths = new ArrayList<>();
+        for (Parameters.ParametersParameterComponent operation : groupPatch.getParameter()) {
+            String operationType = operation.getPart().get(0).getValue().primitiveValue();
+            String operationPath = operation.getPart().get(1).getValue().primitiveValue();
+            if ("add".equals(operationType)) {
+                operationPath += "." + operation.getPart().get(2).getValue().primitiveValue();
+            }
+            operationPaths.add(operationType + " " + operationPath);
+        }
+        return (operationPaths);
+    }
+
+    @Test
+    public void testCompleteViewIsPutWithOneMemberPerUser() throws Exception
+    {
+        applyCreate();
+        applyMember(DOUG, "Doug");
+        applyMember(ALICE, "Alice");
+        applyMember(DOUG, "Doug Burrows");
+        Bundle.BundleEntryComponent groupEntry = collectSingleGroupEntry();
+        assertEquals(Bundle.HTTPVerb.PUT, groupEntry.getRequest().getMethod());
+        Group group = (Group) groupEntry.getResource();
+        assertEquals("Ward 4B", group.getName());
+        assertEquals(1, group.getIdentifier().size());
+        assertEquals(2, group.getMember().size());
+        Identifier dougIdentifier = group.getMember().get(1).getEntity().getIdentifier();
+        assertEquals(DOUG, dougIdentifier.getValue());
+        assertEquals("Doug Burrows", dougIdentifier.getExtensionByUrl(DISPLAY_NAME_URL).getValue().primitiveValue());
+    }
+
+    @Test
+    public void testPartialViewIsPatchedWithItsChangesOnly() throws Exception
+    {
+        applyMember(DOUG, "Doug");
+        applyMember(DOUG, "Doug Burrows");
+        Bundle.BundleEntryComponent firstEntry = collectSingleGroupEntry();
+        assertEquals(Bundle.HTTPVerb.PATCH, firstEntry.getRequest().getMethod());
+        Parameters firstPatch = (Parameters) firstEntry.getResource();
+        List<String> firstPaths = operationPaths(firstPatch);
+        assertTrue(firstPaths.contains("delete Group.member.where(entity.identifier.system = '" + ROOMSERVER_IDENTIFIER_SYSTEM
+                + "' and entity.identifier.value = '" + DOUG + "')"));
+        assertEquals(1, firstPaths.stream().filter(path -> path.equals("add Group.member")).count());
+        assertTrue(aggregator.collectDueGroupBundles().isEmpty());
+        applyMember(ALICE, "Alice");
+        Parameters secondPatch = (Parameters) collectSingleGroupEntry().getResource();
+        List<String> secondPaths = operationPaths(secondPatch);
+        assertEquals(1, secondPaths.stream().filter(path -> path.equals("add Group.member")).count());
+        assertTrue(secondPaths.stream().noneMatch(path -> path.contains(DOUG)));
+        assertTrue(secondPaths.stream().anyMatch(path -> path.contains(ALICE)));
+    }
+
+    @Test
+    public void testMemberDiffMarksDepartedMembersInactive() throws Exception
+    {
+        applyCreate();
+        applyMember(DOUG, "Doug");
+        applyMember(ALICE, "Alice");
+        Group firstGroup = (Group) collectSingleGroupEntry().getResource();
+        assertEquals(2, firstGroup.getQuantity());
+        assertTrue(firstGroup.getMember().stream().noneMatch(member -> member.getInactive()));
+        applyMember(DOUG, "Doug", "leave");
+        Group secondGroup = (Group) collectSingleGroupEntry().getResource();
+        assertEquals(1, secondGroup.getQuantity());
+        assertEquals(2, secondGroup.getMember().size());
+        for (Group.GroupMemberComponent member : secondGroup.getMember()) {
+            assertEquals(DOUG.equals(member.getEntity().getIdentifier().getValue()), member.getInactive());
+        }
+    }
+
+    @Test
+    public void testPartialViewPatchCarriesTheMemberDiff() throws Exception
+    {
+        applyMember(DOUG, "Doug");
+        collectSingleGroupEntry();
+        applyMember(DOUG, "Doug", "ban");
+        Parameters memberPatch = (Parameters) collectSingleGroupEntry().getResource();
+        Parameters.ParametersParameterComponent memberValue = memberPatch.getParameter().stream()
+                .filter(operation -> (operation.getPart().size() == 4) && "member".equals(operation.getPart().get(2).getValue().primitiveValue()))
+                .findFirst().get().getPart().get(3);
+        assertTrue(memberValue.getPart().stream().anyMatch(part -> "inactive".equals(part.getName()) && "true".equals(part.getValue().primitiveValue())));
+    }
+
+    @Test
+    public void testPatchLiteralsAreEscaped()
+    {
+        Group groupChanges = new Group();
+        groupChanges.addIdentifier(identifier("#o'brien\\ward:matrix.fhirbox.net"));
+        List<String> operationPaths = operationPaths(MatrixRoomStateGroupPatchBuilder.buildGroupPatch(groupChanges));
+        assertEquals("delete Group.identifier.where(system = '" + ROOMSERVER_IDENTIFIER_SYSTEM + "' and value = '#o\\'brien\\\\ward:matrix.fhirbox.net')", operationPaths.get(0));
+        assertEquals("add Group.identifier", operationPaths.get(1));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.utilities;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.infinispan.Cache;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author ACT Health
+ */
+public class IrisBidirectionalIndexTest
+{
+
+    private Map<String, byte[]> sharedEntries;
+    private Cache<String, byte[]> sharedCache;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp()
+    {
+        sharedEntries = new HashMap<>();
+        sharedCache = mock(Cache.class);
+        when(sharedCache.get(anyString())).thenAnswer(invocation -> sharedEntries.get((String) invocation.getArguments()[0]));
+        when(sharedCache.putAllAsync(anyMap(), anyLong(), any(TimeUnit.class))).thenAnswer(invocation -> {
+            sharedEntries.putAll((Map<String, byte[]>) invocation.getArguments()[0]);
+            return (CompletableFuture.completedFuture(null));
+        });
+    }
+
+    @Test
+    public void testPairIsReadableInBothDirections()
+    {
+        IrisBidirectionalIndex index = new IrisBidirectionalIndex(sharedCache, 100, 16);
+        index.put("@alice:matrix.fhirbox.net", "token-1", "token-1".getBytes(StandardCharsets.UTF_8));
+        assertArrayEquals("token-1".getBytes(StandardCharsets.UTF_8), index.getForwardValue("@alice:matrix.fhirbox.net"));
+        assertEquals("@alice:matrix.fhirbox.net", index.getForwardKey("token-1"));
+    }
+
+    @Test
+    public void testPairIsWrittenInOneCall()
+    {
+        IrisBidirectionalIndex index = new IrisBidirectionalIndex(sharedCache, 100, 16);
+        index.put("!room1:matrix.fhirbox.net", "Group/1", new byte[]{1, 2, 3});
+        verify(sharedCache, times(1)).putAllAsync(anyMap(), anyLong(), any(TimeUnit.class));
+        verify(sharedCache, never()).put(anyString(), any(byte[].class));
+        assertEquals(2, sharedEntries.size());
+    }
+
+    @Test
+    public void testHalfWrittenPairIsNotObserved()
+    {
+        IrisBidirectionalIndex index = new IrisBidirectionalIndex(sharedCache, 100, 16);
+        index.put("!room1:matrix.fhirbox.net", "Group/1", new byte[]{1});
+        // As if the reverse entry were visible before the forward entry
+        sharedEntries.remove("F:!room1:matrix.fhirbox.net");
+        IrisBidirectionalIndex otherNodeIndex = new IrisBidirectionalIndex(sharedCache, 100, 16);
+        assertNull(otherNodeIndex.getForwardKey("Group/1"));
+    }
+
+    @Test
+    public void testSupersededReverseEntryIsIgnored()
+    {
+        IrisBidirectionalIndex index = new IrisBidirectionalIndex(sharedCache, 100, 16);
+        index.put("!room1:matrix.fhirbox.net", "Group/1", new byte[]{1});
+        index.put("!room1:matrix.fhirbox.net", "Group/2", new byte[]{2});
+        assertNull(index.getForwardKey("Group/1"));
+        assertEquals("!room1:matrix.fhirbox.net", index.getForwardKey("Group/2"));
+        assertArrayEquals(new byte[]{2}, index.getForwardValue("!room1:matrix.fhirbox.net"));
+    }
+
+    @Test
+    public void testRepointedPairReleasesItsOldReverseKey()
+    {
+        IrisBidirectionalIndex index = new IrisBidirectionalIndex(sharedCache, 100, 16);
+        index.put("!room1:matrix.fhirbox.net", "Group/1", new byte[]{1});
+        index.put("!room1:matrix.fhirbox.net", "Group/2", new byte[]{2});
+        // The old reverse entry is emptied in the same putAll() as the re-pointed pair
+        verify(sharedCache, times(2)).putAllAsync(anyMap(), anyLong(), any(TimeUnit.class));
+        assertEquals(0, sharedEntries.get("R:Group/1").length);
+        assertEquals(3, sharedEntries.size());
+        IrisBidirectionalIndex otherNodeIndex = new IrisBidirectionalIndex(sharedCache, 100, 16);
+        assertNull(otherNodeIndex.getForwardKey("Group/1"));
+        assertEquals("!room1:matrix.fhirbox.net", otherNodeIndex.getForwardKey("Group/2"));
+    }
+
+    @Test
+    public void testRewrittenPairKeepsItsReverseKey()
+    {
+        IrisBidirectionalIndex index = new IrisBidirectionalIndex(sharedCache, 100, 16);
+        index.put("!room1:matrix.fhirbox.net", "Group/1", new byte[]{1});
+        index.put("!room1:matrix.fhirbox.net", "Group/1", new byte[]{3});
+        assertEquals(2, sharedEntries.size());
+        assertEquals("!room1:matrix.fhirbox.net", index.getForwardKey("Group/1"));
+        assertArrayEquals(new byte[]{3}, index.getForwardValue("!room1:matrix.fhirbox.net"));
+    }
+
+    @Test
+    public void testUnknownKeysAreAbsent()
+    {
+        IrisBidirectionalIndex index = new IrisBidirectionalIndex(sharedCache, 100, 16);
+        assertNull(index.getForwardValue("!unknown:matrix.fhirbox.net"));
+        assertNull(index.getForwardKey("Group/unknown"));
+        assertNull(index.getForwardKey(null));
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.utilities;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.infinispan.Cache;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author ACT Health
+ */
+public class IrisCacheWriteBehindTest
+{
+
+    private Cache<String, String> sharedCache;
+    private List<CompletableFuture<Void>> issuedWrites;
+    private List<Map<String, String>> issuedEntries;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp()
+    {
+        issuedWrites = new ArrayList<>();
+        issuedEntries = new ArrayList<>();
+        sharedCache = mock(Cache.class);
+        when(sharedCache.putAllAsync(anyMap(), anyLong(), any(TimeUnit.class))).thenAnswer(invocation -> {
+            CompletableFuture<Void> issuedWrite = new CompletableFuture<>();
+            issuedWrites.add(issuedWrite);
+            issuedEntries.add((Map<String, String>) invocation.getArguments()[0]);
+            return (issuedWrite);
+        });
+        when(sharedCache.removeAsync(anyString())).thenAnswer(invocation -> {
+            CompletableFuture<Void> issuedWrite = new CompletableFuture<>();
+            issuedWrites.add(issuedWrite);
+            return (issuedWrite);
+        });
+    }
+
+    private IrisCacheWriteBehind<String, String> newWriteBehind()
+    {
+        return (new IrisCacheWriteBehind<>(new IrisNearCache<>(sharedCache, 100), 16));
+    }
+
+    @Test
+    public void testWriteIsReadableBeforeAcknowledgement()
+    {
+        IrisCacheWriteBehind<String, String> writeBehind = newWriteBehind();
+        writeBehind.put("!room1:matrix.fhirbox.net", "Ward 1");
+        assertEquals("Ward 1", writeBehind.get("!room1:matrix.fhirbox.net"));
+        verify(sharedCache, never()).get(anyString());
+        assertEquals(1, writeBehind.getPendingWriteCount());
+    }
+
+    @Test
+    public void testRepeatedWritesAreCoalesced()
+    {
+        IrisCacheWriteBehind<String, String> writeBehind = newWriteBehind();
+        writeBehind.put("!room1:matrix.fhirbox.net", "Ward 1");
+        writeBehind.put("!room1:matrix.fhirbox.net", "Ward 2");
+        writeBehind.put("!room1:matrix.fhirbox.net", "Ward 3");
+        assertEquals(1, issuedWrites.size());
+        assertEquals("Ward 3", writeBehind.get("!room1:matrix.fhirbox.net"));
+        issuedWrites.get(0).complete(null);
+        assertEquals(2, issuedWrites.size());
+        assertEquals("Ward 3", issuedEntries.get(1).get("!room1:matrix.fhirbox.net"));
+        assertEquals(1, writeBehind.getCoalescedWriteCount());
+        issuedWrites.get(1).complete(null);
+        assertEquals(0, writeBehind.getPendingWriteCount());
+        assertEquals(2, writeBehind.getWriteCount());
+    }
+
+    @Test
+    public void testRemoveIsReadableBeforeAcknowledgement()
+    {
+        IrisCacheWriteBehind<String, String> writeBehind = newWriteBehind();
+        writeBehind.put("!room1:matrix.fhirbox.net", "Ward 1");
+        writeBehind.remove("!room1:matrix.fhirbox.net");
+        assertNull(writeBehind.get("!room1:matrix.fhirbox.net"));
+        issuedWrites.get(0).complete(null);
+        verify(sharedCache).removeAsync("!room1:matrix.fhirbox.net");
+    }
+
+    @Test
+    public void testAcknowledgedWriteIsReadFromSharedCache()
+    {
+        IrisCacheWriteBehind<String, String> writeBehind = newWriteBehind();
+        writeBehind.put("!room1:matrix.fhirbox.net", "Ward 1");
+        when(sharedCache.get("!room1:matrix.fhirbox.net")).thenReturn("Ward 1");
+        issuedWrites.get(0).complete(null);
+        assertEquals("Ward 1", writeBehind.get("!room1:matrix.fhirbox.net"));
+        verify(sharedCache).get("!room1:matrix.fhirbox.net");
+    }
+
+    @Test
+    public void testFailedWriteIsRetried()
+    {
+        IrisCacheWriteBehind<String, String> writeBehind = newWriteBehind();
+        writeBehind.put("!room1:matrix.fhirbox.net", "Ward 1");
+        writeBehind.put("!room1:matrix.fhirbox.net", "Ward 2");
+        issuedWrites.get(0).completeExceptionally(new IllegalStateException("No owners"));
+        assertEquals(2, issuedWrites.size());
+        assertEquals("Ward 1", issuedEntries.get(1).get("!room1:matrix.fhirbox.net"));
+        assertEquals("Ward 2", writeBehind.get("!room1:matrix.fhirbox.net"));
+        issuedWrites.get(1).complete(null);
+        assertEquals(3, issuedWrites.size());
+        assertEquals("Ward 2", issuedEntries.get(2).get("!room1:matrix.fhirbox.net"));
+        issuedWrites.get(2).complete(null);
+        assertEquals(1, writeBehind.getRetriedWriteCount());
+        assertEquals(0, writeBehind.getFailedWriteCount());
+        assertEquals(0, writeBehind.getPendingWriteCount());
+        assertTrue(writeBehind.flush(20));
+    }
+
+    @Test
+    public void testFailedWriteIsAbandonedAfterItsRetries()
+    {
+        IrisCacheWriteBehind<String, String> writeBehind = newWriteBehind();
+        writeBehind.put("!room1:matrix.fhirbox.net", "Ward 1");
+        for (int attempt = 0; attempt < 3; attempt++) {
+            issuedWrites.get(attempt).completeExceptionally(new IllegalStateException("No owners"));
+        }
+        assertEquals(3, issuedWrites.size());
+        assertEquals(2, writeBehind.getRetriedWriteCount());
+        assertEquals(1, writeBehind.getFailedWriteCount());
+        assertEquals(0, writeBehind.getPendingWriteCount());
+        assertNull(writeBehind.get("!room1:matrix.fhirbox.net"));
+        assertFalse(writeBehind.flush(20));
+        assertTrue(writeBehind.flush(20));
+    }
+
+    @Test
+    public void testCoalescedPutAllWithdrawsTheSupersededEntries()
+    {
+        IrisCacheWriteBehind<String, String> writeBehind = newWriteBehind();
+        Map<String, String> firstEntries = new HashMap<>();
+        firstEntries.put("F:!room1:matrix.fhirbox.net", "Ward 1");
+        firstEntries.put("R:Ward 1", "!room1:matrix.fhirbox.net");
+        firstEntries.put("R:Ward 0", "");
+        writeBehind.putAll("F:!room1:matrix.fhirbox.net", firstEntries);
+        Map<String, String> supersededEntries = new HashMap<>();
+        supersededEntries.put("F:!room1:matrix.fhirbox.net", "Ward 2");
+        supersededEntries.put("R:Ward 2", "!room1:matrix.fhirbox.net");
+        supersededEntries.put("R:Ward 1", "");
+        writeBehind.putAll("F:!room1:matrix.fhirbox.net", supersededEntries);
+        Map<String, String> latestEntries = new HashMap<>();
+        latestEntries.put("F:!room1:matrix.fhirbox.net", "Ward 3");
+        latestEntries.put("R:Ward 3", "!room1:matrix.fhirbox.net");
+        writeBehind.putAll("F:!room1:matrix.fhirbox.net", latestEntries);
+        // Ward 2 was only ever in the superseded write, Ward 1 falls back to the in-flight write's value
+        assertNull(writeBehind.get("R:Ward 2"));
+        assertEquals("!room1:matrix.fhirbox.net", writeBehind.get("R:Ward 1"));
+        assertEquals("", writeBehind.get("R:Ward 0"));
+        assertEquals("Ward 3", writeBehind.get("F:!room1:matrix.fhirbox.net"));
+        issuedWrites.get(0).complete(null);
+        assertEquals(2, issuedWrites.size());
+        assertEquals(latestEntries, issuedEntries.get(1));
+        issuedWrites.get(1).complete(null);
+        assertNull(writeBehind.get("R:Ward 1"));
+        assertEquals(0, writeBehind.getPendingWriteCount());
+    }
+
+    @Test
+    public void testFlushWaitsForAcknowledgement()
+    {
+        IrisCacheWriteBehind<String, String> writeBehind = newWriteBehind();
+        writeBehind.put("!room1:matrix.fhirbox.net", "Ward 1");
+        assertFalse(writeBehind.flush(20));
+        issuedWrites.get(0).complete(null);
+        assertTrue(writeBehind.flush(20));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.utilities;
+
+import org.infinispan.Cache;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author ACT Health
+ */
+public class IrisNearCacheTest
+{
+
+    private Cache<String, String> sharedCache;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp()
+    {
+        sharedCache = mock(Cache.class);
+        when(sharedCache.get("!room1:matrix.fhirbox.net")).thenReturn("Group/1");
+    }
+
+    @Test
+    public void testHotKeyIsServedLocally()
+    {
+        IrisNearCache<String, String> nearCache = new IrisNearCache<>(sharedCache, 100);
+        assertEquals("Group/1", nearCache.get("!room1:matrix.fhirbox.net"));
+        assertEquals("Group/1", nearCache.get("!room1:matrix.fhirbox.net"));
+        assertEquals("Group/1", nearCache.get("!room1:matrix.fhirbox.net"));
+        verify(sharedCache, times(1)).get("!room1:matrix.fhirbox.net");
+        assertEquals(2, nearCache.getHitCount());
+        assertEquals(1, nearCache.getMissCount());
+    }
+
+    @Test
+    public void testAbsentKeyIsServedLocally()
+    {
+        IrisNearCache<String, String> nearCache = new IrisNearCache<>(sharedCache, 100);
+        assertNull(nearCache.get("!unknown:matrix.fhirbox.net"));
+        assertNull(nearCache.get("!unknown:matrix.fhirbox.net"));
+        verify(sharedCache, times(1)).get("!unknown:matrix.fhirbox.net");
+    }
+
+    @Test
+    public void testInvalidationForcesSharedRead()
+    {
+        IrisNearCache<String, String> nearCache = new IrisNearCache<>(sharedCache, 100);
+        assertEquals("Group/1", nearCache.get("!room1:matrix.fhirbox.net"));
+        when(sharedCache.get("!room1:matrix.fhirbox.net")).thenReturn("Group/2");
+        nearCache.invalidate("!room1:matrix.fhirbox.net");
+        assertEquals("Group/2", nearCache.get("!room1:matrix.fhirbox.net"));
+        assertEquals(1, nearCache.getInvalidationCount());
+    }
+
+    @Test
+    public void testWriteGoesToSharedCacheAndInvalidates()
+    {
+        IrisNearCache<String, String> nearCache = new IrisNearCache<>(sharedCache, 100);
+        nearCache.get("!room1:matrix.fhirbox.net");
+        nearCache.put("!room1:matrix.fhirbox.net", "Group/3");
+        verify(sharedCache).put("!room1:matrix.fhirbox.net", "Group/3");
+        assertEquals(0, nearCache.getEntryCount());
+    }
+
+    @Test
+    public void testStaleReadIsNotKept()
+    {
+        IrisNearCache<String, String> nearCache = new IrisNearCache<>(sharedCache, 100);
+        // An invalidation that lands while the shared cache is being read
+        when(sharedCache.get("!room1:matrix.fhirbox.net")).thenAnswer(invocation -> {
+            nearCache.invalidate("!room1:matrix.fhirbox.net");
+            return ("Group/1");
+        });
+        assertEquals("Group/1", nearCache.get("!room1:matrix.fhirbox.net"));
+        assertEquals(0, nearCache.getEntryCount());
+    }
+
+    @Test
+    public void testLocalEntriesAreBounded()
+    {
+        IrisNearCache<String, String> nearCache = new IrisNearCache<>(sharedCache, 10);
+        for (int index = 0; index < 50; index++) {
+            nearCache.get("!room" + index + ":matrix.fhirbox.net");
+        }
+        assertEquals(10, nearCache.getEntryCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedKeyIsEvicted()
+    {
+        IrisNearCache<String, String> nearCache = new IrisNearCache<>(sharedCache, 2);
+        nearCache.get("!room1:matrix.fhirbox.net");
+        nearCache.get("!room2:matrix.fhirbox.net");
+        nearCache.get("!room1:matrix.fhirbox.net");
+        nearCache.get("!room3:matrix.fhirbox.net");
+        // room1 was used after room2, so room2 is the one evicted
+        nearCache.get("!room1:matrix.fhirbox.net");
+        verify(sharedCache, times(1)).get("!room1:matrix.fhirbox.net");
+        nearCache.get("!room2:matrix.fhirbox.net");
+        verify(sharedCache, times(2)).get("!room2:matrix.fhirbox.net");
+    }
+
+    @Test
+    public void testLargeNearCacheIsStripedAndBounded()
+    {
+        IrisNearCache<String, String> nearCache = new IrisNearCache<>(sharedCache, 1000);
+        assertTrue(nearCache.getStripeCount() > 1);
+        for (int index = 0; index < 20000; index++) {
+            nearCache.get("!room" + index + ":matrix.fhirbox.net");
+        }
+        assertEquals(1000, nearCache.getEntryCount());
+    }
+
+    @Test
+    public void testSmallNearCacheIsOneStripe()
+    {
+        IrisNearCache<String, String> nearCache = new IrisNearCache<>(sharedCache, 10);
+        assertEquals(1, nearCache.getStripeCount());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.utilities;
+
+import java.io.File;
+import java.nio.file.Paths;
+import net.fhirbox.pegacorn.communicate.iris.IrisProcessingProperties;
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfiguration;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.context.Flag;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Runs the persistent configuration in a local (non-clustered) cache
+ * manager: store, restart, preload.
+ *
+ * @author ACT Health
+ */
+public class IrisSharedCacheManagerTest
+{
+
+    private static final String CACHE_NAME = "Pegacorn.Communicate.Iris.MatrixRoomID2MatrixRoomMap";
+
+    @Rule
+    public TemporaryFolder persistenceFolder = new TemporaryFolder();
+
+    private IrisSharedCacheManager sharedCacheManager;
+
+    @Before
+    public void setUp()
+    {
+        sharedCacheManager = new IrisSharedCacheManager();
+        sharedCacheManager.processingProperties = mock(IrisProcessingProperties.class);
+        when(sharedCacheManager.processingProperties.isPersistenceEnabled()).thenReturn(true);
+        when(sharedCacheManager.processingProperties.getPersistenceDirectory()).thenReturn(persistenceFolder.getRoot().getPath());
+    }
+
+    private DefaultCacheManager startLocalCacheManager()
+    {
+        GlobalConfiguration globalConfig = sharedCacheManager.withGlobalState(new GlobalConfigurationBuilder().nonClusteredDefault()).build();
+        DefaultCacheManager localCacheManager = new DefaultCacheManager(globalConfig);
+        localCacheManager.defineConfiguration(CACHE_NAME, sharedCacheManager.persistent(CACHE_NAME, new ConfigurationBuilder().build()));
+        return (localCacheManager);
+    }
+
+    @Test
+    public void testGlobalStateIsKeptUnderThePersistenceDirectory()
+    {
+        GlobalConfiguration globalConfig = sharedCacheManager.withGlobalState(new GlobalConfigurationBuilder().nonClusteredDefault()).build();
+        assertTrue(globalConfig.globalState().enabled());
+        assertEquals(Paths.get(persistenceFolder.getRoot().getPath(), "global-state").toString(), globalConfig.globalState().persistentLocation());
+    }
+
+    @Test
+    public void testGlobalStateIsNotEnabledWithoutPersistence()
+    {
+        when(sharedCacheManager.processingProperties.isPersistenceEnabled()).thenReturn(false);
+        GlobalConfiguration globalConfig = sharedCacheManager.withGlobalState(new GlobalConfigurationBuilder().nonClusteredDefault()).build();
+        assertFalse(globalConfig.globalState().enabled());
+    }
+
+    @Test
+    public void testStoredEntriesArePreloadedAfterARestart()
+    {
+        DefaultCacheManager firstCacheManager = startLocalCacheManager();
+        try {
+            Cache<String, String> roomCache = firstCacheManager.getCache(CACHE_NAME);
+            roomCache.put("!room1:matrix.fhirbox.net", "Ward 1");
+            roomCache.put("!room2:matrix.fhirbox.net", "Ward 2");
+        } finally {
+            firstCacheManager.stop();
+        }
+        assertTrue(new File(persistenceFolder.getRoot(), "global-state").isDirectory());
+        assertTrue(new File(new File(persistenceFolder.getRoot(), CACHE_NAME), "data").isDirectory());
+        DefaultCacheManager restartedCacheManager = startLocalCacheManager();
+        try {
+            Cache<String, String> roomCache = restartedCacheManager.getCache(CACHE_NAME);
+            // Skipping the store, so only the preloaded (in memory) entries are seen
+            AdvancedCache<String, String> inMemoryCache = roomCache.getAdvancedCache().withFlags(Flag.SKIP_CACHE_LOAD);
+            assertEquals(2, inMemoryCache.size());
+            assertEquals("Ward 1", inMemoryCache.get("!room1:matrix.fhirbox.net"));
+            assertEquals("Ward 2", inMemoryCache.get("!room2:matrix.fhirbox.net"));
+        } finally {
+            restartedCacheManager.stop();
+        }
+    }
+}
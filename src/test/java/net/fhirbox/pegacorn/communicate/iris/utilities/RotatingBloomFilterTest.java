@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.communicate.iris.utilities;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author ACT Health
+ */
+public class RotatingBloomFilterTest
+{
+
+    private static String eventID(int index)
+    {
+        return ("$" + index + "-event:matrix.fhirbox.net");
+    }
+
+    @Test
+    public void testNoFalseNegatives()
+    {
+        RotatingBloomFilter testFilter = new RotatingBloomFilter(10000, 0.001);
+        for (int index = 0; index < 5000; index++) {
+            assertFalse(testFilter.put(eventID(index)) && !testFilter.mightContain(eventID(index)));
+        }
+        for (int index = 0; index < 5000; index++) {
+            assertTrue(testFilter.mightContain(eventID(index)));
+            assertTrue(testFilter.put(eventID(index)));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRateIsBounded()
+    {
+        RotatingBloomFilter testFilter = new RotatingBloomFilter(10000, 0.01);
+        for (int index = 0; index < 9999; index++) {
+            testFilter.put(eventID(index));
+        }
+        int falsePositives = 0;
+        for (int index = 100000; index < 110000; index++) {
+            if (testFilter.mightContain(eventID(index))) {
+                falsePositives++;
+            }
+        }
+        // Allow some slack over the 1% target (100 of 10000)
+        assertTrue("False positives --> " + falsePositives, falsePositives < 200);
+    }
+
+    @Test
+    public void testRotationForgetsOldestGeneration()
+    {
+        RotatingBloomFilter testFilter = new RotatingBloomFilter(1000, 0.001);
+        testFilter.put("first-event");
+        for (int index = 0; index < 999; index++) {
+            testFilter.put(eventID(index));
+        }
+        // The first generation is (at most) the previous generation, so still remembered
+        assertTrue(testFilter.mightContain("first-event"));
+        for (int index = 1000; index < 2500; index++) {
+            testFilter.put(eventID(index));
+        }
+        // ... and after at least one more full generation, it has been discarded
+        assertFalse(testFilter.mightContain("first-event"));
+    }
+}